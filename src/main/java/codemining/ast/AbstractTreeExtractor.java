@@ -2,16 +2,20 @@ package codemining.ast;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Collections;
 
 import codemining.languagetools.ITokenizer;
 import codemining.languagetools.ParseType;
+import codemining.util.SettingsLoader;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Maps;
 
 /**
  * An abstract class for extracting tree nodes from code.
@@ -29,20 +33,69 @@ public abstract class AbstractTreeExtractor implements Serializable {
 
 	private static final long serialVersionUID = -1685391461506804381L;
 
-	private int nextSymbolId = 0;
+	/**
+	 * If true, the trees extracted from files are cached in the default tree
+	 * cache, unless another cache is set.
+	 */
+	public static final boolean USE_TREE_CACHE = SettingsLoader
+			.getBooleanSetting("UseTreeCache", false);
+
+	/**
+	 * The serialized form of the extractor. The symbol table is stored as a
+	 * BiMap, as in older versions, so that trained models remain readable.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("nextSymbolId", int.class),
+			new ObjectStreamField("internTrees", boolean.class),
+			new ObjectStreamField("nodeAlphabet", BiMap.class),
+			new ObjectStreamField("frozen", boolean.class) };
+
+	/**
+	 * If true, the trees returned by getTree() are immutable and hash-consed.
+	 * See TreeNode.toInternedImmutable().
+	 */
+	private boolean internTrees = false;
+
+	/**
+	 * The symbol table, or its frozen snapshot. Null for extractors that
+	 * delegate to another one.
+	 */
+	private SymbolAlphabet symbols;
 
 	/**
-	 * The symbol map.
+	 * The cache of the trees extracted from files. Null for the default.
 	 */
-	protected final BiMap<Integer, AstNodeSymbol> nodeAlphabet;
+	private transient TreeCache treeCache = null;
 
 	public AbstractTreeExtractor() {
-		final BiMap<Integer, AstNodeSymbol> base = HashBiMap.create();
-		nodeAlphabet = Maps.synchronizedBiMap(base);
+		symbols = new SymbolTable();
 	}
 
+	/**
+	 * Create an extractor whose symbol table starts with the given alphabet.
+	 * The alphabet is copied. Extractors that delegate all symbol operations
+	 * may pass null.
+	 *
+	 * @param alphabet
+	 */
 	protected AbstractTreeExtractor(final BiMap<Integer, AstNodeSymbol> alphabet) {
-		nodeAlphabet = alphabet;
+		symbols = alphabet == null ? null : new SymbolTable(alphabet);
+	}
+
+	/**
+	 * Freeze the alphabet of this extractor and return it. From now on, the
+	 * alphabet is immutable and symbols that are not in it get the id of the
+	 * unknown symbol. Extractors with equal alphabets share the frozen
+	 * alphabet. The alphabet remains frozen when this extractor is serialized.
+	 * This should not be called while trees are being extracted.
+	 *
+	 * @return
+	 */
+	public synchronized FrozenAlphabet freeze() {
+		if (!(symbols instanceof FrozenAlphabet)) {
+			symbols = FrozenAlphabet.of(symbols.asBiMap());
+		}
+		return (FrozenAlphabet) symbols;
 	}
 
 	/**
@@ -54,6 +107,17 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract String getCodeFromTree(final TreeNode<Integer> tree);
 
+	/**
+	 * Return the id of the first symbol of the given node type, or -1 if
+	 * there is none.
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	public int getFirstSymbolIdOfType(final int nodeType) {
+		return symbols.getFirstIdOfType(nodeType);
+	}
+
 	/**
 	 * Return the node representing the compilation unit.
 	 *
@@ -61,28 +125,37 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract TreeNode<Integer> getKeyForCompilationUnit();
 
+	/**
+	 * Return a string identifying the way this extractor builds trees. Cached
+	 * trees are only reused by extractors with the same signature, so
+	 * extractors with options that change the trees should include them.
+	 *
+	 * @return
+	 */
+	public String getExtractionSignature() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Return a read-only view of the symbols and their ids. The view is live,
+	 * unless the alphabet is frozen.
+	 *
+	 * @return
+	 */
 	public BiMap<Integer, AstNodeSymbol> getNodeAlphabet() {
-		return nodeAlphabet;
+		return symbols.asBiMap();
 	}
 
 	/**
 	 * Return the id of the symbol, or create a new one. This will lock the
-	 * symbol and thus the id will remain right.
+	 * symbol and thus the id will remain right. This is safe to call from
+	 * multiple threads and does not lock when the symbol exists.
 	 *
 	 * @param symbol
 	 * @return
 	 */
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
-		final Integer id = nodeAlphabet.inverse().get(symbol);
-		if (id != null) {
-			return id;
-		} else {
-			symbol.lockFromChanges();
-			final int currentSymboId = nextSymbolId;
-			nextSymbolId++;
-			nodeAlphabet.put(currentSymboId, symbol);
-			return currentSymboId;
-		}
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
+		return symbols.getOrAddId(symbol);
 	}
 
 	/**
@@ -93,7 +166,17 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 * @return
 	 */
 	public AstNodeSymbol getSymbol(final int key) {
-		return nodeAlphabet.get(key);
+		return symbols.getSymbol(key);
+	}
+
+	/**
+	 * Return the ids of all the symbols of the given node type.
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	public int[] getSymbolIdsOfType(final int nodeType) {
+		return symbols.getIdsOfType(nodeType);
 	}
 
 	/**
@@ -121,6 +204,31 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract TreeNode<Integer> getTree(String code, ParseType parseType);
 
+	/**
+	 * Return the immutable, interned version of the tree if tree interning is
+	 * enabled. Otherwise return the tree as is.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	protected TreeNode<Integer> internIfNeeded(final TreeNode<Integer> tree) {
+		if (internTrees && tree != null) {
+			return tree.toInternedImmutable();
+		}
+		return tree;
+	}
+
+	/**
+	 * @return true if the alphabet is frozen. See freeze().
+	 */
+	public boolean isFrozen() {
+		return symbols instanceof FrozenAlphabet;
+	}
+
+	public boolean isInterningTrees() {
+		return internTrees;
+	}
+
 	/**
 	 * Convert a node (symbol) into its string representation. This may (and
 	 * will) depend on the language.
@@ -129,6 +237,39 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract TreeToString getTreePrinter();
 
+	/**
+	 * Return the cache of the trees extracted from files, or null if trees
+	 * are not cached.
+	 *
+	 * @return
+	 */
+	public TreeCache getTreeCache() {
+		if (treeCache == null && USE_TREE_CACHE) {
+			return TreeCache.getDefault();
+		}
+		return treeCache;
+	}
+
+	/**
+	 * Return the tree of the file from the tree cache or, when there is no
+	 * cache, extract it. getTree(File) implementations should use this, so
+	 * that caching is transparent to the callers.
+	 *
+	 * @param f
+	 * @param extraction
+	 *            extracts the tree of the file
+	 * @return
+	 * @throws IOException
+	 */
+	protected TreeNode<Integer> getTreeUsingCache(final File f,
+			final TreeCache.Extraction extraction) throws IOException {
+		final TreeCache cache = getTreeCache();
+		if (cache == null) {
+			return extraction.extract(f);
+		}
+		return cache.getTree(f, this, extraction);
+	}
+
 	/**
 	 * @param buf
 	 * @param intTree
@@ -154,4 +295,58 @@ public abstract class AbstractTreeExtractor implements Serializable {
 		}
 	}
 
-}
\ No newline at end of file
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		final ObjectInputStream.GetField fields = in.readFields();
+		internTrees = fields.get("internTrees", false);
+		@SuppressWarnings("unchecked")
+		final BiMap<Integer, AstNodeSymbol> alphabet = (BiMap<Integer, AstNodeSymbol>) fields
+				.get("nodeAlphabet", null);
+		if (alphabet == null) {
+			symbols = null;
+		} else if (fields.get("frozen", false)) {
+			symbols = FrozenAlphabet.of(alphabet);
+		} else {
+			symbols = new SymbolTable(alphabet);
+		}
+	}
+
+	/**
+	 * Enable or disable tree interning. When enabled, getTree() returns
+	 * immutable trees where all identical subtrees (across all extracted
+	 * trees) are shared, saving memory on large corpora. Interned trees cannot
+	 * be modified and their nodes may appear in multiple positions, so this
+	 * should not be used when identity-based node maps are built over the
+	 * trees (e.g. for TSG sampling).
+	 *
+	 * @param intern
+	 */
+	public void setInternTrees(final boolean intern) {
+		internTrees = intern;
+	}
+
+	/**
+	 * Set the cache of the trees extracted from files. Null uses the default
+	 * cache, if UseTreeCache is set.
+	 *
+	 * @param cache
+	 */
+	public void setTreeCache(final TreeCache cache) {
+		treeCache = cache;
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		final ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("internTrees", internTrees);
+		if (symbols != null) {
+			final BiMap<Integer, AstNodeSymbol> alphabet = HashBiMap
+					.create(symbols.asBiMap());
+			fields.put("nextSymbolId",
+					alphabet.isEmpty() ? 0 : Collections.max(alphabet.keySet()) + 1);
+			fields.put("nodeAlphabet", alphabet);
+			fields.put("frozen", isFrozen());
+		}
+		out.writeFields();
+	}
+
+}
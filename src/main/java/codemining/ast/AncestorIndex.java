@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import codemining.ast.TreeNode.NodeParents;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An index of the ancestors of all the nodes in a tree. The index is built
+ * once, in a single (non-recursive) pass and then parent, root and path queries
+ * take O(depth) time, while ancestor checks take O(1).
+ *
+ * Nodes are identified by their preorder position. Node identity (not
+ * equality) is used, so the tree should not change after the index is built
+ * and it should not be an interned tree, where the same node may appear in
+ * multiple positions.
+ *
+ */
+public final class AncestorIndex<T extends Serializable> {
+
+	/**
+	 * The preorder position of each node.
+	 */
+	private final Map<TreeNode<T>, Integer> nodeIds = Maps
+			.newIdentityHashMap();
+
+	/**
+	 * The nodes in preorder.
+	 */
+	private final List<TreeNode<T>> nodes = Lists.newArrayList();
+
+	/**
+	 * The position of the parent of each node. -1 for the root.
+	 */
+	private final int[] parents;
+
+	/**
+	 * The property of the parent that each node belongs to. -1 for the root.
+	 */
+	private final int[] parentProperties;
+
+	/**
+	 * The index of each node in its parent's property. -1 for the root.
+	 */
+	private final int[] childIndexes;
+
+	/**
+	 * The depth of each node. The root has depth 0.
+	 */
+	private final int[] depths;
+
+	/**
+	 * The (exclusive) preorder position where the subtree of each node ends.
+	 */
+	private final int[] subtreeEnds;
+
+	public AncestorIndex(final TreeNode<T> root) {
+		final int size = root.getTreeSize();
+		parents = new int[size];
+		parentProperties = new int[size];
+		childIndexes = new int[size];
+		depths = new int[size];
+		subtreeEnds = new int[size];
+
+		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+		final ArrayDeque<int[]> toVisitPositions = new ArrayDeque<int[]>();
+		toVisit.push(root);
+		toVisitPositions.push(new int[] { -1, -1, -1 });
+
+		while (!toVisit.isEmpty()) {
+			final TreeNode<T> current = toVisit.pop();
+			final int[] position = toVisitPositions.pop();
+			final int currentId = nodes.size();
+			checkArgument(nodeIds.put(current, currentId) == null,
+					"Node appears more than once in the tree");
+			nodes.add(current);
+			parents[currentId] = position[0];
+			parentProperties[currentId] = position[1];
+			childIndexes[currentId] = position[2];
+			depths[currentId] = position[0] == -1 ? 0
+					: depths[position[0]] + 1;
+
+			// Push in reverse, so that the children are visited in order.
+			final List<List<TreeNode<T>>> children = current
+					.getChildrenByProperty();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				final List<TreeNode<T>> childrenForProperty = children.get(i);
+				for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+					toVisit.push(childrenForProperty.get(j));
+					toVisitPositions.push(new int[] { currentId, i, j });
+				}
+			}
+		}
+
+		// Compute the subtree sizes bottom-up and convert them to ends
+		for (int i = size - 1; i >= 0; i--) {
+			subtreeEnds[i] += 1;
+			if (parents[i] != -1) {
+				subtreeEnds[parents[i]] += subtreeEnds[i];
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			subtreeEnds[i] += i;
+		}
+	}
+
+	/**
+	 * Return true if the given node is in the indexed tree.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public boolean contains(final TreeNode<T> node) {
+		return nodeIds.containsKey(node);
+	}
+
+	/**
+	 * Return the ancestors of the given node. The first element is the parent
+	 * of the node, while the last is the root of the tree.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public List<TreeNode<T>> getAncestors(final TreeNode<T> node) {
+		final int nodeId = getId(node);
+		final List<TreeNode<T>> ancestors = Lists
+				.newArrayListWithCapacity(depths[nodeId]);
+		for (int current = parents[nodeId]; current != -1; current = parents[current]) {
+			ancestors.add(nodes.get(current));
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Return the depth of the node, i.e. the number of its ancestors.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getDepth(final TreeNode<T> node) {
+		return depths[getId(node)];
+	}
+
+	/**
+	 * Return the preorder position of the given node.
+	 *
+	 * @param node
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the node is not in the tree
+	 */
+	public int getId(final TreeNode<T> node) {
+		final Integer id = nodeIds.get(node);
+		checkArgument(id != null, "Node is not in the indexed tree");
+		return id;
+	}
+
+	/**
+	 * Return the closest ancestor of the node that satisfies the predicate or
+	 * null if there is no such ancestor. The node itself is not considered.
+	 *
+	 * @param node
+	 * @param predicate
+	 * @return
+	 */
+	public TreeNode<T> getNearestAncestor(final TreeNode<T> node,
+			final Predicate<TreeNode<T>> predicate) {
+		for (int current = parents[getId(node)]; current != -1; current = parents[current]) {
+			if (predicate.test(nodes.get(current))) {
+				return nodes.get(current);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the node at the given preorder position.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public TreeNode<T> getNode(final int id) {
+		return nodes.get(id);
+	}
+
+	/**
+	 * Return the path from the root of the tree to the given node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public NodeParents<T> getNodeParents(final TreeNode<T> node) {
+		final NodeParents<T> nodeParents = new NodeParents<T>(node);
+		int current = getId(node);
+		while (parents[current] != -1) {
+			nodeParents.throughNodes.add(nodes.get(parents[current]));
+			nodeParents.nextProperty.add(parentProperties[current]);
+			nodeParents.nextChildIndex.add(childIndexes[current]);
+			current = parents[current];
+		}
+		return nodeParents;
+	}
+
+	/**
+	 * Return the parent of the given node or null if this is the root.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public TreeNode<T> getParent(final TreeNode<T> node) {
+		final int parentId = parents[getId(node)];
+		if (parentId == -1) {
+			return null;
+		}
+		return nodes.get(parentId);
+	}
+
+	/**
+	 * @return the root of the indexed tree.
+	 */
+	public TreeNode<T> getRoot() {
+		return nodes.get(0);
+	}
+
+	/**
+	 * Return true if the ancestor is a proper ancestor of the node.
+	 *
+	 * @param ancestor
+	 * @param node
+	 * @return
+	 */
+	public boolean isAncestorOf(final TreeNode<T> ancestor,
+			final TreeNode<T> node) {
+		final int ancestorId = getId(ancestor);
+		final int nodeId = getId(node);
+		return ancestorId < nodeId && nodeId < subtreeEnds[ancestorId];
+	}
+
+	/**
+	 * @return the number of nodes in the indexed tree.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+}
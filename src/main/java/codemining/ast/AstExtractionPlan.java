@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+/**
+ * The structural properties of an AST node type, resolved once per node type
+ * (and AST API level), so that extracting a node does not look up or search
+ * its descriptor lists. The AST API of each language (e.g. JDT or JSDT) is
+ * given by an AstLanguage.
+ *
+ * @param <N>
+ *            the AST node type
+ * @param <S>
+ *            the simple property descriptor type
+ * @param <P>
+ *            the structural property descriptor type
+ */
+public final class AstExtractionPlan<N, S extends P, P> {
+
+	/**
+	 * The AST API of a language, along with the plans of its node types.
+	 */
+	public static abstract class AstLanguage<N, S extends P, P> {
+
+		/**
+		 * The plans, indexed by API level and node type. Replaced (never
+		 * modified) when a plan is added.
+		 */
+		private volatile AstExtractionPlan<N, S, P>[][] plans = newPlanTable(
+				0, 0);
+
+		private synchronized AstExtractionPlan<N, S, P> addPlan(final N node,
+				final int apiLevel, final int nodeType) throws Exception {
+			final AstExtractionPlan<N, S, P>[][] current = plans;
+			final AstExtractionPlan<N, S, P> existing = getPlan(current,
+					apiLevel, nodeType);
+			if (existing != null) {
+				return existing;
+			}
+			final AstExtractionPlan<N, S, P> plan = new AstExtractionPlan<N, S, P>(
+					this, node);
+
+			final AstExtractionPlan<N, S, P>[][] updated = Arrays.copyOf(
+					current, Math.max(current.length, apiLevel + 1));
+			final AstExtractionPlan<N, S, P>[] levelPlans = updated[apiLevel];
+			updated[apiLevel] = levelPlans == null ? newPlanTable(1,
+					nodeType + 1)[0] : Arrays.copyOf(levelPlans,
+					Math.max(levelPlans.length, nodeType + 1));
+			updated[apiLevel][nodeType] = plan;
+			plans = updated;
+			return plan;
+		}
+
+		/**
+		 * Return the API level of the AST of the given node.
+		 */
+		protected abstract int getApiLevel(N node);
+
+		/**
+		 * Return the child properties of the given node type.
+		 */
+		protected abstract List<P> getChildProperties(int nodeType)
+				throws Exception;
+
+		/**
+		 * Return the id of the given property.
+		 */
+		protected abstract String getId(P property);
+
+		/**
+		 * Return the type of the given node.
+		 */
+		protected abstract int getNodeType(N node);
+
+		/**
+		 * Return the plan of the type of the given node.
+		 *
+		 * @param node
+		 * @return
+		 * @throws Exception
+		 */
+		public final AstExtractionPlan<N, S, P> getPlan(final N node)
+				throws Exception {
+			final int apiLevel = getApiLevel(node);
+			final int nodeType = getNodeType(node);
+			final AstExtractionPlan<N, S, P> plan = getPlan(plans, apiLevel,
+					nodeType);
+			if (plan != null) {
+				return plan;
+			}
+			return addPlan(node, apiLevel, nodeType);
+		}
+
+		private AstExtractionPlan<N, S, P> getPlan(
+				final AstExtractionPlan<N, S, P>[][] plans, final int apiLevel,
+				final int nodeType) {
+			if (apiLevel >= plans.length || plans[apiLevel] == null
+					|| nodeType >= plans[apiLevel].length) {
+				return null;
+			}
+			return plans[apiLevel][nodeType];
+		}
+
+		/**
+		 * Return the simple properties of the given node type.
+		 */
+		protected abstract List<S> getSimpleProperties(int nodeType)
+				throws Exception;
+
+		/**
+		 * Return the structural properties that the type of the given node
+		 * supports.
+		 */
+		protected abstract List<?> getSupportedProperties(N node);
+
+		/**
+		 * Return true if the given property holds a single child, rather than
+		 * a list.
+		 */
+		protected abstract boolean isChildProperty(P property);
+
+		@SuppressWarnings("unchecked")
+		private AstExtractionPlan<N, S, P>[][] newPlanTable(
+				final int nApiLevels, final int nNodeTypes) {
+			return new AstExtractionPlan[nApiLevels][nNodeTypes];
+		}
+	}
+
+	public final int nodeType;
+
+	/**
+	 * The simple properties that the node type supports.
+	 */
+	public final List<S> simpleProperties;
+
+	public final String[] simplePropertyIds;
+
+	/**
+	 * All the child properties of the node type. These define the child
+	 * properties of the symbols.
+	 */
+	public final List<P> childProperties;
+
+	public final String[] childPropertyIds;
+
+	/**
+	 * The positions (in childProperties) of the child properties that the
+	 * node type supports.
+	 */
+	public final int[] supportedChildSlots;
+
+	/**
+	 * Whether each child property holds a single child, rather than a list.
+	 */
+	public final boolean[] isSingleChild;
+
+	private AstExtractionPlan(final AstLanguage<N, S, P> language,
+			final N node) throws Exception {
+		nodeType = language.getNodeType(node);
+		final List<?> supportedDescriptors = language
+				.getSupportedProperties(node);
+
+		final List<S> supportedSimpleProperties = Lists.newArrayList();
+		for (final S sp : language.getSimpleProperties(nodeType)) {
+			if (supportedDescriptors.contains(sp)) {
+				supportedSimpleProperties.add(sp);
+			}
+		}
+		simpleProperties = ImmutableList.copyOf(supportedSimpleProperties);
+		simplePropertyIds = new String[simpleProperties.size()];
+		for (int i = 0; i < simplePropertyIds.length; i++) {
+			simplePropertyIds[i] = language.getId(simpleProperties.get(i));
+		}
+
+		childProperties = ImmutableList.copyOf(language
+				.getChildProperties(nodeType));
+		childPropertyIds = new String[childProperties.size()];
+		isSingleChild = new boolean[childProperties.size()];
+		final List<Integer> supportedSlots = Lists.newArrayList();
+		for (int i = 0; i < childPropertyIds.length; i++) {
+			final P property = childProperties.get(i);
+			childPropertyIds[i] = language.getId(property);
+			isSingleChild[i] = language.isChildProperty(property);
+			if (supportedDescriptors.contains(property)) {
+				supportedSlots.add(i);
+			}
+		}
+		supportedChildSlots = Ints.toArray(supportedSlots);
+	}
+
+}
@@ -219,10 +219,18 @@ public class AstNodeSymbol implements Serializable {
 		annotations = ImmutableSortedMap.copyOf(annotations);
 	}
 
+	public final int nAnnotations() {
+		return annotations.size();
+	}
+
 	public final int nChildProperties() {
 		return childProperties.size();
 	}
 
+	public final int nSimpleProperties() {
+		return simplePropValues.size();
+	}
+
 	@Override
 	public String toString() {
 		return toString(DEFAULT_NODETYPE_TO_STRING);
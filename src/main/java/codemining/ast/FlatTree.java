@@ -0,0 +1,436 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * An immutable tree stored in parallel primitive arrays. Nodes are identified
+ * by their preorder index (the root is 0). For each node we keep its symbol
+ * id, the index of its parent and the property of the parent it belongs to.
+ * Children are stored per (node, property) slot, as ranges of preorder
+ * indexes.
+ *
+ * This representation is much more compact than a graph of TreeNode objects
+ * and all traversals are linear scans over arrays. Use it for storing large
+ * tree corpora and convert to TreeNodes only when needed.
+ *
+ */
+public final class FlatTree implements Serializable {
+
+	/**
+	 * Create the data of a single node when converting back to a TreeNode.
+	 */
+	@FunctionalInterface
+	public interface NodeDataFactory<T extends Serializable> {
+		T create(FlatTree tree, int node);
+	}
+
+	private static final long serialVersionUID = -5210393226516002758L;
+
+	/**
+	 * Create a flat tree from a tree node.
+	 *
+	 * @param tree
+	 * @param toSymbol
+	 *            the function returning the symbol id of each node's data
+	 * @param flag
+	 *            a predicate for setting the per-node flag bit. May be null.
+	 * @return
+	 */
+	public static <T extends Serializable> FlatTree fromTree(
+			final TreeNode<T> tree, final ToIntFunction<? super T> toSymbol,
+			final Predicate<? super T> flag) {
+		checkNotNull(tree);
+		checkNotNull(toSymbol);
+		final int size = tree.getTreeSize();
+
+		final int[] symbols = new int[size];
+		final int[] parents = new int[size];
+		final int[] parentProperties = new int[size];
+		final int[] subtreeEnds = new int[size];
+		final int[] propertyOffsets = new int[size + 1];
+		final int[] children = new int[size - 1];
+		int[] slotOffsets = new int[Math.max(size, 1) + 1];
+		final BitSet flags = new BitSet(flag != null ? size : 0);
+
+		// A stack of nodes to visit, along with the slot in the children array
+		// that they need to be written to.
+		final Object[] nodeStack = new Object[size];
+		final int[] parentStack = new int[size];
+		final int[] propertyStack = new int[size];
+		final int[] positionStack = new int[size];
+		int stackSize = 0;
+
+		nodeStack[0] = tree;
+		parentStack[0] = -1;
+		propertyStack[0] = -1;
+		positionStack[0] = -1;
+		stackSize++;
+
+		int nextNode = 0;
+		int nextSlot = 0;
+		while (stackSize > 0) {
+			stackSize--;
+			@SuppressWarnings("unchecked")
+			final TreeNode<T> current = (TreeNode<T>) nodeStack[stackSize];
+			nodeStack[stackSize] = null;
+
+			final int currentId = nextNode;
+			nextNode++;
+			symbols[currentId] = toSymbol.applyAsInt(current.getData());
+			parents[currentId] = parentStack[stackSize];
+			parentProperties[currentId] = propertyStack[stackSize];
+			if (positionStack[stackSize] >= 0) {
+				children[positionStack[stackSize]] = currentId;
+			}
+			if (flag != null && flag.test(current.getData())) {
+				flags.set(currentId);
+			}
+
+			// Allocate the property slots for this node
+			final List<List<TreeNode<T>>> childrenProperties = current
+					.getChildrenByProperty();
+			final int nProperties = childrenProperties.size();
+			propertyOffsets[currentId] = nextSlot;
+			if (nextSlot + nProperties + 1 > slotOffsets.length) {
+				slotOffsets = Arrays.copyOf(slotOffsets,
+						Math.max(2 * slotOffsets.length, nextSlot
+								+ nProperties + 1));
+			}
+			for (int i = 0; i < nProperties; i++) {
+				slotOffsets[nextSlot + i + 1] = slotOffsets[nextSlot + i]
+						+ childrenProperties.get(i).size();
+			}
+
+			// Push children in reverse, so that they are popped in order
+			for (int i = nProperties - 1; i >= 0; i--) {
+				final List<TreeNode<T>> childrenForProperty = childrenProperties
+						.get(i);
+				for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+					nodeStack[stackSize] = childrenForProperty.get(j);
+					parentStack[stackSize] = currentId;
+					propertyStack[stackSize] = i;
+					positionStack[stackSize] = slotOffsets[nextSlot + i] + j;
+					stackSize++;
+				}
+			}
+			nextSlot += nProperties;
+		}
+		propertyOffsets[size] = nextSlot;
+
+		// Compute the subtree sizes bottom-up and convert them to ends
+		Arrays.fill(subtreeEnds, 1);
+		for (int i = size - 1; i > 0; i--) {
+			subtreeEnds[parents[i]] += subtreeEnds[i];
+		}
+		for (int i = 0; i < size; i++) {
+			subtreeEnds[i] += i;
+		}
+
+		return new FlatTree(symbols, parents, parentProperties, subtreeEnds,
+				propertyOffsets, Arrays.copyOf(slotOffsets, nextSlot + 1),
+				children, flags);
+	}
+
+	/**
+	 * Create a flat tree from an integer tree.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	public static FlatTree fromTree(final TreeNode<Integer> tree) {
+		return fromTree(tree, Integer::intValue, null);
+	}
+
+	/**
+	 * The symbol of each node, in preorder.
+	 */
+	private final int[] symbols;
+
+	/**
+	 * The preorder index of the parent of each node. -1 for the root.
+	 */
+	private final int[] parents;
+
+	/**
+	 * The property of the parent that each node belongs to. -1 for the root.
+	 */
+	private final int[] parentProperties;
+
+	/**
+	 * The (exclusive) preorder index where the subtree of each node ends.
+	 */
+	private final int[] subtreeEnds;
+
+	/**
+	 * The first (node, property) slot of each node. The slots of node i are
+	 * propertyOffsets[i]...propertyOffsets[i+1]-1.
+	 */
+	private final int[] propertyOffsets;
+
+	/**
+	 * The offset in the children array of each slot.
+	 */
+	private final int[] slotOffsets;
+
+	/**
+	 * The preorder indexes of the children, grouped by slot.
+	 */
+	private final int[] children;
+
+	/**
+	 * A per-node flag bit. TSG trees use it to store the root bit of the node.
+	 */
+	private final BitSet flags;
+
+	private FlatTree(final int[] symbols, final int[] parents,
+			final int[] parentProperties, final int[] subtreeEnds,
+			final int[] propertyOffsets, final int[] slotOffsets,
+			final int[] children, final BitSet flags) {
+		this.symbols = symbols;
+		this.parents = parents;
+		this.parentProperties = parentProperties;
+		this.subtreeEnds = subtreeEnds;
+		this.propertyOffsets = propertyOffsets;
+		this.slotOffsets = slotOffsets;
+		this.children = children;
+		this.flags = flags;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FlatTree)) {
+			return false;
+		}
+		final FlatTree other = (FlatTree) obj;
+		// The rest of the arrays are implied by these.
+		return Arrays.equals(symbols, other.symbols)
+				&& Arrays.equals(parents, other.parents)
+				&& Arrays.equals(parentProperties, other.parentProperties)
+				&& Arrays.equals(propertyOffsets, other.propertyOffsets)
+				&& flags.equals(other.flags);
+	}
+
+	/**
+	 * Call the consumer for each node in postorder.
+	 *
+	 * @param consumer
+	 */
+	public void forEachPostorder(final IntConsumer consumer) {
+		for (int node = firstInPostorder(); node != -1; node = nextInPostorder(node)) {
+			consumer.accept(node);
+		}
+	}
+
+	/**
+	 * Call the consumer for each node in preorder.
+	 *
+	 * @param consumer
+	 */
+	public void forEachPreorder(final IntConsumer consumer) {
+		for (int node = 0; node < symbols.length; node++) {
+			consumer.accept(node);
+		}
+	}
+
+	/**
+	 * Return the node that is visited first in a postorder traversal.
+	 *
+	 * @return
+	 */
+	public int firstInPostorder() {
+		return firstLeafFrom(0);
+	}
+
+	/**
+	 * Return the first leaf at or after the given preorder index. Since the
+	 * first child of a node is the next node in preorder, this is the leftmost
+	 * deepest descendant of the node.
+	 */
+	private int firstLeafFrom(final int node) {
+		int current = node;
+		while (subtreeEnds[current] > current + 1) {
+			current++;
+		}
+		return current;
+	}
+
+	/**
+	 * Return the i-th child of the given property of a node.
+	 *
+	 * @param node
+	 * @param property
+	 * @param i
+	 * @return
+	 */
+	public int getChild(final int node, final int property, final int i) {
+		final int slot = getSlot(node, property);
+		return children[slotOffsets[slot]
+				+ checkElementIndex(i, slotOffsets[slot + 1]
+						- slotOffsets[slot])];
+	}
+
+	/**
+	 * Return the parent of the node or -1 if this is the root.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getParent(final int node) {
+		return parents[node];
+	}
+
+	/**
+	 * Return the property of the parent that this node belongs to or -1 if
+	 * this is the root.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getParentProperty(final int node) {
+		return parentProperties[node];
+	}
+
+	private int getSlot(final int node, final int property) {
+		checkElementIndex(property, nProperties(node));
+		return propertyOffsets[node] + property;
+	}
+
+	/**
+	 * Return the (exclusive) preorder index where the subtree rooted at this
+	 * node ends.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getSubtreeEnd(final int node) {
+		return subtreeEnds[node];
+	}
+
+	/**
+	 * Return the symbol of the given node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getSymbol(final int node) {
+		return symbols[node];
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(symbols) + Arrays.hashCode(parents);
+	}
+
+	/**
+	 * Return the flag bit of the given node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public boolean isFlagged(final int node) {
+		checkElementIndex(node, symbols.length);
+		return flags.get(node);
+	}
+
+	public boolean isLeaf(final int node) {
+		return subtreeEnds[node] == node + 1;
+	}
+
+	/**
+	 * Return the number of children of the given property of a node.
+	 *
+	 * @param node
+	 * @param property
+	 * @return
+	 */
+	public int nChildren(final int node, final int property) {
+		final int slot = getSlot(node, property);
+		return slotOffsets[slot + 1] - slotOffsets[slot];
+	}
+
+	/**
+	 * Return the node that follows the given node in postorder, or -1 if this
+	 * was the last (i.e. the root).
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int nextInPostorder(final int node) {
+		final int parent = parents[node];
+		if (parent == -1) {
+			return -1;
+		}
+		final int nextSibling = subtreeEnds[node];
+		if (nextSibling < subtreeEnds[parent]) {
+			return firstLeafFrom(nextSibling);
+		}
+		return parent;
+	}
+
+	/**
+	 * @return the number of properties of the given node.
+	 */
+	public int nProperties(final int node) {
+		return propertyOffsets[node + 1] - propertyOffsets[node];
+	}
+
+	/**
+	 * @return the number of nodes in the tree.
+	 */
+	public int size() {
+		return symbols.length;
+	}
+
+	/**
+	 * Convert this flat tree to a (mutable) tree of TreeNodes.
+	 *
+	 * @param dataFactory
+	 * @return
+	 */
+	public <T extends Serializable> TreeNode<T> toTree(
+			final NodeDataFactory<T> dataFactory) {
+		checkArgument(symbols.length > 0);
+		@SuppressWarnings("unchecked")
+		final TreeNode<T>[] nodes = new TreeNode[symbols.length];
+		for (int i = 0; i < symbols.length; i++) {
+			nodes[i] = TreeNode.create(dataFactory.create(this, i),
+					nProperties(i));
+		}
+		for (int i = 0; i < symbols.length; i++) {
+			final int firstSlot = propertyOffsets[i];
+			for (int property = 0; property < nProperties(i); property++) {
+				final int slot = firstSlot + property;
+				for (int j = slotOffsets[slot]; j < slotOffsets[slot + 1]; j++) {
+					nodes[i].addChildNode(nodes[children[j]], property);
+				}
+			}
+		}
+		return nodes[0];
+	}
+
+	/**
+	 * Convert this flat tree to an integer tree.
+	 *
+	 * @return
+	 */
+	public TreeNode<Integer> toTree() {
+		return toTree((tree, node) -> tree.getSymbol(node));
+	}
+
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+/**
+ * An immutable snapshot of an alphabet, for serving trained models. Symbols
+ * that are not in the alphabet are not added, but mapped to the id of the
+ * unknown symbol (a symbol of type AstNodeSymbol.UNK_SYMBOL), so that scoring
+ * unseen code does not grow the model. Snapshots are safe to share among
+ * threads.
+ *
+ * Snapshots are interned: all the equal snapshots created with of() are the
+ * same object, so grammars that were trained with the same extractor share a
+ * single alphabet in memory.
+ *
+ */
+public final class FrozenAlphabet implements SymbolAlphabet {
+
+	private static final Interner<FrozenAlphabet> SNAPSHOTS = Interners
+			.newWeakInterner();
+
+	/**
+	 * Return the snapshot of the given alphabet.
+	 *
+	 * @param alphabet
+	 * @return
+	 */
+	public static FrozenAlphabet of(final Map<Integer, AstNodeSymbol> alphabet) {
+		return SNAPSHOTS.intern(new FrozenAlphabet(alphabet));
+	}
+
+	/**
+	 * The symbols, indexed by their id.
+	 */
+	private final AstNodeSymbol[] symbols;
+
+	private final ImmutableBiMap<Integer, AstNodeSymbol> alphabet;
+
+	/**
+	 * The ids of the symbols of each node type, in increasing order.
+	 */
+	private final ImmutableMap<Integer, int[]> idsByNodeType;
+
+	private final int unknownId;
+
+	private final int hashCode;
+
+	private FrozenAlphabet(final Map<Integer, AstNodeSymbol> alphabet) {
+		final AstNodeSymbol unknownSymbol = new AstNodeSymbol(
+				AstNodeSymbol.UNK_SYMBOL);
+		unknownSymbol.lockFromChanges();
+
+		int nextId = 0;
+		for (final int id : alphabet.keySet()) {
+			checkArgument(id >= 0, "Symbol ids must be non-negative");
+			nextId = Math.max(nextId, id + 1);
+		}
+		final ImmutableBiMap.Builder<Integer, AstNodeSymbol> builder = ImmutableBiMap
+				.builder();
+		builder.putAll(alphabet);
+		if (!alphabet.containsValue(unknownSymbol)) {
+			builder.put(nextId, unknownSymbol);
+			nextId++;
+		}
+		this.alphabet = builder.build();
+		unknownId = this.alphabet.inverse().get(unknownSymbol);
+
+		symbols = new AstNodeSymbol[nextId];
+		for (final Entry<Integer, AstNodeSymbol> entry : this.alphabet
+				.entrySet()) {
+			entry.getValue().lockFromChanges();
+			symbols[entry.getKey()] = entry.getValue();
+		}
+
+		final Map<Integer, List<Integer>> typeIds = Maps.newTreeMap();
+		for (int id = 0; id < symbols.length; id++) {
+			if (symbols[id] != null) {
+				typeIds.computeIfAbsent(symbols[id].nodeType,
+						type -> Lists.newArrayList()).add(id);
+			}
+		}
+		final ImmutableMap.Builder<Integer, int[]> typeIndex = ImmutableMap
+				.builder();
+		for (final Entry<Integer, List<Integer>> entry : typeIds.entrySet()) {
+			typeIndex.put(entry.getKey(), Ints.toArray(entry.getValue()));
+		}
+		idsByNodeType = typeIndex.build();
+		hashCode = this.alphabet.hashCode();
+	}
+
+	@Override
+	public BiMap<Integer, AstNodeSymbol> asBiMap() {
+		return alphabet;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FrozenAlphabet)) {
+			return false;
+		}
+		final FrozenAlphabet other = (FrozenAlphabet) obj;
+		return hashCode == other.hashCode && alphabet.equals(other.alphabet);
+	}
+
+	@Override
+	public int getFirstIdOfType(final int nodeType) {
+		final int[] ids = idsByNodeType.get(nodeType);
+		return ids == null ? -1 : ids[0];
+	}
+
+	@Override
+	public int getId(final AstNodeSymbol symbol) {
+		final Integer id = alphabet.inverse().get(symbol);
+		return id == null ? -1 : id;
+	}
+
+	@Override
+	public int[] getIdsOfType(final int nodeType) {
+		final int[] ids = idsByNodeType.get(nodeType);
+		return ids == null ? new int[0] : Arrays.copyOf(ids, ids.length);
+	}
+
+	/**
+	 * Return the id of the symbol, or the id of the unknown symbol if it is
+	 * not in the alphabet.
+	 */
+	@Override
+	public int getOrAddId(final AstNodeSymbol symbol) {
+		final Integer id = alphabet.inverse().get(symbol);
+		return id == null ? unknownId : id;
+	}
+
+	@Override
+	public AstNodeSymbol getSymbol(final int id) {
+		if (id < 0 || id >= symbols.length) {
+			return null;
+		}
+		return symbols[id];
+	}
+
+	/**
+	 * @return the id of the unknown symbol.
+	 */
+	public int getUnknownId() {
+		return unknownId;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public int size() {
+		return alphabet.size();
+	}
+
+}
@@ -0,0 +1,282 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A pipeline for loading a corpus, e.g. the trees of a set of files. The
+ * inputs are read in order, extracted in parallel and their outputs are
+ * consumed in a single thread, in the order of the inputs. The extraction of
+ * at most queueSize inputs is pending at any time, so that the memory used by
+ * the extracted outputs is bounded when consumption is slow.
+ *
+ * Only the consumption runs in a deterministic order. Work whose result
+ * depends on the order in which it runs (e.g. drawing from a shared random
+ * generator) should be done in the consumption. Tree extractors assign symbol
+ * ids in the order in which the extraction threads first see the symbols, so
+ * the ids of a corpus may differ from run to run. The trees are the same up
+ * to a renaming of the ids.
+ *
+ * Inputs whose extraction fails are logged and skipped, as are the outputs
+ * whose consumption fails. Errors (e.g. running out of memory) are not
+ * caught, and abort the run. The pipeline counts the inputs and outputs of each
+ * stage and the time spent in them, and logs them when it finishes.
+ *
+ * @param <I>
+ *            the type of the inputs (e.g. files)
+ * @param <O>
+ *            the type of the outputs (e.g. trees)
+ */
+public final class IngestionPipeline<I, O> {
+
+	/**
+	 * Consume an extracted output. Called from a single thread.
+	 */
+	@FunctionalInterface
+	public interface Consumption<O> {
+		void consume(O output) throws Exception;
+	}
+
+	/**
+	 * Extract the outputs of an input. Called from multiple threads.
+	 */
+	@FunctionalInterface
+	public interface Extraction<I, O> {
+		void extract(I input, OutputCollector<O> outputs) throws Exception;
+	}
+
+	/**
+	 * Collects the outputs of a single input.
+	 */
+	@FunctionalInterface
+	public interface OutputCollector<O> {
+		void add(O output);
+	}
+
+	/**
+	 * The number of pending extractions for each thread.
+	 */
+	private static final int PENDING_PER_THREAD = 16;
+
+	private static final Logger LOGGER = Logger
+			.getLogger(IngestionPipeline.class.getName());
+
+	private final String name;
+
+	private final int nThreads;
+
+	private final int queueSize;
+
+	private final AtomicLong nInputs = new AtomicLong();
+
+	private final AtomicLong nFailedInputs = new AtomicLong();
+
+	private final AtomicLong nOutputs = new AtomicLong();
+
+	private final AtomicLong nFailedOutputs = new AtomicLong();
+
+	private final AtomicLong readNanos = new AtomicLong();
+
+	private final AtomicLong extractionNanos = new AtomicLong();
+
+	private final AtomicLong consumptionNanos = new AtomicLong();
+
+	/**
+	 * A pipeline with one extraction thread per ParallelThreadPool thread.
+	 *
+	 * @param name
+	 *            the name of the pipeline, used in the logs
+	 */
+	public IngestionPipeline(final String name) {
+		this(name, ParallelThreadPool.NUM_THREADS,
+				PENDING_PER_THREAD * ParallelThreadPool.NUM_THREADS);
+	}
+
+	/**
+	 * @param name
+	 *            the name of the pipeline, used in the logs
+	 * @param nThreads
+	 *            the number of extraction threads
+	 * @param queueSize
+	 *            the maximum number of pending extractions
+	 */
+	public IngestionPipeline(final String name, final int nThreads,
+			final int queueSize) {
+		checkArgument(nThreads > 0 && queueSize > 0);
+		this.name = name;
+		this.nThreads = nThreads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Consume the outputs of an input.
+	 */
+	private void consume(final I input, final List<O> outputs,
+			final Consumption<? super O> consumption) {
+		final long start = System.nanoTime();
+		for (final O output : outputs) {
+			try {
+				consumption.consume(output);
+				nOutputs.incrementAndGet();
+			} catch (final Exception e) {
+				nFailedOutputs.incrementAndGet();
+				LOGGER.warning(name + ": Failed to consume an output of "
+						+ input + " " + ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		consumptionNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	/**
+	 * Extract the outputs of an input. Exceptions are logged and give no
+	 * outputs. Errors propagate to run(), which aborts.
+	 */
+	private List<O> extract(final I input, final Extraction<I, O> extraction) {
+		final long start = System.nanoTime();
+		final List<O> outputs = Lists.newArrayList();
+		try {
+			extraction.extract(input, outputs::add);
+			return outputs;
+		} catch (final Exception e) {
+			nFailedInputs.incrementAndGet();
+			LOGGER.warning(name + ": Failed to extract " + input + " "
+					+ ExceptionUtils.getFullStackTrace(e));
+			return Collections.emptyList();
+		} finally {
+			extractionNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return the number of inputs whose extraction failed.
+	 */
+	public long getNumFailedInputs() {
+		return nFailedInputs.get();
+	}
+
+	/**
+	 * @return the number of inputs read.
+	 */
+	public long getNumInputs() {
+		return nInputs.get();
+	}
+
+	/**
+	 * @return the number of outputs consumed successfully.
+	 */
+	public long getNumOutputs() {
+		return nOutputs.get();
+	}
+
+	/**
+	 * @return the number of inputs that were extracted successfully.
+	 */
+	public long getNumSuccessfulInputs() {
+		return nInputs.get() - nFailedInputs.get();
+	}
+
+	/**
+	 * Return a summary of the throughput of each stage.
+	 *
+	 * @return
+	 */
+	public String getStatistics() {
+		final double extractionSeconds = extractionNanos.get() / 1E9;
+		final double consumptionSeconds = consumptionNanos.get() / 1E9;
+		return String.format(
+				"%s: read %d inputs in %.1fs; extracted %d inputs (%d failed)"
+						+ " in %.1f thread-seconds (%.1f inputs/s/thread);"
+						+ " consumed %d outputs (%d failed) in %.1fs"
+						+ " (%.1f outputs/s)", name, nInputs.get(),
+				readNanos.get() / 1E9, nInputs.get(), nFailedInputs.get(),
+				extractionSeconds, nInputs.get() / Math.max(extractionSeconds, 1E-9),
+				nOutputs.get(), nFailedOutputs.get(), consumptionSeconds,
+				nOutputs.get() / Math.max(consumptionSeconds, 1E-9));
+	}
+
+	/**
+	 * Run the pipeline over the given inputs. Returns when all the outputs
+	 * have been consumed.
+	 *
+	 * @param inputs
+	 * @param extraction
+	 *            extracts the outputs of each input. Must be thread-safe.
+	 * @param consumption
+	 *            consumes each output, in the order of the inputs
+	 */
+	public void run(final Iterable<? extends I> inputs,
+			final Extraction<I, O> extraction,
+			final Consumption<? super O> consumption) {
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		final Deque<I> pendingInputs = new ArrayDeque<>(queueSize);
+		final Deque<Future<List<O>>> pendingOutputs = new ArrayDeque<>(
+				queueSize);
+		final long start = System.nanoTime();
+		try {
+			final Iterator<? extends I> inputIterator = inputs.iterator();
+			while (true) {
+				// Fill the queue of pending extractions
+				final long readStart = System.nanoTime();
+				while (pendingInputs.size() < queueSize
+						&& inputIterator.hasNext()) {
+					final I input = inputIterator.next();
+					nInputs.incrementAndGet();
+					pendingInputs.addLast(input);
+					pendingOutputs.addLast(executor.submit(() -> extract(input,
+							extraction)));
+				}
+				readNanos.addAndGet(System.nanoTime() - readStart);
+				if (pendingInputs.isEmpty()) {
+					break;
+				}
+
+				// Consume the oldest
+				final I input = pendingInputs.removeFirst();
+				final List<O> outputs;
+				try {
+					outputs = pendingOutputs.removeFirst().get();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(name + " was interrupted",
+							e);
+				} catch (final ExecutionException e) {
+					throw new IllegalStateException(name + ": Failed to extract "
+							+ input, e.getCause());
+				}
+				consume(input, outputs, consumption);
+			}
+		} finally {
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		LOGGER.info(getStatistics()
+				+ String.format("; total %.1fs",
+						(System.nanoTime() - start) / 1E9));
+	}
+
+}
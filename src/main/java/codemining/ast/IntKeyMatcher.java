@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import java.util.function.BiPredicate;
+
+/**
+ * A node data matcher for trees whose data are identified by an integer key
+ * (e.g. TreeNode<Integer> or TreeNode<TSGNode>). Two data match when they have
+ * the same key. Comparing the keys directly avoids the NodeDataPair allocation
+ * and the boxed equals() of the generic matchers.
+ *
+ * Matchers can be passed wherever a data matcher is accepted (e.g. to
+ * TreeNode.partialMatch()).
+ *
+ */
+@FunctionalInterface
+public interface IntKeyMatcher<T> extends BiPredicate<T, T> {
+
+	/**
+	 * Matches integer node data by value.
+	 */
+	public static final IntKeyMatcher<Integer> INTEGER_MATCHER = Integer::intValue;
+
+	/**
+	 * Return the integer key of the given node data.
+	 *
+	 * @param data
+	 * @return
+	 */
+	int keyOf(T data);
+
+	@Override
+	default boolean test(final T from, final T to) {
+		return keyOf(from) == keyOf(to);
+	}
+
+}
@@ -0,0 +1,387 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import codemining.util.data.Pair;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A locality-sensitive hashing index for finding similar trees in a large
+ * collection. Each tree is summarized by a MinHash signature of the multiset
+ * of its node data and, optionally, of its subtree shingles (the structure
+ * of each node down to a given depth). The estimated similarity of two trees
+ * is the fraction of equal signature values. With no shingles, it estimates
+ * the overlap of NodeSetTreeDistance.
+ *
+ * The signature is split in bands and trees with an equal band are
+ * candidates. Two trees of similarity s become candidates with probability
+ * 1-(1-s^rows)^bands, so the number of bands and rows per band set the
+ * similarity threshold (roughly (1/bands)^(1/rows)). Queries only look at
+ * candidates and thus take sub-linear time.
+ *
+ * The index is immutable. Signatures are computed in parallel.
+ *
+ */
+public class MinHashTreeIndex<T extends Serializable> {
+
+	/**
+	 * A pair of trees of the index (by their index) and their estimated
+	 * similarity.
+	 */
+	public static final class SimilarPair {
+		public final int first;
+
+		public final int second;
+
+		public final double similarity;
+
+		public SimilarPair(final int first, final int second,
+				final double similarity) {
+			this.first = first;
+			this.second = second;
+			this.similarity = similarity;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + first + ", " + second + "): " + similarity;
+		}
+	}
+
+	/**
+	 * The number of trees whose signatures are computed by a single task.
+	 */
+	private static final int TREES_PER_TASK = 1024;
+
+	private static final long SEED = 0x5DEECE66DL;
+
+	/**
+	 * A salt that separates the shingle features from the node data features.
+	 */
+	private static final long SHINGLE_SALT = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * The finalizer of MurmurHash3, a fast 64-bit mixing function.
+	 */
+	private static long mix(final long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Return the feature of the next occurrence of the given hash.
+	 */
+	private static long numberOccurence(final Map<Long, Integer> occurences,
+			final long hash) {
+		final int occurence = occurences.merge(hash, 1, Integer::sum);
+		return mix(hash + occurence);
+	}
+
+	private final int nBands;
+
+	private final int nRowsPerBand;
+
+	private final int shingleDepth;
+
+	/**
+	 * The seed of each hash function.
+	 */
+	private final long[] seeds;
+
+	/**
+	 * The signature of each tree.
+	 */
+	private final int[][] signatures;
+
+	/**
+	 * For each band, the band key and the index of each tree, packed as
+	 * (key << 32 | index) and sorted.
+	 */
+	private final long[][] bandEntries;
+
+	/**
+	 * Build an index over the given trees.
+	 *
+	 * @param trees
+	 * @param nBands
+	 *            the number of bands of the signatures
+	 * @param nRowsPerBand
+	 *            the number of signature values per band
+	 * @param shingleDepth
+	 *            the depth of the subtree shingles, or 0 for using only the
+	 *            node data
+	 */
+	public MinHashTreeIndex(final List<TreeNode<T>> trees, final int nBands,
+			final int nRowsPerBand, final int shingleDepth) {
+		checkArgument(nBands > 0 && nRowsPerBand > 0);
+		checkArgument(shingleDepth >= 0);
+		this.nBands = nBands;
+		this.nRowsPerBand = nRowsPerBand;
+		this.shingleDepth = shingleDepth;
+
+		final Random random = new Random(SEED);
+		seeds = new long[nBands * nRowsPerBand];
+		for (int i = 0; i < seeds.length; i++) {
+			seeds[i] = random.nextLong();
+		}
+
+		signatures = new int[trees.size()][];
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (int start = 0; start < trees.size(); start += TREES_PER_TASK) {
+			final int from = start;
+			ptp.pushTask(() -> {
+				final int to = Math.min(trees.size(), from + TREES_PER_TASK);
+				for (int i = from; i < to; i++) {
+					signatures[i] = getSignature(trees.get(i));
+				}
+			});
+		}
+		ptp.waitForTermination();
+
+		bandEntries = new long[nBands][trees.size()];
+		for (int band = 0; band < nBands; band++) {
+			final long[] entries = bandEntries[band];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = (long) getBandKey(signatures[i], band) << 32 | i;
+			}
+			Arrays.parallelSort(entries);
+		}
+	}
+
+	/**
+	 * Return the estimated similarity of two trees of the index.
+	 *
+	 * @param tree1
+	 * @param tree2
+	 * @return
+	 */
+	public double estimateSimilarity(final int tree1, final int tree2) {
+		return estimateSimilarity(signatures[tree1], signatures[tree2]);
+	}
+
+	private double estimateSimilarity(final int[] signature1,
+			final int[] signature2) {
+		int nEqual = 0;
+		for (int i = 0; i < signature1.length; i++) {
+			if (signature1[i] == signature2[i]) {
+				nEqual++;
+			}
+		}
+		return ((double) nEqual) / signature1.length;
+	}
+
+	/**
+	 * Return the (sorted) trees that share at least one band with the given
+	 * signature.
+	 */
+	private int[] getCandidates(final int[] signature) {
+		int[] candidates = new int[16];
+		int nCandidates = 0;
+		for (int band = 0; band < nBands; band++) {
+			final long[] entries = bandEntries[band];
+			final long key = getBandKey(signature, band);
+			int position = Arrays.binarySearch(entries, key << 32);
+			if (position < 0) {
+				position = -position - 1;
+			}
+			for (; position < entries.length
+					&& entries[position] >> 32 == key; position++) {
+				if (nCandidates == candidates.length) {
+					candidates = Arrays.copyOf(candidates, 2 * nCandidates);
+				}
+				candidates[nCandidates++] = (int) entries[position];
+			}
+		}
+
+		// Remove the trees found in more than one band
+		Arrays.sort(candidates, 0, nCandidates);
+		int nUnique = 0;
+		for (int i = 0; i < nCandidates; i++) {
+			if (nUnique == 0 || candidates[nUnique - 1] != candidates[i]) {
+				candidates[nUnique++] = candidates[i];
+			}
+		}
+		return Arrays.copyOf(candidates, nUnique);
+	}
+
+	private int getBandKey(final int[] signature, final int band) {
+		long hash = band;
+		for (int i = band * nRowsPerBand; i < (band + 1) * nRowsPerBand; i++) {
+			hash = mix(hash * 31 + signature[i]);
+		}
+		return (int) hash;
+	}
+
+	/**
+	 * Return the features of the tree, i.e. the hashes of its node data and
+	 * its shingles. Repeated features are numbered by their occurrence, so
+	 * that the signature reflects the multiset.
+	 */
+	private long[] getFeatures(final TreeNode<T> tree) {
+		final List<TreeNode<T>> nodes = TreeNode.getNodesInPreorder(tree,
+				false);
+		final long[] features = new long[shingleDepth > 0 ? 2 * nodes.size()
+				: nodes.size()];
+		final Map<Long, Integer> occurences = Maps.newHashMap();
+
+		final long[] nodeHashes = new long[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++) {
+			nodeHashes[i] = mix(Objects.hashCode(nodes.get(i).getData()));
+			features[i] = numberOccurence(occurences, nodeHashes[i]);
+		}
+
+		if (shingleDepth > 0) {
+			// The shingle of a node at depth d is the hash of its data and
+			// the shingles of its children at depth d - 1. Since the children
+			// of a node follow it in preorder, they can be found by their
+			// subtree sizes.
+			final int[] subtreeEnds = new int[nodes.size()];
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				int end = i + 1;
+				for (final List<TreeNode<T>> childrenForProperty : nodes.get(i)
+						.getChildrenByProperty()) {
+					for (int j = 0; j < childrenForProperty.size(); j++) {
+						end = subtreeEnds[end];
+					}
+				}
+				subtreeEnds[i] = end;
+			}
+
+			long[] shingles = nodeHashes;
+			for (int depth = 1; depth <= shingleDepth; depth++) {
+				final long[] nextShingles = new long[nodes.size()];
+				for (int i = 0; i < nodes.size(); i++) {
+					long hash = nodeHashes[i];
+					int child = i + 1;
+					for (final List<TreeNode<T>> childrenForProperty : nodes
+							.get(i).getChildrenByProperty()) {
+						hash = mix(hash * 31 + 1);
+						for (int j = 0; j < childrenForProperty.size(); j++) {
+							hash = mix(hash * 31 + shingles[child]);
+							child = subtreeEnds[child];
+						}
+					}
+					nextShingles[i] = hash;
+				}
+				shingles = nextShingles;
+			}
+			for (int i = 0; i < nodes.size(); i++) {
+				features[nodes.size() + i] = numberOccurence(occurences,
+						shingles[i] ^ SHINGLE_SALT);
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Return the trees of the index that are most similar to the given tree,
+	 * along with their estimated similarity, in decreasing similarity. Only
+	 * the candidates of the tree are considered, so fewer than k trees may be
+	 * returned.
+	 *
+	 * @param tree
+	 * @param k
+	 * @return
+	 */
+	public List<Pair<Integer, Double>> getNearest(final TreeNode<T> tree,
+			final int k) {
+		final int[] signature = getSignature(tree);
+		final List<Pair<Integer, Double>> nearest = Lists.newArrayList();
+		for (final int candidate : getCandidates(signature)) {
+			nearest.add(Pair.create(candidate,
+					estimateSimilarity(signature, signatures[candidate])));
+		}
+		nearest.sort((pair1, pair2) -> pair1.second.equals(pair2.second) ? Integer
+				.compare(pair1.first, pair2.first) : Double.compare(
+				pair2.second, pair1.second));
+		return nearest.subList(0, Math.min(k, nearest.size()));
+	}
+
+	/**
+	 * Return all the pairs of trees of the index whose estimated similarity is
+	 * at least minSimilarity, ordered by their first and then their second
+	 * tree index, with first < second. Pairs that share no band are not
+	 * found. The trees are processed in parallel.
+	 *
+	 * @param minSimilarity
+	 * @return
+	 */
+	public List<SimilarPair> getNearDuplicatePairs(final double minSimilarity) {
+		@SuppressWarnings("unchecked")
+		final List<SimilarPair>[] pairsByTask = new List[(signatures.length
+				+ TREES_PER_TASK - 1)
+				/ TREES_PER_TASK];
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (int task = 0; task < pairsByTask.length; task++) {
+			final int taskId = task;
+			ptp.pushTask(() -> {
+				final List<SimilarPair> pairs = Lists.newArrayList();
+				final int from = taskId * TREES_PER_TASK;
+				final int to = Math.min(signatures.length, from
+						+ TREES_PER_TASK);
+				for (int i = from; i < to; i++) {
+					for (final int candidate : getCandidates(signatures[i])) {
+						if (candidate <= i) {
+							continue;
+						}
+						final double similarity = estimateSimilarity(i,
+								candidate);
+						if (similarity >= minSimilarity) {
+							pairs.add(new SimilarPair(i, candidate, similarity));
+						}
+					}
+				}
+				pairsByTask[taskId] = pairs;
+			});
+		}
+		ptp.waitForTermination();
+
+		final List<SimilarPair> allPairs = Lists.newArrayList();
+		for (final List<SimilarPair> pairs : pairsByTask) {
+			allPairs.addAll(pairs);
+		}
+		return allPairs;
+	}
+
+	/**
+	 * Return the MinHash signature of the tree.
+	 */
+	private int[] getSignature(final TreeNode<T> tree) {
+		final long[] features = getFeatures(tree);
+		final int[] signature = new int[seeds.length];
+		for (int i = 0; i < seeds.length; i++) {
+			long min = Long.MAX_VALUE;
+			for (final long feature : features) {
+				min = Math.min(min, mix(feature ^ seeds[i]));
+			}
+			signature[i] = (int) (min >>> 32);
+		}
+		return signature;
+	}
+
+	/**
+	 * @return the number of trees in the index.
+	 */
+	public int size() {
+		return signatures.length;
+	}
+
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+/**
+ * The pending TreeNodes of a postorder traversal of an AST. Each AST node
+ * opens a frame when it is entered. When it is exited, the TreeNodes of its
+ * children (those pushed in its frame) can be looked up to build its own
+ * TreeNode, which then replaces the frame. Only the TreeNodes whose parent has
+ * not been exited yet are kept, so the memory used is bounded by the depth and
+ * fan-out of the AST rather than its size.
+ *
+ * AST nodes are compared by identity. Not thread-safe.
+ *
+ */
+public final class PostorderTreeStack {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private Object[] nodes = new Object[INITIAL_CAPACITY];
+
+	@SuppressWarnings("unchecked")
+	private TreeNode<Integer>[] trees = new TreeNode[INITIAL_CAPACITY];
+
+	private int size = 0;
+
+	/**
+	 * The start of each open frame.
+	 */
+	private int[] frames = new int[INITIAL_CAPACITY];
+
+	private int depth = 0;
+
+	/**
+	 * The position after the last child found in the current frame, or -1.
+	 * Children are usually looked up in the order they were visited.
+	 */
+	private int cursor = -1;
+
+	/**
+	 * Open the frame of a node, before visiting its children.
+	 */
+	public void enter() {
+		if (depth == frames.length) {
+			frames = Arrays.copyOf(frames, 2 * depth);
+		}
+		frames[depth++] = size;
+		cursor = -1;
+	}
+
+	/**
+	 * Close the frame of a node, after its children have been visited, and
+	 * push its TreeNode.
+	 *
+	 * @param node
+	 * @param tree
+	 *            the TreeNode of the node, or null if it could not be built
+	 */
+	public void exit(final Object node, final TreeNode<Integer> tree) {
+		checkState(depth > 0, "No node has been entered");
+		final int start = frames[--depth];
+		Arrays.fill(nodes, start, size, null);
+		Arrays.fill(trees, start, size, null);
+		size = start;
+		cursor = -1;
+
+		if (size == nodes.length) {
+			nodes = Arrays.copyOf(nodes, 2 * size);
+			trees = Arrays.copyOf(trees, 2 * size);
+		}
+		nodes[size] = node;
+		trees[size] = tree;
+		size++;
+	}
+
+	/**
+	 * Return the TreeNode of a child of the node whose frame is open, or
+	 * null if the child has not been visited or its TreeNode could not be
+	 * built.
+	 *
+	 * @param child
+	 * @return
+	 */
+	public TreeNode<Integer> getChild(final Object child) {
+		checkState(depth > 0, "No node has been entered");
+		final int start = frames[depth - 1];
+		if (cursor < start) {
+			cursor = start;
+		}
+		for (int i = cursor; i < size; i++) {
+			if (nodes[i] == child) {
+				cursor = i + 1;
+				return trees[i];
+			}
+		}
+		for (int i = start; i < cursor; i++) {
+			if (nodes[i] == child) {
+				cursor = i + 1;
+				return trees[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the TreeNode of an exited node whose parent has not been
+	 * exited (e.g. the root, after the traversal), or null if there is none.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public TreeNode<Integer> getTree(final Object node) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (nodes[i] == node) {
+				return trees[i];
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import com.google.common.collect.BiMap;
+
+/**
+ * An alphabet of AST node symbols, assigning an (integer) id to each symbol.
+ *
+ */
+public interface SymbolAlphabet {
+
+	/**
+	 * Return a read-only BiMap view of the alphabet.
+	 */
+	BiMap<Integer, AstNodeSymbol> asBiMap();
+
+	/**
+	 * Return the id of the first symbol of the given node type, or -1 if
+	 * there is none.
+	 */
+	int getFirstIdOfType(int nodeType);
+
+	/**
+	 * Return the id of the symbol, or -1 if it is not in the alphabet.
+	 */
+	int getId(AstNodeSymbol symbol);
+
+	/**
+	 * Return the ids of the symbols of the given node type.
+	 */
+	int[] getIdsOfType(int nodeType);
+
+	/**
+	 * Return the id of the symbol. Symbols that are not in the alphabet are
+	 * either added or mapped to some fixed id, depending on the alphabet.
+	 */
+	int getOrAddId(AstNodeSymbol symbol);
+
+	/**
+	 * Return the symbol with the given id, or null if there is none.
+	 */
+	AstNodeSymbol getSymbol(int id);
+
+	/**
+	 * Return the number of symbols.
+	 */
+	int size();
+
+}
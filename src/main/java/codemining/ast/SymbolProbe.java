@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+/**
+ * A reusable description of a symbol (its node type, simple properties and
+ * child properties) that finds the id of the symbol without creating an
+ * AstNodeSymbol. Each probe remembers the ids it has resolved in a small
+ * open-addressing table keyed by a 64-bit fingerprint of the description, and
+ * checks every hit against the actual symbol. An AstNodeSymbol is only built
+ * the first time a probe sees a symbol. Since alphabets saturate quickly,
+ * this removes nearly all the per-node garbage of the extraction.
+ *
+ * Probes are not thread-safe: each thread should use its own probe. Probes
+ * do not support annotations; extractors that annotate symbols should build
+ * them with toSymbol().
+ *
+ */
+public final class SymbolProbe {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final int INITIAL_CACHE_CAPACITY = 1024;
+
+	private static long mix(final long hash, final long value) {
+		long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		return h;
+	}
+
+	private final AbstractTreeExtractor extractor;
+
+	private int nodeType;
+
+	private String[] propertyNames = new String[INITIAL_CAPACITY];
+
+	private Object[] propertyValues = new Object[INITIAL_CAPACITY];
+
+	private int nProperties = 0;
+
+	private String[] childProperties = new String[INITIAL_CAPACITY];
+
+	private int nChildProperties = 0;
+
+	/**
+	 * The fingerprints of the cached symbols. 0 denotes an empty slot.
+	 */
+	private long[] cachedFingerprints = new long[INITIAL_CACHE_CAPACITY];
+
+	private int[] cachedIds = new int[INITIAL_CACHE_CAPACITY];
+
+	private int nCached = 0;
+
+	/**
+	 * @param extractor
+	 *            the extractor whose symbols are probed
+	 */
+	public SymbolProbe(final AbstractTreeExtractor extractor) {
+		this.extractor = checkNotNull(extractor);
+	}
+
+	public void addChildProperty(final String propertyName) {
+		if (nChildProperties == childProperties.length) {
+			childProperties = Arrays.copyOf(childProperties,
+					2 * nChildProperties);
+		}
+		childProperties[nChildProperties++] = checkNotNull(propertyName);
+	}
+
+	/**
+	 * Add a simple property. Each property should be added at most once.
+	 *
+	 * @param propertyName
+	 * @param value
+	 */
+	public void addSimpleProperty(final String propertyName,
+			final Object value) {
+		if (nProperties == propertyNames.length) {
+			propertyNames = Arrays.copyOf(propertyNames, 2 * nProperties);
+			propertyValues = Arrays.copyOf(propertyValues, 2 * nProperties);
+		}
+		propertyNames[nProperties] = checkNotNull(propertyName);
+		propertyValues[nProperties] = checkNotNull(value);
+		nProperties++;
+	}
+
+	/**
+	 * Remember the id of the probed symbol.
+	 */
+	private void cache(final long fingerprint, final int id) {
+		if (2 * (nCached + 1) > cachedFingerprints.length) {
+			final long[] oldFingerprints = cachedFingerprints;
+			final int[] oldIds = cachedIds;
+			cachedFingerprints = new long[2 * oldFingerprints.length];
+			cachedIds = new int[2 * oldIds.length];
+			for (int i = 0; i < oldFingerprints.length; i++) {
+				if (oldFingerprints[i] != 0) {
+					final int slot = findSlot(oldFingerprints[i]);
+					cachedFingerprints[slot] = oldFingerprints[i];
+					cachedIds[slot] = oldIds[i];
+				}
+			}
+		}
+		final int slot = findSlot(fingerprint);
+		if (cachedFingerprints[slot] == 0) {
+			cachedFingerprints[slot] = fingerprint;
+			cachedIds[slot] = id;
+			nCached++;
+		}
+	}
+
+	/**
+	 * Return the slot of the fingerprint in the cache, or the empty slot
+	 * where it should be stored.
+	 */
+	private int findSlot(final long fingerprint) {
+		final int mask = cachedFingerprints.length - 1;
+		int slot = (int) (fingerprint ^ fingerprint >>> 32) & mask;
+		while (cachedFingerprints[slot] != 0
+				&& cachedFingerprints[slot] != fingerprint) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Return a 64-bit hash of the probed symbol. Never 0.
+	 */
+	private long fingerprint() {
+		long hash = mix(0, nodeType);
+		for (int i = 0; i < nProperties; i++) {
+			hash = mix(hash, propertyNames[i].hashCode());
+			hash = mix(hash, propertyValues[i].hashCode());
+		}
+		hash = mix(hash, nChildProperties);
+		for (int i = 0; i < nChildProperties; i++) {
+			hash = mix(hash, childProperties[i].hashCode());
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Return the id of the probed symbol, adding the symbol to the alphabet
+	 * of the extractor if it does not exist.
+	 *
+	 * @return
+	 */
+	public int getOrAddId() {
+		final long fingerprint = fingerprint();
+		final int slot = findSlot(fingerprint);
+		if (cachedFingerprints[slot] != 0) {
+			final int id = cachedIds[slot];
+			if (matches(extractor.getSymbol(id))) {
+				return id;
+			}
+			// A fingerprint collision. Do not cache this symbol.
+			return extractor.getOrAddSymbolId(toSymbol());
+		}
+		final int id = extractor.getOrAddSymbolId(toSymbol());
+		cache(fingerprint, id);
+		return id;
+	}
+
+	/**
+	 * Return true if the symbol is the probed symbol.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public boolean matches(final AstNodeSymbol symbol) {
+		if (symbol == null || symbol.nodeType != nodeType
+				|| symbol.nChildProperties() != nChildProperties
+				|| symbol.nSimpleProperties() != nProperties
+				|| symbol.nAnnotations() != 0) {
+			return false;
+		}
+		for (int i = 0; i < nChildProperties; i++) {
+			if (!childProperties[i].equals(symbol.getChildProperty(i))) {
+				return false;
+			}
+		}
+		for (int i = 0; i < nProperties; i++) {
+			if (!propertyValues[i].equals(symbol
+					.getSimpleProperty(propertyNames[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start probing a new symbol of the given node type.
+	 *
+	 * @param type
+	 */
+	public void reset(final int type) {
+		nodeType = type;
+		Arrays.fill(propertyValues, 0, nProperties, null);
+		nProperties = 0;
+		nChildProperties = 0;
+	}
+
+	/**
+	 * Return a new symbol with the probed description.
+	 *
+	 * @return
+	 */
+	public AstNodeSymbol toSymbol() {
+		final AstNodeSymbol symbol = new AstNodeSymbol(nodeType);
+		for (int i = 0; i < nProperties; i++) {
+			symbol.addSimpleProperty(propertyNames[i], propertyValues[i]);
+		}
+		for (int i = 0; i < nChildProperties; i++) {
+			symbol.addChildProperty(childProperties[i]);
+		}
+		return symbol;
+	}
+
+}
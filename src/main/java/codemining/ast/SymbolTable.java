@@ -0,0 +1,354 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+/**
+ * A thread-safe table of AST node symbols and their (integer) ids. Ids are
+ * allocated densely, starting from 0.
+ *
+ * Lookups never lock: the symbol to id side is a ConcurrentHashMap and the id
+ * to symbol side is an array of fixed-size chunks, which grows without
+ * copying. Only the first insertion of a symbol locks (the hash bin of the
+ * symbol), so once the alphabet saturates, extraction threads do not contend.
+ * The table also indexes the ids of the symbols of each node type.
+ *
+ */
+public final class SymbolTable implements SymbolAlphabet {
+
+	/**
+	 * A read-only BiMap view of the table.
+	 */
+	private final class AlphabetView extends
+			AbstractMap<Integer, AstNodeSymbol> implements
+			BiMap<Integer, AstNodeSymbol> {
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public boolean containsValue(final Object value) {
+			return ids.containsKey(value);
+		}
+
+		@Override
+		public Set<Entry<Integer, AstNodeSymbol>> entrySet() {
+			return new AbstractSet<Entry<Integer, AstNodeSymbol>>() {
+
+				@Override
+				public Iterator<Entry<Integer, AstNodeSymbol>> iterator() {
+					final int end = nextId.get();
+					return new AbstractIterator<Entry<Integer, AstNodeSymbol>>() {
+						int id = 0;
+
+						@Override
+						protected Entry<Integer, AstNodeSymbol> computeNext() {
+							while (id < end) {
+								final AstNodeSymbol symbol = getSymbol(id++);
+								if (symbol != null) {
+									return Maps.immutableEntry(id - 1, symbol);
+								}
+							}
+							return endOfData();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return ids.size();
+				}
+			};
+		}
+
+		@Override
+		public AstNodeSymbol forcePut(final Integer key,
+				final AstNodeSymbol value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public AstNodeSymbol get(final Object key) {
+			if (!(key instanceof Integer)) {
+				return null;
+			}
+			return getSymbol((Integer) key);
+		}
+
+		@Override
+		public BiMap<AstNodeSymbol, Integer> inverse() {
+			return new InverseView();
+		}
+
+		@Override
+		public int size() {
+			return ids.size();
+		}
+
+		@Override
+		public Set<AstNodeSymbol> values() {
+			return Collections.unmodifiableSet(ids.keySet());
+		}
+	}
+
+	/**
+	 * An append-only list of ids. Appends are synchronized, reads are not.
+	 */
+	private static final class IdList {
+
+		private volatile int[] ids = new int[4];
+
+		private volatile int size = 0;
+
+		synchronized void add(final int id) {
+			int[] current = ids;
+			if (size == current.length) {
+				current = Arrays.copyOf(current, 2 * size);
+				ids = current;
+			}
+			current[size] = id;
+			size = size + 1;
+		}
+
+		int first() {
+			return size > 0 ? ids[0] : -1;
+		}
+
+		int[] toArray() {
+			final int currentSize = size;
+			return Arrays.copyOf(ids, currentSize);
+		}
+	}
+
+	/**
+	 * A read-only view of the symbol to id side of the table.
+	 */
+	private final class InverseView extends
+			AbstractMap<AstNodeSymbol, Integer> implements
+			BiMap<AstNodeSymbol, Integer> {
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return ids.containsKey(key);
+		}
+
+		@Override
+		public Set<Entry<AstNodeSymbol, Integer>> entrySet() {
+			return Collections.unmodifiableMap(ids).entrySet();
+		}
+
+		@Override
+		public Integer forcePut(final AstNodeSymbol key, final Integer value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Integer get(final Object key) {
+			return ids.get(key);
+		}
+
+		@Override
+		public BiMap<Integer, AstNodeSymbol> inverse() {
+			return asBiMap();
+		}
+
+		@Override
+		public int size() {
+			return ids.size();
+		}
+
+		@Override
+		public Set<Integer> values() {
+			return Collections.unmodifiableSet(asBiMap().keySet());
+		}
+	}
+
+	private static final int CHUNK_BITS = 12;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The maximum number of chunks, allowing for 2^24 symbols.
+	 */
+	private static final int MAX_CHUNKS = 1 << 12;
+
+	private final ConcurrentHashMap<AstNodeSymbol, Integer> ids = new ConcurrentHashMap<>();
+
+	private final AtomicReferenceArray<AtomicReferenceArray<AstNodeSymbol>> chunks = new AtomicReferenceArray<>(
+			MAX_CHUNKS);
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/**
+	 * The ids of the symbols of each node type, in the order they were added.
+	 */
+	private final ConcurrentHashMap<Integer, IdList> idsByNodeType = new ConcurrentHashMap<>();
+
+	public SymbolTable() {
+	}
+
+	/**
+	 * Create a table with the symbols of the given alphabet.
+	 *
+	 * @param alphabet
+	 */
+	public SymbolTable(final Map<Integer, AstNodeSymbol> alphabet) {
+		for (final int id : Ordering.natural().sortedCopy(alphabet.keySet())) {
+			put(id, alphabet.get(id));
+		}
+	}
+
+	/**
+	 * Return a live, read-only BiMap view of the table.
+	 *
+	 * @return
+	 */
+	@Override
+	public BiMap<Integer, AstNodeSymbol> asBiMap() {
+		return new AlphabetView();
+	}
+
+	/**
+	 * Return the chunk of the given id, creating it if needed.
+	 */
+	private AtomicReferenceArray<AstNodeSymbol> getChunk(final int id) {
+		final int chunkIndex = id >>> CHUNK_BITS;
+		checkArgument(chunkIndex < MAX_CHUNKS, "Too many symbols");
+		AtomicReferenceArray<AstNodeSymbol> chunk = chunks.get(chunkIndex);
+		if (chunk == null) {
+			chunks.compareAndSet(chunkIndex, null,
+					new AtomicReferenceArray<AstNodeSymbol>(CHUNK_SIZE));
+			chunk = chunks.get(chunkIndex);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Return the id of the first symbol of the given node type that was added
+	 * to the table, or -1 if there is none.
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	@Override
+	public int getFirstIdOfType(final int nodeType) {
+		final IdList ids = idsByNodeType.get(nodeType);
+		return ids == null ? -1 : ids.first();
+	}
+
+	/**
+	 * Return the id of the symbol, or -1 if it is not in the table.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	@Override
+	public int getId(final AstNodeSymbol symbol) {
+		final Integer id = ids.get(symbol);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Return the id of the symbol, adding it to the table if needed. New
+	 * symbols are locked from changes.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	@Override
+	public int getOrAddId(final AstNodeSymbol symbol) {
+		final Integer id = ids.get(checkNotNull(symbol));
+		if (id != null) {
+			return id;
+		}
+		return ids.computeIfAbsent(symbol, newSymbol -> {
+			newSymbol.lockFromChanges();
+			final int newId = nextId.getAndIncrement();
+			getChunk(newId).set(newId & (CHUNK_SIZE - 1), newSymbol);
+			indexNodeType(newId, newSymbol);
+			return newId;
+		});
+	}
+
+	/**
+	 * Return the ids of the symbols of the given node type, in the order they
+	 * were added to the table.
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	@Override
+	public int[] getIdsOfType(final int nodeType) {
+		final IdList ids = idsByNodeType.get(nodeType);
+		return ids == null ? new int[0] : ids.toArray();
+	}
+
+	/**
+	 * Return the symbol with the given id, or null if there is none.
+	 *
+	 * @param id
+	 * @return
+	 */
+	@Override
+	public AstNodeSymbol getSymbol(final int id) {
+		if (id < 0 || id >>> CHUNK_BITS >= MAX_CHUNKS) {
+			return null;
+		}
+		final AtomicReferenceArray<AstNodeSymbol> chunk = chunks.get(id >>> CHUNK_BITS);
+		if (chunk == null) {
+			return null;
+		}
+		return chunk.get(id & (CHUNK_SIZE - 1));
+	}
+
+	private void indexNodeType(final int id, final AstNodeSymbol symbol) {
+		idsByNodeType.computeIfAbsent(symbol.nodeType, type -> new IdList())
+				.add(id);
+	}
+
+	/**
+	 * Add a symbol with a given id, when loading an existing alphabet. Not to
+	 * be used concurrently with getOrAddId().
+	 */
+	private void put(final int id, final AstNodeSymbol symbol) {
+		checkArgument(id >= 0, "Symbol ids must be non-negative");
+		symbol.lockFromChanges();
+		checkArgument(ids.putIfAbsent(symbol, id) == null,
+				"Symbol %s appears twice", symbol);
+		getChunk(id).set(id & (CHUNK_SIZE - 1), symbol);
+		indexNodeType(id, symbol);
+		if (id >= nextId.get()) {
+			nextId.set(id + 1);
+		}
+	}
+
+	/**
+	 * @return the number of symbols in the table.
+	 */
+	@Override
+	public int size() {
+		return ids.size();
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, array-backed stack of node tuples, used by the iterative
+ * traversals and comparisons of TreeNode. Each thread has its own stack (see
+ * get()), so that traversals do not allocate anything per visited node.
+ *
+ * Traversals may be nested (e.g. when a data comparator compares trees
+ * itself). Each traversal starts by taking a mark() and only pops the entries
+ * above it. It must always end by calling release() with its mark, in a
+ * finally block, so that no references to the trees are kept.
+ *
+ */
+final class TraversalStack {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final ThreadLocal<TraversalStack> STACKS = ThreadLocal
+			.withInitial(TraversalStack::new);
+
+	/**
+	 * Return the stack of the current thread.
+	 *
+	 * @return
+	 */
+	static TraversalStack get() {
+		return STACKS.get();
+	}
+
+	private Object[] firsts = new Object[INITIAL_CAPACITY];
+
+	private Object[] seconds = new Object[INITIAL_CAPACITY];
+
+	private Object[] thirds = new Object[INITIAL_CAPACITY];
+
+	private int size = 0;
+
+	/**
+	 * The maximum size since the last release. All slots above it are null.
+	 */
+	private int highWaterMark = 0;
+
+	private TraversalStack() {
+	}
+
+	/**
+	 * Return the first element of the entry at the given slot.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T first(final int slot) {
+		return (T) firsts[slot];
+	}
+
+	private void grow() {
+		final int newCapacity = 2 * firsts.length;
+		firsts = Arrays.copyOf(firsts, newCapacity);
+		seconds = Arrays.copyOf(seconds, newCapacity);
+		thirds = Arrays.copyOf(thirds, newCapacity);
+	}
+
+	/**
+	 * Return true if there are no entries above the given mark.
+	 *
+	 * @param mark
+	 * @return
+	 */
+	boolean isEmptyAbove(final int mark) {
+		return size <= mark;
+	}
+
+	/**
+	 * Return a mark of the current position of the stack.
+	 *
+	 * @return
+	 */
+	int mark() {
+		return size;
+	}
+
+	/**
+	 * Pop the top entry and return its slot. The elements of the entry should
+	 * be read (with first(), second(), third()) before any push.
+	 *
+	 * @return
+	 */
+	int pop() {
+		size--;
+		return size;
+	}
+
+	void push(final Object first, final Object second) {
+		push(first, second, null);
+	}
+
+	void push(final Object first, final Object second, final Object third) {
+		if (size == firsts.length) {
+			grow();
+		}
+		firsts[size] = first;
+		seconds[size] = second;
+		thirds[size] = third;
+		size++;
+		if (size > highWaterMark) {
+			highWaterMark = size;
+		}
+	}
+
+	/**
+	 * Discard all entries above the mark and clear their references.
+	 *
+	 * @param mark
+	 */
+	void release(final int mark) {
+		Arrays.fill(firsts, mark, highWaterMark, null);
+		Arrays.fill(seconds, mark, highWaterMark, null);
+		Arrays.fill(thirds, mark, highWaterMark, null);
+		size = mark;
+		highWaterMark = mark;
+	}
+
+	/**
+	 * Return the second element of the entry at the given slot.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T second(final int slot) {
+		return (T) seconds[slot];
+	}
+
+	/**
+	 * Return the third element of the entry at the given slot.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T third(final int slot) {
+		return (T) thirds[slot];
+	}
+
+}
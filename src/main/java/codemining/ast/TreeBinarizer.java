@@ -7,9 +7,12 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Lists;
+
 /**
  * A utility class for binarizing-debinarizing trees. Trees are also markovized.
  *
@@ -24,6 +27,12 @@ public class TreeBinarizer implements Serializable {
 
 	private final AbstractTreeExtractor extractor;
 
+	/**
+	 * The ids of the multinode symbols, indexed by the type of their child (0
+	 * if multinodes are not annotated), or -1 if not known yet.
+	 */
+	private transient volatile int[] multinodeIds;
+
 	public TreeBinarizer(final AbstractTreeExtractor ex) {
 		extractor = ex;
 		annotateMultinodes = true;
@@ -102,46 +111,49 @@ public class TreeBinarizer implements Serializable {
 		final List<TreeNode<Integer>> childrenForProperty = currentFrom
 				.getChildrenByProperty().get(propertyId);
 
-		final TreeNode<Integer> child1From = childrenForProperty
-				.get(childrenForProperty.size() - 1);
-		final TreeNode<Integer> child1To = TreeNode.create(child1From);
+		final List<TreeNode<Integer>> toChildren = Lists
+				.newArrayListWithCapacity(childrenForProperty.size());
+		for (final TreeNode<Integer> fromChild : childrenForProperty) {
+			final TreeNode<Integer> toChild = TreeNode.create(fromChild);
+			toChildren.add(toChild);
+			fromStack.push(fromChild);
+			toStack.push(toChild);
+		}
+
+		currentTo.addChildNode(createMultinodes(toChildren), propertyId);
+	}
 
-		final TreeNode<Integer> child2From = childrenForProperty
-				.get(childrenForProperty.size() - 2);
-		final TreeNode<Integer> child2To = TreeNode.create(child2From);
+	/**
+	 * Return the tree of multinodes holding the given (binarized) children,
+	 * in order. Used when binarizing during the extraction.
+	 *
+	 * @param children
+	 *            at least 3 children of a single property
+	 * @return
+	 */
+	public TreeNode<Integer> createMultinodes(
+			final List<TreeNode<Integer>> children) {
+		checkArgument(children.size() > 2);
+		final TreeNode<Integer> child1 = children.get(children.size() - 1);
+		final TreeNode<Integer> child2 = children.get(children.size() - 2);
 
 		// Create the last node.
-		TreeNode<Integer> currentTreeNode = TreeNode.create(extractor
-				.getOrAddSymbolId(createMultinodeSymbol(child1From.getData())),
-				2);
+		TreeNode<Integer> currentTreeNode = TreeNode.create(
+				getMultinodeId(child1.getData()), 2);
 
 		// Watchout!! The order is important, for debinarizing!
-		currentTreeNode.addChildNode(child2To, 0);
-		fromStack.push(child2From);
-		toStack.push(child2To);
-
-		currentTreeNode.addChildNode(child1To, 0);
-		fromStack.push(child1From);
-		toStack.push(child1To);
-
-		for (int i = childrenForProperty.size() - 3; i >= 0; i--) {
-			final TreeNode<Integer> fromChild = childrenForProperty.get(i);
-			final TreeNode<Integer> toChild = TreeNode.create(
-					fromChild.getData(), fromChild.nProperties());
+		currentTreeNode.addChildNode(child2, 0);
+		currentTreeNode.addChildNode(child1, 0);
 
+		for (int i = children.size() - 3; i >= 0; i--) {
+			final TreeNode<Integer> child = children.get(i);
 			final TreeNode<Integer> multiNode = TreeNode.create(
-					extractor.getOrAddSymbolId(createMultinodeSymbol(toChild
-							.getData())), 2);
+					getMultinodeId(child.getData()), 2);
 			multiNode.addChildNode(currentTreeNode, 1); // Next nodes
-			multiNode.addChildNode(toChild, 0); // Current node
-
-			fromStack.push(fromChild);
-			toStack.push(toChild);
-
+			multiNode.addChildNode(child, 0); // Current node
 			currentTreeNode = multiNode;
 		}
-
-		currentTo.addChildNode(currentTreeNode, propertyId);
+		return currentTreeNode;
 	}
 
 	private AstNodeSymbol createMultinodeSymbol(final int type) {
@@ -182,49 +194,97 @@ public class TreeBinarizer implements Serializable {
 					.getChildrenByProperty();
 
 			for (int i = 0; i < children.size(); i++) {
-				final List<TreeNode<Integer>> childrenForProperty = children
-						.get(i);
-
-				for (final TreeNode<Integer> fromChild : childrenForProperty) {
-					AstNodeSymbol symbol = extractor.getSymbol(fromChild
-							.getData());
-
-					if (symbol.nodeType == AstNodeSymbol.MULTI_NODE) {
-						TreeNode<Integer> currentChild = fromChild;
-
-						while (currentChild != null
-								&& symbol.nodeType == AstNodeSymbol.MULTI_NODE) {
-							for (final TreeNode<Integer> child : currentChild
-									.getChildrenByProperty().get(0)) {
-
-								final TreeNode<Integer> toChild = TreeNode
-										.create(child.getData(),
-												child.nProperties());
-								currentTo.addChildNode(toChild, i);
-								toStack.push(toChild);
-								fromStack.push(child);
-							}
-							if (currentChild.getChildrenByProperty().get(1)
-									.isEmpty()) {
-								currentChild = null;
-							} else {
-								currentChild = currentChild
-										.getChildrenByProperty().get(1).get(0);
-								symbol = extractor.getSymbol(currentChild
-										.getData());
-							}
-						}
-					} else {
-						final TreeNode<Integer> toChild = TreeNode
-								.create(fromChild);
-						currentTo.addChildNode(toChild, i);
-						toStack.push(toChild);
-						fromStack.push(fromChild);
-					}
+				for (final TreeNode<Integer> fromChild : debinarizeChildren(children
+						.get(i))) {
+					final TreeNode<Integer> toChild = TreeNode.create(fromChild);
+					currentTo.addChildNode(toChild, i);
+					toStack.push(toChild);
+					fromStack.push(fromChild);
 				}
 			}
 		}
 
 		return toTree;
 	}
+
+	/**
+	 * Return the children of a property of a binarized node, replacing the
+	 * trees of multinodes with the children they hold. The children are
+	 * returned as they are if there are no multinodes. Used when debinarizing
+	 * while converting a tree.
+	 *
+	 * @param children
+	 * @return
+	 */
+	public List<TreeNode<Integer>> debinarizeChildren(
+			final List<TreeNode<Integer>> children) {
+		boolean hasMultinodes = false;
+		for (final TreeNode<Integer> child : children) {
+			if (isMultinode(child)) {
+				hasMultinodes = true;
+				break;
+			}
+		}
+		if (!hasMultinodes) {
+			return children;
+		}
+
+		final List<TreeNode<Integer>> debinarized = Lists.newArrayList();
+		for (final TreeNode<Integer> child : children) {
+			if (!isMultinode(child)) {
+				debinarized.add(child);
+				continue;
+			}
+			TreeNode<Integer> currentChild = child;
+			while (currentChild != null && isMultinode(currentChild)) {
+				debinarized.addAll(currentChild.getChildrenByProperty().get(0));
+				final List<TreeNode<Integer>> next = currentChild
+						.getChildrenByProperty().get(1);
+				currentChild = next.isEmpty() ? null : next.get(0);
+			}
+		}
+		return debinarized;
+	}
+
+	/**
+	 * Return the id of the multinode symbol of the given child type, adding
+	 * the symbol if needed. The ids are memoized, since the same few
+	 * multinode symbols are needed for every list.
+	 */
+	private int getMultinodeId(final int type) {
+		final int key = annotateMultinodes ? type : 0;
+		int[] ids = multinodeIds;
+		if (ids != null && key < ids.length && ids[key] >= 0) {
+			return ids[key];
+		}
+
+		final int id = extractor
+				.getOrAddSymbolId(createMultinodeSymbol(type));
+		synchronized (this) {
+			ids = multinodeIds;
+			if (ids == null || key >= ids.length) {
+				final int[] grown = new int[Math.max(key + 1,
+						ids == null ? 64 : 2 * ids.length)];
+				Arrays.fill(grown, -1);
+				if (ids != null) {
+					System.arraycopy(ids, 0, grown, 0, ids.length);
+				}
+				ids = grown;
+			}
+			ids[key] = id;
+			multinodeIds = ids;
+		}
+		return id;
+	}
+
+	/**
+	 * @return true if the multinodes are annotated with their type.
+	 */
+	public boolean isAnnotatingMultinodes() {
+		return annotateMultinodes;
+	}
+
+	private boolean isMultinode(final TreeNode<Integer> node) {
+		return extractor.getSymbol(node.getData()).nodeType == AstNodeSymbol.MULTI_NODE;
+	}
 }
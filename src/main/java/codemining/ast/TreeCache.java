@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * A persistent, content-addressed cache of the trees extracted from files.
+ * Entries are keyed by the hash of the file contents, the extraction
+ * signature of the tree extractor and the cache format version, so an entry
+ * is reused only when the same extractor sees exactly the same file. Changed
+ * files simply get new entries.
+ *
+ * The entries store the AST symbols of the tree along with its shape. When a
+ * tree is read, its symbols are added to the alphabet of the extractor, so
+ * the entries do not depend on the order in which files were extracted.
+ * Trees extracted by a frozen extractor are not stored, since their unknown
+ * symbols are replaced by the unknown symbol.
+ *
+ * The cache can be shared by multiple threads and processes. Entries are
+ * written to a temporary file and then moved in place.
+ *
+ */
+public final class TreeCache {
+
+	/**
+	 * Extract the tree of a file, when it is not cached.
+	 */
+	@FunctionalInterface
+	public interface Extraction {
+		TreeNode<Integer> extract(File file) throws IOException;
+	}
+
+	/**
+	 * A cached tree. The data of each node is an index to the symbols.
+	 */
+	private static final class CachedTree implements Serializable {
+
+		private static final long serialVersionUID = -4226826262432315683L;
+
+		/**
+		 * The shape of the tree. See TreeNode.getPreorderShape().
+		 */
+		private final int[] shape;
+
+		/**
+		 * The symbol (index) of each node, in preorder.
+		 */
+		private final int[] nodeSymbols;
+
+		private final AstNodeSymbol[] symbols;
+
+		CachedTree(final int[] shape, final int[] nodeSymbols,
+				final AstNodeSymbol[] symbols) {
+			this.shape = shape;
+			this.nodeSymbols = nodeSymbols;
+			this.symbols = symbols;
+		}
+	}
+
+	/**
+	 * The version of the format of the entries. Change it when the format or
+	 * the way trees are extracted change, to invalidate the old entries.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * The directory of the default cache.
+	 */
+	public static final File DEFAULT_DIRECTORY = new File(
+			System.getProperty("user.home"), ".codemining-treecache");
+
+	private static final Logger LOGGER = Logger.getLogger(TreeCache.class
+			.getName());
+
+	private static TreeCache defaultCache = null;
+
+	/**
+	 * Return the cache stored in the default directory.
+	 *
+	 * @return
+	 */
+	public static synchronized TreeCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new TreeCache(DEFAULT_DIRECTORY);
+		}
+		return defaultCache;
+	}
+
+	private final File directory;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public TreeCache(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Return the file of the entry with the given key. Entries are split in
+	 * subdirectories by the first two characters of the key.
+	 */
+	private File getEntryFile(final String key) {
+		return new File(new File(directory, key.substring(0, 2)), key
+				+ ".tree");
+	}
+
+	/**
+	 * @return the number of trees that were read from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Return the key of the entry for the given file contents and extractor.
+	 *
+	 * @param contents
+	 * @param extractor
+	 * @return
+	 */
+	private String getKey(final byte[] contents,
+			final AbstractTreeExtractor extractor) {
+		return Hashing
+				.sha1()
+				.newHasher()
+				.putInt(FORMAT_VERSION)
+				.putString(extractor.getExtractionSignature(),
+						StandardCharsets.UTF_8).putBytes(contents).hash()
+				.toString();
+	}
+
+	/**
+	 * @return the number of trees that had to be extracted.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Return the tree of the given file. If it is not in the cache, it is
+	 * extracted and, unless the extractor is frozen, stored.
+	 *
+	 * @param file
+	 * @param extractor
+	 *            the extractor whose alphabet the tree uses
+	 * @param extraction
+	 *            extracts the tree from the file
+	 * @return
+	 * @throws IOException
+	 */
+	public TreeNode<Integer> getTree(final File file,
+			final AbstractTreeExtractor extractor, final Extraction extraction)
+			throws IOException {
+		final String key = getKey(Files.readAllBytes(file.toPath()), extractor);
+		final File entryFile = getEntryFile(key);
+		if (entryFile.exists()) {
+			final TreeNode<Integer> cached = read(entryFile, extractor);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached;
+			}
+		}
+
+		misses.incrementAndGet();
+		final TreeNode<Integer> tree = extraction.extract(file);
+		if (tree != null && !extractor.isFrozen()) {
+			write(entryFile, tree, extractor);
+		}
+		return tree;
+	}
+
+	/**
+	 * Read an entry, adding its symbols to the alphabet of the extractor.
+	 * Return null if the entry cannot be read.
+	 */
+	private TreeNode<Integer> read(final File entryFile,
+			final AbstractTreeExtractor extractor) {
+		final CachedTree cached;
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(entryFile)))) {
+			cached = (CachedTree) in.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			LOGGER.warning("Ignoring unreadable cache entry " + entryFile
+					+ ": " + ExceptionUtils.getFullStackTrace(e));
+			entryFile.delete();
+			return null;
+		}
+
+		final int[] symbolIds = new int[cached.symbols.length];
+		for (int i = 0; i < symbolIds.length; i++) {
+			symbolIds[i] = extractor.getOrAddSymbolId(cached.symbols[i]);
+		}
+		return TreeNode.fromPreorder(cached.shape,
+				i -> symbolIds[cached.nodeSymbols[i]]);
+	}
+
+	/**
+	 * Store the tree in the given entry. Failures are logged, since the cache
+	 * is only an optimization.
+	 */
+	private void write(final File entryFile, final TreeNode<Integer> tree,
+			final AbstractTreeExtractor extractor) {
+		final List<TreeNode<Integer>> nodes = TreeNode.getNodesInPreorder(
+				tree, false);
+		final Map<Integer, Integer> symbolIndexes = Maps.newHashMap();
+		final List<AstNodeSymbol> symbols = Lists.newArrayList();
+		final int[] nodeSymbols = new int[nodes.size()];
+		for (int i = 0; i < nodeSymbols.length; i++) {
+			final Integer symbolId = nodes.get(i).getData();
+			if (symbolId == null) {
+				return;
+			}
+			Integer index = symbolIndexes.get(symbolId);
+			if (index == null) {
+				index = symbols.size();
+				symbolIndexes.put(symbolId, index);
+				symbols.add(extractor.getSymbol(symbolId));
+			}
+			nodeSymbols[i] = index;
+		}
+		final CachedTree cached = new CachedTree(
+				TreeNode.getPreorderShape(nodes), nodeSymbols,
+				symbols.toArray(new AstNodeSymbol[symbols.size()]));
+
+		File tempFile = null;
+		try {
+			entryFile.getParentFile().mkdirs();
+			tempFile = File.createTempFile("entry", ".tmp",
+					entryFile.getParentFile());
+			try (final ObjectOutputStream out = new ObjectOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeObject(cached);
+			}
+			try {
+				Files.move(tempFile.toPath(), entryFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), entryFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to cache the tree in " + entryFile + ": "
+					+ ExceptionUtils.getFullStackTrace(e));
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,527 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The ordered tree edit distance of Zhang and Shasha, i.e. the minimum number
+ * of node deletions, insertions and relabelings that transform one tree to
+ * the other. Two nodes have the same label when they have equal data and
+ * belong to the same property of their parents.
+ *
+ * For trees of n1 and n2 nodes, the distance takes O(n1 n2) space and O(n1 n2
+ * min(depth1, leaves1) min(depth2, leaves2)) time. When only small distances
+ * matter, use boundedDistance(): it returns early when one of two cheap lower
+ * bounds (the difference of the tree sizes and half the difference of the
+ * node data histograms) exceeds the bound k and otherwise only computes and
+ * stores the cells of the dynamic program of the nodes whose postorder
+ * numbers differ by at most k, in O(n1 k) space.
+ *
+ * getDistanceMatrix() and getPairsWithinDistance() compare all the trees of a
+ * collection in parallel, converting each tree only once.
+ *
+ */
+public class TreeEditDistance<T extends Serializable> implements
+		TreeDistance<T> {
+
+	/**
+	 * A pair of trees of a collection (by their index) and their distance.
+	 */
+	public static final class DistancePair {
+		public final int first;
+
+		public final int second;
+
+		public final int distance;
+
+		public DistancePair(final int first, final int second,
+				final int distance) {
+			this.first = first;
+			this.second = second;
+			this.distance = distance;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + first + ", " + second + "): " + distance;
+		}
+	}
+
+	/**
+	 * A tree in the form used by the algorithm. Nodes are numbered in
+	 * postorder, starting from 1.
+	 */
+	private static final class PostorderTree {
+
+		/**
+		 * The data id of each node.
+		 */
+		final int[] data;
+
+		/**
+		 * The property of its parent that each node belongs to.
+		 */
+		final int[] properties;
+
+		/**
+		 * The leftmost leaf of the subtree of each node.
+		 */
+		final int[] leftmostLeaves;
+
+		/**
+		 * The nodes that have no ancestor with the same leftmost leaf, in
+		 * increasing order.
+		 */
+		final int[] keyroots;
+
+		/**
+		 * The data ids of all the nodes, sorted.
+		 */
+		final int[] sortedData;
+
+		PostorderTree(final FlatTree tree) {
+			final int size = tree.size();
+			data = new int[size + 1];
+			properties = new int[size + 1];
+			leftmostLeaves = new int[size + 1];
+			int next = 1;
+			for (int node = tree.firstInPostorder(); node != -1; node = tree
+					.nextInPostorder(node)) {
+				data[next] = tree.getSymbol(node);
+				properties[next] = tree.getParentProperty(node);
+				// In postorder, a subtree ends at its root and starts at its
+				// leftmost leaf.
+				leftmostLeaves[next] = next - (tree.getSubtreeEnd(node) - node)
+						+ 1;
+				next++;
+			}
+
+			final boolean[] hasKeyroot = new boolean[size + 1];
+			final int[] reversedKeyroots = new int[size];
+			int nKeyroots = 0;
+			for (int i = size; i > 0; i--) {
+				if (!hasKeyroot[leftmostLeaves[i]]) {
+					hasKeyroot[leftmostLeaves[i]] = true;
+					reversedKeyroots[nKeyroots++] = i;
+				}
+			}
+			keyroots = new int[nKeyroots];
+			for (int i = 0; i < nKeyroots; i++) {
+				keyroots[i] = reversedKeyroots[nKeyroots - 1 - i];
+			}
+
+			sortedData = Arrays.copyOfRange(data, 1, size + 1);
+			Arrays.sort(sortedData);
+		}
+
+		int size() {
+			return data.length - 1;
+		}
+
+		int subtreeSize(final int node) {
+			return node - leftmostLeaves[node] + 1;
+		}
+	}
+
+	/**
+	 * The tables of the dynamic program. Each thread reuses its own.
+	 */
+	private static final class Workspace {
+		int[] treeDistances = new int[0];
+
+		int[] forestDistances = new int[0];
+
+		void ensureCapacity(final int treeCells, final int forestCells) {
+			if (treeDistances.length < treeCells) {
+				treeDistances = new int[treeCells];
+			}
+			if (forestDistances.length < forestCells) {
+				forestDistances = new int[forestCells];
+			}
+		}
+	}
+
+	private static final long serialVersionUID = -1398270263617218117L;
+
+	private static final ThreadLocal<Workspace> WORKSPACES = ThreadLocal
+			.withInitial(Workspace::new);
+
+	/**
+	 * Return the distance of the two trees, or bound + 1 if it is larger than
+	 * the bound.
+	 *
+	 * In a mapping of cost at most the bound, the postorder numbers of two
+	 * mapped nodes differ by at most the bound, since the nodes that precede
+	 * them are mapped to each other or deleted or inserted (Touzet, 2005). The
+	 * same holds for the last nodes of the forests whose distances lead to the
+	 * distance of the trees. So only the cells of such nodes are computed,
+	 * along with the cells whose forest sizes differ by at most the bound, and
+	 * both tables are stored in bands of 2 bound + 1 cells per row.
+	 */
+	private static int computeDistance(final PostorderTree tree1,
+			final PostorderTree tree2, final int bound) {
+		final int limit = bound + 1;
+		if (Math.abs(tree1.size() - tree2.size()) >= limit
+				|| lowerBound(tree1, tree2) >= limit) {
+			return limit;
+		}
+
+		final int bandWidth = Math.min(2 * bound + 1, tree2.size() + 1);
+		final Workspace workspace = WORKSPACES.get();
+		workspace.ensureCapacity((tree1.size() + 1) * bandWidth,
+				(tree1.size() + 1) * bandWidth);
+		for (final int x : tree1.keyroots) {
+			final int lx = tree1.leftmostLeaves[x];
+			for (final int y : tree2.keyroots) {
+				final int ly = tree2.leftmostLeaves[y];
+				if (ly - x > bound || lx - y > bound
+						|| Math.abs(lx - ly) > 2 * bound) {
+					// No node of x can be mapped to a node of y
+					continue;
+				}
+				computeForestDistances(tree1, tree2, x, y, bound, bandWidth,
+						workspace);
+			}
+		}
+		return getTreeDistance(workspace.treeDistances, tree1, tree2,
+				tree1.size(), tree2.size(), bound, bandWidth);
+	}
+
+	/**
+	 * Compute the distances of the forests of the two keyroots and store the
+	 * distances of the subtrees that have the same leftmost leaves with the
+	 * keyroots. Only the cells within the bands of computeDistance() are
+	 * computed; any other cell is treated as bound + 1.
+	 */
+	private static void computeForestDistances(final PostorderTree tree1,
+			final PostorderTree tree2, final int x, final int y,
+			final int bound, final int bandWidth, final Workspace workspace) {
+		final int limit = bound + 1;
+		final int[] treeDistances = workspace.treeDistances;
+		final int[] forestDistances = workspace.forestDistances;
+
+		final int lx = tree1.leftmostLeaves[x];
+		final int ly = tree2.leftmostLeaves[y];
+		final int rows = x - lx + 2;
+		final int columns = y - ly + 2;
+		// The cell (di, dj) is for the nodes i = lx + di - 1 and j = ly + dj
+		// - 1, and i - j = di - dj + shift.
+		final int shift = lx - ly;
+
+		// The distance of the forests lx...lx+di-1 and ly...ly+dj-1 is at
+		// forestIndex(di, dj)
+		for (int di = 0; di < Math.min(rows, limit); di++) {
+			forestDistances[forestIndex(di, 0, bound, bandWidth)] = di;
+		}
+		for (int dj = 1; dj < Math.min(columns, limit); dj++) {
+			forestDistances[forestIndex(0, dj, bound, bandWidth)] = dj;
+		}
+
+		for (int di = 1; di < rows; di++) {
+			final int i = lx + di - 1;
+			final int li = tree1.leftmostLeaves[i];
+			final int firstColumn = Math.max(1,
+					di - bound + Math.max(0, shift));
+			final int lastColumn = Math.min(columns - 1,
+					di + bound + Math.min(0, shift));
+			if (firstColumn >= columns) {
+				// The following rows are out of the band too
+				break;
+			}
+			for (int dj = firstColumn; dj <= lastColumn; dj++) {
+				final int j = ly + dj - 1;
+				final int lj = tree2.leftmostLeaves[j];
+
+				int distance = Math.min(
+						getForestDistance(forestDistances, di - 1, dj, shift,
+								bound, bandWidth),
+						getForestDistance(forestDistances, di, dj - 1, shift,
+								bound, bandWidth)) + 1;
+				if (li == lx && lj == ly) {
+					final int relabelCost = tree1.data[i] == tree2.data[j]
+							&& tree1.properties[i] == tree2.properties[j] ? 0
+							: 1;
+					distance = Math.min(
+							distance,
+							getForestDistance(forestDistances, di - 1, dj - 1,
+									shift, bound, bandWidth) + relabelCost);
+					distance = Math.min(distance, limit);
+					treeDistances[treeIndex(i, j, bound, bandWidth)] = distance;
+				} else {
+					// The subtree distance was computed for the keyroots of i
+					// and j, unless it is known to be out of the bound.
+					distance = Math.min(
+							distance,
+							getForestDistance(forestDistances, li - lx, lj
+									- ly, shift, bound, bandWidth)
+									+ getTreeDistance(treeDistances, tree1,
+											tree2, i, j, bound, bandWidth));
+					distance = Math.min(distance, limit);
+				}
+				forestDistances[forestIndex(di, dj, bound, bandWidth)] = distance;
+			}
+		}
+	}
+
+	/**
+	 * Return the edit distance of the two trees.
+	 *
+	 * @param tree1
+	 * @param tree2
+	 * @return
+	 */
+	public static <T extends Serializable> int distanceBetween(
+			final TreeNode<T> tree1, final TreeNode<T> tree2) {
+		final List<PostorderTree> trees = toPostorder(ImmutableList.of(
+				tree1, tree2));
+		return computeDistance(trees.get(0), trees.get(1), trees.get(0)
+				.size() + trees.get(1).size());
+	}
+
+	/**
+	 * Return the index of the given cell in the forest distances. When the
+	 * band is narrower than the trees, the cells of a row are stored from di -
+	 * bound to di + bound.
+	 */
+	private static int forestIndex(final int di, final int dj,
+			final int bound, final int bandWidth) {
+		return di * bandWidth + (bandWidth > 2 * bound ? dj - di + bound : dj);
+	}
+
+	/**
+	 * Return the distance of the given forests, or bound + 1 if their cell is
+	 * out of the bands.
+	 */
+	private static int getForestDistance(final int[] forestDistances,
+			final int di, final int dj, final int shift, final int bound,
+			final int bandWidth) {
+		if (Math.abs(di - dj) > bound || Math.abs(di - dj + shift) > bound) {
+			return bound + 1;
+		}
+		return forestDistances[forestIndex(di, dj, bound, bandWidth)];
+	}
+
+	/**
+	 * Return the distance of the subtrees of i and j, or bound + 1 if it is
+	 * known to be larger than the bound or it is not needed (i.e. i and j
+	 * cannot be mapped in a mapping within the bound).
+	 */
+	private static int getTreeDistance(final int[] treeDistances,
+			final PostorderTree tree1, final PostorderTree tree2, final int i,
+			final int j, final int bound, final int bandWidth) {
+		if (Math.abs(i - j) > bound
+				|| Math.abs(tree1.subtreeSize(i) - tree2.subtreeSize(j)) > bound) {
+			return bound + 1;
+		}
+		return treeDistances[treeIndex(i, j, bound, bandWidth)];
+	}
+
+	/**
+	 * Return a lower bound of the distance: each deletion or insertion changes
+	 * the tree size by one and changes the node data histogram by one, each
+	 * relabeling changes the histogram by (at most) two.
+	 */
+	private static int lowerBound(final PostorderTree tree1,
+			final PostorderTree tree2) {
+		final int[] data1 = tree1.sortedData;
+		final int[] data2 = tree2.sortedData;
+		int histogramDifference = 0;
+		int i = 0;
+		int j = 0;
+		while (i < data1.length && j < data2.length) {
+			if (data1[i] == data2[j]) {
+				i++;
+				j++;
+			} else if (data1[i] < data2[j]) {
+				histogramDifference++;
+				i++;
+			} else {
+				histogramDifference++;
+				j++;
+			}
+		}
+		histogramDifference += data1.length - i + data2.length - j;
+		return Math.max(Math.abs(tree1.size() - tree2.size()),
+				(histogramDifference + 1) / 2);
+	}
+
+	/**
+	 * Return the index of the subtree distance of i and j, stored like the
+	 * forest distances.
+	 */
+	private static int treeIndex(final int i, final int j, final int bound,
+			final int bandWidth) {
+		return forestIndex(i, j, bound, bandWidth);
+	}
+
+	/**
+	 * Convert the trees to postorder trees, with common data ids.
+	 */
+	private static <T extends Serializable> List<PostorderTree> toPostorder(
+			final List<TreeNode<T>> trees) {
+		final Map<T, Integer> dataIds = Maps.newHashMap();
+		final List<PostorderTree> converted = Lists
+				.newArrayListWithCapacity(trees.size());
+		for (final TreeNode<T> tree : trees) {
+			converted.add(new PostorderTree(FlatTree.fromTree(tree,
+					data -> dataIds.computeIfAbsent(data,
+							newData -> dataIds.size()), null)));
+		}
+		return converted;
+	}
+
+	/**
+	 * Return the edit distance of the two trees, if it is at most maxDistance,
+	 * or maxDistance + 1 otherwise.
+	 *
+	 * @param tree1
+	 * @param tree2
+	 * @param maxDistance
+	 * @return
+	 */
+	public int boundedDistance(final TreeNode<T> tree1,
+			final TreeNode<T> tree2, final int maxDistance) {
+		checkArgument(maxDistance >= 0);
+		final List<PostorderTree> trees = toPostorder(ImmutableList.of(
+				tree1, tree2));
+		return computeDistance(trees.get(0), trees.get(1), Math.min(
+				maxDistance, trees.get(0).size() + trees.get(1).size()));
+	}
+
+	@Override
+	public double distance(final TreeNode<T> tree1, final TreeNode<T> tree2) {
+		return distanceBetween(tree1, tree2);
+	}
+
+	/**
+	 * Return the matrix of the distances of all pairs of trees. The rows are
+	 * computed in parallel.
+	 *
+	 * @param trees
+	 * @return
+	 */
+	public int[][] getDistanceMatrix(final List<TreeNode<T>> trees) {
+		final List<PostorderTree> converted = toPostorder(trees);
+		final int[][] distances = new int[converted.size()][converted.size()];
+
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (int i = 0; i < converted.size(); i++) {
+			final int row = i;
+			ptp.pushTask(() -> {
+				final PostorderTree tree1 = converted.get(row);
+				for (int j = row + 1; j < converted.size(); j++) {
+					final PostorderTree tree2 = converted.get(j);
+					final int distance = computeDistance(tree1, tree2,
+							tree1.size() + tree2.size());
+					distances[row][j] = distance;
+					distances[j][row] = distance;
+				}
+			});
+		}
+		ptp.waitForTermination();
+		return distances;
+	}
+
+	/**
+	 * Return all the pairs of (different) trees whose distance is at most
+	 * maxDistance. The pairs are ordered by their first and then their second
+	 * tree index, with first < second. The trees are compared in parallel and
+	 * pairs whose sizes differ by more than maxDistance are never compared.
+	 *
+	 * @param trees
+	 * @param maxDistance
+	 * @return
+	 */
+	public List<DistancePair> getPairsWithinDistance(
+			final List<TreeNode<T>> trees, final int maxDistance) {
+		checkArgument(maxDistance >= 0);
+		final List<PostorderTree> converted = toPostorder(trees);
+
+		// Visit the trees by size, so that each tree is only compared with
+		// the following trees that are not much larger.
+		final Integer[] bySize = new Integer[converted.size()];
+		for (int i = 0; i < bySize.length; i++) {
+			bySize[i] = i;
+		}
+		Arrays.sort(bySize, (i, j) -> Integer.compare(converted.get(i)
+				.size(), converted.get(j).size()));
+
+		@SuppressWarnings("unchecked")
+		final List<DistancePair>[] pairsByTree = new List[converted.size()];
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (int k = 0; k < bySize.length; k++) {
+			final int position = k;
+			ptp.pushTask(() -> {
+				final int index1 = bySize[position];
+				final PostorderTree tree1 = converted.get(index1);
+				final List<DistancePair> pairs = Lists.newArrayList();
+				for (int l = position + 1; l < bySize.length; l++) {
+					final int index2 = bySize[l];
+					final PostorderTree tree2 = converted.get(index2);
+					if (tree2.size() - tree1.size() > maxDistance) {
+						break;
+					}
+					final int distance = computeDistance(tree1, tree2,
+							maxDistance);
+					if (distance <= maxDistance) {
+						pairs.add(new DistancePair(Math.min(index1, index2),
+								Math.max(index1, index2), distance));
+					}
+				}
+				pairsByTree[index1] = pairs;
+			});
+		}
+		ptp.waitForTermination();
+
+		final List<DistancePair> allPairs = Lists.newArrayList();
+		for (final List<DistancePair> pairs : pairsByTree) {
+			allPairs.addAll(pairs);
+		}
+		allPairs.sort((pair1, pair2) -> pair1.first != pair2.first ? Integer
+				.compare(pair1.first, pair2.first) : Integer.compare(
+				pair1.second, pair2.second));
+		return allPairs;
+	}
+
+	/**
+	 * Return true if the edit distance of the two trees is at most
+	 * maxDistance.
+	 *
+	 * @param tree1
+	 * @param tree2
+	 * @param maxDistance
+	 * @return
+	 */
+	public boolean isWithinDistance(final TreeNode<T> tree1,
+			final TreeNode<T> tree2, final int maxDistance) {
+		return boundedDistance(tree1, tree2, maxDistance) <= maxDistance;
+	}
+
+	/**
+	 * Return a cheap lower bound of the edit distance of the two trees, based
+	 * on their sizes and node data histograms.
+	 *
+	 * @param tree1
+	 * @param tree2
+	 * @return
+	 */
+	public int lowerBound(final TreeNode<T> tree1, final TreeNode<T> tree2) {
+		final List<PostorderTree> trees = toPostorder(ImmutableList.of(
+				tree1, tree2));
+		return lowerBound(trees.get(0), trees.get(1));
+	}
+
+}
@@ -6,11 +6,19 @@ package codemining.ast;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkElementIndex;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
@@ -18,10 +26,11 @@ import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
-import codemining.util.data.Pair;
 
 /**
  * A generic tree node
@@ -68,8 +77,8 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * target node. The first node in the list is the parent of the target of
      * the node, while the last is the root.
      *
-     * The implementation includes a slow, recursive solution. But it is the
-     * easiest for understanding.
+     * The path is found with an iterative depth-first search. When many
+     * queries are needed on the same tree, use an AncestorIndex instead.
      */
     public static class NodeParents<T extends Serializable> {
         public final TreeNode<T> targetNode;
@@ -86,24 +95,48 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             checkArgument(pathFound);
         }
 
-        private boolean reachTarget(final TreeNode<T> currentNode) {
-            if (currentNode == targetNode) {
-                return true;
-            }
-
-            final List<List<TreeNode<T>>> children = currentNode.childrenProperties;
+        /**
+         * Create an empty path, to be filled by an AncestorIndex.
+         */
+        NodeParents(final TreeNode<T> targetNode) {
+            this.targetNode = targetNode;
+        }
 
-            for (int propertyId = 0; propertyId < children.size(); propertyId++) {
-                final List<TreeNode<T>> childrenForProperty = children.get(propertyId);
-                for (int i = 0; i < childrenForProperty.size(); i++) {
-                    final TreeNode<T> currentChild = childrenForProperty.get(i);
-                    final boolean isInPath = reachTarget(currentChild);
-                    if (isInPath) {
-                        throughNodes.add(currentNode);
-                        nextProperty.add(propertyId);
-                        nextChildIndex.add(i);
-                        return true;
+        private boolean reachTarget(final TreeNode<T> root) {
+            // The current path from the root, along with the property and
+            // index of the child of each node that is currently visited.
+            final List<TreeNode<T>> pathNodes = Lists.newArrayList();
+            final List<int[]> pathPositions = Lists.newArrayList();
+            pathNodes.add(root);
+            pathPositions.add(new int[] { 0, -1 });
+
+            while (!pathNodes.isEmpty()) {
+                final int top = pathNodes.size() - 1;
+                final TreeNode<T> currentNode = pathNodes.get(top);
+                final int[] position = pathPositions.get(top);
+                if (position[1] == -1 && currentNode == targetNode) {
+                    for (int i = top - 1; i >= 0; i--) {
+                        throughNodes.add(pathNodes.get(i));
+                        nextProperty.add(pathPositions.get(i)[0]);
+                        nextChildIndex.add(pathPositions.get(i)[1]);
                     }
+                    return true;
+                }
+
+                // Move to the next child of the current node
+                final List<List<TreeNode<T>>> children = currentNode.childrenProperties;
+                position[1]++;
+                while (position[0] < children.size() && position[1] >= children.get(position[0]).size()) {
+                    position[0]++;
+                    position[1] = 0;
+                }
+
+                if (position[0] < children.size()) {
+                    pathNodes.add(children.get(position[0]).get(position[1]));
+                    pathPositions.add(new int[] { 0, -1 });
+                } else {
+                    pathNodes.remove(top);
+                    pathPositions.remove(top);
                 }
             }
 
@@ -132,6 +165,97 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         public Set<TreeNode<T>> references;
     }
 
+    /**
+     * Reusable stacks for computing structural hashes.
+     */
+    private static final class HashBuffers {
+
+        private Object[] nodes = new Object[64];
+
+        private int[] hashes = new int[64];
+
+        private boolean inUse = false;
+    }
+
+    /**
+     * The nodes written to a Java serialization stream (see writeObject()).
+     */
+    private static final class WrittenNodes {
+
+        /**
+         * The nodes that have been written, along with their descendants.
+         */
+        private final Set<TreeNode<?>> written = Sets.newIdentityHashSet();
+
+        /**
+         * The nodes whose children are written by an ancestor.
+         */
+        private final Set<TreeNode<?>> pending = Sets.newIdentityHashSet();
+    }
+
+    /**
+     * A node whose children are being read by readObject().
+     */
+    private static final class NodeUnderConstruction<T extends Serializable> {
+
+        private final TreeNode<T> node;
+
+        private final boolean immutable;
+
+        private final int[] childCounts;
+
+        private final List<List<TreeNode<T>>> children;
+
+        private int currentProperty = 0;
+
+        NodeUnderConstruction(final TreeNode<T> node, final int header, final ObjectInputStream in)
+                throws IOException {
+            this.node = node;
+            immutable = (header & 1) != 0;
+            childCounts = new int[header >>> 1];
+            children = Lists.newArrayListWithCapacity(childCounts.length);
+            for (int i = 0; i < childCounts.length; i++) {
+                childCounts[i] = readVarInt(in);
+                children.add(Lists.<TreeNode<T>> newArrayListWithCapacity(childCounts[i]));
+            }
+            skipFullProperties();
+        }
+
+        void addChild(final TreeNode<T> child) {
+            children.get(currentProperty).add(child);
+            skipFullProperties();
+        }
+
+        /**
+         * Set the children of the node, once they have all been read.
+         */
+        void finish() {
+            if (immutable) {
+                final List<List<TreeNode<T>>> immutableProperties = Lists.newArrayListWithCapacity(children.size());
+                for (final List<TreeNode<T>> childrenForProperty : children) {
+                    immutableProperties.add(ImmutableList.copyOf(childrenForProperty));
+                }
+                node.childrenProperties = ImmutableList.copyOf(immutableProperties);
+                if (!node.mutableData) {
+                    node.computeCachedMetadata();
+                }
+            } else {
+                node.childrenProperties = children;
+            }
+        }
+
+        boolean isComplete() {
+            return currentProperty == childCounts.length;
+        }
+
+        private void skipFullProperties() {
+            while (currentProperty < childCounts.length
+                    && children.get(currentProperty).size() == childCounts[currentProperty]) {
+                currentProperty++;
+            }
+        }
+    }
+
     /**
      *
      */
@@ -142,6 +266,192 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     public static final String SUB_NODE_STRING_PREFIX = "-";
 
+    /**
+     * The value mixed in the structural hash at the start of each property.
+     * This distinguishes e.g. {a: {b}, {}} from {a: {}, {b}}.
+     */
+    private static final int PROPERTY_HASH_SEPARATOR = 0x9e3779b9;
+
+    /**
+     * Follows a node on the stack of computeStructuralHash() while its
+     * children are being visited.
+     */
+    private static final Object CHILDREN_VISITED = new Object();
+
+    /**
+     * The depth up to which structural hashes are computed recursively. The
+     * subtrees below it are hashed on the buffers of the thread, so that deep
+     * trees do not overflow the stack.
+     */
+    private static final int MAX_RECURSIVE_HASH_DEPTH = 64;
+
+    /**
+     * The buffers of computeStructuralHash(), one per thread.
+     */
+    private static final ThreadLocal<HashBuffers> HASH_BUFFERS = ThreadLocal.withInitial(HashBuffers::new);
+
+    /**
+     * The default data matcher, using the equals() of the node data.
+     */
+    private static final BiPredicate<Object, Object> DATA_EQUALITY = (from, to) -> from.equals(to);
+
+    /**
+     * The table of canonical immutable nodes, used by toInternedImmutable().
+     * Nodes are weakly referenced, so that unused subtrees can be collected.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Interner<TreeNode> INTERNED_NODES = Interners.newWeakInterner();
+
+    /**
+     * The nodes written to each Java serialization stream. Streams are weakly
+     * referenced, and they hold their written objects anyway.
+     */
+    private static final Map<ObjectOutputStream, WrittenNodes> WRITTEN_NODES =
+            new WeakHashMap<ObjectOutputStream, WrittenNodes>();
+
+    /**
+     * Adapt a NodeDataPair predicate to a data matcher.
+     *
+     * @param equalityComparator
+     * @return
+     */
+    private static <T extends Serializable> BiPredicate<T, T> asDataMatcher(
+            final Predicate<NodeDataPair<T>> equalityComparator) {
+        return (from, to) -> equalityComparator.apply(new NodeDataPair<T>(from, to));
+    }
+
+    /**
+     * Compute the structural hash of the given subtree, at the given depth,
+     * recursively. This is the same as computeStructuralHash(), but faster on
+     * the small trees that are usually hashed in place (e.g. the TSG rules of
+     * the samplers), since it needs no buffers.
+     *
+     * @param tree
+     * @param depth
+     * @return
+     */
+    private static <T extends Serializable> int computeRecursiveStructuralHash(final TreeNode<T> tree,
+            final int depth) {
+        if (tree.hasCachedMetadata()) {
+            return tree.structuralHash;
+        } else if (depth == MAX_RECURSIVE_HASH_DEPTH) {
+            return computeStructuralHash(tree);
+        }
+        int hash = dataHash(tree.nodeData);
+        for (int i = 0; i < tree.childrenProperties.size(); i++) {
+            hash = 31 * hash + PROPERTY_HASH_SEPARATOR;
+            final List<TreeNode<T>> childrenForProperty = tree.childrenProperties.get(i);
+            for (int j = 0; j < childrenForProperty.size(); j++) {
+                hash = 31 * hash + computeRecursiveStructuralHash(childrenForProperty.get(j), depth + 1);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compute the structural (Merkle) hash of the given tree. The hash of a
+     * node is computed from its data and the hashes of its children. Subtrees
+     * with a cached hash (i.e. immutable subtrees) are not visited.
+     *
+     * This takes time linear to the number of mutable nodes in the tree, but
+     * it runs on the buffers of the thread and does not allocate.
+     *
+     * @param tree
+     * @return
+     */
+    private static <T extends Serializable> int computeStructuralHash(final TreeNode<T> tree) {
+        final HashBuffers buffers = HASH_BUFFERS.get();
+        if (buffers.inUse) {
+            // Hashing the node data hashes another tree
+            return computeStructuralHash(tree, new HashBuffers());
+        }
+        buffers.inUse = true;
+        try {
+            return computeStructuralHash(tree, buffers);
+        } finally {
+            buffers.inUse = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> int computeStructuralHash(final TreeNode<T> tree,
+            final HashBuffers buffers) {
+        Object[] nodes = buffers.nodes;
+        int[] hashes = buffers.hashes;
+        int nodesSize = 0;
+        int maxNodesSize = 0;
+        int hashesSize = 0;
+        try {
+            // Nodes are visited in postorder, the last child first. A node
+            // is followed by CHILDREN_VISITED while its children are visited.
+            // When it is popped again, the hashes of its children are at the
+            // top of the hash stack, with the first child on top.
+            nodes[nodesSize++] = tree;
+            while (nodesSize > 0) {
+                final Object top = nodes[--nodesSize];
+                if (top == CHILDREN_VISITED) {
+                    final TreeNode<T> current = (TreeNode<T>) nodes[--nodesSize];
+                    int hash = dataHash(current.nodeData);
+                    for (int i = 0; i < current.childrenProperties.size(); i++) {
+                        hash = 31 * hash + PROPERTY_HASH_SEPARATOR;
+                        final int nChildren = current.childrenProperties.get(i).size();
+                        for (int j = 0; j < nChildren; j++) {
+                            hash = 31 * hash + hashes[--hashesSize];
+                        }
+                    }
+                    if (hashesSize == hashes.length) {
+                        hashes = buffers.hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+                    }
+                    hashes[hashesSize++] = hash;
+                    continue;
+                }
+
+                final TreeNode<T> current = (TreeNode<T>) top;
+                if (current.hasCachedMetadata()) {
+                    if (hashesSize == hashes.length) {
+                        hashes = buffers.hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+                    }
+                    hashes[hashesSize++] = current.structuralHash;
+                    continue;
+                }
+                int nChildren = 0;
+                for (int i = 0; i < current.childrenProperties.size(); i++) {
+                    nChildren += current.childrenProperties.get(i).size();
+                }
+                if (nodesSize + nChildren + 2 > nodes.length) {
+                    nodes = buffers.nodes = Arrays.copyOf(nodes,
+                            Math.max(2 * nodes.length, nodesSize + nChildren + 2));
+                }
+                nodes[nodesSize++] = current;
+                nodes[nodesSize++] = CHILDREN_VISITED;
+                for (int i = 0; i < current.childrenProperties.size(); i++) {
+                    final List<TreeNode<T>> childrenForProperty = current.childrenProperties.get(i);
+                    for (int j = 0; j < childrenForProperty.size(); j++) {
+                        nodes[nodesSize++] = childrenForProperty.get(j);
+                    }
+                }
+                maxNodesSize = Math.max(maxNodesSize, nodesSize);
+            }
+            checkArgument(hashesSize == 1);
+            return hashes[0];
+        } finally {
+            // Do not keep references to the tree
+            Arrays.fill(nodes, 0, Math.max(maxNodesSize, 1), null);
+        }
+    }
+
+    /**
+     * Return the hash of the node data that starts the structural hash of a
+     * node. This is the same as Objects.hashCode(data), without allocating an
+     * array for the arguments.
+     *
+     * @param data
+     * @return
+     */
+    private static int dataHash(final Object data) {
+        return 31 + (data == null ? 0 : data.hashCode());
+    }
+
     /**
      * Copy the children (and all (grand+)children) to the given toNode. This
      * will copy only the structure. The data will be the same.
@@ -150,25 +460,29 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @param toNode
      */
     private static <T extends Serializable> void copyChildren(final TreeNode<T> fromNode, final TreeNode<T> toNode) {
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
-
-        stack.push(new NodePair<T>(fromNode, toNode));
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(fromNode, toNode);
 
-        while (!stack.isEmpty()) {
-            final NodePair<T> pair = stack.pop();
-            final TreeNode<T> currentFrom = pair.fromNode;
-            final TreeNode<T> currentTo = pair.toNode;
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> currentFrom = stack.first(slot);
+                final TreeNode<T> currentTo = stack.second(slot);
 
-            final List<List<TreeNode<T>>> children = currentFrom.getChildrenByProperty();
+                final List<List<TreeNode<T>>> children = currentFrom.getChildrenByProperty();
 
-            for (int i = 0; i < children.size(); i++) {
-                for (final TreeNode<T> fromChild : children.get(i)) {
-                    final TreeNode<T> toChild = TreeNode.create(fromChild.getData(), fromChild.nProperties());
-                    currentTo.addChildNode(toChild, i);
+                for (int i = 0; i < children.size(); i++) {
+                    for (final TreeNode<T> fromChild : children.get(i)) {
+                        final TreeNode<T> toChild = TreeNode.create(fromChild.getData(), fromChild.nProperties());
+                        currentTo.addChildNode(toChild, i);
 
-                    stack.push(new NodePair<T>(fromChild, toChild));
+                        stack.push(fromChild, toChild);
+                    }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
     }
 
@@ -182,7 +496,6 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     private static <T extends Serializable> NodeWithRef<T> copyChildren(final TreeNode<T> fromNode,
             final TreeNode<T> toNode, final Set<TreeNode<T>> references, final TreeNode<T> currentReference) {
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
         final Set<TreeNode<T>> referencesCopy = Sets.newHashSet();
         if (references.contains(fromNode)) {
             referencesCopy.add(toNode);
@@ -193,29 +506,35 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             currentReferenceCopy = toNode;
         }
 
-        stack.push(new NodePair<T>(fromNode, toNode));
-
-        while (!stack.isEmpty()) {
-            final NodePair<T> pair = stack.pop();
-            final TreeNode<T> currentFrom = pair.fromNode;
-            final TreeNode<T> currentTo = pair.toNode;
-
-            final List<List<TreeNode<T>>> children = currentFrom.getChildrenByProperty();
-
-            for (int i = 0; i < children.size(); i++) {
-                for (final TreeNode<T> fromChild : children.get(i)) {
-                    final TreeNode<T> toChild = TreeNode.create(fromChild.getData(), fromChild.nProperties());
-                    currentTo.addChildNode(toChild, i);
-
-                    stack.push(new NodePair<T>(fromChild, toChild));
-                    if (references.contains(fromChild)) {
-                        referencesCopy.add(toChild);
-                    }
-                    if (currentReference == fromChild) {
-                        currentReferenceCopy = toChild;
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(fromNode, toNode);
+
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> currentFrom = stack.first(slot);
+                final TreeNode<T> currentTo = stack.second(slot);
+
+                final List<List<TreeNode<T>>> children = currentFrom.getChildrenByProperty();
+
+                for (int i = 0; i < children.size(); i++) {
+                    for (final TreeNode<T> fromChild : children.get(i)) {
+                        final TreeNode<T> toChild = TreeNode.create(fromChild.getData(), fromChild.nProperties());
+                        currentTo.addChildNode(toChild, i);
+
+                        stack.push(fromChild, toChild);
+                        if (references.contains(fromChild)) {
+                            referencesCopy.add(toChild);
+                        }
+                        if (currentReference == fromChild) {
+                            currentReferenceCopy = toChild;
+                        }
                     }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
 
         return NodeWithRef.createNodeCompare(toNode, referencesCopy, currentReferenceCopy);
@@ -241,17 +560,179 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         return new TreeNode<T>(tree.getData(), tree.nProperties());
     }
 
+    /**
+     * Create a tree from its shape (as returned by getPreorderShape()) and the
+     * data of its nodes in preorder. The tree is built bottom-up, without
+     * recursion.
+     *
+     * @param shape
+     * @param data
+     *            returns the data of the i-th node in preorder
+     * @return
+     */
+    public static <T extends Serializable> TreeNode<T> fromPreorder(final int[] shape, final IntFunction<T> data) {
+        // Find where the description of each node starts
+        final int[] nodeOffsets = new int[shape.length];
+        int nNodes = 0;
+        for (int offset = 0; offset < shape.length; offset += 1 + (shape[offset] >>> 1)) {
+            nodeOffsets[nNodes++] = offset;
+        }
+
+        // Visiting the nodes in reverse preorder, the children of a node are
+        // at the top of the stack, with the first child on top.
+        final ArrayDeque<TreeNode<T>> nodeStack = new ArrayDeque<TreeNode<T>>();
+        for (int k = nNodes - 1; k >= 0; k--) {
+            final int offset = nodeOffsets[k];
+            final int nProperties = shape[offset] >>> 1;
+            final boolean immutable = (shape[offset] & 1) != 0;
+            final TreeNode<T> node;
+            if (immutable) {
+                final List<List<TreeNode<T>>> immutableProperties = Lists.newArrayListWithCapacity(nProperties);
+                for (int i = 0; i < nProperties; i++) {
+                    final ImmutableList.Builder<TreeNode<T>> children = ImmutableList.builder();
+                    for (int j = 0; j < shape[offset + 1 + i]; j++) {
+                        children.add(nodeStack.pop());
+                    }
+                    immutableProperties.add(children.build());
+                }
+                node = new TreeNode<T>(data.apply(k), immutableProperties);
+            } else {
+                node = new TreeNode<T>(data.apply(k), nProperties);
+                for (int i = 0; i < nProperties; i++) {
+                    for (int j = 0; j < shape[offset + 1 + i]; j++) {
+                        node.childrenProperties.get(i).add(nodeStack.pop());
+                    }
+                }
+            }
+            nodeStack.push(node);
+        }
+        checkArgument(nodeStack.size() == 1, "Invalid tree shape");
+        return nodeStack.pop();
+    }
+
+    /**
+     * Return the nodes of the tree in preorder. Visiting the list in reverse
+     * order, all the children of a node are visited before it, last child
+     * first.
+     *
+     * @param tree
+     * @param stopAtImmutable
+     *            if true, do not include the descendants of immutable nodes
+     * @return
+     */
+    public static <T extends Serializable> List<TreeNode<T>> getNodesInPreorder(final TreeNode<T> tree,
+            final boolean stopAtImmutable) {
+        final List<TreeNode<T>> nodes = Lists.newArrayList();
+        final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+        toVisit.push(tree);
+        while (!toVisit.isEmpty()) {
+            final TreeNode<T> current = toVisit.pop();
+            nodes.add(current);
+            if (stopAtImmutable && current.hasCachedMetadata()) {
+                continue;
+            }
+            final List<List<TreeNode<T>>> children = current.childrenProperties;
+            for (int i = children.size() - 1; i >= 0; i--) {
+                final List<TreeNode<T>> childrenForProperty = children.get(i);
+                for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                    toVisit.push(childrenForProperty.get(j));
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Return the shape of a tree, given its nodes in preorder. For each node,
+     * this contains the number of properties shifted left by one, with the
+     * lowest bit set for immutable nodes, followed by the number of children
+     * of each property. Nodes from toImmutableStructure() do not set the bit,
+     * since their data may change.
+     *
+     * @param nodes
+     * @return
+     */
+    public static <T extends Serializable> int[] getPreorderShape(final List<TreeNode<T>> nodes) {
+        int length = 0;
+        for (final TreeNode<T> node : nodes) {
+            length += 1 + node.childrenProperties.size();
+        }
+        final int[] shape = new int[length];
+        int offset = 0;
+        for (final TreeNode<T> node : nodes) {
+            final List<List<TreeNode<T>>> children = node.childrenProperties;
+            shape[offset++] = children.size() << 1 | (node.hasCachedMetadata() ? 1 : 0);
+            for (int i = 0; i < children.size(); i++) {
+                shape[offset++] = children.get(i).size();
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Read a non-negative int written by writeVarInt().
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static int readVarInt(final ObjectInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Write a non-negative int in 7-bit groups, lowest first, using one to
+     * five bytes.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void writeVarInt(final ObjectOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
     /**
      * The children of this node. This is a list of lists. One list for each
-     * property.
+     * property. Only set outside the constructors when a node is read (see
+     * readObject()).
      */
-    private final List<List<TreeNode<T>>> childrenProperties;
+    private List<List<TreeNode<T>>> childrenProperties;
 
     /**
      * The details of the tree node.
      */
     private final T nodeData;
 
+    /**
+     * True if the data of this immutable node may change (see
+     * toImmutableStructure()), so that its size, depth and structural hash
+     * are not cached.
+     */
+    private final boolean mutableData;
+
+    /**
+     * The size, depth and structural hash of the tree rooted at this node.
+     * These are only computed for immutable nodes, once, when the node is
+     * created. A treeSize of 0 means that nothing is cached.
+     */
+    private transient int treeSize;
+
+    private transient int treeDepth;
+
+    private transient int structuralHash;
+
     /**
      * Construct a Node give its data.
      *
@@ -260,6 +741,7 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     private TreeNode(final T name, final int nProperties) {
         nodeData = name;
+        mutableData = false;
         childrenProperties = Lists.newArrayListWithCapacity(nProperties);
         for (int i = 0; i < nProperties; i++) {
             final List<TreeNode<T>> childrenElements = Lists.newArrayList();
@@ -274,8 +756,24 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @param children
      */
     private TreeNode(final T name, final List<List<TreeNode<T>>> children) {
+        this(name, children, false);
+    }
+
+    /**
+     * Create an immutable node with this data. The size, depth and structural
+     * hash are cached, unless the data may change.
+     *
+     * @param name
+     * @param children
+     * @param mutableData
+     */
+    private TreeNode(final T name, final List<List<TreeNode<T>>> children, final boolean mutableData) {
         nodeData = name;
         this.childrenProperties = ImmutableList.copyOf(children);
+        this.mutableData = mutableData;
+        if (!mutableData) {
+            computeCachedMetadata();
+        }
     }
 
     /**
@@ -289,6 +787,28 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         childrenPlaceholder.add(child);
     }
 
+    /**
+     * Compute the size, depth and structural hash of this (immutable) node.
+     * The children are immutable, so this takes time linear to the number of
+     * children.
+     */
+    private void computeCachedMetadata() {
+        int size = 1;
+        int maxChildDepth = 0;
+        int hash = dataHash(nodeData);
+        for (final List<TreeNode<T>> childrenForProperty : childrenProperties) {
+            hash = 31 * hash + PROPERTY_HASH_SEPARATOR;
+            for (final TreeNode<T> child : childrenForProperty) {
+                size += child.getTreeSize();
+                maxChildDepth = Math.max(maxChildDepth, child.getTreeDepth());
+                hash = 31 * hash + child.hashCode();
+            }
+        }
+        structuralHash = hash;
+        treeDepth = maxChildDepth + 1;
+        treeSize = size;
+    }
+
     /**
      * Create a deep copy of the TreeNode structure. Data of each node, still
      * refers to the same element.
@@ -329,48 +849,62 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         }
         final TreeNode<T> other = (TreeNode<T>) obj;
         // Check equalities here, for speedup
+        if (hasCachedMetadata() && other.hasCachedMetadata()
+                && (structuralHash != other.structuralHash || treeSize != other.treeSize)) {
+            return false;
+        }
         if (!Objects.equal(nodeData, other.nodeData)) {
             return false;
         }
 
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
-        stack.push(new NodePair<T>(this, other));
-
-        while (!stack.isEmpty()) {
-            final NodePair<T> pair = stack.pop();
-            final TreeNode<T> currentThis = pair.fromNode;
-            final TreeNode<T> currentOther = pair.toNode;
-
-            final List<List<TreeNode<T>>> thisChildren = currentThis.getChildrenByProperty();
-            final List<List<TreeNode<T>>> otherChildren = currentOther.getChildrenByProperty();
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other);
 
-            final int thisChildrenSize = thisChildren.size();
-            if (thisChildrenSize != otherChildren.size()) {
-                return false;
-            }
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> currentThis = stack.first(slot);
+                final TreeNode<T> currentOther = stack.second(slot);
 
-            for (int i = 0; i < thisChildrenSize; i++) {
-                final List<TreeNode<T>> thisChildrenByProperty = thisChildren.get(i);
-                final List<TreeNode<T>> otherChildrenByProperty = otherChildren.get(i);
+                final List<List<TreeNode<T>>> thisChildren = currentThis.childrenProperties;
+                final List<List<TreeNode<T>>> otherChildren = currentOther.childrenProperties;
 
-                final int thisChildByPropertySize = thisChildrenByProperty.size();
-                if (thisChildByPropertySize != otherChildrenByProperty.size()) {
+                final int thisChildrenSize = thisChildren.size();
+                if (thisChildrenSize != otherChildren.size()) {
                     return false;
                 }
 
-                for (int j = 0; j < thisChildByPropertySize; j++) {
-                    final TreeNode<T> thisChild = thisChildrenByProperty.get(j);
-                    final TreeNode<T> otherChild = otherChildrenByProperty.get(j);
+                for (int i = 0; i < thisChildrenSize; i++) {
+                    final List<TreeNode<T>> thisChildrenByProperty = thisChildren.get(i);
+                    final List<TreeNode<T>> otherChildrenByProperty = otherChildren.get(i);
 
-                    if (!Objects.equal(otherChild.getData(), thisChild.getData())) {
+                    final int thisChildByPropertySize = thisChildrenByProperty.size();
+                    if (thisChildByPropertySize != otherChildrenByProperty.size()) {
                         return false;
                     }
 
-                    stack.push(new NodePair<T>(thisChild, otherChild));
+                    for (int j = 0; j < thisChildByPropertySize; j++) {
+                        final TreeNode<T> thisChild = thisChildrenByProperty.get(j);
+                        final TreeNode<T> otherChild = otherChildrenByProperty.get(j);
+
+                        if (thisChild == otherChild) {
+                            continue;
+                        } else if (thisChild.hasCachedMetadata() && otherChild.hasCachedMetadata()
+                                && thisChild.structuralHash != otherChild.structuralHash) {
+                            return false;
+                        } else if (!Objects.equal(otherChild.nodeData, thisChild.nodeData)) {
+                            return false;
+                        }
+
+                        stack.push(thisChild, otherChild);
+                    }
                 }
             }
+            return true;
+        } finally {
+            stack.release(mark);
         }
-        return true;
     }
 
     /**
@@ -415,50 +949,53 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             return Optional.absent();
         }
 
-        final ArrayDeque<Pair<TreeNode<T>, TreeNode<T>>> stack = new ArrayDeque<Pair<TreeNode<T>, TreeNode<T>>>();
-        stack.push(Pair.create(this, other));
-
         final TreeNode<T> root = TreeNode.create(this);
-        final ArrayDeque<TreeNode<T>> newTreeStack = new ArrayDeque<TreeNode<T>>();
-        newTreeStack.push(root);
-
-        while (!stack.isEmpty()) {
-            final Pair<TreeNode<T>, TreeNode<T>> current = stack.pop();
-            final TreeNode<T> tree1Node = current.first;
-            final TreeNode<T> tree2Node = current.second;
-
-            final TreeNode<T> newNode = newTreeStack.pop();
 
-            if (!tree1Node.getData().equals(tree2Node.getData())) {
-                continue;
-            }
+        // Each entry contains the nodes of the two trees and the matching node
+        // in the new tree.
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other, root);
+
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> tree1Node = stack.first(slot);
+                final TreeNode<T> tree2Node = stack.second(slot);
+                final TreeNode<T> newNode = stack.third(slot);
+
+                if (!tree1Node.getData().equals(tree2Node.getData())) {
+                    continue;
+                }
 
-            final List<List<TreeNode<T>>> tree1Children = tree1Node.getChildrenByProperty();
-            final List<List<TreeNode<T>>> tree2Children = tree2Node.getChildrenByProperty();
+                final List<List<TreeNode<T>>> tree1Children = tree1Node.getChildrenByProperty();
+                final List<List<TreeNode<T>>> tree2Children = tree2Node.getChildrenByProperty();
 
-            checkArgument(tree1Children.size() == tree2Children.size());
+                checkArgument(tree1Children.size() == tree2Children.size());
 
-            for (int i = 0, size = tree1Children.size(); i < size; i++) {
-                final List<TreeNode<T>> tree1ChildrenForProperty = tree1Children.get(i);
-                final List<TreeNode<T>> tree2ChildrenForProperty = tree2Children.get(i);
+                for (int i = 0, size = tree1Children.size(); i < size; i++) {
+                    final List<TreeNode<T>> tree1ChildrenForProperty = tree1Children.get(i);
+                    final List<TreeNode<T>> tree2ChildrenForProperty = tree2Children.get(i);
 
-                final int nChildren = Math.min(tree1ChildrenForProperty.size(), tree2ChildrenForProperty.size());
+                    final int nChildren = Math.min(tree1ChildrenForProperty.size(), tree2ChildrenForProperty.size());
 
-                for (int j = 0; j < nChildren; j++) {
-                    final TreeNode<T> tree1child = tree1ChildrenForProperty.get(j);
-                    final TreeNode<T> tree2child = tree2ChildrenForProperty.get(j);
+                    for (int j = 0; j < nChildren; j++) {
+                        final TreeNode<T> tree1child = tree1ChildrenForProperty.get(j);
+                        final TreeNode<T> tree2child = tree2ChildrenForProperty.get(j);
 
-                    if (!tree1child.nodeData.equals(tree2child.nodeData)) {
-                        break;
-                    } else {
-                        final TreeNode<T> newChild = TreeNode.create(tree1child);
-                        newNode.addChildNode(newChild, i);
+                        if (!tree1child.nodeData.equals(tree2child.nodeData)) {
+                            break;
+                        } else {
+                            final TreeNode<T> newChild = TreeNode.create(tree1child);
+                            newNode.addChildNode(newChild, i);
 
-                        stack.push(Pair.create(tree1child, tree2child));
-                        newTreeStack.push(newChild);
+                            stack.push(tree1child, tree2child, newChild);
+                        }
                     }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
 
         return Optional.of(root);
@@ -506,44 +1043,87 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @return an identity set of the overlapping nodes
      */
     public Set<TreeNode<T>> getOverlappingNodesWith(final TreeNode<T> other) {
-        final ArrayDeque<Pair<TreeNode<T>, TreeNode<T>>> stack = new ArrayDeque<Pair<TreeNode<T>, TreeNode<T>>>();
-        stack.push(Pair.create(this, other));
-
         final Set<TreeNode<T>> overlapping = Sets.newIdentityHashSet();
-        while (!stack.isEmpty()) {
-            final Pair<TreeNode<T>, TreeNode<T>> current = stack.pop();
-            final TreeNode<T> tree1Node = current.first;
-            final TreeNode<T> tree2Node = current.second;
-            if (!tree1Node.getData().equals(tree2Node.getData())) {
-                continue;
-            }
-            overlapping.add(tree1Node);
 
-            final List<List<TreeNode<T>>> tree1Children = tree1Node.getChildrenByProperty();
-            final List<List<TreeNode<T>>> tree2Children = tree2Node.getChildrenByProperty();
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other);
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> tree1Node = stack.first(slot);
+                final TreeNode<T> tree2Node = stack.second(slot);
+                if (!tree1Node.getData().equals(tree2Node.getData())) {
+                    continue;
+                }
+                overlapping.add(tree1Node);
+
+                final List<List<TreeNode<T>>> tree1Children = tree1Node.getChildrenByProperty();
+                final List<List<TreeNode<T>>> tree2Children = tree2Node.getChildrenByProperty();
 
-            checkArgument(tree1Children.size() == tree2Children.size());
+                checkArgument(tree1Children.size() == tree2Children.size());
 
-            for (int i = 0, size = tree1Children.size(); i < size; i++) {
-                final List<TreeNode<T>> tree1ChildrenForProperty = tree1Children.get(i);
-                final List<TreeNode<T>> tree2ChildrenForProperty = tree2Children.get(i);
+                for (int i = 0, size = tree1Children.size(); i < size; i++) {
+                    final List<TreeNode<T>> tree1ChildrenForProperty = tree1Children.get(i);
+                    final List<TreeNode<T>> tree2ChildrenForProperty = tree2Children.get(i);
 
-                final int nChildren = Math.min(tree1ChildrenForProperty.size(), tree2ChildrenForProperty.size());
-                for (int j = 0; j < nChildren; j++) {
-                    stack.push(Pair.create(tree1ChildrenForProperty.get(j), tree2ChildrenForProperty.get(j)));
+                    final int nChildren = Math.min(tree1ChildrenForProperty.size(),
+                            tree2ChildrenForProperty.size());
+                    for (int j = 0; j < nChildren; j++) {
+                        stack.push(tree1ChildrenForProperty.get(j), tree2ChildrenForProperty.get(j));
+                    }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
 
         return overlapping;
     }
 
+    /**
+     * Return the depth of this tree, i.e. the number of nodes in the longest
+     * path from this node to a leaf.
+     *
+     * @return
+     */
+    public int getTreeDepth() {
+        if (hasCachedMetadata()) {
+            return treeDepth;
+        }
+        final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
+        final ArrayDeque<Integer> toLookDepths = new ArrayDeque<Integer>();
+        int maxDepth = 1;
+        toLook.push(this);
+        toLookDepths.push(1);
+        while (!toLook.isEmpty()) {
+            final TreeNode<T> currentNode = toLook.pop();
+            final int currentDepth = toLookDepths.pop();
+
+            for (final List<TreeNode<T>> childProperties : currentNode.getChildrenByProperty()) {
+                for (final TreeNode<T> child : childProperties) {
+                    if (child.hasCachedMetadata()) {
+                        maxDepth = Math.max(maxDepth, currentDepth + child.treeDepth);
+                    } else {
+                        maxDepth = Math.max(maxDepth, currentDepth + 1);
+                        toLook.push(child);
+                        toLookDepths.push(currentDepth + 1);
+                    }
+                }
+            }
+        }
+        return maxDepth;
+    }
+
     /**
      * Return the tree size of this tree.
      *
      * @return
      */
     public int getTreeSize() {
+        if (hasCachedMetadata()) {
+            return treeSize;
+        }
         final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
         int size = 1;
         toLook.push(this);
@@ -551,22 +1131,44 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             final TreeNode<T> currentNode = toLook.pop();
 
             for (final List<TreeNode<T>> childProperties : currentNode.getChildrenByProperty()) {
-                size += childProperties.size();
                 for (final TreeNode<T> child : childProperties) {
-                    toLook.push(child);
+                    if (child.hasCachedMetadata()) {
+                        size += child.treeSize;
+                    } else {
+                        size++;
+                        toLook.push(child);
+                    }
                 }
             }
         }
         return size;
     }
 
+    /**
+     * Return true if the size, depth and structural hash of this node have
+     * been computed. This is the case for all immutable nodes.
+     *
+     * @return
+     */
+    boolean hasCachedMetadata() {
+        return treeSize != 0;
+    }
+
+    /**
+     * Return the structural (Merkle) hash of this tree. For immutable trees
+     * this is computed once, at creation time, and returned in constant time.
+     * For mutable trees it is recomputed on every call, in time linear to the
+     * number of mutable nodes (frozen subtrees are not visited) and without
+     * allocating, since the tree may have changed. Hashing a tree in place a
+     * few times is still cheaper than copying it with toImmutable(), so only
+     * trees that are hashed many times should be frozen.
+     */
     @Override
     public int hashCode() {
-        if (childrenProperties.size() > 0) {
-            return Objects.hashCode(nodeData, childrenProperties.get(0).hashCode());
-        } else {
-            return Objects.hashCode(nodeData);
+        if (hasCachedMetadata()) {
+            return structuralHash;
         }
+        return computeRecursiveStructuralHash(this, 0);
     }
 
     /**
@@ -584,12 +1186,7 @@ public final class TreeNode<T extends Serializable> implements Serializable {
     }
 
     public boolean isPartialSubtreeOf(final TreeNode<T> other) {
-        return isPartialSubtreeOf(other, new Predicate<NodeDataPair<T>>() {
-            @Override
-            public boolean apply(final NodeDataPair<T> arg) {
-                return arg.fromNode.equals(arg.toNode);
-            }
-        });
+        return isPartialSubtreeOf(other, DATA_EQUALITY);
     }
 
     /**
@@ -597,48 +1194,61 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * this tree can be fully found in the other tree.
      *
      * @param other
-     * @param equalityComparator
+     * @param dataMatcher
+     *            returns true if the data of this tree (first argument) match
+     *            the data of the other tree (second argument)
      * @return
      */
-    public boolean isPartialSubtreeOf(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator) {
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
-
-        stack.push(new NodePair<T>(this, other));
-        while (!stack.isEmpty()) {
-            final NodePair<T> currentNodes = stack.pop();
-            final TreeNode<T> thisNode = currentNodes.fromNode;
-            final TreeNode<T> otherNode = currentNodes.toNode;
-
-            if (!equalityComparator.apply(new NodeDataPair<T>(thisNode.nodeData, otherNode.getData()))) {
-                return false;
-            } else if (thisNode.nProperties() != otherNode.nProperties()) {
-                return false;
-            }
-
-            final List<List<TreeNode<T>>> thisChildren = thisNode.childrenProperties;
-            final List<List<TreeNode<T>>> otherChildren = otherNode.childrenProperties;
-            for (int propertyId = 0; propertyId < thisChildren.size(); propertyId++) {
-                final List<TreeNode<T>> thisProperty = thisChildren.get(propertyId);
-                final List<TreeNode<T>> otherProperty = otherChildren.get(propertyId);
-                if (thisProperty.size() > otherProperty.size()) {
+    public boolean isPartialSubtreeOf(final TreeNode<T> other, final BiPredicate<? super T, ? super T> dataMatcher) {
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other);
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> thisNode = stack.first(slot);
+                final TreeNode<T> otherNode = stack.second(slot);
+
+                if (!dataMatcher.test(thisNode.nodeData, otherNode.nodeData)) {
+                    return false;
+                } else if (thisNode.nProperties() != otherNode.nProperties()) {
                     return false;
                 }
-                for (int i = 0; i < thisProperty.size(); i++) {
-                    stack.push(new NodePair<T>(thisProperty.get(i), otherProperty.get(i)));
+
+                final List<List<TreeNode<T>>> thisChildren = thisNode.childrenProperties;
+                final List<List<TreeNode<T>>> otherChildren = otherNode.childrenProperties;
+                for (int propertyId = 0; propertyId < thisChildren.size(); propertyId++) {
+                    final List<TreeNode<T>> thisProperty = thisChildren.get(propertyId);
+                    final List<TreeNode<T>> otherProperty = otherChildren.get(propertyId);
+                    if (thisProperty.size() > otherProperty.size()) {
+                        return false;
+                    }
+                    for (int i = 0; i < thisProperty.size(); i++) {
+                        stack.push(thisProperty.get(i), otherProperty.get(i));
+                    }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
 
         return true;
     }
 
+    /**
+     * Returns true if this node is a subtree of the other node. This means that
+     * this tree can be fully found in the other tree.
+     *
+     * @param other
+     * @param equalityComparator
+     * @return
+     */
+    public boolean isPartialSubtreeOf(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator) {
+        return isPartialSubtreeOf(other, asDataMatcher(equalityComparator));
+    }
+
     public boolean isPartialSupertreeOf(final TreeNode<T> other) {
-        return isPartialSupertreeOf(other, new Predicate<NodeDataPair<T>>() {
-            @Override
-            public boolean apply(final NodeDataPair<T> arg) {
-                return arg.fromNode.equals(arg.toNode);
-            }
-        });
+        return isPartialSupertreeOf(other, DATA_EQUALITY);
     }
 
     /**
@@ -647,49 +1257,69 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * tree may have more children.
      *
      * @param other
-     * @param equalityComparator
+     * @param dataMatcher
+     *            returns true if the data of this tree (first argument) match
+     *            the data of the other tree (second argument)
      * @return
      */
-    public boolean isPartialSupertreeOf(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator) {
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
-
-        stack.push(new NodePair<T>(this, other));
-        while (!stack.isEmpty()) {
-            final NodePair<T> currentNodes = stack.pop();
-            final TreeNode<T> thisNode = currentNodes.fromNode;
-            final TreeNode<T> otherNode = currentNodes.toNode;
-
-            if (!equalityComparator.apply(new NodeDataPair<T>(thisNode.nodeData, otherNode.getData()))) {
-                return false;
-            } else if (thisNode.nProperties() != otherNode.nProperties()) {
-                return false;
-            }
+    public boolean isPartialSupertreeOf(final TreeNode<T> other,
+            final BiPredicate<? super T, ? super T> dataMatcher) {
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other);
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> thisNode = stack.first(slot);
+                final TreeNode<T> otherNode = stack.second(slot);
+
+                if (!dataMatcher.test(thisNode.nodeData, otherNode.nodeData)) {
+                    return false;
+                } else if (thisNode.nProperties() != otherNode.nProperties()) {
+                    return false;
+                }
 
-            if (thisNode.isLeaf()) {
-                continue;
-            } else if (otherNode.isLeaf() && !thisNode.isLeaf()) {
-                return false;
-            }
+                if (thisNode.isLeaf()) {
+                    continue;
+                } else if (otherNode.isLeaf() && !thisNode.isLeaf()) {
+                    return false;
+                }
 
-            final List<List<TreeNode<T>>> thisChildren = thisNode.childrenProperties;
-            final List<List<TreeNode<T>>> otherChildren = otherNode.childrenProperties;
+                final List<List<TreeNode<T>>> thisChildren = thisNode.childrenProperties;
+                final List<List<TreeNode<T>>> otherChildren = otherNode.childrenProperties;
 
-            for (int propertyId = 0; propertyId < thisChildren.size(); propertyId++) {
-                final List<TreeNode<T>> thisProperty = thisChildren.get(propertyId);
-                final List<TreeNode<T>> otherProperty = otherChildren.get(propertyId);
+                for (int propertyId = 0; propertyId < thisChildren.size(); propertyId++) {
+                    final List<TreeNode<T>> thisProperty = thisChildren.get(propertyId);
+                    final List<TreeNode<T>> otherProperty = otherChildren.get(propertyId);
 
-                if (thisProperty.size() < otherProperty.size()) {
-                    return false;
-                }
-                for (int i = 0; i < otherProperty.size(); i++) {
-                    stack.push(new NodePair<T>(thisProperty.get(i), otherProperty.get(i)));
+                    if (thisProperty.size() < otherProperty.size()) {
+                        return false;
+                    }
+                    for (int i = 0; i < otherProperty.size(); i++) {
+                        stack.push(thisProperty.get(i), otherProperty.get(i));
+                    }
                 }
             }
+        } finally {
+            stack.release(mark);
         }
 
         return true;
     }
 
+    /**
+     * Returns true if this node is a partial supertree of the other node. This
+     * means that this tree can be partially found in the other tree, but this
+     * tree may have more children.
+     *
+     * @param other
+     * @param equalityComparator
+     * @return
+     */
+    public boolean isPartialSupertreeOf(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator) {
+        return isPartialSupertreeOf(other, asDataMatcher(equalityComparator));
+    }
+
     /**
      * @return the number of properties of this node.
      */
@@ -698,100 +1328,219 @@ public final class TreeNode<T extends Serializable> implements Serializable {
     }
 
     /**
-     * Returns true if this is a partial match. Avoid using this function
-     * frequently since it instantiates the predicate on the fly.
+     * Returns true if this is a partial match, using the data equality.
      *
      * @param other
      * @return
      */
     public boolean partialMatch(final TreeNode<T> other, final boolean requireAllChildren) {
-        return partialMatch(other, new Predicate<NodeDataPair<T>>() {
-            @Override
-            public boolean apply(final NodeDataPair<T> arg) {
-                return arg.fromNode.equals(arg.toNode);
-            }
-        }, requireAllChildren);
+        return partialMatch(other, DATA_EQUALITY, requireAllChildren);
     }
 
     /**
      * returns true if it partially matches the other tree. A partial match is
      * defined when this node's children are a subset of the other's children
      * and have matching data. Node data equality is defined by the given
-     * predicate.
+     * matcher.
      *
      * @param other
-     * @param equalityComparator
+     * @param dataMatcher
+     *            returns true if the data of this tree (first argument) match
+     *            the data of the other tree (second argument)
      * @param requireAllChildren
      *            require to match all children (if a node has one, then it
      *            should match all of them)
      * @return
      */
-    public boolean partialMatch(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator,
+    public boolean partialMatch(final TreeNode<T> other, final BiPredicate<? super T, ? super T> dataMatcher,
             final boolean requireAllChildren) {
-        if (!equalityComparator.apply(new NodeDataPair<T>(nodeData, other.nodeData))) {
+        if (!dataMatcher.test(nodeData, other.nodeData)) {
             return false;
         }
 
-        final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
+        final TraversalStack stack = TraversalStack.get();
+        final int mark = stack.mark();
+        try {
+            stack.push(this, other);
+            while (!stack.isEmptyAbove(mark)) {
+                final int slot = stack.pop();
+                final TreeNode<T> thisNode = stack.first(slot);
+                final TreeNode<T> otherNode = stack.second(slot);
 
-        stack.push(new NodePair<T>(this, other));
-        while (!stack.isEmpty()) {
-            final NodePair<T> current = stack.pop();
-            final TreeNode<T> thisNode = current.fromNode;
-            final TreeNode<T> otherNode = current.toNode;
+                if (!dataMatcher.test(thisNode.nodeData, otherNode.nodeData)) {
+                    return false;
+                }
 
-            if (!equalityComparator.apply(new NodeDataPair<T>(thisNode.nodeData, otherNode.nodeData))) {
-                return false;
-            }
+                if (thisNode.nProperties() != otherNode.nProperties()) {
+                    return false;
+                }
 
-            if (thisNode.nProperties() != otherNode.nProperties()) {
-                return false;
-            }
+                boolean hasChildren = false;
+                boolean sizesSame = true;
+                for (int i = 0, n = thisNode.childrenProperties.size(); i < n; i++) {
+                    final List<TreeNode<T>> children = thisNode.childrenProperties.get(i);
+                    final List<TreeNode<T>> otherChildren = otherNode.childrenProperties.get(i);
 
-            boolean hasChildren = false;
-            boolean sizesSame = true;
-            for (int i = 0, n = thisNode.childrenProperties.size(); i < n; i++) {
-                final List<TreeNode<T>> children = thisNode.childrenProperties.get(i);
-                final List<TreeNode<T>> otherChildren = otherNode.childrenProperties.get(i);
+                    if (children.size() != otherChildren.size()) {
+                        sizesSame = false;
+                    }
 
-                if (children.size() != otherChildren.size()) {
-                    sizesSame = false;
-                }
+                    if (children.size() > 0) {
+                        hasChildren = true;
+                    }
 
-                if (children.size() > 0) {
-                    hasChildren = true;
-                }
+                    if (children.size() > otherChildren.size() && !requireAllChildren) {
+                        return false;
+                    } else if (requireAllChildren && hasChildren && !sizesSame) {
+                        return false;
+                    }
 
-                if (children.size() > otherChildren.size() && !requireAllChildren) {
-                    return false;
-                } else if (requireAllChildren && hasChildren && !sizesSame) {
-                    return false;
-                }
+                    for (int j = 0; j < children.size(); j++) {
+                        stack.push(children.get(j), otherChildren.get(j));
+                    }
 
-                for (int j = 0; j < children.size(); j++) {
-                    stack.push(new NodePair<T>(children.get(j), otherChildren.get(j)));
                 }
-
             }
+        } finally {
+            stack.release(mark);
         }
         return true;
     }
 
     /**
-     * Return an immutable copy of this the subtree rooted at this node.
+     * returns true if it partially matches the other tree. A partial match is
+     * defined when this node's children are a subset of the other's children
+     * and have matching data. Node data equality is defined by the given
+     * predicate. Prefer the BiPredicate version, since this allocates a
+     * NodeDataPair per compared node.
+     *
+     * @param other
+     * @param equalityComparator
+     * @param requireAllChildren
+     *            require to match all children (if a node has one, then it
+     *            should match all of them)
+     * @return
+     */
+    public boolean partialMatch(final TreeNode<T> other, final Predicate<NodeDataPair<T>> equalityComparator,
+            final boolean requireAllChildren) {
+        return partialMatch(other, asDataMatcher(equalityComparator), requireAllChildren);
+    }
+
+    /**
+     * Read a node written by writeObject(). If the node was written first, it
+     * is followed by its descendants, which are read in a loop and linked
+     * here. Streams written before this form store the children as a field.
+     * The cached metadata of immutable nodes are recomputed, since these are
+     * not serialized.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (childrenProperties != null) {
+            if (childrenProperties instanceof ImmutableList && !mutableData) {
+                computeCachedMetadata();
+            }
+            return;
+        }
+        if (!in.readBoolean()) {
+            // The children are set by the ancestor that is being read
+            return;
+        }
+
+        final ArrayDeque<NodeUnderConstruction<T>> toComplete = new ArrayDeque<NodeUnderConstruction<T>>();
+        toComplete.push(new NodeUnderConstruction<T>(this, readVarInt(in) - 1, in));
+        while (!toComplete.isEmpty()) {
+            final NodeUnderConstruction<T> current = toComplete.peek();
+            if (current.isComplete()) {
+                current.finish();
+                toComplete.pop();
+                if (!toComplete.isEmpty()) {
+                    toComplete.peek().addChild(current.node);
+                }
+                continue;
+            }
+            final TreeNode<T> child = (TreeNode<T>) in.readObject();
+            final int header = readVarInt(in);
+            if (header == 0) {
+                current.addChild(child);
+            } else {
+                toComplete.push(new NodeUnderConstruction<T>(child, header - 1, in));
+            }
+        }
+    }
+
+    /**
+     * Return an immutable copy of this the subtree rooted at this node. The
+     * size, depth and structural hash of the copy are computed once here and
+     * cached, so hashing and comparing immutable trees is cheap. This means
+     * that the equals() and hashCode() of the node data must never change.
+     * Use toImmutableStructure() for trees whose data may change.
      *
      * @return
      */
     public TreeNode<T> toImmutable() {
+        return toImmutable(false);
+    }
+
+    private TreeNode<T> toImmutable(final boolean mutableData) {
         final List<List<TreeNode<T>>> immutableProperties = Lists.newArrayList();
         for (int i = 0; i < childrenProperties.size(); i++) {
             final List<TreeNode<T>> immutableChildren = Lists.newArrayList();
             for (final TreeNode<T> child : childrenProperties.get(i)) {
-                immutableChildren.add(child.toImmutable());
+                immutableChildren.add(child.toImmutable(mutableData));
             }
             immutableProperties.add(ImmutableList.copyOf(immutableChildren));
         }
-        return new TreeNode<T>(nodeData, ImmutableList.copyOf(immutableProperties));
+        return new TreeNode<T>(nodeData, ImmutableList.copyOf(immutableProperties), mutableData);
+    }
+
+    /**
+     * Return a copy of the subtree rooted at this node, whose structure is
+     * immutable but whose node data may change (e.g. the root bits of the
+     * TSGNodes of a sampled corpus). Since the data may change, the size,
+     * depth and structural hash of the copy are not cached, but recomputed
+     * as in mutable trees.
+     *
+     * @return
+     */
+    public TreeNode<T> toImmutableStructure() {
+        return toImmutable(true);
+    }
+
+    /**
+     * Return an immutable copy of the subtree rooted at this node, where each
+     * distinct subtree is represented by a single canonical node, shared
+     * across all trees interned so far. The result is thus a DAG and interned
+     * trees are equal only if they are the same object.
+     *
+     * Since nodes are shared, interned trees should not be used in identity
+     * based structures that expect each node to have a single position (e.g.
+     * parent maps) and the node data must never be mutated.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public TreeNode<T> toInternedImmutable() {
+        final List<TreeNode<T>> nodes = getNodesInPreorder(this, false);
+
+        // Visiting the nodes in reverse preorder, the interned children of a
+        // node are at the top of the stack, with the first child on top.
+        final ArrayDeque<TreeNode<T>> internedStack = new ArrayDeque<TreeNode<T>>();
+        for (int k = nodes.size() - 1; k >= 0; k--) {
+            final TreeNode<T> current = nodes.get(k);
+            final List<List<TreeNode<T>>> immutableProperties = Lists
+                    .newArrayListWithCapacity(current.childrenProperties.size());
+            for (final List<TreeNode<T>> childrenForProperty : current.childrenProperties) {
+                final ImmutableList.Builder<TreeNode<T>> immutableChildren = ImmutableList.builder();
+                for (int j = 0; j < childrenForProperty.size(); j++) {
+                    immutableChildren.add(internedStack.pop());
+                }
+                immutableProperties.add(immutableChildren.build());
+            }
+            internedStack.push(INTERNED_NODES.intern(new TreeNode<T>(current.nodeData, immutableProperties)));
+        }
+        checkArgument(internedStack.size() == 1);
+        return internedStack.pop();
     }
 
     @Override
@@ -835,4 +1584,82 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             buffer.append("NULL\n");
         }
     }
+
+    /**
+     * Write this node without recursion. The first node of a subtree that is
+     * written to a stream is followed by all its descendants that were not
+     * written before, in preorder. Each descendant is written as an object,
+     * so that the nodes that are also referenced elsewhere (e.g. by the
+     * samplers) keep their identity. The descendants only write their own
+     * data, since their children are written here.
+     */
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("nodeData", nodeData);
+        fields.put("mutableData", mutableData);
+        out.writeFields();
+
+        final WrittenNodes writtenNodes;
+        synchronized (WRITTEN_NODES) {
+            WrittenNodes nodes = WRITTEN_NODES.get(out);
+            if (nodes == null) {
+                nodes = new WrittenNodes();
+                WRITTEN_NODES.put(out, nodes);
+            }
+            writtenNodes = nodes;
+        }
+        if (writtenNodes.pending.remove(this)) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        writtenNodes.written.add(this);
+        writeHeader(out);
+
+        final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+        pushChildren(toVisit);
+        while (!toVisit.isEmpty()) {
+            final TreeNode<T> current = toVisit.pop();
+            if (writtenNodes.written.add(current)) {
+                writtenNodes.pending.add(current);
+                out.writeObject(current);
+                current.writeHeader(out);
+                current.pushChildren(toVisit);
+            } else {
+                // The node is complete when read, so its subtree is skipped
+                out.writeObject(current);
+                writeVarInt(out, 0);
+            }
+        }
+    }
+
+    /**
+     * Push the children of this node on the stack, last child first.
+     *
+     * @param stack
+     */
+    private void pushChildren(final ArrayDeque<TreeNode<T>> stack) {
+        for (int i = childrenProperties.size() - 1; i >= 0; i--) {
+            final List<TreeNode<T>> childrenForProperty = childrenProperties.get(i);
+            for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                stack.push(childrenForProperty.get(j));
+            }
+        }
+    }
+
+    /**
+     * Write the number of properties of this node shifted left by one, with
+     * the lowest bit set for immutable nodes, plus one. 0 denotes a node that
+     * was written before. Then write the number of children of each property.
+     *
+     * @param out
+     * @throws IOException
+     */
+    private void writeHeader(final ObjectOutputStream out) throws IOException {
+        final int immutableBit = childrenProperties instanceof ImmutableList ? 1 : 0;
+        writeVarInt(out, (childrenProperties.size() << 1 | immutableBit) + 1);
+        for (final List<TreeNode<T>> childrenForProperty : childrenProperties) {
+            writeVarInt(out, childrenForProperty.size());
+        }
+    }
 }
@@ -2,102 +2,433 @@ package codemining.ast.distilledchanges;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.AnonymousClassDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.Initializer;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.NodeFinder;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
 
+import ch.uzh.ifi.seal.changedistiller.ChangeDistiller;
+import ch.uzh.ifi.seal.changedistiller.ChangeDistiller.Language;
+import ch.uzh.ifi.seal.changedistiller.distilling.FileDistiller;
 import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
+import ch.uzh.ifi.seal.changedistiller.model.entities.Delete;
+import ch.uzh.ifi.seal.changedistiller.model.entities.Move;
 import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
 import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeEntity;
-import codemining.ast.AbstractTreeExtractor;
+import ch.uzh.ifi.seal.changedistiller.model.entities.Update;
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
 import codemining.ast.java.JavaAstTreeExtractor;
-import codemining.languagetools.ITokenizer;
+import codemining.ast.java.ThreadLocalJavaParser;
 import codemining.languagetools.ParseType;
+import codemining.util.data.Pair;
 
-public class ChangeDistillerTreeExtractor extends AbstractTreeExtractor {
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Extracts the changes between two versions of a Java file as trees. Each
+ * change is a tree whose root symbol is the ChangeType of the change and
+ * whose child is the AST of the changed entity: the new version of inserted,
+ * updated and moved entities and the old version of deleted ones. The AST
+ * symbols share the alphabet of the change symbols, so change trees (and the
+ * plain ASTs of the files) can be used in the same grammar.
+ *
+ * The files are distilled with one FileDistiller per thread. The parsed
+ * versions are cached by their contents, since in a sequence of commits the
+ * new version of a file is usually the old version of the next change.
+ *
+ * Most methods do not change between two versions, so by default the methods
+ * whose trees are the same in both versions are removed from both before
+ * distilling, and the files are not distilled at all when nothing else
+ * differs. The methods are compared by the structural (Merkle) hash of their
+ * trees, and then by their trees. Since the trees do not include comments,
+ * changes to the comments of such methods are not reported.
+ *
+ */
+public class ChangeDistillerTreeExtractor extends JavaAstTreeExtractor {
 
 	/**
-	 * 
+	 * Collects the methods of the named types of a compilation unit, keyed by
+	 * getMethodKey(). Methods whose key is not unique map to null.
 	 */
+	private static final class MethodCollector extends ASTVisitor {
+
+		final Map<String, MethodDeclaration> methods = Maps.newHashMap();
+
+		@Override
+		public boolean visit(final AnonymousClassDeclaration node) {
+			return false;
+		}
+
+		@Override
+		public boolean visit(final FieldDeclaration node) {
+			return false;
+		}
+
+		@Override
+		public boolean visit(final Initializer node) {
+			return false;
+		}
+
+		@Override
+		public boolean visit(final MethodDeclaration node) {
+			final String key = getMethodKey(node);
+			methods.put(key, methods.containsKey(key) ? null : node);
+			return false;
+		}
+	}
+
+	/**
+	 * The child property of a change that contains the changed entity.
+	 */
+	public static final String CHANGED_ENTITY_PROPERTY = "changedEntity";
+
+	/**
+	 * Converts the node types of the symbols to strings, including the
+	 * change types.
+	 */
+	public static final Function<Integer, String> CHANGE_NODETYPE_CONVERTER = (Function<Integer, String> & Serializable) nodeType -> isChangeNodeType(nodeType) ? getChangeType(
+			nodeType).name()
+			: JAVA_NODETYPE_CONVERTER.apply(nodeType);
+
+	private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+
+	/**
+	 * The parsed versions of the files, keyed by the hash of their contents.
+	 */
+	private static final Cache<HashCode, CompilationUnit> COMPILATION_UNITS = CacheBuilder
+			.newBuilder().softValues().maximumSize(256).build();
+
+	private static final ThreadLocal<FileDistiller> DISTILLERS = ThreadLocal
+			.withInitial(() -> ChangeDistiller
+					.createFileDistiller(Language.JAVA));
+
 	private static final long serialVersionUID = 3687067919595744967L;
-	private JavaAstTreeExtractor helperExtractor = new JavaAstTreeExtractor();
-	
-	@Override
-	public String getCodeFromTree(TreeNode<Integer> tree) {
-		// TODO Auto-generated method stub
-		return null;
+
+	/**
+	 * Return the node of the entity in the compilation unit, or null if the
+	 * entity has no source range.
+	 */
+	private static ASTNode findNode(final CompilationUnit unit,
+			final SourceCodeEntity entity) {
+		final int start = entity.getStartPosition();
+		final int end = entity.getEndPosition();
+		if (start < 0 || end < start) {
+			return null;
+		}
+		return NodeFinder.perform(unit, start, end - start + 1);
 	}
 
-	@Override
-	public TreeNode<Integer> getKeyForCompilationUnit() {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Return the change type of a change symbol node type.
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	public static ChangeType getChangeType(final int nodeType) {
+		return CHANGE_TYPES[-nodeType - 3];
 	}
 
-	@Override
-	public ITokenizer getTokenizer() {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Return the parsed code, parsing it only if it was not seen recently.
+	 */
+	private static CompilationUnit getCompilationUnit(final String contents)
+			throws IOException {
+		try {
+			return COMPILATION_UNITS.get(
+					Hashing.sha1().hashUnencodedChars(contents),
+					() -> (CompilationUnit) ThreadLocalJavaParser.parse(
+							contents, ParseType.COMPILATION_UNIT));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new IOException("Failed to parse the code", e.getCause());
+		}
 	}
 
-	@Override
-	public TreeNode<Integer> getTree(File f) throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Return the key of a method: the names of the enclosing types, the name
+	 * of the method and the types of its parameters.
+	 */
+	private static String getMethodKey(final MethodDeclaration method) {
+		final StringBuilder sb = new StringBuilder();
+		for (ASTNode parent = method.getParent(); parent != null; parent = parent
+				.getParent()) {
+			if (parent instanceof AbstractTypeDeclaration) {
+				sb.insert(0, ((AbstractTypeDeclaration) parent).getName()
+						.getIdentifier() + ".");
+			}
+		}
+		sb.append(method.getName().getIdentifier()).append('(');
+		for (final Object parameter : method.parameters()) {
+			final SingleVariableDeclaration declaration = (SingleVariableDeclaration) parameter;
+			sb.append(declaration.getType());
+			sb.append(declaration.isVarargs() ? "...," : ",");
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * Return the methods of the named types of the compilation unit.
+	 */
+	private static Map<String, MethodDeclaration> getMethods(
+			final CompilationUnit unit) {
+		final MethodCollector collector = new MethodCollector();
+		synchronized (unit) {
+			unit.accept(collector);
+		}
+		return collector.methods;
+	}
+
+	/**
+	 * Return the entity of the change in the version that contains it.
+	 */
+	private static SourceCodeEntity getVersionedEntity(
+			final SourceCodeChange change) {
+		if (change instanceof Update) {
+			return ((Update) change).getNewEntity();
+		} else if (change instanceof Move) {
+			return ((Move) change).getNewEntity();
+		}
+		return change.getChangedEntity();
+	}
+
+	/**
+	 * True if the node type is the type of a change symbol, as created by
+	 * AstNodeSymbol(ChangeType).
+	 *
+	 * @param nodeType
+	 * @return
+	 */
+	public static boolean isChangeNodeType(final int nodeType) {
+		return nodeType <= -3 && nodeType > -3 - CHANGE_TYPES.length;
+	}
+
+	/**
+	 * Return the code without the given nodes, which must not overlap.
+	 */
+	private static String removeNodes(final String code,
+			final List<ASTNode> nodes) {
+		nodes.sort(Comparator.comparingInt(ASTNode::getStartPosition));
+		final StringBuilder sb = new StringBuilder(code.length());
+		int position = 0;
+		for (final ASTNode node : nodes) {
+			sb.append(code, position, node.getStartPosition());
+			position = node.getStartPosition() + node.getLength();
+		}
+		return sb.append(code, position, code.length()).toString();
+	}
+
+	/**
+	 * If true, the methods that are the same in both versions are not
+	 * distilled.
+	 */
+	private boolean filterUnchangedMethods = true;
+
+	/**
+	 * Distill the two versions of a file, whose contents are given, and return
+	 * the trees of the changes.
+	 */
+	private List<TreeNode<Integer>> distill(final File before,
+			final String beforeCode, final File after, final String afterCode)
+			throws IOException {
+		final FileDistiller distiller = DISTILLERS.get();
+		distiller.extractClassifiedSourceCodeChanges(before, after);
+		final List<SourceCodeChange> changes = distiller
+				.getSourceCodeChanges();
+		if (changes == null || changes.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final CompilationUnit beforeUnit = getCompilationUnit(beforeCode);
+		final CompilationUnit afterUnit = getCompilationUnit(afterCode);
+		final List<TreeNode<Integer>> trees = Lists
+				.newArrayListWithCapacity(changes.size());
+		for (final SourceCodeChange change : changes) {
+			final CompilationUnit unit = change instanceof Delete ? beforeUnit
+					: afterUnit;
+			// The cached ASTs are shared by threads, but JDT initializes some
+			// properties lazily, so they are read by one thread at a time.
+			synchronized (unit) {
+				trees.add(getTree(change,
+						findNode(unit, getVersionedEntity(change))));
+			}
+		}
+		return trees;
+	}
+
+	/**
+	 * Return the trees of the changes between two versions of a file, in the
+	 * order in which the ChangeDistiller reports them.
+	 *
+	 * @param before
+	 * @param after
+	 * @return
+	 * @throws IOException
+	 */
+	public List<TreeNode<Integer>> getChangeTrees(final File before,
+			final File after) throws IOException {
+		final String beforeCode = FileUtils.readFileToString(before);
+		final String afterCode = FileUtils.readFileToString(after);
+		if (beforeCode.equals(afterCode)) {
+			return Collections.emptyList();
+		}
+		final Pair<String, String> filtered = filterUnchangedMethods ? removeUnchangedMethods(
+				beforeCode, afterCode) : null;
+		if (filtered == null) {
+			return distill(before, beforeCode, after, afterCode);
+		} else if (filtered.first.equals(filtered.second)) {
+			return Collections.emptyList();
+		}
+
+		// Keep the file names, since the distiller compiles the files
+		final File folder = Files.createTempDirectory("distill").toFile();
+		try {
+			final File filteredBefore = new File(new File(folder, "before"),
+					before.getName());
+			final File filteredAfter = new File(new File(folder, "after"),
+					after.getName());
+			FileUtils.writeStringToFile(filteredBefore, filtered.first);
+			FileUtils.writeStringToFile(filteredAfter, filtered.second);
+			return distill(filteredBefore, filtered.first, filteredAfter,
+					filtered.second);
+		} finally {
+			FileUtils.deleteQuietly(folder);
+		}
 	}
 
 	@Override
-	public TreeNode<Integer> getTree(String code, ParseType parseType) {
-		// TODO Auto-generated method stub
-		return null;
+	public String getCodeFromTree(final TreeNode<Integer> tree) {
+		final int nodeType = getSymbol(tree.getData()).nodeType;
+		if (!isChangeNodeType(nodeType)) {
+			return super.getCodeFromTree(tree);
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append(getChangeType(nodeType).name());
+		if (tree.nProperties() > 0
+				&& !tree.getChildrenByProperty().get(0).isEmpty()) {
+			sb.append(": ");
+			sb.append(super.getCodeFromTree(tree.getChildrenByProperty()
+					.get(0).get(0)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the tree of a change, without the changed entity.
+	 *
+	 * @param change
+	 * @return
+	 */
+	public TreeNode<Integer> getTree(final SourceCodeChange change) {
+		return getTree(change, null);
+	}
+
+	/**
+	 * Return the tree of a change.
+	 *
+	 * @param change
+	 * @param changedNode
+	 *            the node of the changed entity, or null
+	 * @return
+	 */
+	public TreeNode<Integer> getTree(final SourceCodeChange change,
+			final ASTNode changedNode) {
+		final AstNodeSymbol symbol = new AstNodeSymbol(change.getChangeType());
+		if (changedNode != null) {
+			symbol.addChildProperty(CHANGED_ENTITY_PROPERTY);
+		}
+		final TreeNode<Integer> treeNode = TreeNode.create(
+				getOrAddSymbolId(symbol), symbol.nChildProperties());
+		if (changedNode != null) {
+			treeNode.addChildNode(getTree(changedNode), 0);
+		}
+		return internIfNeeded(treeNode);
 	}
 
+	/**
+	 * Return a node printer that also prints change symbols. It is created on
+	 * each call, so that it is also available after deserialization.
+	 */
 	@Override
 	public TreeToString getTreePrinter() {
-		// TODO Auto-generated method stub
-		return null;
+		return node -> getSymbol(node.getData()).toString(
+				CHANGE_NODETYPE_CONVERTER);
+	}
+
+	public boolean isFilteringUnchangedMethods() {
+		return filterUnchangedMethods;
 	}
 
 	/**
-	 * Add further annotations to the given symbol. Useful for classes that will
-	 * subclass this one.
+	 * Return the two versions without the methods that are the same in both,
+	 * or null if no method is the same.
+	 */
+	private Pair<String, String> removeUnchangedMethods(
+			final String beforeCode, final String afterCode)
+			throws IOException {
+		final CompilationUnit beforeUnit = getCompilationUnit(beforeCode);
+		final CompilationUnit afterUnit = getCompilationUnit(afterCode);
+		final Map<String, MethodDeclaration> afterMethods = getMethods(afterUnit);
+		final List<ASTNode> beforeUnchanged = Lists.newArrayList();
+		final List<ASTNode> afterUnchanged = Lists.newArrayList();
+		for (final Entry<String, MethodDeclaration> beforeMethod : getMethods(
+				beforeUnit).entrySet()) {
+			final MethodDeclaration afterMethod = afterMethods.get(beforeMethod
+					.getKey());
+			if (beforeMethod.getValue() == null || afterMethod == null) {
+				continue;
+			}
+			final TreeNode<Integer> beforeTree;
+			synchronized (beforeUnit) {
+				beforeTree = getTree(beforeMethod.getValue());
+			}
+			final TreeNode<Integer> afterTree;
+			synchronized (afterUnit) {
+				afterTree = getTree(afterMethod);
+			}
+			if (beforeTree.hashCode() == afterTree.hashCode()
+					&& beforeTree.equals(afterTree)) {
+				beforeUnchanged.add(beforeMethod.getValue());
+				afterUnchanged.add(afterMethod);
+			}
+		}
+		if (beforeUnchanged.isEmpty()) {
+			return null;
+		}
+		return Pair.create(removeNodes(beforeCode, beforeUnchanged),
+				removeNodes(afterCode, afterUnchanged));
+	}
+
+	/**
+	 * Set whether the methods that are the same in both versions of a file
+	 * are removed before distilling them. On by default.
 	 *
-	 * @param symbol
-	 * @param node
-	 */
-	public void annotateSymbol(final AstNodeSymbol symbol, final ASTNode node) {
-		// Do nothing
-	}
-
-	
-
-	public TreeNode<Integer> getTree(SourceCodeChange change) {
-		/* 
-		 * These are the fields of a sourcecodeentity.
-		 * CLG FIXME: I presently believe that I don't care about them
-		 * except for the original node
-		 * (and that associated entities are just comments,
-		 * which are broken right now anyway)
-    private String fUniqueName;
-    private EntityType fType;
-    private int fModifiers;
-    private List<SourceCodeEntity> fAssociatedEntities;
-    private SourceRange fRange;
-    private ASTNode originalNode;
-*/ 
-		ChangeType ct = change.getChangeType();
-		final AstNodeSymbol symbol = new AstNodeSymbol(ct); 
-		SourceCodeEntity entity = change.getChangedEntity();
-		// FIXME: entities are harder.  Do I care about root or parent
-		// entities??
-//		ASTNode node = entity.getOriginalNode();
-//		symbol.addChildProperty("changedEntity");
-//		annotateSymbol(symbol, node);
-		final int symbolId = getOrAddSymbolId(symbol);
-		final TreeNode<Integer> treeNode = TreeNode.create(symbolId, 1);
-//		treeNode.addChildNode(helperExtractor.getTree(node),  0);
-		return treeNode;
+	 * @param filter
+	 */
+	public void setFilterUnchangedMethods(final boolean filter) {
+		filterUnchangedMethods = filter;
 	}
 
 }
@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.Function;
 
 import org.eclipse.jdt.core.dom.ASTNode;
@@ -71,19 +70,15 @@ public abstract class AbstractJavaTreeExtractor extends AbstractTreeExtractor {
 
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
-		for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet.entrySet()) {
-			if (entry.getValue().nodeType == ASTNode.COMPILATION_UNIT) {
-				return TreeNode.create(entry.getKey(), entry.getValue().nChildProperties());
-			}
+		int id = getFirstSymbolIdOfType(ASTNode.COMPILATION_UNIT);
+		if (id == -1) {
+			// temp workaround?
+			id = getFirstSymbolIdOfType(ASTNode.METHOD_DECLARATION);
 		}
-		
-		// temp workaround?
-		for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet.entrySet()) {
-			if (entry.getValue().nodeType == ASTNode.METHOD_DECLARATION) {
-				return TreeNode.create(entry.getKey(), entry.getValue().nChildProperties());
-			}
+		if (id == -1) {
+			throw new IllegalStateException("A compilation unit must have been here...");
 		}
-		throw new IllegalStateException("A compilation unit must have been here...");
+		return TreeNode.create(id, getSymbol(id).nChildProperties());
 	}
 
 	@Override
@@ -108,21 +103,20 @@ public abstract class AbstractJavaTreeExtractor extends AbstractTreeExtractor {
 	 */
 	@Override
 	public TreeNode<Integer> getTree(final File f) throws IOException {
-		final JavaASTExtractor astExtractor = new JavaASTExtractor(false);
-		final ASTNode u = astExtractor.getAST(f);
-		return getTree(u);
+		return internIfNeeded(getTreeUsingCache(f, file -> {
+			final ASTNode u = ThreadLocalJavaParser.parse(file);
+			return getTree(u);
+		}));
 	}
 	
 	public TreeNode<Integer> getTree(final StructureFinalDiffNode d, final File f) throws IOException{
 		final JavaASTExtractor astExtractor = new JavaASTExtractor(false);
 		final ASTNode u = astExtractor.getAST(d,f,new HashSet<String>());
-		return getTree(u);
+		return internIfNeeded(getTree(u));
 	}
 	
 	public org.eclipse.jdt.core.dom.CompilationUnit getDistillerTree(final File f) throws IOException {
-		final JavaASTExtractor astExtractor = new JavaASTExtractor(false);
-		final org.eclipse.jdt.core.dom.CompilationUnit u = astExtractor.getAST(f);
-		return u;
+		return ThreadLocalJavaParser.parse(f);
 	}
 
 
@@ -133,9 +127,8 @@ public abstract class AbstractJavaTreeExtractor extends AbstractTreeExtractor {
 	 */
 	@Override
 	public TreeNode<Integer> getTree(final String code, final ParseType parseType) {
-		final JavaASTExtractor astExtractor = new JavaASTExtractor(false);
-		final ASTNode u = astExtractor.getAST(code, parseType);
-		return getTree(u);
+		final ASTNode u = ThreadLocalJavaParser.parse(code, parseType);
+		return internIfNeeded(getTree(u));
 	}
 
 	/**
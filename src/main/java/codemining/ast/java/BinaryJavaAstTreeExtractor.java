@@ -14,11 +14,14 @@ import com.google.common.collect.Maps;
 
 import ch.uzh.ifi.seal.changedistiller.structuredifferencing.StructureFinalDiffNode;
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.FrozenAlphabet;
 import codemining.ast.TreeBinarizer;
 import codemining.ast.TreeNode;
 
 /**
- * A binary tree extractor.
+ * A binary tree extractor. When the base extractor is a JavaAstTreeExtractor,
+ * trees are binarized while they are extracted and debinarized while they are
+ * converted to ASTs, instead of being copied.
  *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
@@ -46,8 +49,17 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		binarizer = new TreeBinarizer(baseExtractor, annotateMultinodes);
 	}
 
+	@Override
+	public FrozenAlphabet freeze() {
+		return base.freeze();
+	}
+
 	@Override
 	public ASTNode getASTFromTree(final TreeNode<Integer> tree) {
+		if (base instanceof JavaAstTreeExtractor) {
+			return ((JavaAstTreeExtractor) base).getASTFromBinaryTree(tree,
+					binarizer);
+		}
 		final TreeNode<Integer> debinarized = binarizer.debinarize(tree);
 
 		return base.getASTFromTree(debinarized);
@@ -61,6 +73,13 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		return binarizer;
 	}
 
+	@Override
+	public String getExtractionSignature() {
+		return super.getExtractionSignature() + "("
+				+ base.getExtractionSignature() + ", "
+				+ binarizer.isAnnotatingMultinodes() + ")";
+	}
+
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
 		return base.getKeyForCompilationUnit();
@@ -71,13 +90,18 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	 * 
 	 * @see codemining.lm.grammar.tree.AbstractTreeExtractor#getNodeAlphabet()
 	 */
+	@Override
+	public int getFirstSymbolIdOfType(final int nodeType) {
+		return base.getFirstSymbolIdOfType(nodeType);
+	}
+
 	@Override
 	public BiMap<Integer, AstNodeSymbol> getNodeAlphabet() {
 		return base.getNodeAlphabet();
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
@@ -86,14 +110,31 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		return base.getSymbol(key);
 	}
 
+	@Override
+	public int[] getSymbolIdsOfType(final int nodeType) {
+		return base.getSymbolIdsOfType(nodeType);
+	}
+
 	@Override
 	public TreeNode<Integer> getTree(final ASTNode node) {
+		if (base instanceof JavaAstTreeExtractor) {
+			return ((JavaAstTreeExtractor) base).getBinaryTree(node, binarizer);
+		}
 		final TreeNode<Integer> tree = base.getTree(node);
 		return binarizer.binarizeTree(tree);
 	}
 
+	@Override
+	public boolean isFrozen() {
+		return base.isFrozen();
+	}
+
 	@Override
 	public Map<ASTNode, TreeNode<Integer>> getTreeMap(final ASTNode node) {
+		if (base instanceof JavaAstTreeExtractor) {
+			return ((JavaAstTreeExtractor) base).getBinaryTreeMap(node,
+					binarizer);
+		}
 		final Map<ASTNode, TreeNode<Integer>> baseTreeMap = base
 				.getTreeMap(node);
 		final Map<TreeNode<Integer>, TreeNode<Integer>> binarizationMappings = Maps
@@ -3,8 +3,6 @@
  */
 package codemining.ast.java;
 
-import java.util.Map;
-
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.SimpleName;
 
@@ -52,20 +50,9 @@ VariableTypeJavaTreeExtractor {
 	private static final long serialVersionUID = -9156945128462823330L;
 
 	@Override
-	public TreeNode<Integer> getTree(final ASTNode node,
+	protected TreeNodeExtractor createTreeNodeExtractor(final ASTNode node,
 			final boolean useComments) {
-		final DelegatedTypeJavaTreeExtractor ex = new DelegatedTypeJavaTreeExtractor(
-				node, useComments);
-		ex.extractFromNode(node);
-		return ex.computedNodes.get(node);
-	}
-
-	@Override
-	public Map<ASTNode, TreeNode<Integer>> getTreeMap(final ASTNode node) {
-		final DelegatedTypeJavaTreeExtractor ex = new DelegatedTypeJavaTreeExtractor(
-				node, false);
-		ex.extractFromNode(node);
-		return ex.computedNodes;
+		return new DelegatedTypeJavaTreeExtractor(node, useComments);
 	}
 
 }
@@ -19,6 +19,8 @@ import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import codemining.ast.AstExtractionPlan.AstLanguage;
+
 /**
  * Use the reflection API to get Eclipse Java AST Node information on the
  * structural properties.
@@ -40,6 +42,50 @@ public class JavaAstPropertiesData {
 	private static ConcurrentMap<Integer, List<SimplePropertyDescriptor>> astNodeSimpleProperties = Maps
 			.newConcurrentMap();
 
+	/**
+	 * The extraction plans of the ASTNode types.
+	 */
+	public static final AstLanguage<ASTNode, SimplePropertyDescriptor, StructuralPropertyDescriptor> EXTRACTION_PLANS = new AstLanguage<ASTNode, SimplePropertyDescriptor, StructuralPropertyDescriptor>() {
+
+		@Override
+		protected int getApiLevel(final ASTNode node) {
+			return node.getAST().apiLevel();
+		}
+
+		@Override
+		protected List<StructuralPropertyDescriptor> getChildProperties(
+				final int nodeType) throws Exception {
+			return JavaAstPropertiesData.getChildProperties(nodeType);
+		}
+
+		@Override
+		protected String getId(final StructuralPropertyDescriptor property) {
+			return property.getId();
+		}
+
+		@Override
+		protected int getNodeType(final ASTNode node) {
+			return node.getNodeType();
+		}
+
+		@Override
+		protected List<SimplePropertyDescriptor> getSimpleProperties(
+				final int nodeType) throws Exception {
+			return JavaAstPropertiesData.getSimpleProperties(nodeType);
+		}
+
+		@Override
+		protected List<?> getSupportedProperties(final ASTNode node) {
+			return node.structuralPropertiesForType();
+		}
+
+		@Override
+		protected boolean isChildProperty(
+				final StructuralPropertyDescriptor property) {
+			return property.isChildProperty();
+		}
+	};
+
 	private static final Logger LOGGER = Logger
 			.getLogger(JavaAstPropertiesData.class.getName());
 
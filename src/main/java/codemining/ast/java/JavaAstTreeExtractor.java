@@ -20,7 +20,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import ch.uzh.ifi.seal.changedistiller.structuredifferencing.StructureFinalDiffNode;
+import codemining.ast.AstExtractionPlan;
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.PostorderTreeStack;
+import codemining.ast.SymbolProbe;
+import codemining.ast.TreeBinarizer;
 import codemining.ast.TreeNode;
 import codemining.ast.js.ChangeASTVisitor;
 
@@ -42,10 +46,27 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	public class TreeNodeExtractor extends ASTVisitor {
 
 		/**
-		 * Store all the TreeNodes that have been extracted.
+		 * The TreeNodes of all the extracted nodes, if they are recorded (see
+		 * recordComputedNodes()), null otherwise.
 		 */
-		final Map<ASTNode, TreeNode<Integer>> computedNodes = Maps
-				.newIdentityHashMap();
+		Map<ASTNode, TreeNode<Integer>> computedNodes = null;
+
+		/**
+		 * The TreeNodes that have not been added to their parent yet.
+		 */
+		final PostorderTreeStack pendingNodes = new PostorderTreeStack();
+
+		/**
+		 * If not null, lists of more than two children are binarized during
+		 * the extraction.
+		 */
+		TreeBinarizer binarizer = null;
+
+		/**
+		 * The TreeNodes of the children of a list that is binarized.
+		 */
+		private final List<TreeNode<Integer>> listChildren = Lists
+				.newArrayList();
 
 		final boolean useComments;
 
@@ -53,7 +74,15 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 			super(useComments);
 			this.useComments = useComments;
 		}
-		
+
+		/**
+		 * Add a child of the node, or throw if it could not be extracted.
+		 */
+		private void addChild(final TreeNode<Integer> treeNode,
+				final ASTNode child, final int childProperty) {
+			treeNode.addChildNode(getChildTree(child), childProperty);
+		}
+
 		public void extractFromNode(final ASTNode node) {
 			if (useComments && node instanceof CompilationUnit) {
 				final CompilationUnit cu = (CompilationUnit) node;
@@ -72,6 +101,33 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 			//ChangeASTVisitor.acceptChange(node,this);
 		}
 
+		/**
+		 * Return the (already extracted) tree of a child of the node being
+		 * visited.
+		 *
+		 * @param child
+		 * @return
+		 */
+		private TreeNode<Integer> getChildTree(final ASTNode child) {
+			return checkNotNull(pendingNodes.getChild(child),
+					"Child %s was not extracted", child);
+		}
+
+		/**
+		 * Return the TreeNode of an extracted node. Apart from the node
+		 * passed to extractFromNode(), nodes are only available if they are
+		 * recorded.
+		 *
+		 * @param node
+		 * @return
+		 */
+		public TreeNode<Integer> getExtractedTree(final Object node) {
+			if (computedNodes != null && computedNodes.containsKey(node)) {
+				return computedNodes.get(node);
+			}
+			return pendingNodes.getTree(node);
+		}
+
 		public TreeNode<Integer> postProcessNodeBeforeAdding(
 				final TreeNode<Integer> treeNode, final ASTNode node) {
 			// Useful for subclasses, implementing more specific behaviors.
@@ -80,76 +136,103 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 
 		@Override
 		public void postVisit(final ASTNode node) {
+			TreeNode<Integer> extracted = null;
 			try {
-				System.err.println("POSTVISIT:" + node.toString());
-				final AstNodeSymbol symbol = new AstNodeSymbol(
-						node.getNodeType());
-				final List<StructuralPropertyDescriptor> supportedDescriptors = node
-						.structuralPropertiesForType();
+				final AstExtractionPlan<ASTNode, SimplePropertyDescriptor, StructuralPropertyDescriptor> plan = JavaAstPropertiesData.EXTRACTION_PLANS
+						.getPlan(node);
+				final SymbolProbe probe = getSymbolProbe();
+				probe.reset(plan.nodeType);
 
 				// Add simple properties
-				final List<SimplePropertyDescriptor> simpleDescriptors = JavaAstPropertiesData
-						.getSimpleProperties(node.getNodeType());
-				for (int i = 0; i < simpleDescriptors.size(); i++) {
-					final SimplePropertyDescriptor sp = simpleDescriptors
-							.get(i);
-					if (!supportedDescriptors.contains(sp)) {
-						continue;
-					}
+				for (int i = 0; i < plan.simpleProperties.size(); i++) {
 					final Object structuralProperty = node
-							.getStructuralProperty(sp);
+							.getStructuralProperty(plan.simpleProperties.get(i));
 					if (structuralProperty == null) {
 						continue;
 					}
-					addSimplePropertyToSymbol(symbol, sp, structuralProperty);
+					probe.addSimpleProperty(plan.simplePropertyIds[i],
+							getSimplePropertyValue(structuralProperty));
 				}
 
 				// Add child properties to symbol
-				final List<StructuralPropertyDescriptor> descriptors = JavaAstPropertiesData
-						.getChildProperties(node.getNodeType());
-				for (final StructuralPropertyDescriptor descriptor : descriptors) {
-					symbol.addChildProperty(descriptor.getId());
+				for (final String childPropertyId : plan.childPropertyIds) {
+					probe.addChildProperty(childPropertyId);
 				}
 
-				annotateSymbol(symbol, node);
-				final int symbolId = getOrAddSymbolId(symbol);
+				final int symbolId;
+				if (annotatesSymbols) {
+					final AstNodeSymbol symbol = probe.toSymbol();
+					annotateSymbol(symbol, node);
+					symbolId = getOrAddSymbolId(symbol);
+				} else {
+					symbolId = probe.getOrAddId();
+				}
 
 				final TreeNode<Integer> treeNode = TreeNode.create(symbolId,
-						descriptors.size());
+						plan.childProperties.size());
 
-				for (int i = 0; i < descriptors.size(); i++) {
-					if (!supportedDescriptors.contains(descriptors.get(i))) {
+				for (final int i : plan.supportedChildSlots) {
+					final Object property = node
+							.getStructuralProperty(plan.childProperties.get(i));
+					if (property == null) {
 						continue;
 					}
-					if (descriptors.get(i).isChildProperty()) {
-						final ASTNode child = (ASTNode) node
-								.getStructuralProperty(descriptors.get(i));
-						if (child == null) {
-							continue;
-						}
-						treeNode.addChildNode(
-								checkNotNull(computedNodes.get(child)), i);
+					if (plan.isSingleChild[i]) {
+						addChild(treeNode, (ASTNode) property, i);
 					} else {
 						// is child list
-						final List<ASTNode> children = (List<ASTNode>) node
-								.getStructuralProperty(descriptors.get(i));
-						if (children == null) {
+						final List<ASTNode> children = (List<ASTNode>) property;
+						if (binarizer != null && children.size() > 2) {
+							listChildren.clear();
+							for (int j = 0; j < children.size(); j++) {
+								listChildren.add(getChildTree(children.get(j)));
+							}
+							treeNode.addChildNode(
+									binarizer.createMultinodes(listChildren), i);
+							listChildren.clear();
 							continue;
 						}
-						for (final ASTNode child : children) {
-							treeNode.addChildNode(
-									checkNotNull(computedNodes.get(child)), i);
+						for (int j = 0; j < children.size(); j++) {
+							addChild(treeNode, children.get(j), i);
 						}
 					}
 				}
 
-				computedNodes.put(node,
-						postProcessNodeBeforeAdding(treeNode, node));
+				extracted = postProcessNodeBeforeAdding(treeNode, node);
+				if (computedNodes != null) {
+					computedNodes.put(node, extracted);
+				}
 			} catch (final Exception e) {
 				LOGGER.warning("Failed to get Tree for node and children"
 						+ node + ExceptionUtils.getFullStackTrace(e));
+			} finally {
+				pendingNodes.exit(node, extracted);
 			}
 		}
+
+		@Override
+		public void preVisit(final ASTNode node) {
+			pendingNodes.enter();
+		}
+
+		/**
+		 * Keep the TreeNodes of all the extracted nodes, not only of the
+		 * root. Must be called before extracting.
+		 */
+		public void recordComputedNodes() {
+			computedNodes = Maps.newIdentityHashMap();
+		}
+
+		/**
+		 * Binarize the extracted trees with the given binarizer, as it would
+		 * binarize them after the extraction. Must be called before
+		 * extracting.
+		 *
+		 * @param binarizer
+		 */
+		public void setBinarizer(final TreeBinarizer binarizer) {
+			this.binarizer = checkNotNull(binarizer);
+		}
 	}
 
 	protected static void addSimplePropertyToASTNode(final ASTNode node,
@@ -217,27 +300,42 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	 */
 	protected static void addSimplePropertyToSymbol(final AstNodeSymbol symbol,
 			final StructuralPropertyDescriptor sp, final Object spValue) {
-		if (spValue instanceof Modifier.ModifierKeyword) {
-			final Modifier.ModifierKeyword mod = (Modifier.ModifierKeyword) spValue;
-			symbol.addSimpleProperty(sp.getId(), mod.toString());
-		} else if (spValue instanceof PrimitiveType.Code) {
-			final PrimitiveType.Code type = (PrimitiveType.Code) spValue;
-			symbol.addSimpleProperty(sp.getId(), type.toString());
-		} else if (spValue instanceof Assignment.Operator) {
-			final Assignment.Operator op = (Assignment.Operator) spValue;
-			symbol.addSimpleProperty(sp.getId(), op.toString());
-		} else if (spValue instanceof InfixExpression.Operator) {
-			final InfixExpression.Operator op = (InfixExpression.Operator) spValue;
-			symbol.addSimpleProperty(sp.getId(), op.toString());
-		} else if (spValue instanceof PrefixExpression.Operator) {
-			final PrefixExpression.Operator op = (PrefixExpression.Operator) spValue;
-			symbol.addSimpleProperty(sp.getId(), op.toString());
-		} else if (spValue instanceof PostfixExpression.Operator) {
-			final PostfixExpression.Operator op = (PostfixExpression.Operator) spValue;
-			symbol.addSimpleProperty(sp.getId(), op.toString());
-		} else {
-			symbol.addSimpleProperty(sp.getId(), spValue);
+		symbol.addSimpleProperty(sp.getId(), getSimplePropertyValue(spValue));
+	}
+
+	/**
+	 * Return the value of a simple property, as stored in the symbols.
+	 * Operators, modifiers and primitive types are stored as their (constant)
+	 * string.
+	 *
+	 * @param spValue
+	 * @return
+	 */
+	protected static Object getSimplePropertyValue(final Object spValue) {
+		if (spValue instanceof Modifier.ModifierKeyword
+				|| spValue instanceof PrimitiveType.Code
+				|| spValue instanceof Assignment.Operator
+				|| spValue instanceof InfixExpression.Operator
+				|| spValue instanceof PrefixExpression.Operator
+				|| spValue instanceof PostfixExpression.Operator) {
+			return spValue.toString();
 		}
+		return spValue;
+	}
+
+	/**
+	 * Return the children of a property of a node, skipping the multinodes
+	 * if the tree is binarized by the given binarizer.
+	 */
+	private static List<TreeNode<Integer>> getChildren(
+			final TreeNode<Integer> node, final int property,
+			final TreeBinarizer binarizer) {
+		final List<TreeNode<Integer>> children = node.getChildrenByProperty()
+				.get(property);
+		if (binarizer == null) {
+			return children;
+		}
+		return binarizer.debinarizeChildren(children);
 	}
 
 	private static final Logger LOGGER = Logger
@@ -245,6 +343,25 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 
 	private static final long serialVersionUID = 8839242786256127809L;
 
+	/**
+	 * The symbol probe of each thread. Created lazily, since it is not
+	 * serialized.
+	 */
+	private transient volatile ThreadLocal<SymbolProbe> symbolProbes;
+
+	/**
+	 * True if this class overrides annotateSymbol(), so that symbols cannot
+	 * be resolved by probing.
+	 */
+	private transient boolean annotatesSymbols;
+
+	/**
+	 * True if this class overrides getASTFromTree(), so that binary trees
+	 * must be debinarized before converting them. Computed lazily, since it
+	 * is not serialized.
+	 */
+	private transient volatile Boolean overridesConversion;
+
 	/**
 	 * Add further annotations to the given symbol. Useful for classes that will
 	 * subclass this one.
@@ -464,12 +581,52 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		}
 	}
 
+	/**
+	 * Return a new TreeNodeExtractor for extracting the given node.
+	 * Subclasses return their own TreeNodeExtractors.
+	 *
+	 * @param node
+	 * @param useComments
+	 * @return
+	 */
+	protected TreeNodeExtractor createTreeNodeExtractor(final ASTNode node,
+			final boolean useComments) {
+		return new TreeNodeExtractor(useComments);
+	}
+
+	/**
+	 * Create an AST from a tree binarized by the given binarizer, without
+	 * debinarizing it first. Subclasses that override getASTFromTree() are
+	 * debinarized as usual.
+	 *
+	 * @param tree
+	 * @param binarizer
+	 * @return
+	 */
+	public ASTNode getASTFromBinaryTree(final TreeNode<Integer> tree,
+			final TreeBinarizer binarizer) {
+		if (overridesConversion()) {
+			return getASTFromTree(binarizer.debinarize(tree));
+		}
+		return getASTFromTree(tree, checkNotNull(binarizer));
+	}
+
 	/**
 	 * Create an AST from a given TreeNode
 	 *
 	 */
 	@Override
 	public ASTNode getASTFromTree(final TreeNode<Integer> tree) {
+		return getASTFromTree(tree, null);
+	}
+
+	/**
+	 * Create an AST from a TreeNode, which may be binarized by the given
+	 * binarizer (if not null). Multinodes are skipped while converting, rather
+	 * than debinarizing the tree first.
+	 */
+	private ASTNode getASTFromTree(final TreeNode<Integer> tree,
+			final TreeBinarizer binarizer) {
 		final Map<TreeNode<Integer>, ASTNode> extractedNodes = Maps
 				.newIdentityHashMap();
 
@@ -484,9 +641,9 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		while (!toVisit.isEmpty()) {
 			final TreeNode<Integer> node = toVisit.pop();
 			conversionPlan.add(node);
-			for (final List<TreeNode<Integer>> childProperty : node
-					.getChildrenByProperty()) {
-				for (final TreeNode<Integer> child : childProperty) {
+			for (int i = 0; i < node.nProperties(); i++) {
+				for (final TreeNode<Integer> child : getChildren(node, i,
+						binarizer)) {
 					toVisit.push(child);
 				}
 			}
@@ -498,13 +655,14 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		for (int i = conversionPlan.size() - 1; i >= 0; i--) {
 			try {
 				final TreeNode<Integer> toBeConverted = conversionPlan.get(i);
-				for (final List<TreeNode<Integer>> childProperties : toBeConverted
-						.getChildrenByProperty()) {
-					for (final TreeNode<Integer> child : childProperties) {
+				for (int j = 0; j < toBeConverted.nProperties(); j++) {
+					for (final TreeNode<Integer> child : getChildren(
+							toBeConverted, j, binarizer)) {
 						checkArgument(extractedNodes.containsKey(child));
 					}
 				}
-				getASTNodeForTreeNode(toBeConverted, ast, extractedNodes);
+				getASTNodeForTreeNode(toBeConverted, ast, extractedNodes,
+						binarizer);
 			} catch (final Exception e) {
 				LOGGER.warning("Failed to get ASTNode for subtree "
 						+ e.getMessage() + " "
@@ -526,8 +684,8 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	 */
 	private final ASTNode getASTNodeForTreeNode(
 			final TreeNode<Integer> treeNode, final AST ast,
-			final Map<TreeNode<Integer>, ASTNode> createdASTNodes)
-					throws Exception {
+			final Map<TreeNode<Integer>, ASTNode> createdASTNodes,
+			final TreeBinarizer binarizer) throws Exception {
 		final AstNodeSymbol symbol = getSymbol(treeNode.getData());
 		final ASTNode node = createASTNodeObject(treeNode, ast, symbol);
 
@@ -550,8 +708,8 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 				final List<ASTNode> nodesChildren = (List<ASTNode>) node
 						.getStructuralProperty(descriptors.get(i));
 				nodesChildren.clear();
-				for (final TreeNode<Integer> childNode : treeNode
-						.getChildrenByProperty().get(i)) {
+				for (final TreeNode<Integer> childNode : getChildren(treeNode,
+						i, binarizer)) {
 					final ASTNode childAst = checkNotNull(createdASTNodes
 							.get(childNode));
 					nodesChildren.add(childAst);
@@ -574,6 +732,30 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		return node;
 	}
 
+	/**
+	 * Return the symbol probe of the current thread.
+	 *
+	 * @return
+	 */
+	private SymbolProbe getSymbolProbe() {
+		if (symbolProbes == null) {
+			synchronized (this) {
+				if (symbolProbes == null) {
+					try {
+						annotatesSymbols = getClass().getMethod(
+								"annotateSymbol", AstNodeSymbol.class,
+								ASTNode.class).getDeclaringClass() != JavaAstTreeExtractor.class;
+					} catch (final NoSuchMethodException e) {
+						throw new IllegalStateException(e);
+					}
+					symbolProbes = ThreadLocal
+							.withInitial(() -> new SymbolProbe(this));
+				}
+			}
+		}
+		return symbolProbes.get();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -586,24 +768,76 @@ public class JavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		return getTree(node, false);
 	}
 	
+	/**
+	 * Return the tree of the node binarized by the given binarizer. The tree
+	 * is binarized during the extraction, rather than copied.
+	 *
+	 * @param node
+	 * @param binarizer
+	 * @return
+	 */
+	public TreeNode<Integer> getBinaryTree(final ASTNode node,
+			final TreeBinarizer binarizer) {
+		final TreeNodeExtractor ex = createTreeNodeExtractor(node, false);
+		ex.setBinarizer(binarizer);
+		ex.extractFromNode(node);
+		return ex.getExtractedTree(node);
+	}
+
+	/**
+	 * Return the map between the ASTNodes and their binarized trees, as
+	 * binarized by the given binarizer.
+	 *
+	 * @param node
+	 * @param binarizer
+	 * @return
+	 */
+	public Map<ASTNode, TreeNode<Integer>> getBinaryTreeMap(
+			final ASTNode node, final TreeBinarizer binarizer) {
+		final TreeNodeExtractor ex = createTreeNodeExtractor(node, false);
+		ex.setBinarizer(binarizer);
+		ex.recordComputedNodes();
+		ex.extractFromNode(node);
+		return ex.computedNodes;
+	}
+
 	public TreeNode<Integer> getChangeTree(StructureFinalDiffNode node){
 		final TreeNodeExtractor ex = new TreeNodeExtractor(false);
 		ex.extractFromChangeNode(node);
-		return ex.computedNodes.get(node);
+		return ex.getExtractedTree(node);
 	}
 	
 	public TreeNode<Integer> getTree(final ASTNode node,
 			final boolean useComments) {
-		final TreeNodeExtractor ex = new TreeNodeExtractor(useComments);
+		final TreeNodeExtractor ex = createTreeNodeExtractor(node,
+				useComments);
 		ex.extractFromNode(node);
-		return ex.computedNodes.get(node);
+		return ex.getExtractedTree(node);
 	}
 
 	@Override
 	public Map<ASTNode, TreeNode<Integer>> getTreeMap(final ASTNode node) {
-		final TreeNodeExtractor ex = new TreeNodeExtractor(false);
+		final TreeNodeExtractor ex = createTreeNodeExtractor(node, false);
+		ex.recordComputedNodes();
 		ex.extractFromNode(node);
 		return ex.computedNodes;
 	}
 
+	/**
+	 * Return true if this class overrides getASTFromTree().
+	 *
+	 * @return
+	 */
+	private boolean overridesConversion() {
+		if (overridesConversion == null) {
+			try {
+				overridesConversion = getClass().getMethod("getASTFromTree",
+						TreeNode.class).getDeclaringClass() != JavaAstTreeExtractor.class;
+			} catch (final NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return overridesConversion;
+	}
+
 }
@@ -15,7 +15,6 @@ import org.eclipse.jdt.core.dom.SimpleName;
 
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
-import codemining.java.codeutils.scopes.VariableScopeExtractor;
 import codemining.java.codeutils.scopes.VariableScopeExtractor.Variable;
 
 import com.google.common.collect.Maps;
@@ -46,7 +45,7 @@ public class TempletizedJavaTreeExtractor extends JavaAstTreeExtractor {
 		public TempletizedTreeExtractor(final ASTNode extracted,
 				final boolean useComments) {
 			super(useComments);
-			definedVariables = VariableScopeExtractor
+			definedVariables = VariableScopeCache
 					.getDefinedVarsPerNode(extracted);
 		}
 
@@ -236,20 +235,9 @@ public class TempletizedJavaTreeExtractor extends JavaAstTreeExtractor {
 	}
 
 	@Override
-	public TreeNode<Integer> getTree(final ASTNode node,
+	protected TreeNodeExtractor createTreeNodeExtractor(final ASTNode node,
 			final boolean useComments) {
-		final TempletizedTreeExtractor ex = new TempletizedTreeExtractor(node,
-				useComments);
-		ex.extractFromNode(node);
-		return ex.computedNodes.get(node);
-	}
-
-	@Override
-	public Map<ASTNode, TreeNode<Integer>> getTreeMap(final ASTNode node) {
-		final TempletizedTreeExtractor ex = new TempletizedTreeExtractor(node,
-				false);
-		ex.extractFromNode(node);
-		return ex.computedNodes;
+		return new TempletizedTreeExtractor(node, useComments);
 	}
 
 }
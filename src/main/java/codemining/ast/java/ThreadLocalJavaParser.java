@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package codemining.ast.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+
+import codemining.java.codeutils.JavaASTExtractor;
+import codemining.languagetools.ParseType;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Parses Java code (without bindings) with a JDT parser that is created once
+ * per thread and reused across calls, instead of setting up a new parser and
+ * new compiler options for each file or snippet. The compiler options are
+ * computed once and shared. An ASTParser resets itself after each
+ * createAST(), so every parse configures it again. The parsed ASTs are
+ * independent of each other and of the parser.
+ *
+ * The ASTs are the same as the ones of a JavaASTExtractor without bindings.
+ *
+ */
+public final class ThreadLocalJavaParser {
+
+	/**
+	 * Finds the first (outermost) method declaration.
+	 */
+	private static final class TopMethodRetriever extends ASTVisitor {
+
+		MethodDeclaration topDeclaration = null;
+
+		@Override
+		public boolean visit(final MethodDeclaration node) {
+			if (topDeclaration == null) {
+				topDeclaration = node;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean preVisit2(final ASTNode node) {
+			return topDeclaration == null;
+		}
+	}
+
+	private static final Map<String, String> COMPILER_OPTIONS = createCompilerOptions();
+
+	private static final ThreadLocal<ASTParser> PARSERS = ThreadLocal
+			.withInitial(() -> ASTParser.newParser(AST.JLS8));
+
+	/**
+	 * Snippets are parsed by the heuristics of the JavaASTExtractor, which is
+	 * stateless and so can be reused.
+	 */
+	private static final ThreadLocal<JavaASTExtractor> SNIPPET_EXTRACTORS = ThreadLocal
+			.withInitial(() -> new JavaASTExtractor(false));
+
+	/**
+	 * Return the compiler options of JavaASTExtractor (without javadocs), so
+	 * that the ASTs are the same. In particular, the compliance is left to
+	 * its default.
+	 */
+	private static Map<String, String> createCompilerOptions() {
+		final Map<String, String> options = Maps.newHashMap();
+		options.put(JavaCore.COMPILER_CODEGEN_TARGET_PLATFORM,
+				JavaCore.VERSION_1_8);
+		options.put(JavaCore.COMPILER_SOURCE, JavaCore.VERSION_1_8);
+		return Collections.unmodifiableMap(options);
+	}
+
+	/**
+	 * Parse a snippet of unknown type (e.g. a method or a few statements),
+	 * as JavaASTExtractor.getBestEffortAstNode() does.
+	 *
+	 * @param snippet
+	 * @return
+	 * @throws Exception
+	 */
+	public static ASTNode getBestEffortAstNode(final String snippet)
+			throws Exception {
+		return SNIPPET_EXTRACTORS.get().getBestEffortAstNode(snippet);
+	}
+
+	private static int getParserKind(final ParseType parseType) {
+		switch (parseType) {
+		case CLASS_BODY:
+		case METHOD:
+			return ASTParser.K_CLASS_BODY_DECLARATIONS;
+		case EXPRESSION:
+			return ASTParser.K_EXPRESSION;
+		case STATEMENTS:
+			return ASTParser.K_STATEMENTS;
+		case COMPILATION_UNIT:
+		default:
+			return ASTParser.K_COMPILATION_UNIT;
+		}
+	}
+
+	private static ASTNode parse(final char[] source, final int kind) {
+		final ASTParser parser = PARSERS.get();
+		parser.setKind(kind);
+		parser.setCompilerOptions(COMPILER_OPTIONS);
+		parser.setSource(source);
+		parser.setResolveBindings(false);
+		parser.setBindingsRecovery(false);
+		parser.setStatementsRecovery(true);
+		return parser.createAST(null);
+	}
+
+	/**
+	 * Parse a Java file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static CompilationUnit parse(final File file) throws IOException {
+		final String source = FileUtils.readFileToString(file);
+		return (CompilationUnit) parse(source.toCharArray(),
+				ASTParser.K_COMPILATION_UNIT);
+	}
+
+	/**
+	 * Parse some code of the given type. Methods are returned as their
+	 * MethodDeclaration.
+	 *
+	 * @param code
+	 * @param parseType
+	 * @return
+	 */
+	public static ASTNode parse(final String code, final ParseType parseType) {
+		final ASTNode node = parse(code.toCharArray(),
+				getParserKind(parseType));
+		if (parseType != ParseType.METHOD) {
+			return node;
+		}
+		final TopMethodRetriever retriever = new TopMethodRetriever();
+		node.accept(retriever);
+		return retriever.topDeclaration;
+	}
+
+	private ThreadLocalJavaParser() {
+	}
+
+}
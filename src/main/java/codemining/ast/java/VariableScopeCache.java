@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package codemining.ast.java;
+
+import java.util.Collection;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+
+import codemining.java.codeutils.scopes.VariableScopeExtractor;
+import codemining.java.codeutils.scopes.VariableScopeExtractor.Variable;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+
+/**
+ * A cache of the variables defined at each ASTNode, so that the scope
+ * analysis of a compilation unit is done once, rather than once for each
+ * method extracted from it. Entries are keyed by the identity of the node
+ * that was analyzed, and are dropped when the memory is needed or when the
+ * node is no longer used. The cached variables refer to the nodes of the
+ * analyzed AST only weakly, so that they do not keep it (and so its entry)
+ * alive.
+ *
+ */
+final class VariableScopeCache {
+
+	/**
+	 * The maximum number of cached nodes, enough for each extraction thread
+	 * to work on a few compilation units.
+	 */
+	private static final int MAX_SIZE = 64;
+
+	private static final LoadingCache<ASTNode, Multimap<ASTNode, Variable>> DEFINED_VARIABLES = CacheBuilder
+			.newBuilder().weakKeys().softValues().maximumSize(MAX_SIZE)
+			.build(new CacheLoader<ASTNode, Multimap<ASTNode, Variable>>() {
+				@Override
+				public Multimap<ASTNode, Variable> load(final ASTNode node) {
+					// Hold the nodes weakly, so that the value does not keep
+					// the AST (and so its key) alive.
+					final Multimap<ASTNode, Variable> definedVariables = Multimaps
+							.newListMultimap(new MapMaker().weakKeys()
+									.<ASTNode, Collection<Variable>> makeMap(),
+									() -> Lists.newArrayList());
+					definedVariables.putAll(VariableScopeExtractor
+							.getDefinedVarsPerNode(node));
+					return Multimaps.unmodifiableMultimap(definedVariables);
+				}
+			});
+
+	/**
+	 * Return the variables defined at each node of the given subtree, as
+	 * returned by VariableScopeExtractor.getDefinedVarsPerNode(). The result
+	 * is read-only and may be shared with other threads.
+	 *
+	 * @param node
+	 * @return
+	 */
+	static Multimap<ASTNode, Variable> getDefinedVarsPerNode(
+			final ASTNode node) {
+		return DEFINED_VARIABLES.getUnchecked(node);
+	}
+
+	private VariableScopeCache() {
+	}
+
+}
@@ -8,14 +8,12 @@ import static com.google.common.base.Preconditions.checkArgument;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.SimpleName;
 
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
-import codemining.java.codeutils.scopes.VariableScopeExtractor;
 import codemining.java.codeutils.scopes.VariableScopeExtractor.Variable;
 
 import com.google.common.collect.Multimap;
@@ -40,7 +38,7 @@ public class VariableTypeJavaTreeExtractor extends JavaAstTreeExtractor {
 				final boolean useComments) {
 			super(useComments);
 			// TODO: Use approximate type inference or bindings
-			definedVariables = VariableScopeExtractor
+			definedVariables = VariableScopeCache
 					.getDefinedVarsPerNode(extracted.getRoot());
 		}
 
@@ -214,20 +212,9 @@ public class VariableTypeJavaTreeExtractor extends JavaAstTreeExtractor {
 	}
 
 	@Override
-	public TreeNode<Integer> getTree(final ASTNode node,
+	protected TreeNodeExtractor createTreeNodeExtractor(final ASTNode node,
 			final boolean useComments) {
-		final VariableTypeTreeExtractor ex = new VariableTypeTreeExtractor(
-				node, useComments);
-		ex.extractFromNode(node);
-		return ex.computedNodes.get(node);
-	}
-
-	@Override
-	public Map<ASTNode, TreeNode<Integer>> getTreeMap(final ASTNode node) {
-		final VariableTypeTreeExtractor ex = new VariableTypeTreeExtractor(
-				node, false);
-		ex.extractFromNode(node);
-		return ex.computedNodes;
+		return new VariableTypeTreeExtractor(node, useComments);
 	}
 
 }
@@ -3,15 +3,19 @@
  */
 package codemining.ast.java.tui;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
@@ -20,8 +24,12 @@ import org.eclipse.jdt.core.dom.MethodDeclaration;
 
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.IngestionPipeline;
+import codemining.ast.IngestionPipeline.Consumption;
+import codemining.ast.IngestionPipeline.OutputCollector;
 import codemining.ast.TreeNode;
 import codemining.ast.java.JavaAstTreeExtractor;
 import codemining.java.codedata.MethodRetriever;
@@ -31,11 +39,125 @@ import codemining.util.data.Pair;
 /**
  * Extract into the AST of a method in JSON along with the method name.
  *
+ * The files are extracted in parallel and the methods are written as soon as
+ * they are extracted, either as a single JSON array or as JSON Lines (one
+ * method per line), optionally split into shards of bounded size. Only the
+ * methods of a bounded number of files are kept in memory.
+ *
  * @author Miltos Allamanis
  *
  */
 public class MethodNamingDatasetCreator {
 
+	/**
+	 * Writes the methods as a single JSON array.
+	 */
+	static final class JsonArrayWriter implements
+			Consumption<MethodNameWithAst>, Closeable {
+
+		private final Gson gson = new Gson();
+
+		private final JsonWriter writer;
+
+		JsonArrayWriter(final File outputFile) throws IOException {
+			writer = new JsonWriter(openWriter(outputFile));
+			writer.beginArray();
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.endArray();
+			writer.close();
+		}
+
+		@Override
+		public void consume(final MethodNameWithAst method) {
+			gson.toJson(method, MethodNameWithAst.class, writer);
+		}
+	}
+
+	/**
+	 * Writes the methods as JSON Lines. If a maximum shard size is given, a
+	 * new shard (e.g. dataset-00001.jsonl for dataset.jsonl) is started when
+	 * the current one would exceed it.
+	 */
+	static final class JsonLinesWriter implements
+			Consumption<MethodNameWithAst>, Closeable {
+
+		private final Gson gson = new Gson();
+
+		private final File outputFile;
+
+		/**
+		 * The maximum size of a shard in characters, or 0 for a single
+		 * output file.
+		 */
+		private final long maxShardSize;
+
+		private Writer writer = null;
+
+		private long shardSize = 0;
+
+		private int nShards = 0;
+
+		JsonLinesWriter(final File outputFile, final long maxShardSize) {
+			this.outputFile = outputFile;
+			this.maxShardSize = maxShardSize;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (writer == null) {
+				startShard();
+			}
+			writer.close();
+		}
+
+		@Override
+		public void consume(final MethodNameWithAst method)
+				throws IOException {
+			final String line = gson.toJson(method);
+			if (writer == null
+					|| (maxShardSize > 0 && shardSize > 0 && shardSize
+							+ line.length() + 1 > maxShardSize)) {
+				startShard();
+			}
+			writer.write(line);
+			writer.write('\n');
+			shardSize += line.length() + 1;
+		}
+
+		/**
+		 * Return the file of the given shard.
+		 */
+		File getShardFile(final int shard) {
+			if (maxShardSize <= 0) {
+				return outputFile;
+			}
+			final String name = outputFile.getName();
+			final int extensionStart = name.lastIndexOf('.');
+			final String shardName;
+			if (extensionStart > 0) {
+				shardName = String.format("%s-%05d%s",
+						name.substring(0, extensionStart), shard,
+						name.substring(extensionStart));
+			} else {
+				shardName = String.format("%s-%05d", name, shard);
+			}
+			return new File(outputFile.getAbsoluteFile().getParentFile(),
+					shardName);
+		}
+
+		private void startShard() throws IOException {
+			if (writer != null) {
+				writer.close();
+			}
+			writer = openWriter(getShardFile(nShards));
+			nShards++;
+			shardSize = 0;
+		}
+	}
+
 	static class MethodNameWithAst {
 		final String filename;
 		final String methodName;
@@ -62,30 +184,64 @@ public class MethodNamingDatasetCreator {
 
 	public static final String SELF_NAME = "%SELF%";
 
-	public static List<MethodNameWithAst> getDataset(File inputFolder) {
-		Collection<File> codeFiles = FileUtils.listFiles(inputFolder, JavaTokenizer.javaCodeFileFilter,
-				DirectoryFileFilter.DIRECTORY);
-		return codeFiles.parallelStream().flatMap(f -> getMethods(f, inputFolder)).collect(Collectors.toList());
+	/**
+	 * Extract the methods of all the files in the folder, in parallel. The
+	 * methods are passed to the consumption in the order of the files, from a
+	 * single thread.
+	 *
+	 * @param inputFolder
+	 * @param consumption
+	 */
+	public static void extractDataset(final File inputFolder,
+			final Consumption<MethodNameWithAst> consumption) {
+		extractDataset(inputFolder, consumption, JavaAstTreeExtractor::new);
 	}
 
-	private static Tree getMethodAst(final MethodDeclaration method) {
-		JavaAstTreeExtractor ex = new JavaAstTreeExtractor();
-		TreeNode<Integer> treeNode = ex.getTree(method.getBody());
-		return treeNodeToTree(treeNode, ex, method.getName().toString());
+	/**
+	 * Extract the methods of all the files in the folder, with a new
+	 * extractor from the given supplier for each file. The extractor is
+	 * dropped with the file, so that the symbols of the corpus are not kept
+	 * in memory.
+	 *
+	 * @param inputFolder
+	 * @param consumption
+	 * @param extractors
+	 */
+	static void extractDataset(final File inputFolder,
+			final Consumption<MethodNameWithAst> consumption,
+			final Supplier<JavaAstTreeExtractor> extractors) {
+		final Collection<File> codeFiles = FileUtils.listFiles(inputFolder, JavaTokenizer.javaCodeFileFilter,
+				DirectoryFileFilter.DIRECTORY);
+		final IngestionPipeline<File, MethodNameWithAst> pipeline = new IngestionPipeline<>(
+				"MethodNamingDatasetCreator");
+		pipeline.run(codeFiles, (file, methods) -> extractMethods(file, inputFolder, extractors.get(), methods),
+				consumption);
 	}
 
-	private static Stream<MethodNameWithAst> getMethods(File file, File inputFolder) {
-		try {
-			return MethodRetriever.getMethodNodes(file).values().stream()
-					.filter(m -> m != null && m.getBody() != null && !m.isConstructor()).map(m -> {
-						final Tree tokens = getMethodAst(m);
-						return new MethodNameWithAst(file.toString().substring(inputFolder.toString().length()),
-								m.getName().toString(), tokens);
-					});
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Extract the methods of a file. A single extractor is used for all the
+	 * methods of the file.
+	 */
+	private static void extractMethods(final File file, final File inputFolder, final JavaAstTreeExtractor ex,
+			final OutputCollector<MethodNameWithAst> methods) throws IOException {
+		final String filename = file.toString().substring(inputFolder.toString().length());
+		for (final MethodDeclaration m : MethodRetriever.getMethodNodes(file).values()) {
+			if (m == null || m.getBody() == null || m.isConstructor()) {
+				continue;
+			}
+			methods.add(new MethodNameWithAst(filename, m.getName().toString(), getMethodAst(m, ex)));
 		}
-		return Stream.empty();
+	}
+
+	public static List<MethodNameWithAst> getDataset(File inputFolder) {
+		final List<MethodNameWithAst> dataset = Lists.newArrayList();
+		extractDataset(inputFolder, dataset::add);
+		return dataset;
+	}
+
+	private static Tree getMethodAst(final MethodDeclaration method, final JavaAstTreeExtractor ex) {
+		TreeNode<Integer> treeNode = ex.getTree(method.getBody());
+		return treeNodeToTree(treeNode, ex, method.getName().toString());
 	}
 
 	/**
@@ -93,23 +249,29 @@ public class MethodNamingDatasetCreator {
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException {
-		if (args.length != 2) {
-			System.err.println("Usage <inputFolder> <outputFile>");
+		if (args.length < 2 || args.length > 4 || (args.length > 2 && !args[2].equals("jsonl"))) {
+			System.err.println("Usage <inputFolder> <outputFile> [jsonl [maxShardSizeMB]]");
 			System.exit(-1);
 		}
-		final String inputFolder = args[0];
-		final String outputFile = args[1];
-
-		List<MethodNameWithAst> dataset = getDataset(new File(inputFolder));
-		final FileWriter writer = new FileWriter(outputFile);
-		try {
-			final Gson gson = new Gson();
-			gson.toJson(dataset, writer);
-		} finally {
-			writer.close();
+		final File inputFolder = new File(args[0]);
+		final File outputFile = new File(args[1]);
+
+		if (args.length == 2) {
+			try (final JsonArrayWriter writer = new JsonArrayWriter(outputFile)) {
+				extractDataset(inputFolder, writer);
+			}
+		} else {
+			final long maxShardSize = args.length == 4 ? Long.parseLong(args[3]) * 1024 * 1024 : 0;
+			try (final JsonLinesWriter writer = new JsonLinesWriter(outputFile, maxShardSize)) {
+				extractDataset(inputFolder, writer);
+			}
 		}
 	}
 
+	private static Writer openWriter(final File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
 	private static Tree treeNodeToTree(final TreeNode<Integer> treeNode, JavaAstTreeExtractor ex, String methodName) {
 		Tree root = new Tree(ASTNode.nodeClassForType(ex.getSymbol(treeNode.getData()).nodeType).getSimpleName());
 		final Deque<Pair<TreeNode<Integer>, Tree>> toVisit = new ArrayDeque<>();
@@ -5,7 +5,10 @@ package codemining.ast.js;
 
 import org.eclipse.wst.jsdt.core.dom.ASTNode;
 
+import com.google.common.collect.BiMap;
+
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.FrozenAlphabet;
 import codemining.ast.TreeBinarizer;
 import codemining.ast.TreeNode;
 
@@ -36,6 +39,11 @@ public class BinaryJavascriptTreeExtractor extends JavascriptTreeExtractor {
 		binarizer = new TreeBinarizer(baseExtractor, annotateMultinodes);
 	}
 
+	@Override
+	public FrozenAlphabet freeze() {
+		return base.freeze();
+	}
+
 	@Override
 	public ASTNode getASTFromTree(final TreeNode<Integer> tree) {
 		final TreeNode<Integer> debinarized = binarizer.debinarize(tree);
@@ -51,13 +59,30 @@ public class BinaryJavascriptTreeExtractor extends JavascriptTreeExtractor {
 		return binarizer;
 	}
 
+	@Override
+	public String getExtractionSignature() {
+		return super.getExtractionSignature() + "("
+				+ base.getExtractionSignature() + ", "
+				+ binarizer.isAnnotatingMultinodes() + ")";
+	}
+
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
 		return base.getKeyForCompilationUnit();
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public int getFirstSymbolIdOfType(final int nodeType) {
+		return base.getFirstSymbolIdOfType(nodeType);
+	}
+
+	@Override
+	public BiMap<Integer, AstNodeSymbol> getNodeAlphabet() {
+		return base.getNodeAlphabet();
+	}
+
+	@Override
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
@@ -66,10 +91,20 @@ public class BinaryJavascriptTreeExtractor extends JavascriptTreeExtractor {
 		return base.getSymbol(key);
 	}
 
+	@Override
+	public int[] getSymbolIdsOfType(final int nodeType) {
+		return base.getSymbolIdsOfType(nodeType);
+	}
+
 	@Override
 	public TreeNode<Integer> getTree(final ASTNode node) {
 		final TreeNode<Integer> tree = base.getTree(node);
 		return binarizer.binarizeTree(tree);
 	}
 
+	@Override
+	public boolean isFrozen() {
+		return base.isFrozen();
+	}
+
 }
@@ -12,7 +12,6 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -21,7 +20,9 @@ import org.eclipse.wst.jsdt.core.dom.*;
 import org.eclipse.wst.jsdt.core.dom.Modifier.ModifierKeyword;
 
 import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstExtractionPlan;
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.PostorderTreeStack;
 import codemining.ast.TreeNode;
 import codemining.js.codeutils.JavascriptASTExtractor;
 import codemining.js.codeutils.JavascriptTokenizer;
@@ -49,18 +50,37 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 	public class TreeNodeExtractor extends ASTVisitor {
 
 		/**
-		 * Store all the TreeNodes that have been extracted.
+		 * The TreeNodes that have not been added to their parent yet.
 		 */
-		final Map<ASTNode, TreeNode<Integer>> computedNodes = Maps.newHashMap();
+		final PostorderTreeStack pendingNodes = new PostorderTreeStack();
 
 		public TreeNodeExtractor(final boolean useComments) {
 			super(useComments);
 		}
 
+		/**
+		 * Add a child of the node, or throw if it could not be extracted.
+		 */
+		private void addChild(final TreeNode<Integer> treeNode,
+				final ASTNode child, final int childProperty) {
+			treeNode.addChildNode(checkNotNull(pendingNodes.getChild(child),
+					"Child %s was not extracted", child), childProperty);
+		}
+
 		public void extractFromNode(final ASTNode node) {
 			node.accept(this);
 		}
 
+		/**
+		 * Return the TreeNode of the node passed to extractFromNode().
+		 *
+		 * @param node
+		 * @return
+		 */
+		public TreeNode<Integer> getExtractedTree(final ASTNode node) {
+			return pendingNodes.getTree(node);
+		}
+
 		public TreeNode<Integer> postProcessNodeBeforeAdding(
 				final TreeNode<Integer> treeNode, final ASTNode node) {
 			// Useful for subclasses, implementing more specific behaviors.
@@ -69,75 +89,64 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 
 		@Override
 		public void postVisit(final ASTNode node) {
+			TreeNode<Integer> extracted = null;
 			try {
-				final AstNodeSymbol symbol = new AstNodeSymbol(
-						node.getNodeType());
-				final List<StructuralPropertyDescriptor> supportedDescriptors = node
-						.structuralPropertiesForType();
+				final AstExtractionPlan<ASTNode, SimplePropertyDescriptor, StructuralPropertyDescriptor> plan = JavascriptAstPropertiesData.EXTRACTION_PLANS
+						.getPlan(node);
+				final AstNodeSymbol symbol = new AstNodeSymbol(plan.nodeType);
 
 				// Add simple properties
-				final List<SimplePropertyDescriptor> simpleDescriptors = JavascriptAstPropertiesData
-						.getSimpleProperties(node.getNodeType());
-				for (int i = 0; i < simpleDescriptors.size(); i++) {
-					final SimplePropertyDescriptor sp = simpleDescriptors
-							.get(i);
-					if (!supportedDescriptors.contains(sp)) {
-						continue;
-					}
+				for (int i = 0; i < plan.simpleProperties.size(); i++) {
 					final Object structuralProperty = node
-							.getStructuralProperty(sp);
+							.getStructuralProperty(plan.simpleProperties.get(i));
 					if (structuralProperty == null) {
 						continue;
 					}
-					addSimplePropertyToSymbol(symbol, sp, structuralProperty);
+					addSimplePropertyToSymbol(symbol, plan.simpleProperties.get(i),
+							structuralProperty);
 				}
 
 				// Add child properties to symbol
-				final List<StructuralPropertyDescriptor> descriptors = JavascriptAstPropertiesData
-						.getChildProperties(node.getNodeType());
-				for (final StructuralPropertyDescriptor descriptor : descriptors) {
-					symbol.addChildProperty(descriptor.getId());
+				for (final String childPropertyId : plan.childPropertyIds) {
+					symbol.addChildProperty(childPropertyId);
 				}
 
 				annotateSymbol(symbol, node);
 				final int symbolId = getOrAddSymbolId(symbol);
 
 				final TreeNode<Integer> treeNode = TreeNode.create(symbolId,
-						descriptors.size());
+						plan.childProperties.size());
 
-				for (int i = 0; i < descriptors.size(); i++) {
-					if (!supportedDescriptors.contains(descriptors.get(i))) {
+				for (final int i : plan.supportedChildSlots) {
+					final Object property = node
+							.getStructuralProperty(plan.childProperties.get(i));
+					if (property == null) {
 						continue;
 					}
-					if (descriptors.get(i).isChildProperty()) {
-						final ASTNode child = (ASTNode) node
-								.getStructuralProperty(descriptors.get(i));
-						if (child == null) {
-							continue;
-						}
-						treeNode.addChildNode(
-								checkNotNull(computedNodes.get(child)), i);
+					if (plan.isSingleChild[i]) {
+						addChild(treeNode, (ASTNode) property, i);
 					} else {
 						// is child list
-						final List<ASTNode> children = (List<ASTNode>) node
-								.getStructuralProperty(descriptors.get(i));
-						if (children == null) {
-							continue;
-						}
-						for (final ASTNode child : children) {
-							treeNode.addChildNode(
-									checkNotNull(computedNodes.get(child)), i);
+						final List<ASTNode> children = (List<ASTNode>) property;
+						for (int j = 0; j < children.size(); j++) {
+							addChild(treeNode, children.get(j), i);
 						}
 					}
 				}
 
-				computedNodes.put(node,
-						postProcessNodeBeforeAdding(treeNode, node));
+				extracted = postProcessNodeBeforeAdding(treeNode, node);
 			} catch (final Exception e) {
 				LOGGER.warning("Failed to get Tree for node and children"
 						+ node + ExceptionUtils.getFullStackTrace(e));
+			} finally {
+				pendingNodes.exit(node, extracted);
 			}
 		}
+
+		@Override
+		public void preVisit(final ASTNode node) {
+			pendingNodes.enter();
+		}
 	}
 
 	protected static void addSimplePropertyToASTNode(final ASTNode node,
@@ -586,15 +595,12 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 	 */
 			@Override
 			public TreeNode<Integer> getKeyForCompilationUnit() {
-				for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet
-						.entrySet()) {
-					if (entry.getValue().nodeType == ASTNode.JAVASCRIPT_UNIT) {
-						return TreeNode.create(entry.getKey(), entry.getValue()
-								.nChildProperties());
-					}
+				final int id = getFirstSymbolIdOfType(ASTNode.JAVASCRIPT_UNIT);
+				if (id == -1) {
+					throw new IllegalStateException(
+							"A compilation unit must have been here...");
 				}
-				throw new IllegalStateException(
-						"A compilation unit must have been here...");
+				return TreeNode.create(id, getSymbol(id).nChildProperties());
 			}
 
 			/*
@@ -610,7 +616,7 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 			public TreeNode<Integer> getTree(final ASTNode node) {
 				final TreeNodeExtractor ex = new TreeNodeExtractor(false);
 				ex.extractFromNode(node);
-				return ex.computedNodes.get(node);
+				return ex.getExtractedTree(node);
 			}
 
 			/*
@@ -621,9 +627,12 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 	 */
 			@Override
 			public TreeNode<Integer> getTree(final File f) throws IOException {
-				final JavascriptASTExtractor ex = new JavascriptASTExtractor(false);
-				final JavaScriptUnit root = ex.getAST(f);
-				return getTree(root);
+				return internIfNeeded(getTreeUsingCache(f, file -> {
+					final JavascriptASTExtractor ex = new JavascriptASTExtractor(
+							false);
+					final JavaScriptUnit root = ex.getAST(file);
+					return getTree(root);
+				}));
 			}
 
 			/*
@@ -638,7 +647,7 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 					final ParseType parseType) {
 				final JavascriptASTExtractor ex = new JavascriptASTExtractor(false);
 				final ASTNode root = ex.getAST(code, parseType);
-				return getTree(root);
+				return internIfNeeded(getTree(root));
 			}
 
 			/*
@@ -5,12 +5,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AbstractFileFilter;
@@ -22,7 +25,9 @@ import codemining.java.tokenizers.JavaTokenizer;
 import codemining.languagetools.ITokenizer;
 import codemining.languagetools.ParseType;
 import codemining.lm.ILanguageModel;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 import codemining.math.random.SampleUtils;
+import codemining.util.data.Pair;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
@@ -119,12 +124,28 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 
 	}
 
+	/**
+	 * Buffers for encoding the consequents of the rules that are looked up.
+	 */
+	private static final ThreadLocal<ConsequentBuffer> CONSEQUENT_BUFFERS = ThreadLocal
+			.withInitial(ConsequentBuffer::new);
+
+	/**
+	 * The serialized form of the grammar. The rules are stored as a map of
+	 * multisets, as in older versions, so that trained models remain
+	 * readable.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("grammar", Map.class),
+			new ObjectStreamField("tokenizer", ITokenizer.class),
+			new ObjectStreamField("treeExtractor", AbstractTreeExtractor.class) };
+
 	private static final long serialVersionUID = 3019243696898888854L;
 
 	/**
 	 * The actual grammar (in symbols)
 	 */
-	protected Map<Integer, Multiset<NodeConsequent>> grammar;
+	protected final transient CFGRuleStore rules;
 
 	private final ITokenizer tokenizer = new JavaTokenizer();
 
@@ -133,11 +154,17 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 */
 	protected final AbstractTreeExtractor treeExtractor;
 
+	/**
+	 * The tree extractor and rules read by readObject(). A deserialized
+	 * grammar is a placeholder, which readResolve() replaces with a grammar
+	 * created from these.
+	 */
+	private transient Pair<AbstractTreeExtractor, CFGRuleStore> deserialized;
+
 	public AbstractContextFreeGrammar(
-			final AbstractTreeExtractor treeExtractor,
-			final Map<Integer, Multiset<NodeConsequent>> grammar) {
+			final AbstractTreeExtractor treeExtractor, final CFGRuleStore rules) {
 		this.treeExtractor = checkNotNull(treeExtractor);
-		this.grammar = grammar;
+		this.rules = rules;
 	}
 
 	public abstract void addCFGRule(final CFGRule rule);
@@ -152,6 +179,15 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	public abstract void addCFGRule(final int rootId,
 			final NodeConsequent ruleConsequent);
 
+	/**
+	 * Add a single CFG rule, whose consequent is encoded in the buffer.
+	 *
+	 * @param rootId
+	 * @param ruleConsequent
+	 */
+	public abstract void addCFGRule(final int rootId,
+			final ConsequentBuffer ruleConsequent);
+
 	/**
 	 * Add grammar rules from the given code.
 	 *
@@ -196,6 +232,17 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		return new CFGRule(rootId, ruleConsequent);
 	}
 
+	/**
+	 * Create a grammar of this type with the given tree extractor and rules.
+	 * Used to replace a deserialized grammar.
+	 *
+	 * @param treeExtractor
+	 * @param rules
+	 * @return
+	 */
+	protected abstract AbstractContextFreeGrammar createDeserialized(
+			final AbstractTreeExtractor treeExtractor, final CFGRuleStore rules);
+
 	/**
 	 * Generate a random tree based on this CFG.
 	 *
@@ -209,8 +256,8 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 
 		while (!toVisit.isEmpty()) {
 			final TreeNode<Integer> currentNode = toVisit.pop();
-			final Multiset<NodeConsequent> productions = grammar
-					.get(currentNode.getData());
+			final Multiset<NodeConsequent> productions = rules
+					.getConsequents(currentNode.getData());
 			if (productions != null) {
 				final NodeConsequent selected = SampleUtils
 						.getRandomElement(productions);
@@ -264,20 +311,13 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 * @return
 	 */
 	public double getEntropyOfRules(final ContextFreeGrammar otherCfg) {
-		double sum = 0;
-
-		for (final Entry<Integer, Multiset<NodeConsequent>> entry : otherCfg.grammar
-				.entrySet()) {
-			final int fromNode = entry.getKey();
-			for (final Multiset.Entry<NodeConsequent> toNodes : entry
-					.getValue().entrySet()) {
-				sum += toNodes.getCount()
-						* DoubleMath.log2(getMLProbability(fromNode,
-								toNodes.getElement()));
-			}
-		}
-
-		return sum;
+		final double[] sum = { 0 };
+		otherCfg.rules.forEachRule((root, code, offset, length, count) -> {
+			sum[0] += count
+					* DoubleMath.log2(getMLProbability(root, code, offset,
+							length));
+		});
+		return sum[0];
 	}
 
 	@Override
@@ -305,8 +345,46 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		return crossEntropy;
 	}
 
+	/**
+	 * Return a copy of the rules of the grammar, as a map from each root to
+	 * the multiset of its consequents.
+	 *
+	 * @return
+	 */
 	public Map<Integer, Multiset<NodeConsequent>> getInternalGrammar() {
-		return grammar;
+		return rules.toGrammar();
+	}
+
+	/**
+	 * Return the log2 of the maximum likelihood probability of a rule, whose
+	 * consequent is encoded in the buffer. This is negative infinity for the
+	 * unseen rules of a seen root.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public double getLog2MLProbability(final int from,
+			final ConsequentBuffer to) {
+		return DoubleMath.log2(getMLProbability(from, to));
+	}
+
+	/**
+	 * Return the maximum likelihood probability of a rule, whose consequent
+	 * is encoded in the buffer.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public final double getMLProbability(final int from,
+			final ConsequentBuffer to) {
+		return rules.getMLProbability(from, to);
+	}
+
+	private double getMLProbability(final int from, final int[] code,
+			final int offset, final int length) {
+		return rules.getMLProbability(from, code, offset, length);
 	}
 
 	/**
@@ -317,12 +395,7 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 * @return
 	 */
 	public final double getMLProbability(final int from, final NodeConsequent to) {
-		final Multiset<NodeConsequent> consequents = grammar.get(from);
-		if (consequents == null) {
-			return 1.;
-		}
-
-		return ((double) consequents.count(to)) / consequents.size();
+		return getMLProbability(from, CONSEQUENT_BUFFERS.get().set(to));
 	}
 
 	final AbstractTreeExtractor getTreeExtractor() {
@@ -334,6 +407,21 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		return tokenizer.getFileFilter();
 	}
 
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		final ObjectInputStream.GetField fields = in.readFields();
+		@SuppressWarnings("unchecked")
+		final Map<Integer, ? extends Multiset<NodeConsequent>> grammar = (Map<Integer, ? extends Multiset<NodeConsequent>>) fields
+				.get("grammar", null);
+		deserialized = Pair.create(
+				(AbstractTreeExtractor) fields.get("treeExtractor", null),
+				CFGRuleStore.fromGrammar(grammar));
+	}
+
+	protected final Object readResolve() throws ObjectStreamException {
+		return createDeserialized(deserialized.first, deserialized.second);
+	}
+
 	@Override
 	public abstract void trainIncrementalModel(final Collection<File> files)
 			throws IOException;
@@ -342,4 +430,12 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	public abstract void trainModel(final Collection<File> trainingFiles)
 			throws IOException;
 
-}
\ No newline at end of file
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		final ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("grammar", rules.toGrammar());
+		fields.put("tokenizer", tokenizer);
+		fields.put("treeExtractor", treeExtractor);
+		out.writeFields();
+	}
+
+}
@@ -0,0 +1,969 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * The rules of a context-free grammar and their counts. The consequent of
+ * each rule is encoded as a sequence of ints (the number of properties and,
+ * for each property, the number of children followed by their symbols) and
+ * interned independently of the root, so rules with the same right-hand side
+ * share it. The total count of the rules of each root is kept, so maximum
+ * likelihood probabilities need a single lookup.
+ *
+ * The store is thread-safe. A mutable store interns its consequents in a
+ * concurrent map, and keeps the rules of each root in primitive arrays, with
+ * an open-addressing hash table, behind a lock of the root. So threads only
+ * wait for each other when they use the same root, and a rule count is always
+ * read along with the matching total. The tables are probed with per-thread
+ * keys, so lookups of existing rules do not allocate. A rule takes about 20 bytes
+ * of the arrays, besides its shared consequent. A frozen store cannot be
+ * modified and keeps its rules in primitive arrays: the consequents in a
+ * single pool, found through an open-addressing hash table, and the rules in
+ * a table keyed by the root and the consequent id.
+ *
+ */
+public final class CFGRuleStore {
+
+	/**
+	 * A reusable buffer for the encoded consequent of a rule. Not thread-safe.
+	 */
+	public static final class ConsequentBuffer {
+
+		private int[] code = new int[16];
+
+		private int length = 0;
+
+		private void ensureCapacity(final int capacity) {
+			if (code.length < capacity) {
+				code = Arrays.copyOf(code, Math.max(capacity, 2 * code.length));
+			}
+		}
+
+		/**
+		 * Encode the given consequent.
+		 *
+		 * @param consequent
+		 * @return this buffer
+		 */
+		public ConsequentBuffer set(final NodeConsequent consequent) {
+			int capacity = 1 + consequent.nodes.size();
+			for (final List<Integer> children : consequent.nodes) {
+				capacity += children.size();
+			}
+			ensureCapacity(capacity);
+			length = 0;
+			code[length++] = consequent.nodes.size();
+			for (final List<Integer> children : consequent.nodes) {
+				code[length++] = children.size();
+				for (final int child : children) {
+					code[length++] = child;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Encode the consequent of the rule of the given node, i.e. the
+		 * symbols of its children.
+		 *
+		 * @param node
+		 * @param symbols
+		 *            returns the symbol of a child
+		 * @return this buffer
+		 */
+		public <T extends Serializable> ConsequentBuffer set(
+				final TreeNode<T> node,
+				final ToIntFunction<? super TreeNode<T>> symbols) {
+			final List<List<TreeNode<T>>> childrenByProperty = node
+					.getChildrenByProperty();
+			int capacity = 1 + childrenByProperty.size();
+			for (final List<TreeNode<T>> children : childrenByProperty) {
+				capacity += children.size();
+			}
+			ensureCapacity(capacity);
+			length = 0;
+			code[length++] = childrenByProperty.size();
+			for (final List<TreeNode<T>> children : childrenByProperty) {
+				code[length++] = children.size();
+				for (final TreeNode<T> child : children) {
+					code[length++] = symbols.applyAsInt(child);
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Visits the rules of a store. The consequent is encoded in
+	 * code[offset..offset+length) and must not be modified. The rules are
+	 * visited in the order of their ids.
+	 */
+	@FunctionalInterface
+	public interface RuleVisitor {
+		void visit(int root, int[] code, int offset, int length, int count);
+	}
+
+	/**
+	 * An encoded consequent, stored in code[offset..offset+length). Interned
+	 * consequents own their code. Probes refer to the code of the looked up
+	 * consequent and are reused by each thread.
+	 */
+	private static final class ConsequentKey {
+
+		private int[] code;
+
+		private int offset;
+
+		private int length;
+
+		private int hash;
+
+		/**
+		 * Return an interned copy of this key.
+		 */
+		ConsequentKey copy() {
+			return new ConsequentKey().set(
+					Arrays.copyOfRange(code, offset, offset + length), 0,
+					length);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof ConsequentKey)) {
+				return false;
+			}
+			final ConsequentKey other = (ConsequentKey) obj;
+			return other.hash == hash
+					&& rangeEquals(code, offset, length, other.code,
+							other.offset, other.length);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		ConsequentKey set(final int[] code, final int offset, final int length) {
+			this.code = code;
+			this.offset = offset;
+			this.length = length;
+			hash = hash(code, offset, length);
+			return this;
+		}
+	}
+
+	/**
+	 * The rules of a frozen store, in primitive arrays.
+	 */
+	private static final class FrozenRules {
+
+		private final int nConsequents;
+
+		/**
+		 * Consequent i is pool[consequentOffsets[i]..consequentOffsets[i+1]).
+		 */
+		private final int[] consequentOffsets;
+
+		private final int[] pool;
+
+		private final int[] consequentHashes;
+
+		/**
+		 * The hash table of the consequents. Each slot contains the id of a
+		 * consequent plus one, or 0 if it is empty.
+		 */
+		private final int[] consequentTable;
+
+		private final int nRules;
+
+		/**
+		 * The root, consequent id and count of each rule.
+		 */
+		private final int[] ruleRoots;
+
+		private final int[] ruleConsequents;
+
+		private final int[] ruleCounts;
+
+		/**
+		 * The next rule with the same root, or -1.
+		 */
+		private final int[] nextRuleOfRoot;
+
+		/**
+		 * The hash table of the rules, as the table of the consequents.
+		 */
+		private final int[] ruleTable;
+
+		private final int nRoots;
+
+		private final int[] rootSymbols;
+
+		private final long[] rootTotals;
+
+		private final int[] firstRuleOfRoot;
+
+		/**
+		 * The hash table of the roots, as the table of the consequents.
+		 */
+		private final int[] rootTable;
+
+		/**
+		 * Store the given rules, whose ids become their positions.
+		 */
+		FrozenRules(final RulesById rules) {
+			nRules = rules.nRules;
+			ruleRoots = new int[nRules];
+			ruleConsequents = new int[nRules];
+			ruleCounts = new int[nRules];
+			nextRuleOfRoot = new int[nRules];
+			ruleTable = new int[tableCapacity(nRules)];
+
+			int poolLength = 0;
+			for (int i = 0; i < nRules; i++) {
+				poolLength += rules.consequents[i].length;
+			}
+			final int[] offsets = new int[nRules + 1];
+			final int[] codes = new int[poolLength];
+			final int[] hashes = new int[nRules];
+			consequentTable = new int[tableCapacity(nRules)];
+			int nConsequents = 0;
+
+			final int[] roots = new int[nRules];
+			final long[] totals = new long[nRules];
+			final int[] firstRules = new int[nRules];
+			rootTable = new int[tableCapacity(nRules)];
+			int nRoots = 0;
+
+			for (int i = 0; i < nRules; i++) {
+				final int root = rules.roots[i];
+				final ConsequentKey consequent = rules.consequents[i];
+				int consequentId = findConsequent(consequentTable, hashes,
+						offsets, codes, consequent.code, consequent.offset,
+						consequent.length, consequent.hash);
+				if (consequentId < 0) {
+					consequentId = nConsequents++;
+					System.arraycopy(consequent.code, consequent.offset, codes,
+							offsets[consequentId], consequent.length);
+					offsets[consequentId + 1] = offsets[consequentId]
+							+ consequent.length;
+					hashes[consequentId] = consequent.hash;
+					insert(consequentTable, consequent.hash, consequentId);
+				}
+
+				int rootIndex = findRoot(rootTable, roots, root);
+				if (rootIndex < 0) {
+					rootIndex = nRoots++;
+					roots[rootIndex] = root;
+					firstRules[rootIndex] = -1;
+					insert(rootTable, mix(root), rootIndex);
+				}
+
+				ruleRoots[i] = root;
+				ruleConsequents[i] = consequentId;
+				ruleCounts[i] = rules.counts[i];
+				totals[rootIndex] += ruleCounts[i];
+				nextRuleOfRoot[i] = firstRules[rootIndex];
+				firstRules[rootIndex] = i;
+				insert(ruleTable, ruleHash(root, consequentId), i);
+			}
+
+			this.nConsequents = nConsequents;
+			consequentOffsets = Arrays.copyOf(offsets, nConsequents + 1);
+			pool = Arrays.copyOf(codes, offsets[nConsequents]);
+			consequentHashes = Arrays.copyOf(hashes, nConsequents);
+			this.nRoots = nRoots;
+			rootSymbols = Arrays.copyOf(roots, nRoots);
+			rootTotals = Arrays.copyOf(totals, nRoots);
+			firstRuleOfRoot = Arrays.copyOf(firstRules, nRoots);
+		}
+
+		private NodeConsequent decode(final int consequent) {
+			return CFGRuleStore.decode(pool, consequentOffsets[consequent]);
+		}
+
+		private int findRule(final int root, final int[] code,
+				final int offset, final int length) {
+			final int consequent = findConsequent(consequentTable,
+					consequentHashes, consequentOffsets, pool, code, offset,
+					length, hash(code, offset, length));
+			if (consequent < 0) {
+				return -1;
+			}
+			final int mask = ruleTable.length - 1;
+			for (int slot = ruleHash(root, consequent) & mask; ruleTable[slot] != 0; slot = (slot + 1)
+					& mask) {
+				final int rule = ruleTable[slot] - 1;
+				if (ruleRoots[rule] == root
+						&& ruleConsequents[rule] == consequent) {
+					return rule;
+				}
+			}
+			return -1;
+		}
+
+		Multiset<NodeConsequent> getConsequents(final int root) {
+			final int rootIndex = findRoot(rootTable, rootSymbols, root);
+			if (rootIndex < 0) {
+				return null;
+			}
+			final Multiset<NodeConsequent> consequents = HashMultiset.create();
+			for (int rule = firstRuleOfRoot[rootIndex]; rule >= 0; rule = nextRuleOfRoot[rule]) {
+				consequents.add(decode(ruleConsequents[rule]), ruleCounts[rule]);
+			}
+			return consequents;
+		}
+
+		int getCount(final int root, final int[] code, final int offset,
+				final int length) {
+			final int rule = findRule(root, code, offset, length);
+			return rule < 0 ? 0 : ruleCounts[rule];
+		}
+
+		double getMLProbability(final int root, final int[] code,
+				final int offset, final int length) {
+			final long total = getTotalCount(root);
+			if (total == 0) {
+				return 1.;
+			}
+			return ((double) getCount(root, code, offset, length)) / total;
+		}
+
+		long getTotalCount(final int root) {
+			final int rootIndex = findRoot(rootTable, rootSymbols, root);
+			return rootIndex < 0 ? 0 : rootTotals[rootIndex];
+		}
+
+		Map<Integer, Multiset<NodeConsequent>> toGrammar() {
+			final ImmutableMap.Builder<Integer, Multiset<NodeConsequent>> grammar = ImmutableMap
+					.builder();
+			for (int i = 0; i < nRoots; i++) {
+				grammar.put(rootSymbols[i],
+						ImmutableMultiset.copyOf(getConsequents(rootSymbols[i])));
+			}
+			return grammar.build();
+		}
+
+		void visitRules(final RuleVisitor visitor) {
+			for (int rule = 0; rule < nRules; rule++) {
+				final int consequent = ruleConsequents[rule];
+				visitor.visit(ruleRoots[rule], pool,
+						consequentOffsets[consequent],
+						consequentOffsets[consequent + 1]
+								- consequentOffsets[consequent],
+						ruleCounts[rule]);
+			}
+		}
+	}
+
+	/**
+	 * The rules of a root in a mutable store, in primitive arrays indexed by
+	 * the position of each rule in the root. The rules are found through an
+	 * open-addressing hash table of their positions plus one. All methods
+	 * hold the lock of the root, so that the counts and the total are updated
+	 * and read together.
+	 */
+	private static final class RootRules {
+
+		private ConsequentKey[] consequents = new ConsequentKey[2];
+
+		private int[] ruleIds = new int[2];
+
+		private int[] counts = new int[2];
+
+		private int[] table = new int[4];
+
+		private int nRules = 0;
+
+		private long total = 0;
+
+		/**
+		 * Add a rule that is not in this root yet, or increment the count of
+		 * the rule if another thread added it first.
+		 *
+		 * @param consequent
+		 *            the interned consequent of the rule
+		 * @param count
+		 * @param nextRuleId
+		 *            the source of the id of the rule
+		 */
+		synchronized void add(final ConsequentKey consequent, final int count,
+				final AtomicInteger nextRuleId) {
+			int position = find(consequent);
+			if (position < 0) {
+				position = nRules++;
+				if (position == consequents.length) {
+					consequents = Arrays.copyOf(consequents, 2 * position);
+					ruleIds = Arrays.copyOf(ruleIds, 2 * position);
+					counts = Arrays.copyOf(counts, 2 * position);
+				}
+				consequents[position] = consequent;
+				ruleIds[position] = nextRuleId.getAndIncrement();
+				if (2 * nRules > table.length) {
+					table = new int[2 * table.length];
+					for (int i = 0; i < nRules; i++) {
+						insert(table, consequents[i].hash, i);
+					}
+				} else {
+					insert(table, consequent.hash, position);
+				}
+			}
+			counts[position] += count;
+			total += count;
+		}
+
+		synchronized void addConsequentsTo(
+				final Multiset<NodeConsequent> multiset) {
+			for (int i = 0; i < nRules; i++) {
+				multiset.add(decode(consequents[i].code, consequents[i].offset),
+						counts[i]);
+			}
+		}
+
+		/**
+		 * Copy the rules into the given arrays, at their ids. Rules whose ids
+		 * do not fit are skipped.
+		 */
+		synchronized void copyRulesTo(final int root, final RulesById rules) {
+			for (int i = 0; i < nRules; i++) {
+				final int id = ruleIds[i];
+				if (id < rules.roots.length) {
+					rules.roots[id] = root;
+					rules.consequents[id] = consequents[i];
+					rules.counts[id] = counts[i];
+				}
+			}
+		}
+
+		/**
+		 * Return the position of the rule, or -1 if it is not in this root.
+		 */
+		private int find(final ConsequentKey consequent) {
+			final int mask = table.length - 1;
+			for (int slot = consequent.hash & mask; table[slot] != 0; slot = (slot + 1)
+					& mask) {
+				final int position = table[slot] - 1;
+				if (consequents[position].equals(consequent)) {
+					return position;
+				}
+			}
+			return -1;
+		}
+
+		synchronized int getCount(final ConsequentKey consequent) {
+			final int position = find(consequent);
+			return position < 0 ? 0 : counts[position];
+		}
+
+		synchronized double getMLProbability(final ConsequentKey consequent) {
+			final int position = find(consequent);
+			return position < 0 ? 0 : ((double) counts[position]) / total;
+		}
+
+		synchronized int getRuleId(final ConsequentKey consequent) {
+			final int position = find(consequent);
+			return position < 0 ? -1 : ruleIds[position];
+		}
+
+		synchronized long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Increment the count of the rule, if it is in this root.
+		 *
+		 * @return true if the rule was found
+		 */
+		synchronized boolean increment(final ConsequentKey consequent,
+				final int count) {
+			final int position = find(consequent);
+			if (position < 0) {
+				return false;
+			}
+			counts[position] += count;
+			total += count;
+			return true;
+		}
+	}
+
+	/**
+	 * The rules of a mutable store, by id, as copied by copyRulesTo().
+	 */
+	private static final class RulesById {
+
+		private final int[] roots;
+
+		private final ConsequentKey[] consequents;
+
+		private final int[] counts;
+
+		private int nRules;
+
+		RulesById(final int nRules) {
+			this.nRules = nRules;
+			roots = new int[nRules];
+			consequents = new ConsequentKey[nRules];
+			counts = new int[nRules];
+		}
+
+		/**
+		 * Remove the ids of the rules that were added while the rules were
+		 * copied, and so were not copied.
+		 */
+		void removeGaps() {
+			int next = 0;
+			for (int i = 0; i < nRules; i++) {
+				if (consequents[i] != null) {
+					roots[next] = roots[i];
+					consequents[next] = consequents[i];
+					counts[next] = counts[i];
+					next++;
+				}
+			}
+			nRules = next;
+		}
+	}
+
+	private static final ThreadLocal<ConsequentKey> PROBES = ThreadLocal
+			.withInitial(ConsequentKey::new);
+
+	private static NodeConsequent decode(final int[] code, final int offset) {
+		int position = offset;
+		final int nProperties = code[position++];
+		final NodeConsequent consequent = new NodeConsequent(nProperties);
+		for (int i = 0; i < nProperties; i++) {
+			final int nChildren = code[position++];
+			final List<Integer> children = Lists
+					.newArrayListWithCapacity(nChildren);
+			for (int j = 0; j < nChildren; j++) {
+				children.add(code[position++]);
+			}
+			consequent.nodes.add(children);
+		}
+		return consequent;
+	}
+
+	/**
+	 * Find a consequent in the hash table of a frozen store. Return its id,
+	 * or -1 if it is not there.
+	 */
+	private static int findConsequent(final int[] table, final int[] hashes,
+			final int[] offsets, final int[] pool, final int[] code,
+			final int offset, final int length, final int hash) {
+		final int mask = table.length - 1;
+		for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1)
+				& mask) {
+			final int consequent = table[slot] - 1;
+			if (hashes[consequent] == hash
+					&& rangeEquals(pool, offsets[consequent],
+							offsets[consequent + 1] - offsets[consequent],
+							code, offset, length)) {
+				return consequent;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a root in the hash table of a frozen store. Return its index, or
+	 * -1 if it is not there.
+	 */
+	private static int findRoot(final int[] table, final int[] symbols,
+			final int root) {
+		final int mask = table.length - 1;
+		for (int slot = mix(root) & mask; table[slot] != 0; slot = (slot + 1)
+				& mask) {
+			final int rootIndex = table[slot] - 1;
+			if (symbols[rootIndex] == root) {
+				return rootIndex;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Create a store with the rules of the given grammar.
+	 *
+	 * @param grammar
+	 * @return
+	 */
+	public static CFGRuleStore fromGrammar(
+			final Map<Integer, ? extends Multiset<NodeConsequent>> grammar) {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		for (final Entry<Integer, ? extends Multiset<NodeConsequent>> production : grammar
+				.entrySet()) {
+			for (final Multiset.Entry<NodeConsequent> consequent : production
+					.getValue().entrySet()) {
+				buffer.set(consequent.getElement());
+				store.add(production.getKey(), buffer.code, buffer.length,
+						consequent.getCount());
+			}
+		}
+		return store;
+	}
+
+	private static int hash(final int[] code, final int offset,
+			final int length) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + code[i];
+		}
+		return mix(hash);
+	}
+
+	private static void insert(final int[] table, final int hash,
+			final int id) {
+		final int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id + 1;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, a fast 32-bit mixing function.
+	 */
+	private static int mix(final int value) {
+		int h = value;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static boolean rangeEquals(final int[] code, final int offset,
+			final int length, final int[] otherCode, final int otherOffset,
+			final int otherLength) {
+		if (length != otherLength) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (code[offset + i] != otherCode[otherOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int ruleHash(final int root, final int consequent) {
+		return mix(31 * mix(root) + consequent);
+	}
+
+	/**
+	 * Return the size of a hash table with at most the given number of
+	 * entries, i.e. the smallest power of two that keeps it half empty.
+	 */
+	private static int tableCapacity(final int nEntries) {
+		int capacity = 2;
+		while (capacity < 2 * nEntries) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * The rules of a frozen store, null if the store is mutable.
+	 */
+	private final FrozenRules frozenRules;
+
+	/**
+	 * The interned consequents of a mutable store.
+	 */
+	private final ConcurrentHashMap<ConsequentKey, ConsequentKey> consequents;
+
+	/**
+	 * The rules of each root of a mutable store.
+	 */
+	private final ConcurrentHashMap<Integer, RootRules> roots;
+
+	private final AtomicInteger nextRuleId;
+
+	public CFGRuleStore() {
+		frozenRules = null;
+		consequents = new ConcurrentHashMap<>();
+		roots = new ConcurrentHashMap<>();
+		nextRuleId = new AtomicInteger();
+	}
+
+	private CFGRuleStore(final FrozenRules frozenRules) {
+		this.frozenRules = frozenRules;
+		consequents = null;
+		roots = null;
+		nextRuleId = null;
+	}
+
+	/**
+	 * Add one occurrence of the rule.
+	 *
+	 * @param root
+	 * @param consequent
+	 */
+	public void add(final int root, final ConsequentBuffer consequent) {
+		add(root, consequent.code, consequent.length, 1);
+	}
+
+	private void add(final int root, final int[] code, final int length,
+			final int count) {
+		checkState(!isFrozen(), "A frozen CFG cannot be modified");
+		checkArgument(count > 0);
+		RootRules rootRules = roots.get(root);
+		if (rootRules == null) {
+			rootRules = roots.computeIfAbsent(root, newRoot -> new RootRules());
+		}
+		final ConsequentKey probe = PROBES.get().set(code, 0, length);
+		if (!rootRules.increment(probe, count)) {
+			rootRules.add(intern(probe), count, nextRuleId);
+		}
+	}
+
+	/**
+	 * Visit all the rules, in the order of their ids.
+	 *
+	 * @param visitor
+	 */
+	public void forEachRule(final RuleVisitor visitor) {
+		if (isFrozen()) {
+			frozenRules.visitRules(visitor);
+			return;
+		}
+		final RulesById rules = getRulesById();
+		for (int i = 0; i < rules.nRules; i++) {
+			final ConsequentKey consequent = rules.consequents[i];
+			visitor.visit(rules.roots[i], consequent.code, consequent.offset,
+					consequent.length, rules.counts[i]);
+		}
+	}
+
+	/**
+	 * Return a frozen copy of this store. The rules keep their ids, when the
+	 * store is not modified while it is frozen.
+	 *
+	 * @return
+	 */
+	public CFGRuleStore freeze() {
+		return isFrozen() ? this : new CFGRuleStore(new FrozenRules(
+				getRulesById()));
+	}
+
+	/**
+	 * Return the consequents of the given root, or null if there is no rule
+	 * for it.
+	 *
+	 * @param root
+	 * @return
+	 */
+	public Multiset<NodeConsequent> getConsequents(final int root) {
+		if (isFrozen()) {
+			return frozenRules.getConsequents(root);
+		}
+		final RootRules rootRules = roots.get(root);
+		if (rootRules == null) {
+			return null;
+		}
+		final Multiset<NodeConsequent> consequents = HashMultiset.create();
+		rootRules.addConsequentsTo(consequents);
+		return consequents;
+	}
+
+	/**
+	 * Return the count of the rule.
+	 *
+	 * @param root
+	 * @param consequent
+	 * @return
+	 */
+	public int getCount(final int root, final ConsequentBuffer consequent) {
+		return getCount(root, consequent.code, 0, consequent.length);
+	}
+
+	/**
+	 * Return the count of the rule whose consequent is encoded in
+	 * code[offset..offset+length).
+	 */
+	int getCount(final int root, final int[] code, final int offset,
+			final int length) {
+		if (isFrozen()) {
+			return frozenRules.getCount(root, code, offset, length);
+		}
+		final RootRules rootRules = roots.get(root);
+		if (rootRules == null) {
+			return 0;
+		}
+		return rootRules.getCount(PROBES.get().set(code, offset, length));
+	}
+
+	/**
+	 * Return the maximum likelihood probability of the rule, i.e. its count
+	 * over the total count of its root, or 1 if the root has no rules. The
+	 * count and the total are read together, so the probability is at most 1
+	 * even while rules are added.
+	 *
+	 * @param root
+	 * @param consequent
+	 * @return
+	 */
+	public double getMLProbability(final int root,
+			final ConsequentBuffer consequent) {
+		return getMLProbability(root, consequent.code, 0, consequent.length);
+	}
+
+	/**
+	 * Return the maximum likelihood probability of the rule whose consequent
+	 * is encoded in code[offset..offset+length).
+	 */
+	double getMLProbability(final int root, final int[] code,
+			final int offset, final int length) {
+		if (isFrozen()) {
+			return frozenRules.getMLProbability(root, code, offset, length);
+		}
+		final RootRules rootRules = roots.get(root);
+		if (rootRules == null) {
+			return 1.;
+		}
+		return rootRules.getMLProbability(PROBES.get().set(code, offset,
+				length));
+	}
+
+	/**
+	 * @return the number of distinct roots.
+	 */
+	public int getNumRoots() {
+		return isFrozen() ? frozenRules.nRoots : roots.size();
+	}
+
+	/**
+	 * @return the number of distinct rules.
+	 */
+	public int getNumRules() {
+		return isFrozen() ? frozenRules.nRules : nextRuleId.get();
+	}
+
+	/**
+	 * @return the number of distinct consequents, that the rules share.
+	 */
+	public int getNumConsequents() {
+		return isFrozen() ? frozenRules.nConsequents : consequents.size();
+	}
+
+	/**
+	 * Return the id of the rule, or -1 if the rule is not in the store. The
+	 * ids are assigned in the order the rules are first added, starting from
+	 * 0, and are kept by frozen copies.
+	 *
+	 * @param root
+	 * @param consequent
+	 * @return
+	 */
+	public int getRuleId(final int root, final ConsequentBuffer consequent) {
+		if (isFrozen()) {
+			return frozenRules.findRule(root, consequent.code, 0,
+					consequent.length);
+		}
+		final RootRules rootRules = roots.get(root);
+		if (rootRules == null) {
+			return -1;
+		}
+		return rootRules.getRuleId(PROBES.get().set(consequent.code, 0,
+				consequent.length));
+	}
+
+	/**
+	 * Return the rules of a mutable store, ordered by id.
+	 */
+	private RulesById getRulesById() {
+		final RulesById rules = new RulesById(nextRuleId.get());
+		for (final Entry<Integer, RootRules> rootRules : roots.entrySet()) {
+			rootRules.getValue().copyRulesTo(rootRules.getKey(), rules);
+		}
+		rules.removeGaps();
+		return rules;
+	}
+
+	/**
+	 * Return the total count of the rules of the given root, 0 if there are
+	 * none.
+	 *
+	 * @param root
+	 * @return
+	 */
+	public long getTotalCount(final int root) {
+		if (isFrozen()) {
+			return frozenRules.getTotalCount(root);
+		}
+		final RootRules rootRules = roots.get(root);
+		return rootRules == null ? 0 : rootRules.getTotal();
+	}
+
+	/**
+	 * Return the interned copy of the consequent of the given probe.
+	 */
+	private ConsequentKey intern(final ConsequentKey probe) {
+		final ConsequentKey interned = consequents.get(probe);
+		if (interned != null) {
+			return interned;
+		}
+		final ConsequentKey copy = probe.copy();
+		final ConsequentKey existing = consequents.putIfAbsent(copy, copy);
+		return existing == null ? copy : existing;
+	}
+
+	public boolean isEmpty() {
+		return getNumRules() == 0;
+	}
+
+	public boolean isFrozen() {
+		return frozenRules != null;
+	}
+
+	/**
+	 * Return the rules as a map from each root to the multiset of its
+	 * consequents. The map is immutable if the store is frozen and concurrent
+	 * otherwise, as the maps of the grammars used to be.
+	 *
+	 * @return
+	 */
+	public Map<Integer, Multiset<NodeConsequent>> toGrammar() {
+		if (isFrozen()) {
+			return frozenRules.toGrammar();
+		}
+		final Map<Integer, Multiset<NodeConsequent>> grammar = Maps
+				.newConcurrentMap();
+		for (final int root : roots.keySet()) {
+			grammar.put(root,
+					ConcurrentHashMultiset.create(getConsequents(root)));
+		}
+		return grammar;
+	}
+
+}
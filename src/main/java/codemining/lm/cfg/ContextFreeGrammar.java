@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -20,14 +19,12 @@ import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.languagetools.ParseType;
 import codemining.lm.ILanguageModel;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 import codemining.util.SettingsLoader;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ConcurrentHashMultiset;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
 
 /**
  * A context-free grammar language model.
@@ -88,8 +85,12 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 	private static final long serialVersionUID = -7892945140311811861L;
 
 	public ContextFreeGrammar(final AbstractTreeExtractor treeExtractor) {
-		super(treeExtractor, Maps
-				.<Integer, Multiset<NodeConsequent>> newConcurrentMap());
+		this(treeExtractor, new CFGRuleStore());
+	}
+
+	private ContextFreeGrammar(final AbstractTreeExtractor treeExtractor,
+			final CFGRuleStore rules) {
+		super(treeExtractor, rules);
 	}
 
 	@Override
@@ -98,26 +99,14 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 	}
 
 	@Override
-	public void addCFGRule(final int rootId, final NodeConsequent ruleConsequent) {
-		Multiset<NodeConsequent> ruleProduction;
-		final Multiset<NodeConsequent> tempMultiset = ConcurrentHashMultiset
-				.create();
-
-		if (grammar instanceof ConcurrentMap) {
-			final ConcurrentMap<Integer, Multiset<NodeConsequent>> conGrammar = (ConcurrentMap<Integer, Multiset<NodeConsequent>>) grammar;
-			ruleProduction = conGrammar.putIfAbsent(rootId, tempMultiset);
-		} else {
-			if (grammar.containsKey(rootId)) {
-				ruleProduction = grammar.get(rootId);
-			} else {
-				ruleProduction = null;
-			}
-		}
-		if (ruleProduction == null) {
-			ruleProduction = tempMultiset;
-		}
+	public void addCFGRule(final int rootId,
+			final ConsequentBuffer ruleConsequent) {
+		rules.add(rootId, ruleConsequent);
+	}
 
-		ruleProduction.add(ruleConsequent);
+	@Override
+	public void addCFGRule(final int rootId, final NodeConsequent ruleConsequent) {
+		rules.add(rootId, new ConsequentBuffer().set(ruleConsequent));
 	}
 
 	/**
@@ -139,11 +128,12 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 
 		final ArrayDeque<TreeNode<Integer>> nodeUpdates = new ArrayDeque<TreeNode<Integer>>();
 		nodeUpdates.push(node);
+		final ConsequentBuffer ruleConsequent = new ConsequentBuffer();
 
 		while (!nodeUpdates.isEmpty()) {
 			final TreeNode<Integer> currentNode = nodeUpdates.pop();
-			final CFGRule rule = createCFRuleForNode(currentNode);
-			addCFGRule(rule.root, rule.ruleConsequent);
+			rules.add(currentNode.getData(),
+					ruleConsequent.set(currentNode, TreeNode::getData));
 			for (final List<TreeNode<Integer>> childProperty : currentNode
 					.getChildrenByProperty()) {
 				for (final TreeNode<Integer> child : childProperty) {
@@ -156,6 +146,12 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 		}
 	}
 
+	@Override
+	protected AbstractContextFreeGrammar createDeserialized(
+			final AbstractTreeExtractor treeExtractor, final CFGRuleStore rules) {
+		return new ContextFreeGrammar(treeExtractor, rules);
+	}
+
 	@Override
 	public ILanguageModel getImmutableVersion() {
 		return new ImmutableContextFreeGrammar(this);
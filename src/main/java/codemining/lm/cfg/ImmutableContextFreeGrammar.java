@@ -6,21 +6,19 @@ package codemining.lm.cfg;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Map.Entry;
 
+import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.lm.ILanguageModel;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultiset;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
+import com.google.common.math.DoubleMath;
 
 /**
- * An immutable CFG.
+ * An immutable CFG. Since the rules cannot change, the log2 probability of
+ * each rule is computed once and looked up by the id of the rule.
  * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
@@ -30,9 +28,37 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 
 	private static final long serialVersionUID = 8744879368299806736L;
 
+	/**
+	 * Return the log2 maximum likelihood probabilities of the rules, indexed
+	 * by rule id.
+	 *
+	 * @param rules
+	 * @return
+	 */
+	private static double[] computeRuleLog2Probabilities(
+			final CFGRuleStore rules) {
+		final double[] log2Probabilities = new double[rules.getNumRules()];
+		final int[] nextRule = { 0 };
+		rules.forEachRule((root, code, offset, length, count) -> {
+			log2Probabilities[nextRule[0]++] = DoubleMath
+					.log2(((double) count) / rules.getTotalCount(root));
+		});
+		return log2Probabilities;
+	}
+
+	/**
+	 * The log2 maximum likelihood probability of each rule, by rule id.
+	 */
+	private final transient double[] ruleLog2Probabilities;
+
 	public ImmutableContextFreeGrammar(final AbstractContextFreeGrammar original) {
-		super(original.treeExtractor, null);
-		grammar = getImmutableCopy(original.grammar);
+		this(original.treeExtractor, original.rules);
+	}
+
+	private ImmutableContextFreeGrammar(
+			final AbstractTreeExtractor treeExtractor, final CFGRuleStore rules) {
+		super(treeExtractor, rules.freeze());
+		ruleLog2Probabilities = computeRuleLog2Probabilities(this.rules);
 	}
 
 	@Override
@@ -40,6 +66,12 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		throw new IllegalArgumentException("Immutable CFG cannot be modified");
 	}
 
+	@Override
+	public void addCFGRule(final int rootId,
+			final ConsequentBuffer ruleConsequent) {
+		throw new IllegalArgumentException("Immutable CFG cannot be modified");
+	}
+
 	@Override
 	public void addCFGRule(final int rootId, final NodeConsequent ruleConsequent) {
 		throw new IllegalArgumentException("Immutable CFG cannot be modified");
@@ -50,18 +82,10 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		throw new IllegalArgumentException("Immutable CFG cannot be modified");
 	}
 
-	private Map<Integer, Multiset<NodeConsequent>> getImmutableCopy(
-			final Map<Integer, Multiset<NodeConsequent>> grammar) {
-		final Map<Integer, Multiset<NodeConsequent>> copyGrammar = Maps
-				.newHashMap();
-
-		for (final Entry<Integer, Multiset<NodeConsequent>> production : grammar
-				.entrySet()) {
-			copyGrammar.put(production.getKey(),
-					ImmutableMultiset.copyOf(production.getValue()));
-		}
-
-		return ImmutableMap.copyOf(copyGrammar);
+	@Override
+	protected AbstractContextFreeGrammar createDeserialized(
+			final AbstractTreeExtractor treeExtractor, final CFGRuleStore rules) {
+		return new ImmutableContextFreeGrammar(treeExtractor, rules);
 	}
 
 	@Override
@@ -69,6 +93,39 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		return this;
 	}
 
+	@Override
+	public double getLog2MLProbability(final int from,
+			final ConsequentBuffer to) {
+		final int rule = rules.getRuleId(from, to);
+		if (rule >= 0) {
+			return ruleLog2Probabilities[rule];
+		}
+		return rules.getTotalCount(from) == 0 ? 0 : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Return the log2 maximum likelihood probability of the rule with the
+	 * given id.
+	 *
+	 * @param rule
+	 *            a rule id, as returned by getRuleId
+	 * @return
+	 */
+	public double getLog2MLProbability(final int rule) {
+		return ruleLog2Probabilities[rule];
+	}
+
+	/**
+	 * Return the id of the rule, or -1 if the grammar does not contain it.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public int getRuleId(final int from, final ConsequentBuffer to) {
+		return rules.getRuleId(from, to);
+	}
+
 	@Override
 	public void trainIncrementalModel(final Collection<File> files)
 			throws IOException {
@@ -10,7 +10,6 @@ import java.util.function.Function;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
 
@@ -90,7 +89,7 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
-		for (final Entry<TSGNode, ConcurrentHashMultiset<TreeNode<TSGNode>>> rootEntry : grammar
+		for (final Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> rootEntry : getInternalGrammar()
 				.entrySet()) {
 			if (rootEntry.getValue().entrySet().isEmpty()) {
 				continue;
@@ -0,0 +1,762 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.IntKeyMatcher;
+import codemining.ast.TreeNode;
+
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.collect.SortedMultiset;
+import com.google.common.collect.TreeMultiset;
+
+/**
+ * A read-only TSG that works directly off a memory-mapped file, as written by
+ * export(). Opening the grammar only reads the tree extractor (i.e. the
+ * alphabet) and the index of the rule roots. The rules are read from the
+ * mapped file when they are needed, so the grammar loads in milliseconds and
+ * all processes using the same file share its pages.
+ *
+ * Each rule is stored as flat int arrays (its preorder shape and the data of
+ * its nodes), along with its count and its posterior log2-probability, as
+ * computed by the posterior computer of the exported grammar. The file also
+ * contains the posteriors of the single level (CFG) rules found in the
+ * grammar rules, with count zero, since TreeProbabilityComputer backs off to
+ * them. The posterior computer is stored along with the tree extractor, with
+ * its references to the exported grammar replaced by the mapped grammar, so
+ * rules that are not in the file get exactly the posterior that the exported
+ * grammar would give them.
+ *
+ * The productions of a root are converted to TreeNodes when they are first
+ * asked for. Files are limited to 2GB.
+ *
+ */
+public class MappedTSGrammar extends FormattedTSGrammar {
+
+	/**
+	 * A rule, as it is stored in the file.
+	 */
+	private static final class EncodedRule {
+		final int[] shape;
+		final int[] nodes;
+		final int hash;
+		final int count;
+		final double log2Posterior;
+
+		EncodedRule(final TreeNode<TSGNode> rule, final int count,
+				final double log2Posterior) {
+			final List<TreeNode<TSGNode>> ruleNodes = TreeNode
+					.getNodesInPreorder(rule, false);
+			shape = getShape(ruleNodes);
+			nodes = getNodeData(ruleNodes);
+			hash = hash(shape, nodes);
+			this.count = count;
+			this.log2Posterior = log2Posterior;
+		}
+	}
+
+	/**
+	 * Stands for the exported grammar in the serialized posterior computer.
+	 */
+	private enum GrammarPlaceholder {
+		INSTANCE
+	}
+
+	/**
+	 * The serialized form of a mapped grammar is its file.
+	 */
+	private static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 6270567129470858165L;
+
+		private final File file;
+
+		SerializedForm(final File file) {
+			this.file = file;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				return open(file);
+			} catch (final IOException e) {
+				final InvalidObjectException exception = new InvalidObjectException(
+						"Cannot open the mapped grammar " + file);
+				exception.initCause(e);
+				throw exception;
+			}
+		}
+	}
+
+	private static final long serialVersionUID = -2964453829380227591L;
+
+	private static final int MAGIC = 0x4D545347;
+
+	/**
+	 * The version of the file format.
+	 */
+	public static final int FORMAT_VERSION = 2;
+
+	/**
+	 * The header contains the magic number, the version, the number of roots,
+	 * rules, shape and node ints and the size of the serialized tree extractor
+	 * and posterior computer.
+	 */
+	private static final int HEADER_SIZE = 7 * 4;
+
+	/**
+	 * Each root contains its (encoded) data, its first rule and its number of
+	 * rules and productions.
+	 */
+	private static final int ROOT_SIZE = 4 * 4;
+
+	/**
+	 * Each rule contains its hash, the offset and length of its shape, the
+	 * offset and number of its nodes, its count and its posterior.
+	 */
+	private static final int RULE_SIZE = 6 * 4 + 8;
+
+	private static final int RULE_HASH = 0;
+	private static final int RULE_SHAPE_OFFSET = 4;
+	private static final int RULE_SHAPE_LENGTH = 8;
+	private static final int RULE_NODE_OFFSET = 12;
+	private static final int RULE_NODE_COUNT = 16;
+	private static final int RULE_COUNT = 20;
+	private static final int RULE_POSTERIOR = 24;
+
+	/**
+	 * Return the single level rule of the given node, i.e. the node and its
+	 * children as leaves, like the rules TreeProbabilityComputer backs off to.
+	 */
+	private static TreeNode<TSGNode> createCfgRule(
+			final TreeNode<TSGNode> node, final boolean isRoot) {
+		final TSGNode rootData = new TSGNode(node.getData().nodeKey);
+		rootData.isRoot = isRoot;
+		final TreeNode<TSGNode> rule = TreeNode.create(rootData,
+				node.nProperties());
+		final List<List<TreeNode<TSGNode>>> children = node
+				.getChildrenByProperty();
+		for (int i = 0; i < children.size(); i++) {
+			for (final TreeNode<TSGNode> child : children.get(i)) {
+				rule.addChildNode(
+						TreeNode.create(new TSGNode(child.getData().nodeKey),
+								child.nProperties()), i);
+			}
+		}
+		return rule;
+	}
+
+	private static TSGNode decode(final int data) {
+		if (data < 0) {
+			return null;
+		}
+		final TSGNode node = new TSGNode(data >>> 1);
+		node.isRoot = (data & 1) != 0;
+		return node;
+	}
+
+	private static int encode(final TSGNode data) {
+		if (data == null) {
+			return -1;
+		}
+		return data.nodeKey << 1 | (data.isRoot ? 1 : 0);
+	}
+
+	/**
+	 * Export the grammar to a file that can be opened with open(). The
+	 * posteriors of the rules are computed by the posterior computer of the
+	 * grammar, which must be set and serializable without the grammar.
+	 *
+	 * @param grammar
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void export(final FormattedTSGrammar grammar,
+			final File file) throws IOException {
+		checkNotNull(grammar.posteriorComputer,
+				"The grammar has no posterior computer to export");
+
+		// Collect the rules and counts of each root, along with the CFG rules
+		// found in them.
+		final SortedMap<Integer, Map<TreeNode<TSGNode>, Integer>> rules = Maps
+				.newTreeMap();
+		final Set<TreeNode<TSGNode>> cfgRules = Sets.newHashSet();
+		for (final Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> production : grammar
+				.getInternalGrammar().entrySet()) {
+			if (production.getValue().isEmpty()) {
+				continue;
+			}
+			final Map<TreeNode<TSGNode>, Integer> rootRules = getRules(rules,
+					encode(production.getKey()));
+			for (final Multiset.Entry<TreeNode<TSGNode>> rule : production
+					.getValue().entrySet()) {
+				rootRules.put(rule.getElement(), rule.getCount());
+				for (final TreeNode<TSGNode> node : TreeNode
+						.getNodesInPreorder(rule.getElement(), false)) {
+					if (!node.isLeaf()) {
+						cfgRules.add(createCfgRule(node, true));
+						cfgRules.add(createCfgRule(node, false));
+					}
+				}
+			}
+		}
+		for (final TreeNode<TSGNode> cfgRule : cfgRules) {
+			getRules(rules, encode(cfgRule.getData())).putIfAbsent(cfgRule, 0);
+		}
+
+		// Encode the rules of each root, sorted by hash
+		final List<List<EncodedRule>> encodedRules = Lists.newArrayList();
+		int nRules = 0;
+		int nShapeInts = 0;
+		int nNodeInts = 0;
+		for (final Map<TreeNode<TSGNode>, Integer> rootRules : rules.values()) {
+			final List<EncodedRule> rootEncodedRules = Lists.newArrayList();
+			for (final Entry<TreeNode<TSGNode>, Integer> rule : rootRules
+					.entrySet()) {
+				final EncodedRule encoded = new EncodedRule(rule.getKey(),
+						rule.getValue(),
+						grammar.computeRulePosteriorLog2Probability(rule
+								.getKey()));
+				rootEncodedRules.add(encoded);
+				nShapeInts += encoded.shape.length;
+				nNodeInts += encoded.nodes.length;
+			}
+			rootEncodedRules.sort(Comparator.comparingInt(rule -> rule.hash));
+			encodedRules.add(rootEncodedRules);
+			nRules += rootEncodedRules.size();
+		}
+
+		// The posterior computer is written after the extractor, so that they
+		// share it, and without the grammar, which open() replaces.
+		final ByteArrayOutputStream extractorBytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(
+				extractorBytes) {
+			{
+				enableReplaceObject(true);
+			}
+
+			@Override
+			protected Object replaceObject(final Object obj) {
+				return obj == grammar ? GrammarPlaceholder.INSTANCE : obj;
+			}
+		}) {
+			out.writeObject(grammar.getTreeExtractor());
+			out.writeObject(grammar.posteriorComputer);
+		}
+
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(rules.size());
+			out.writeInt(nRules);
+			out.writeInt(nShapeInts);
+			out.writeInt(nNodeInts);
+			out.writeInt(extractorBytes.size());
+			extractorBytes.writeTo(out);
+
+			int firstRule = 0;
+			int rootIndex = 0;
+			for (final int root : rules.keySet()) {
+				final List<EncodedRule> rootEncodedRules = encodedRules
+						.get(rootIndex++);
+				int nProductions = 0;
+				for (final EncodedRule rule : rootEncodedRules) {
+					nProductions += rule.count;
+				}
+				out.writeInt(root);
+				out.writeInt(firstRule);
+				out.writeInt(rootEncodedRules.size());
+				out.writeInt(nProductions);
+				firstRule += rootEncodedRules.size();
+			}
+
+			int shapeOffset = 0;
+			int nodeOffset = 0;
+			for (final List<EncodedRule> rootEncodedRules : encodedRules) {
+				for (final EncodedRule rule : rootEncodedRules) {
+					out.writeInt(rule.hash);
+					out.writeInt(shapeOffset);
+					out.writeInt(rule.shape.length);
+					out.writeInt(nodeOffset);
+					out.writeInt(rule.nodes.length);
+					out.writeInt(rule.count);
+					out.writeDouble(rule.log2Posterior);
+					shapeOffset += rule.shape.length;
+					nodeOffset += rule.nodes.length;
+				}
+			}
+
+			for (final List<EncodedRule> rootEncodedRules : encodedRules) {
+				for (final EncodedRule rule : rootEncodedRules) {
+					for (final int value : rule.shape) {
+						out.writeInt(value);
+					}
+				}
+			}
+			for (final List<EncodedRule> rootEncodedRules : encodedRules) {
+				for (final EncodedRule rule : rootEncodedRules) {
+					for (final int value : rule.nodes) {
+						out.writeInt(value);
+					}
+				}
+			}
+		}
+	}
+
+	private static int[] getNodeData(final List<TreeNode<TSGNode>> nodes) {
+		final int[] data = new int[nodes.size()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = encode(nodes.get(i).getData());
+		}
+		return data;
+	}
+
+	private static Map<TreeNode<TSGNode>, Integer> getRules(
+			final SortedMap<Integer, Map<TreeNode<TSGNode>, Integer>> rules,
+			final int root) {
+		Map<TreeNode<TSGNode>, Integer> rootRules = rules.get(root);
+		if (rootRules == null) {
+			rootRules = Maps.newHashMap();
+			rules.put(root, rootRules);
+		}
+		return rootRules;
+	}
+
+	/**
+	 * Return the preorder shape of the rule with the given nodes. Whether the
+	 * nodes are immutable is not part of the rule.
+	 */
+	private static int[] getShape(final List<TreeNode<TSGNode>> nodes) {
+		final int[] shape = TreeNode.getPreorderShape(nodes);
+		for (int offset = 0; offset < shape.length; offset += 1 + (shape[offset] >>> 1)) {
+			shape[offset] &= ~1;
+		}
+		return shape;
+	}
+
+	private static int hash(final int[] shape, final int[] nodes) {
+		return 31 * Arrays.hashCode(shape) + Arrays.hashCode(nodes);
+	}
+
+	/**
+	 * Return true if the file is a mapped grammar.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isMappedGrammar(final File file) throws IOException {
+		try (final DataInputStream in = new DataInputStream(
+				new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (final EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Open a grammar written by export(). Mapped grammars are read-only and
+	 * used for scoring, so the alphabet of their tree extractor is frozen. The
+	 * posterior computer of the exported grammar is restored on the mapped
+	 * grammar.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedTSGrammar open(final File file) throws IOException {
+		final ByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		checkArgument(buffer.getInt(0) == MAGIC,
+				"%s is not a mapped grammar", file);
+		checkArgument(buffer.getInt(4) == FORMAT_VERSION,
+				"%s has format version %s instead of %s", file,
+				buffer.getInt(4), FORMAT_VERSION);
+
+		final byte[] extractorBytes = new byte[buffer.getInt(24)];
+		final ByteBuffer extractorBuffer = buffer.duplicate();
+		extractorBuffer.position(HEADER_SIZE);
+		extractorBuffer.get(extractorBytes);
+		final AtomicReference<MappedTSGrammar> grammar = new AtomicReference<MappedTSGrammar>();
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(extractorBytes)) {
+			{
+				enableResolveObject(true);
+			}
+
+			@Override
+			protected Object resolveObject(final Object obj) {
+				return obj == GrammarPlaceholder.INSTANCE ? grammar.get()
+						: obj;
+			}
+		}) {
+			final AbstractTreeExtractor treeFormat = (AbstractTreeExtractor) in
+					.readObject();
+			treeFormat.freeze();
+			grammar.set(new MappedTSGrammar(file, treeFormat, buffer));
+			@SuppressWarnings("unchecked")
+			final ITsgPosteriorProbabilityComputer<TSGNode> posteriorComputer = (ITsgPosteriorProbabilityComputer<TSGNode>) in
+					.readObject();
+			grammar.get().setPosteriorComputer(posteriorComputer);
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		return grammar.get();
+	}
+
+	private final File file;
+
+	private final transient ByteBuffer buffer;
+
+	/**
+	 * The (encoded) data of the roots, sorted.
+	 */
+	private final transient int[] rootData;
+
+	/**
+	 * The data of the roots.
+	 */
+	private final transient TSGNode[] roots;
+
+	/**
+	 * The rules of root i are firstRules[i]...firstRules[i+1]-1.
+	 */
+	private final transient int[] firstRules;
+
+	/**
+	 * The number of productions of each root, i.e. the sum of the counts of
+	 * its rules.
+	 */
+	private final transient int[] nProductions;
+
+	private final transient int rulesStart;
+
+	private final transient int shapesStart;
+
+	private final transient int nodesStart;
+
+	/**
+	 * The productions of the roots that were asked for. The grammar is
+	 * read-only, so these never need to be invalidated.
+	 */
+	private final transient ConcurrentMap<Integer, Multiset<TreeNode<TSGNode>>> productions = new ConcurrentHashMap<Integer, Multiset<TreeNode<TSGNode>>>();
+
+	/**
+	 * The indexes of the roots with productions, by their key, for each
+	 * int-key matcher that productions were looked up with.
+	 */
+	private final transient ConcurrentMap<IntKeyMatcher<? super TSGNode>, Map<Integer, Integer>> rootIndices = new MapMaker()
+			.weakKeys().makeMap();
+
+	private MappedTSGrammar(final File file,
+			final AbstractTreeExtractor format, final ByteBuffer buffer) {
+		super(format);
+		this.file = file;
+		this.buffer = buffer;
+
+		final int nRoots = buffer.getInt(8);
+		final int nRules = buffer.getInt(12);
+		final int nShapeInts = buffer.getInt(16);
+
+		rootData = new int[nRoots];
+		roots = new TSGNode[nRoots];
+		firstRules = new int[nRoots + 1];
+		nProductions = new int[nRoots];
+		final int rootsStart = HEADER_SIZE + buffer.getInt(24);
+		for (int i = 0; i < nRoots; i++) {
+			final int offset = rootsStart + i * ROOT_SIZE;
+			rootData[i] = buffer.getInt(offset);
+			roots[i] = decode(rootData[i]);
+			firstRules[i] = buffer.getInt(offset + 4);
+			nProductions[i] = buffer.getInt(offset + 12);
+		}
+		firstRules[nRoots] = nRules;
+
+		rulesStart = rootsStart + nRoots * ROOT_SIZE;
+		shapesStart = rulesStart + nRules * RULE_SIZE;
+		nodesStart = shapesStart + nShapeInts * 4;
+	}
+
+	@Override
+	public void addTree(final TreeNode<TSGNode> subTree, final int count) {
+		throw new UnsupportedOperationException(
+				"A mapped grammar is read-only");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException(
+				"A mapped grammar is read-only");
+	}
+
+	@Override
+	public SortedMultiset<Integer> computeGrammarTreeSizeStats() {
+		final SortedMultiset<Integer> treeSizes = TreeMultiset.create();
+		for (int rule = 0; rule < firstRules[roots.length]; rule++) {
+			final int count = getRuleInt(rule, RULE_COUNT);
+			if (count > 0) {
+				treeSizes.add(getRuleInt(rule, RULE_NODE_COUNT), count);
+			}
+		}
+		return treeSizes;
+	}
+
+	@Override
+	public double computeRulePosteriorLog2Probability(
+			final TreeNode<TSGNode> tree) {
+		final int rule = findRule(tree);
+		if (rule >= 0) {
+			return buffer.getDouble(rulesStart + rule * RULE_SIZE
+					+ RULE_POSTERIOR);
+		}
+		return super.computeRulePosteriorLog2Probability(tree);
+	}
+
+	@Override
+	public double computeRulePosteriorLog2Probability(
+			final TreeNode<TSGNode> tree, final boolean remove) {
+		if (remove) {
+			throw new UnsupportedOperationException(
+					"A mapped grammar is read-only");
+		}
+		return computeRulePosteriorLog2Probability(tree);
+	}
+
+	@Override
+	public int countTreeOccurences(final TreeNode<TSGNode> root) {
+		final int rule = findRule(root);
+		return rule >= 0 ? getRuleInt(rule, RULE_COUNT) : 0;
+	}
+
+	@Override
+	public int countTreesWithRoot(final TSGNode root) {
+		final int rootIndex = getRootIndex(root);
+		return rootIndex >= 0 ? nProductions[rootIndex] : 0;
+	}
+
+	/**
+	 * Return the index of the given rule in the file, or -1 if it is not
+	 * there.
+	 */
+	private int findRule(final TreeNode<TSGNode> tree) {
+		final int rootIndex = getRootIndex(tree.getData());
+		if (rootIndex < 0) {
+			return -1;
+		}
+		final List<TreeNode<TSGNode>> nodes = TreeNode.getNodesInPreorder(
+				tree, false);
+		final int[] shape = getShape(nodes);
+		final int[] nodeData = getNodeData(nodes);
+		final int hash = hash(shape, nodeData);
+
+		// Find the first rule of the root with this hash
+		int low = firstRules[rootIndex];
+		int high = firstRules[rootIndex + 1];
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (getRuleInt(middle, RULE_HASH) < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		for (int rule = low; rule < firstRules[rootIndex + 1]
+				&& getRuleInt(rule, RULE_HASH) == hash; rule++) {
+			if (ruleEquals(rule, shape, nodeData)) {
+				return rule;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return all the productions of the grammar. This converts all the rules
+	 * to TreeNodes.
+	 */
+	@Override
+	public Map<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> getInternalGrammar() {
+		final Map<TSGNode, Multiset<TreeNode<TSGNode>>> grammar = Maps
+				.newHashMap();
+		for (int i = 0; i < roots.length; i++) {
+			if (nProductions[i] > 0) {
+				grammar.put(roots[i], getProductions(i));
+			}
+		}
+		return grammar;
+	}
+
+	@Override
+	protected Multiset<TreeNode<TSGNode>> getProductions(final TSGNode root) {
+		final int rootIndex = getRootIndex(root);
+		if (rootIndex < 0 || nProductions[rootIndex] == 0) {
+			return null;
+		}
+		return getProductions(rootIndex);
+	}
+
+	private Multiset<TreeNode<TSGNode>> getProductions(final int rootIndex) {
+		return productions.computeIfAbsent(rootIndex, index -> {
+			final ImmutableMultiset.Builder<TreeNode<TSGNode>> builder = ImmutableMultiset
+					.builder();
+			for (int rule = firstRules[index]; rule < firstRules[index + 1]; rule++) {
+				final int count = getRuleInt(rule, RULE_COUNT);
+				if (count > 0) {
+					builder.addCopies(getRule(rule), count);
+				}
+			}
+			return builder.build();
+		});
+	}
+
+	@Override
+	public Multiset<TreeNode<TSGNode>> getProductionsWithRoot(
+			final TSGNode root,
+			final BiPredicate<? super TSGNode, ? super TSGNode> matcher) {
+		if (matcher instanceof IntKeyMatcher) {
+			@SuppressWarnings("unchecked")
+			final IntKeyMatcher<? super TSGNode> keyMatcher = (IntKeyMatcher<? super TSGNode>) matcher;
+			final Integer rootIndex = rootIndices.computeIfAbsent(keyMatcher,
+					this::indexRoots).get(keyMatcher.keyOf(root));
+			return rootIndex == null ? null : getProductions(rootIndex);
+		}
+		for (int i = 0; i < roots.length; i++) {
+			if (nProductions[i] > 0 && matcher.test(roots[i], root)) {
+				return getProductions(i);
+			}
+		}
+		return null;
+	}
+
+	private int getRootIndex(final TSGNode root) {
+		final int index = Arrays.binarySearch(rootData, encode(root));
+		return index >= 0 ? index : -1;
+	}
+
+	/**
+	 * Read the given rule from the file.
+	 */
+	private TreeNode<TSGNode> getRule(final int rule) {
+		final int[] shape = new int[getRuleInt(rule, RULE_SHAPE_LENGTH)];
+		final int shapeOffset = shapesStart + 4
+				* getRuleInt(rule, RULE_SHAPE_OFFSET);
+		for (int i = 0; i < shape.length; i++) {
+			shape[i] = buffer.getInt(shapeOffset + 4 * i);
+		}
+		final int nodeOffset = nodesStart + 4
+				* getRuleInt(rule, RULE_NODE_OFFSET);
+		return TreeNode.fromPreorder(shape,
+				i -> decode(buffer.getInt(nodeOffset + 4 * i)));
+	}
+
+	private int getRuleInt(final int rule, final int field) {
+		return buffer.getInt(rulesStart + rule * RULE_SIZE + field);
+	}
+
+	/**
+	 * Return the indexes of the roots with productions, by the key of the
+	 * given matcher.
+	 */
+	private Map<Integer, Integer> indexRoots(
+			final IntKeyMatcher<? super TSGNode> matcher) {
+		final Map<Integer, Integer> index = Maps.newHashMap();
+		for (int i = 0; i < roots.length; i++) {
+			final int key = matcher.keyOf(roots[i]);
+			if (nProductions[i] > 0 && !index.containsKey(key)) {
+				index.put(key, i);
+			}
+		}
+		return index;
+	}
+
+	@Override
+	public void prune(final int threshold) {
+		throw new UnsupportedOperationException(
+				"A mapped grammar is read-only");
+	}
+
+	@Override
+	public boolean removeTree(final TreeNode<TSGNode> subTree) {
+		throw new UnsupportedOperationException(
+				"A mapped grammar is read-only");
+	}
+
+	@Override
+	public int removeTree(final TreeNode<TSGNode> subTree, final int occurences) {
+		throw new UnsupportedOperationException(
+				"A mapped grammar is read-only");
+	}
+
+	/**
+	 * Return true if the given rule has the given shape and node data.
+	 */
+	private boolean ruleEquals(final int rule, final int[] shape,
+			final int[] nodeData) {
+		if (getRuleInt(rule, RULE_SHAPE_LENGTH) != shape.length
+				|| getRuleInt(rule, RULE_NODE_COUNT) != nodeData.length) {
+			return false;
+		}
+		final int shapeOffset = shapesStart + 4
+				* getRuleInt(rule, RULE_SHAPE_OFFSET);
+		for (int i = 0; i < shape.length; i++) {
+			if (buffer.getInt(shapeOffset + 4 * i) != shape[i]) {
+				return false;
+			}
+		}
+		final int nodeOffset = nodesStart + 4
+				* getRuleInt(rule, RULE_NODE_OFFSET);
+		for (int i = 0; i < nodeData.length; i++) {
+			if (buffer.getInt(nodeOffset + 4 * i) != nodeData[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(file);
+	}
+
+}
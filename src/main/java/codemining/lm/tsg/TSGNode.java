@@ -15,6 +15,7 @@ import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import codemining.ast.FlatTree;
 import codemining.ast.TreeNode;
 
 /**
@@ -60,6 +61,29 @@ public class TSGNode implements Serializable {
 		return root;
 	}
 
+	/**
+	 * Wrap a flat integer tree in a TreeNode<TSGNode> tree, introducing roots
+	 * in the same way as convertTree(TreeNode<Integer>, double).
+	 * 
+	 * @param tree
+	 * @param percentRootsToIntroduce
+	 * @return
+	 */
+	public static TreeNode<TSGNode> convertTree(final FlatTree tree,
+			final double percentRootsToIntroduce) {
+		return tree.toTree((flatTree, node) -> {
+			final TSGNode data = new TSGNode(flatTree.getSymbol(node));
+			if (node == 0) {
+				data.isRoot = true;
+			} else if (flatTree.isLeaf(node)) {
+				data.isRoot = false;
+			} else {
+				data.isRoot = RandomUtils.nextDouble() < percentRootsToIntroduce;
+			}
+			return data;
+		});
+	}
+
 	/**
 	 * Copy children doing the transformation. This is the most intensive
 	 * function used. Every effort is made to make it heavily optimized!
@@ -176,6 +200,21 @@ public class TSGNode implements Serializable {
 		}
 	}
 
+	/**
+	 * Convert a flat tree (as created by toFlatTree) back to a TSG tree. The
+	 * flag bits of the flat tree are used as the root bits.
+	 * 
+	 * @param tree
+	 * @return
+	 */
+	public static TreeNode<TSGNode> fromFlatTree(final FlatTree tree) {
+		return tree.toTree((flatTree, node) -> {
+			final TSGNode data = new TSGNode(flatTree.getSymbol(node));
+			data.isRoot = flatTree.isFlagged(node);
+			return data;
+		});
+	}
+
 	/**
 	 * Return a list containing copies of the rooted trees in this tree.
 	 * 
@@ -326,6 +365,18 @@ public class TSGNode implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Convert a TSG tree to a flat tree. The root bits are stored as the flag
+	 * bits of the flat tree.
+	 * 
+	 * @param tree
+	 * @return
+	 */
+	public static FlatTree toFlatTree(final TreeNode<TSGNode> tree) {
+		return FlatTree.fromTree(tree, node -> node.nodeKey,
+				node -> node.isRoot);
+	}
+
 	/**
 	 * Wrap TreeNode<TSGNode> trees in TreeNode<Integer> trees.
 	 * 
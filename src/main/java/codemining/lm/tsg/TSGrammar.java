@@ -6,18 +6,24 @@ package codemining.lm.tsg;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiPredicate;
 
 import org.apache.commons.lang.NotImplementedException;
 
 import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.math.random.SampleUtils;
 import codemining.util.parallel.ParallelThreadPool;
@@ -25,6 +31,7 @@ import codemining.util.parallel.ParallelThreadPool;
 import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.TreeMultiset;
@@ -38,6 +45,130 @@ import com.google.common.collect.TreeMultiset;
 public class TSGrammar<T extends Serializable> implements
 ITreeSubstitutionGrammar<T> {
 
+	/**
+	 * The serialized form of the productions of a root. Each rule is stored
+	 * as its shape (see TreeNode.getPreorderShape()) and the data of its nodes
+	 * in preorder, instead of a graph of nodes and lists. When all data are
+	 * TSGNodes, they are stored as ints. Resolves to the multiset of the
+	 * productions.
+	 */
+	private static final class SerializedProductions<T extends Serializable>
+			implements Serializable {
+
+		private static final long serialVersionUID = -2516310424955848107L;
+
+		/**
+		 * The count of each rule.
+		 */
+		private final int[] counts;
+
+		/**
+		 * The length of the shape of each rule.
+		 */
+		private final int[] shapeLengths;
+
+		/**
+		 * The shapes of all rules.
+		 */
+		private final int[] shapes;
+
+		/**
+		 * The number of nodes of each rule.
+		 */
+		private final int[] ruleSizes;
+
+		/**
+		 * The node data of all rules, in preorder. Null if all data are
+		 * TSGNodes.
+		 */
+		private final Object[] data;
+
+		/**
+		 * The TSGNode data of all rules, in preorder, as their key shifted left
+		 * by one, with the lowest bit set for roots.
+		 */
+		private final int[] tsgNodes;
+
+		SerializedProductions(final Multiset<TreeNode<T>> productions) {
+			final List<Multiset.Entry<TreeNode<T>>> rules = Lists
+					.newArrayList(productions.entrySet());
+			counts = new int[rules.size()];
+			shapeLengths = new int[rules.size()];
+			ruleSizes = new int[rules.size()];
+			final List<int[]> ruleShapes = Lists.newArrayList();
+			final List<TreeNode<T>> allNodes = Lists.newArrayList();
+			int totalShapeLength = 0;
+			for (int i = 0; i < rules.size(); i++) {
+				final List<TreeNode<T>> nodes = TreeNode.getNodesInPreorder(
+						rules.get(i).getElement(), false);
+				final int[] shape = TreeNode.getPreorderShape(nodes);
+				counts[i] = rules.get(i).getCount();
+				shapeLengths[i] = shape.length;
+				ruleSizes[i] = nodes.size();
+				ruleShapes.add(shape);
+				allNodes.addAll(nodes);
+				totalShapeLength += shape.length;
+			}
+
+			shapes = new int[totalShapeLength];
+			int offset = 0;
+			for (final int[] shape : ruleShapes) {
+				System.arraycopy(shape, 0, shapes, offset, shape.length);
+				offset += shape.length;
+			}
+
+			boolean allTsgNodes = true;
+			for (final TreeNode<T> node : allNodes) {
+				final T nodeData = node.getData();
+				if (nodeData == null || nodeData.getClass() != TSGNode.class) {
+					allTsgNodes = false;
+					break;
+				}
+			}
+			if (allTsgNodes) {
+				data = null;
+				tsgNodes = new int[allNodes.size()];
+				for (int i = 0; i < tsgNodes.length; i++) {
+					final TSGNode node = (TSGNode) allNodes.get(i).getData();
+					tsgNodes[i] = node.nodeKey << 1 | (node.isRoot ? 1 : 0);
+				}
+			} else {
+				tsgNodes = null;
+				data = new Object[allNodes.size()];
+				for (int i = 0; i < data.length; i++) {
+					data[i] = allNodes.get(i).getData();
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private T getData(final int i) {
+			if (data != null) {
+				return (T) data[i];
+			}
+			final TSGNode node = new TSGNode(tsgNodes[i] >> 1);
+			node.isRoot = (tsgNodes[i] & 1) != 0;
+			return (T) node;
+		}
+
+		private Object readResolve() {
+			final ConcurrentHashMultiset<TreeNode<T>> productions = ConcurrentHashMultiset
+					.create();
+			int shapeOffset = 0;
+			int dataOffset = 0;
+			for (int i = 0; i < counts.length; i++) {
+				final int[] shape = Arrays.copyOfRange(shapes, shapeOffset,
+						shapeOffset + shapeLengths[i]);
+				final int ruleDataOffset = dataOffset;
+				productions.add(TreeNode.fromPreorder(shape,
+						k -> getData(ruleDataOffset + k)), counts[i]);
+				shapeOffset += shapeLengths[i];
+				dataOffset += ruleSizes[i];
+			}
+			return productions;
+		}
+	}
+
 	private static final long serialVersionUID = 3178243087484789075L;
 
 	/**
@@ -45,6 +176,14 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	protected final ConcurrentMap<T, ConcurrentHashMultiset<TreeNode<T>>> grammar;
 
+	/**
+	 * The roots of the grammar indexed by their key, for each int-key matcher
+	 * that productions were looked up with. Replaced by an empty map whenever
+	 * a root is added or removed.
+	 */
+	private transient volatile ConcurrentMap<IntKeyMatcher<? super T>, Map<Integer, T>> rootIndices = new MapMaker()
+			.weakKeys().makeMap();
+
 	ITsgPosteriorProbabilityComputer<T> posteriorComputer = null;
 
 	/**
@@ -103,11 +242,13 @@ ITreeSubstitutionGrammar<T> {
 			nSet.add(subTree, count);
 		} else {
 			tempNew.add(subTree, count);
+			invalidateRootIndices();
 		}
 	}
 
 	public void clear() {
 		grammar.clear();
+		invalidateRootIndices();
 	}
 
 	/*
@@ -152,8 +293,8 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreeOccurences(final TreeNode<T> root) {
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(root.getData());
+		final Multiset<TreeNode<T>> productions = getProductions(root
+				.getData());
 		if (productions == null) {
 			return 0;
 		}
@@ -168,7 +309,7 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreesWithRoot(final T root) {
-		final ConcurrentHashMultiset<TreeNode<T>> set = grammar.get(root);
+		final Multiset<TreeNode<T>> set = getProductions(root);
 		if (set == null) {
 			return 0;
 		}
@@ -184,7 +325,7 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public TreeNode<T> generateRandom(final TreeNode<T> root) {
-		checkArgument(grammar.get(root.getData()).size() > 0);
+		checkArgument(getProductions(root.getData()).size() > 0);
 
 		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
 		toVisit.push(root);
@@ -195,8 +336,8 @@ ITreeSubstitutionGrammar<T> {
 
 			if (currentNode.isLeaf() && isNonTerminal) {
 				// Get a random element
-				final Multiset<TreeNode<T>> consequents = grammar
-						.get(currentNode.getData());
+				final Multiset<TreeNode<T>> consequents = getProductions(currentNode
+						.getData());
 				if (consequents == null) {
 					continue;
 				}
@@ -241,6 +382,67 @@ ITreeSubstitutionGrammar<T> {
 		return Collections.unmodifiableMap(grammar);
 	}
 
+	/**
+	 * Return the productions with the given root, or null if there are none.
+	 *
+	 * @param root
+	 * @return
+	 */
+	protected Multiset<TreeNode<T>> getProductions(final T root) {
+		return grammar.get(root);
+	}
+
+	/**
+	 * Return the productions whose root matches the given node data, or null
+	 * if there are none.
+	 *
+	 * @param root
+	 * @param matcher
+	 *            the node data matcher, called with the grammar root first
+	 * @return
+	 */
+	public Multiset<TreeNode<T>> getProductionsWithRoot(final T root,
+			final BiPredicate<? super T, ? super T> matcher) {
+		if (matcher instanceof IntKeyMatcher) {
+			@SuppressWarnings("unchecked")
+			final IntKeyMatcher<? super T> keyMatcher = (IntKeyMatcher<? super T>) matcher;
+			final T grammarRoot = getRootIndex(keyMatcher).get(
+					keyMatcher.keyOf(root));
+			return grammarRoot == null ? null : grammar.get(grammarRoot);
+		}
+		for (final Entry<T, ConcurrentHashMultiset<TreeNode<T>>> production : grammar
+				.entrySet()) {
+			if (matcher.test(production.getKey(), root)) {
+				return production.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the roots of the grammar indexed by the key of the given matcher.
+	 *
+	 * @param matcher
+	 * @return
+	 */
+	private Map<Integer, T> getRootIndex(final IntKeyMatcher<? super T> matcher) {
+		// Read the indices before the roots, so that an index built while
+		// the roots change is stored in the replaced map.
+		final ConcurrentMap<IntKeyMatcher<? super T>, Map<Integer, T>> indices = rootIndices;
+		Map<Integer, T> index = indices.get(matcher);
+		if (index == null) {
+			index = Maps.newHashMap();
+			for (final T grammarRoot : grammar.keySet()) {
+				final int key = matcher.keyOf(grammarRoot);
+				if (!index.containsKey(key)) {
+					index.put(key, grammarRoot);
+				}
+			}
+			indices.putIfAbsent(matcher, index);
+		}
+		return index;
+	}
+
 	/**
 	 * Returns the tree extractor, if any.
 	 *
@@ -251,6 +453,10 @@ ITreeSubstitutionGrammar<T> {
 				"A generic TS grammar is not associated with any tree extractor.");
 	}
 
+	private void invalidateRootIndices() {
+		rootIndices = new MapMaker().weakKeys().makeMap();
+	}
+
 	/**
 	 * Prune the grammar.
 	 *
@@ -288,6 +494,34 @@ ITreeSubstitutionGrammar<T> {
 		for (final T node : headsToBeRemoved) {
 			grammar.remove(node);
 		}
+		if (!headsToBeRemoved.isEmpty()) {
+			invalidateRootIndices();
+		}
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		invalidateRootIndices();
+	}
+
+	/**
+	 * Write the productions of each root in their compact form (see
+	 * SerializedProductions), that resolves to the same multisets when read.
+	 */
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		final ConcurrentMap<T, Object> serializedGrammar = new MapMaker()
+				.concurrencyLevel(ParallelThreadPool.NUM_THREADS).makeMap();
+		for (final Entry<T, ConcurrentHashMultiset<TreeNode<T>>> entry : grammar
+				.entrySet()) {
+			serializedGrammar.put(entry.getKey(),
+					new SerializedProductions<T>(entry.getValue()));
+		}
+		final ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("grammar", serializedGrammar);
+		fields.put("posteriorComputer", posteriorComputer);
+		fields.put("UNK_NODE", UNK_NODE);
+		out.writeFields();
 	}
 
 	/*
@@ -11,7 +11,9 @@ import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiPredicate;
 
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
 import codemining.util.StatsUtil;
@@ -31,9 +33,8 @@ import com.google.common.collect.Sets;
  */
 public class TreeProbabilityComputer<T extends Serializable> {
 
-	private final Map<T, ? extends Multiset<TreeNode<T>>> grammar;
 	private final TSGrammar<T> tsGrammar;
-	private final Predicate<NodeDataPair<T>> equalityComparator;
+	private final BiPredicate<? super T, ? super T> equalityComparator;
 	private final boolean requireAllChildren;
 	/**
 	 * The default TSGNode matching predicate.
@@ -47,15 +48,35 @@ public class TreeProbabilityComputer<T extends Serializable> {
 
 	};
 
+	/**
+	 * The TSGNode matcher comparing the node keys, without allocating a
+	 * NodeDataPair per comparison.
+	 */
+	public static final IntKeyMatcher<TSGNode> TSGNODE_KEY_MATCHER = node -> node.nodeKey;
+
 	public TreeProbabilityComputer(final TSGrammar<T> tsGrammar,
 			final boolean requireAllChildren,
-			final Predicate<NodeDataPair<T>> equalityComparator) {
+			final BiPredicate<? super T, ? super T> equalityComparator) {
 		this.tsGrammar = tsGrammar;
-		this.grammar = tsGrammar.grammar;
 		this.requireAllChildren = requireAllChildren;
 		this.equalityComparator = equalityComparator;
 	}
 
+	/**
+	 * Use a NodeDataPair predicate for comparing nodes. This allocates a pair
+	 * for each comparison, so prefer the data matcher constructor.
+	 * 
+	 * @param tsGrammar
+	 * @param requireAllChildren
+	 * @param equalityComparator
+	 */
+	public TreeProbabilityComputer(final TSGrammar<T> tsGrammar,
+			final boolean requireAllChildren,
+			final Predicate<NodeDataPair<T>> equalityComparator) {
+		this(tsGrammar, requireAllChildren, (from, to) -> equalityComparator
+				.apply(new NodeDataPair<T>(from, to)));
+	}
+
 	/**
 	 * Given a set of possible productions, compute the probability of the
 	 * current node. If none of the productions apply, backoff to a CFG.
@@ -180,15 +201,9 @@ public class TreeProbabilityComputer<T extends Serializable> {
 			// the
 			// nodes they terminate in (if any)
 			// sum the log probabilities for the rule and the lower nodes
-			Multiset<TreeNode<T>> productions = null;
-			for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> grammarProduction : grammar
-					.entrySet()) {
-				if (equalityComparator.apply(new NodeDataPair<T>(
-						grammarProduction.getKey(), current.getData()))) {
-					productions = grammarProduction.getValue();
-					break;
-				}
-			}
+			final Multiset<TreeNode<T>> productions = tsGrammar
+					.getProductionsWithRoot(current.getData(),
+							equalityComparator);
 
 			if (productions == null) {
 				// We don't know that, so now compute it naively
@@ -241,8 +256,8 @@ public class TreeProbabilityComputer<T extends Serializable> {
 			if (ruleNode.isLeaf()) {
 				endpoints.add(treeNode);
 			} else {
-				checkArgument(equalityComparator.apply(new NodeDataPair<T>(
-						ruleNode.getData(), treeNode.getData())));
+				checkArgument(equalityComparator.test(ruleNode.getData(),
+						treeNode.getData()));
 
 				final List<List<TreeNode<T>>> ruleProperties = ruleNode
 						.getChildrenByProperty();
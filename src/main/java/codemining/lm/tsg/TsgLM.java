@@ -46,7 +46,7 @@ public class TsgLM implements ILanguageModel {
 	@Override
 	public double getAbsoluteEntropy(final File file) throws IOException {
 		final TreeProbabilityComputer<TSGNode> probComputer = new TreeProbabilityComputer<TSGNode>(
-				grammar, true, TreeProbabilityComputer.TSGNODE_MATCHER);
+				grammar, true, TreeProbabilityComputer.TSGNODE_KEY_MATCHER);
 		final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(file);
 		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree, 0);
 		return probComputer.getLog2ProbabilityOf(tsgTree);
@@ -60,7 +60,7 @@ public class TsgLM implements ILanguageModel {
 	@Override
 	public double getAbsoluteEntropy(final String fileContent) {
 		final TreeProbabilityComputer<TSGNode> probComputer = new TreeProbabilityComputer<TSGNode>(
-				grammar, true, TreeProbabilityComputer.TSGNODE_MATCHER);
+				grammar, true, TreeProbabilityComputer.TSGNODE_KEY_MATCHER);
 		final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(
 				fileContent, ParseType.COMPILATION_UNIT);
 		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree, 0);
@@ -5,6 +5,7 @@ package codemining.lm.tsg.idioms;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.Collection;
@@ -17,9 +18,10 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
-import codemining.java.codeutils.JavaASTExtractor;
+import codemining.ast.java.ThreadLocalJavaParser;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
@@ -62,7 +64,7 @@ public class PatternCorpus implements Serializable {
 			// patterns
 			for (final TreeNode<Integer> pattern : patterns) {
 				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
+						IntKeyMatcher.INTEGER_MATCHER, false)) {
 					treePatterns.add(pattern);
 				}
 			}
@@ -96,7 +98,7 @@ public class PatternCorpus implements Serializable {
 			// patterns
 			for (final TreeNode<Integer> pattern : patterns) {
 				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
+						IntKeyMatcher.INTEGER_MATCHER, false)) {
 					patternSeen.add(pattern);
 					for (final TreeNode<Integer> node : currentNode
 							.getOverlappingNodesWith(pattern)) {
@@ -244,7 +246,9 @@ public class PatternCorpus implements Serializable {
 			.getLogger(PatternCorpus.class.getName());
 
 	/**
-	 * The list of patterns.
+	 * The list of patterns. These are interned, so that patterns sharing
+	 * subtrees do not use extra memory. They are interned again when the
+	 * corpus is deserialized.
 	 */
 	private final Set<TreeNode<Integer>> patterns = Sets.newHashSet();
 
@@ -261,12 +265,14 @@ public class PatternCorpus implements Serializable {
 	 */
 	public void addFromGrammar(final FormattedTSGrammar grammar,
 			final int minPatternCount, final int minPatternSize) {
-		patterns.addAll(getPatternsFrom(grammar, minPatternCount,
-				minPatternSize));
+		for (final TreeNode<Integer> pattern : getPatternsFrom(grammar,
+				minPatternCount, minPatternSize)) {
+			patterns.add(pattern.toInternedImmutable());
+		}
 	}
 
 	public void addPattern(final TreeNode<Integer> tree) {
-		patterns.add(tree);
+		patterns.add(tree.toInternedImmutable());
 	}
 
 	/**
@@ -314,8 +320,8 @@ public class PatternCorpus implements Serializable {
 
 	public Set<TreeNode<Integer>> getNodesCovered(final String snippet)
 			throws Exception {
-		final JavaASTExtractor ex = new JavaASTExtractor(false);
-		return getNodesCovered(format.getTree(ex.getBestEffortAstNode(snippet)));
+		return getNodesCovered(format.getTree(ThreadLocalJavaParser
+				.getBestEffortAstNode(snippet)));
 	}
 
 	/**
@@ -338,7 +344,7 @@ public class PatternCorpus implements Serializable {
 			// current patterns
 			for (final TreeNode<Integer> pattern : patterns) {
 				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
+						IntKeyMatcher.INTEGER_MATCHER, false)) {
 					overlappingNodes.addAll(currentNode
 							.getOverlappingNodesWith(pattern));
 
@@ -367,8 +373,7 @@ public class PatternCorpus implements Serializable {
 
 	public Multiset<TreeNode<Integer>> getPatternsFrom(final String snippet)
 			throws Exception {
-		final JavaASTExtractor ex = new JavaASTExtractor(false);
-		return getPatternsFromTree(format.getTree(ex
+		return getPatternsFromTree(format.getTree(ThreadLocalJavaParser
 				.getBestEffortAstNode(snippet)));
 	}
 
@@ -380,4 +385,21 @@ public class PatternCorpus implements Serializable {
 		return getPatternsForTree(tree, patterns);
 	}
 
+	/**
+	 * Re-intern the patterns. Serialization keeps the sharing of their
+	 * subtrees, but the deserialized nodes are not in the global intern
+	 * table, so they would not be shared with (or be the same object as)
+	 * the patterns that are interned later.
+	 */
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final List<TreeNode<Integer>> deserialized = Lists
+				.newArrayList(patterns);
+		patterns.clear();
+		for (final TreeNode<Integer> pattern : deserialized) {
+			patterns.add(pattern.toInternedImmutable());
+		}
+	}
+
 }
@@ -17,6 +17,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
 import codemining.ast.java.AbstractJavaTreeExtractor;
@@ -200,7 +201,7 @@ public class PatternStatsCalculator {
 				// at each node check if we have a partial match with the
 				// current patterns
 
-				if (pattern.partialMatch(currentNode, BASE_EQUALITY_COMPARATOR,
+				if (pattern.partialMatch(currentNode, IntKeyMatcher.INTEGER_MATCHER,
 						false)) {
 					overlappingNodes.addAll(currentNode
 							.getOverlappingNodesWith(pattern));
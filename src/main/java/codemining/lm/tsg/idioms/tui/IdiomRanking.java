@@ -28,15 +28,14 @@ import com.google.common.collect.Sets;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
-import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TreeProbabilityComputer;
 import codemining.lm.tsg.samplers.CFGPrior;
 import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
-import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
@@ -113,6 +112,7 @@ public class IdiomRanking {
         }
 
         final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer.getSerializer().deserializeFrom(args[0]);
+        grammar.getTreeExtractor().freeze();
         final IdiomRanking ranking = new IdiomRanking(grammar);
 
         ranking.addCorpus(args[1]);
@@ -138,8 +138,8 @@ public class IdiomRanking {
         final IRuleCreator cfRuleCreator = new IRuleCreator() {
 
             @Override
-            public CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
-                return BlockCollapsedGibbsSampler.createCFGRuleForNode(node);
+            public int getCFGSymbol(final TreeNode<TSGNode> node) {
+                return node.getData().nodeKey;
             }
         };
 
@@ -182,7 +182,7 @@ public class IdiomRanking {
             // current patterns
 
             for (final Entry<TreeNode<Integer>, Set<TreeNode<Integer>>> idiom : matchedNodesPerIdiom.entrySet()) {
-                if (idiom.getKey().partialMatch(currentNode, BASE_EQUALITY_COMPARATOR, false)) {
+                if (idiom.getKey().partialMatch(currentNode, IntKeyMatcher.INTEGER_MATCHER, false)) {
                     idiom.getValue().addAll(currentNode.getOverlappingNodesWith(idiom.getKey()));
                 }
             }
@@ -199,7 +199,7 @@ public class IdiomRanking {
     public List<IdiomInformation> getRanking(final int limit) {
 
         final TreeProbabilityComputer<TSGNode> tpc = new TreeProbabilityComputer<>(grammar, true,
-                TreeProbabilityComputer.TSGNODE_MATCHER);
+                TreeProbabilityComputer.TSGNODE_KEY_MATCHER);
         final Map<TreeNode<Integer>, Double> idiomsCrossEntropyGain = Maps.newHashMap();
         for (final TreeNode<Integer> idiom : matchedNodesPerIdiom.keySet()) {
             final TreeNode<TSGNode> tsgIdiom = TSGNode.convertTree(idiom, 0);
@@ -19,8 +19,8 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
+import codemining.ast.java.ThreadLocalJavaParser;
 import codemining.ast.java.VariableTypeJavaTreeExtractor;
-import codemining.java.codeutils.JavaASTExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.util.parallel.ParallelThreadPool;
@@ -80,9 +80,8 @@ public class PatternCoverageCalculator {
 
 	private static void computeCoverage(final String snippet,
 			final Results res, final PatternCorpus patterns) throws Exception {
-		final JavaASTExtractor ex = new JavaASTExtractor(false);
 		final TreeNode<Integer> tree = patterns.getFormat().getTree(
-				ex.getBestEffortAstNode(snippet));
+				ThreadLocalJavaParser.getBestEffortAstNode(snippet));
 		final TreeNode<Integer> debinTree = detempletizeTree(tree, patterns);
 		final Set<TreeNode<Integer>> matchedNodes = patterns
 				.getNodesCovered(debinTree);
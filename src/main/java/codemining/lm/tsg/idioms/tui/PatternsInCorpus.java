@@ -52,6 +52,7 @@ public class PatternsInCorpus {
 				grammar, minPatternCount, minPatternSize);
 
 		grammar = null; // Tell the GC that we don't need the grammar anymore.
+		format.freeze();
 
 		final File directory = new File(args[3]);
 		final Collection<File> allFiles = FileUtils
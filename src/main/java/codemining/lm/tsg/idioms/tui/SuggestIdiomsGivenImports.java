@@ -348,6 +348,7 @@ public class SuggestIdiomsGivenImports {
 
 		final PatternImportCovariance pic = (PatternImportCovariance) Serializer
 				.getSerializer().deserializeFrom(args[0]);
+		pic.getFormat().freeze();
 
 		final SuggestIdiomsGivenImports sigi = new SuggestIdiomsGivenImports(
 				pic);
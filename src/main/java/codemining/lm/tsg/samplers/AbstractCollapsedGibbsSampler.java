@@ -3,15 +3,14 @@ package codemining.lm.tsg.samplers;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.math.RandomUtils;
 
+import codemining.ast.AncestorIndex;
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
@@ -19,7 +18,6 @@ import codemining.util.StatsUtil;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 
@@ -203,45 +201,27 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 	 * @return the log-prob of the sampling of the subtree.
 	 */
 	protected void sampleSubTree(final TreeNode<TSGNode> tree) {
-		// A list of all the nodes.
-		final List<TreeNode<TSGNode>> allNodes = Lists.newArrayList();
+		// Index the parents of all nodes. The index uses node identity,
+		// because the nodes actually change during their lifetime (when a node
+		// is resampled), but here we don't care about these changes!
+		final AncestorIndex<TSGNode> ancestors = new AncestorIndex<TSGNode>(
+				tree);
 
-		// Maps nodes to their parent. Why an identity map? Because the objects
-		// actually change during their lifetime in this map and their hash
-		// also changes (when a node is resampled), but here we don't care about
-		// these changes!
-		final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> parentMap = Maps
-				.newIdentityHashMap();
-
-		// Collect all nodes and build their parent map
-		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
-		toVisit.push(tree);
-
-		while (!toVisit.isEmpty()) {
-			final TreeNode<TSGNode> currentNode = toVisit.pollFirst();
-
-			for (final List<TreeNode<TSGNode>> childProperty : currentNode
-					.getChildrenByProperty()) {
-				for (final TreeNode<TSGNode> child : childProperty) {
-					if (child.isLeaf()) {
-						continue;
-					}
-					toVisit.push(child);
-					parentMap.put(child, currentNode);
-					allNodes.add(child);
-				}
+		// A list of all the (non-leaf, non-root) nodes.
+		final List<TreeNode<TSGNode>> allNodes = Lists.newArrayList();
+		for (int i = 1; i < ancestors.size(); i++) {
+			final TreeNode<TSGNode> node = ancestors.getNode(i);
+			if (!node.isLeaf()) {
+				allNodes.add(node);
 			}
-
 		}
 
 		// Start the sampling
 		Collections.shuffle(allNodes);
 		for (final TreeNode<TSGNode> node : allNodes) {
 			// Find this node's next root...
-			TreeNode<TSGNode> nodeRoot = checkNotNull(parentMap.get(node));
-			while (!nodeRoot.getData().isRoot) {
-				nodeRoot = checkNotNull(parentMap.get(nodeRoot));
-			}
+			final TreeNode<TSGNode> nodeRoot = checkNotNull(ancestors
+					.getNearestAncestor(node, n -> n.getData().isRoot));
 
 			// ...and do the sampling
 			sampleAt(node, nodeRoot);
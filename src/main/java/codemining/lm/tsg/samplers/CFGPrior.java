@@ -9,16 +9,19 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.List;
+import java.util.function.ToIntFunction;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 import codemining.lm.cfg.ContextFreeGrammar;
 import codemining.lm.cfg.ImmutableContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.TSGNode;
 
+import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 
 /**
@@ -31,13 +34,41 @@ import com.google.common.math.DoubleMath;
 public class CFGPrior implements Serializable {
 
 	/**
-	 * An interface for classes that can create rules from nodes.
+	 * An interface for classes that can create rules from nodes. The rule of
+	 * a node has the CFG symbol of the node as its root and the CFG symbols
+	 * of its children as its consequent.
 	 *
 	 */
 	public static interface IRuleCreator {
-		CFGRule createRuleForNode(final TreeNode<TSGNode> node);
+		default CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
+			final List<List<TreeNode<TSGNode>>> childrenByProperty = node
+					.getChildrenByProperty();
+			final NodeConsequent cons = new NodeConsequent(
+					childrenByProperty.size());
+			for (final List<TreeNode<TSGNode>> childProperties : childrenByProperty) {
+				final List<Integer> propertyChildren = Lists
+						.newArrayListWithCapacity(childProperties.size());
+				cons.nodes.add(propertyChildren);
+				for (final TreeNode<TSGNode> child : childProperties) {
+					propertyChildren.add(getCFGSymbol(child));
+				}
+			}
+			return new CFGRule(getCFGSymbol(node), cons);
+		}
+
+		/**
+		 * Return the symbol of the node in the CFG rules.
+		 */
+		int getCFGSymbol(final TreeNode<TSGNode> node);
 	}
 
+	/**
+	 * The log2 of the arbitrary small probability of the rules that the CFG
+	 * has not seen.
+	 */
+	private static final double LOG2_UNSEEN_RULE_PROBABILITY = DoubleMath
+			.log2(10E-10);
+
 	private static final long serialVersionUID = -3738832029559271836L;
 
 	/**
@@ -77,11 +108,13 @@ public class CFGPrior implements Serializable {
 
 		final ArrayDeque<TreeNode<TSGNode>> nodeUpdates = new ArrayDeque<TreeNode<TSGNode>>();
 		nodeUpdates.push(node);
+		final ConsequentBuffer ruleConsequent = new ConsequentBuffer();
+		final ToIntFunction<TreeNode<TSGNode>> symbols = nodeCreator::getCFGSymbol;
 
 		while (!nodeUpdates.isEmpty()) {
 			final TreeNode<TSGNode> currentNode = nodeUpdates.pop();
-			final CFGRule rule = nodeCreator.createRuleForNode(currentNode);
-			cfg.addCFGRule(rule.root, rule.ruleConsequent);
+			cfg.addCFGRule(nodeCreator.getCFGSymbol(currentNode),
+					ruleConsequent.set(currentNode, symbols));
 
 			for (final List<TreeNode<TSGNode>> childProperty : currentNode
 					.getChildrenByProperty()) {
@@ -109,12 +142,20 @@ public class CFGPrior implements Serializable {
 	public double getLog2ProbForCFG(
 			final AbstractContextFreeGrammar.CFGRule rule) {
 		checkNotNull(rule);
-		double mlProbability = cfg.getMLProbability(rule.root,
-				rule.ruleConsequent);
-		if (Double.compare(mlProbability, 0) == 0) {
-			mlProbability = 10E-10; // An arbitrary small probability.
+		return getLog2ProbForCFG(rule.root,
+				new ConsequentBuffer().set(rule.ruleConsequent));
+	}
+
+	/**
+	 * Return the log probability of the rule with the given root and
+	 * consequent. Once the prior is locked, this is a table lookup.
+	 */
+	private double getLog2ProbForCFG(final int root,
+			final ConsequentBuffer consequent) {
+		final double logProb = cfg.getLog2MLProbability(root, consequent);
+		if (logProb == Double.NEGATIVE_INFINITY) {
+			return LOG2_UNSEEN_RULE_PROBABILITY;
 		}
-		final double logProb = DoubleMath.log2(mlProbability);
 
 		checkArgument(!Double.isNaN(logProb), "LogProb is %s", logProb);
 		return logProb;
@@ -131,6 +172,8 @@ public class CFGPrior implements Serializable {
 
 		final ArrayDeque<TreeNode<TSGNode>> toSee = new ArrayDeque<TreeNode<TSGNode>>();
 		toSee.push(subtree);
+		final ConsequentBuffer ruleConsequent = new ConsequentBuffer();
+		final ToIntFunction<TreeNode<TSGNode>> symbols = nodeCreator::getCFGSymbol;
 
 		double logProbability = 0;
 		while (!toSee.isEmpty()) {
@@ -144,9 +187,9 @@ public class CFGPrior implements Serializable {
 					}
 				}
 			}
-			final AbstractContextFreeGrammar.CFGRule rule = nodeCreator
-					.createRuleForNode(currentNode);
-			final double nodeLogProb = getLog2ProbForCFG(rule);
+			final double nodeLogProb = getLog2ProbForCFG(
+					nodeCreator.getCFGSymbol(currentNode),
+					ruleConsequent.set(currentNode, symbols));
 			logProbability += nodeLogProb;
 		}
 
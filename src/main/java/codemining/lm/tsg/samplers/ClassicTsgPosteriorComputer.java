@@ -4,7 +4,6 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
-import java.util.List;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -12,8 +11,6 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import cc.mallet.optimize.ConjugateGradient;
 import cc.mallet.optimize.Optimizable;
 import codemining.ast.TreeNode;
-import codemining.lm.cfg.AbstractContextFreeGrammar;
-import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.ITsgPosteriorProbabilityComputer;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
@@ -23,7 +20,6 @@ import codemining.util.SettingsLoader;
 import codemining.util.StatsUtil;
 import codemining.util.parallel.ParallelThreadPool;
 
-import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 import com.google.common.util.concurrent.AtomicDouble;
 
@@ -252,22 +248,8 @@ class ClassicTsgPosteriorComputer implements
 	}
 
 	@Override
-	public AbstractContextFreeGrammar.CFGRule createRuleForNode(
-			final TreeNode<TSGNode> node) {
-		final List<List<TreeNode<TSGNode>>> childrenByProperty = node
-				.getChildrenByProperty();
-		final NodeConsequent cons = new NodeConsequent(
-				childrenByProperty.size());
-		for (final List<TreeNode<TSGNode>> childProperties : childrenByProperty) {
-			final List<Integer> propertyChildren = Lists
-					.newArrayListWithCapacity(childProperties.size());
-			cons.nodes.add(propertyChildren);
-			for (final TreeNode<TSGNode> child : childProperties) {
-				propertyChildren.add(postprocessIdForCFG(child));
-			}
-		}
-		return new AbstractContextFreeGrammar.CFGRule(
-				postprocessIdForCFG(node), cons);
+	public int getCFGSymbol(final TreeNode<TSGNode> node) {
+		return postprocessIdForCFG(node);
 	}
 
 	/**
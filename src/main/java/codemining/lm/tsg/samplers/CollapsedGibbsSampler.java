@@ -6,6 +6,8 @@ package codemining.lm.tsg.samplers;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +15,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.math.RandomUtils;
 
+import codemining.ast.FlatTree;
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
@@ -50,7 +53,13 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 	public static final double INITIAL_TREE_CORPUS_SIZE = SettingsLoader
 			.getNumericSetting("initialTreeCorpusSize", .05);
 
-	protected List<TreeNode<TSGNode>> treesToBeAdded = new ArrayList<TreeNode<TSGNode>>();
+	/**
+	 * The trees that have not been added to the corpus yet. Most of the
+	 * corpus waits here for many iterations, so the trees are stored flat,
+	 * with their root bits as flags, which takes about a third of the heap of
+	 * a TreeNode tree.
+	 */
+	protected List<FlatTree> treesToBeAdded = new ArrayList<FlatTree>();
 
 	/**
 	 * The rate of increasing the corpus size.
@@ -78,19 +87,21 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 	}
 
 	/**
-	 * Add a single tree to the corpus, updating counts where necessary.
+	 * Add a single tree to the corpus, updating counts where necessary. A
+	 * tree that is not force-added is stored flat until it joins the corpus,
+	 * and is then sampled as a new copy, not as the returned tree.
 	 *
 	 * @param tree
 	 */
 	@Override
 	public TreeNode<TSGNode> addTree(final TreeNode<TSGNode> tree,
 			final boolean forceAdd) {
-		final TreeNode<TSGNode> immutableTree = tree.toImmutable();
+		final TreeNode<TSGNode> immutableTree = tree.toImmutableStructure();
 		if (forceAdd) {
 			treeCorpus.add(immutableTree);
 			addTSGRulesToSampleGrammar(immutableTree);
 		} else {
-			treesToBeAdded.add(immutableTree);
+			treesToBeAdded.add(TSGNode.toFlatTree(immutableTree));
 		}
 		posteriorComputer.getPrior().addCFGRulesFrom(immutableTree);
 		return immutableTree;
@@ -104,7 +115,7 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 	private void addTSGRulesToSampleGrammar(final TreeNode<TSGNode> node) {
 		checkNotNull(node);
 		for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(node)) {
-			sampleGrammar.addTree(rule);
+			sampleGrammar.addTree(rule.toImmutable());
 		}
 	}
 
@@ -195,6 +206,23 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 		burninGrammar.prune(threshold);
 	}
 
+	/**
+	 * Convert the trees to be added of checkpoints that stored them as
+	 * TreeNodes.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final List<Object> trees = (List<Object>) (List<?>) treesToBeAdded;
+		for (int i = 0; i < trees.size(); i++) {
+			if (trees.get(i) instanceof TreeNode) {
+				trees.set(i, TSGNode.toFlatTree((TreeNode<TSGNode>) trees
+						.get(i)));
+			}
+		}
+	}
+
 	@Override
 	public void sampleAllTreesOnce(final int currentIteration,
 			final int totalIterations, final AtomicBoolean stop) {
@@ -208,8 +236,8 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 
 		while (treeCorpus.size() < sizeOfCorpus && !treesToBeAdded.isEmpty()) {
 			final int nextTreePos = RandomUtils.nextInt(treesToBeAdded.size());
-			final TreeNode<TSGNode> treeToBeAdded = treesToBeAdded
-					.get(nextTreePos);
+			final TreeNode<TSGNode> treeToBeAdded = TSGNode.fromFlatTree(
+					treesToBeAdded.get(nextTreePos)).toImmutableStructure();
 
 			treeCorpus.add(treeToBeAdded);
 			addTSGRulesToSampleGrammar(treeToBeAdded);
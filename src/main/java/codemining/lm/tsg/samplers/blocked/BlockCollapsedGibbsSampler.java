@@ -230,13 +230,13 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
     private void addRulesToGrammar(final TreeNode<TSGNode> immutableTree) {
         checkNotNull(immutableTree);
         for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(immutableTree)) {
-            sampleGrammar.addTree(rule);
+            sampleGrammar.addTree(rule.toImmutable());
         }
     }
 
     @Override
     public TreeNode<TSGNode> addTree(final TreeNode<TSGNode> tree, final boolean forceAdd) {
-        final TreeNode<TSGNode> immutableTree = tree.toImmutable();
+        final TreeNode<TSGNode> immutableTree = tree.toImmutableStructure();
         treeCorpus.add(immutableTree);
 
         prior.addCFGRulesFrom(immutableTree);
@@ -270,8 +270,8 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
     }
 
     @Override
-    public CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
-        return createCFGRuleForNode(node);
+    public int getCFGSymbol(final TreeNode<TSGNode> node) {
+        return node.getData().nodeKey;
     }
 
     public BlockedPosteriorComputer getPosteriorComputer() {
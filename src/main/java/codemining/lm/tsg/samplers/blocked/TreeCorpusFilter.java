@@ -7,16 +7,14 @@ import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Set;
 
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
-import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
-import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+import codemining.lm.cfg.CFGRuleStore;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 import codemining.lm.tsg.TSGNode;
 import codemining.util.SettingsLoader;
 
@@ -31,7 +29,13 @@ public final class TreeCorpusFilter {
 
     public static final boolean REMOVE_VARIABLE_NAMES = SettingsLoader.getBooleanSetting("removeVariableNames", false);
 
-    private final Multiset<CFGRule> cfgCount = HashMultiset.create();
+    private static int getNodeKey(final TreeNode<TSGNode> node) {
+        return node.getData().nodeKey;
+    }
+
+    private final CFGRuleStore cfgCount = new CFGRuleStore();
+
+    private final ConsequentBuffer ruleConsequent = new ConsequentBuffer();
 
     private final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
 
@@ -54,8 +58,8 @@ public final class TreeCorpusFilter {
                 continue;
             }
 
-            final CFGRule rule = createRuleForNode(currentNode);
-            cfgCount.add(rule);
+            cfgCount.add(getNodeKey(currentNode),
+                    ruleConsequent.set(currentNode, TreeCorpusFilter::getNodeKey));
 
             for (final List<TreeNode<TSGNode>> childProperty : currentNode.getChildrenByProperty()) {
                 for (final TreeNode<TSGNode> child : childProperty) {
@@ -90,24 +94,6 @@ public final class TreeCorpusFilter {
         addAllNodes(currentTree);
     }
 
-    private CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
-        final int rootId = node.getData().nodeKey;
-
-        final int nProperties = node.nProperties();
-        final NodeConsequent ruleConsequent = new NodeConsequent(nProperties);
-        for (int i = 0; i < nProperties; i++) {
-            final List<TreeNode<TSGNode>> children = node.getChildrenByProperty().get(i);
-            final int nChildren = children.size();
-            ruleConsequent.nodes.add(Lists.<Integer> newArrayListWithCapacity(nChildren));
-            for (int j = 0; j < nChildren; j++) {
-                final int childNode = node.getChild(j, i).getData().nodeKey;
-                ruleConsequent.nodes.get(i).add(childNode);
-            }
-        }
-
-        return new CFGRule(rootId, ruleConsequent);
-    }
-
     private Set<TreeNode<TSGNode>> filterTree(final TreeNode<TSGNode> tree) {
         final Set<TreeNode<TSGNode>> filteredRoots = Sets.newIdentityHashSet();
         filteredRoots.add(tree);
@@ -130,8 +116,8 @@ public final class TreeCorpusFilter {
                 }
             }
 
-            final CFGRule rule = createRuleForNode(currentNode);
-            if (cfgCount.count(rule) < countLimit) {
+            if (cfgCount.getCount(getNodeKey(currentNode),
+                    ruleConsequent.set(currentNode, TreeCorpusFilter::getNodeKey)) < countLimit) {
                 // Remove relationship to children and add children as root
                 for (final List<TreeNode<TSGNode>> childProperty : currentNode.getChildrenByProperty()) {
                     filteredRoots.addAll(childProperty);
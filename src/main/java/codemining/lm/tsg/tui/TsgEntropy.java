@@ -14,6 +14,7 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.languagetools.ITokenizer;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.TreeProbabilityComputer;
@@ -31,8 +32,10 @@ public class TsgEntropy {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args) throws SerializationException,
+			IOException {
 		if (args.length != 2) {
 			System.err.println("Usage <tsg> <directory>");
 			System.exit(-1);
@@ -44,10 +47,19 @@ public class TsgEntropy {
 				new RegexFileFilter(".*\\.java$"),
 				DirectoryFileFilter.DIRECTORY);
 
-		final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		// Mapped grammars (see TsgExporter) load much faster
+		final File grammarFile = new File(args[0]);
+		final TSGrammar<TSGNode> grammar;
+		if (MappedTSGrammar.isMappedGrammar(grammarFile)) {
+			grammar = MappedTSGrammar.open(grammarFile);
+		} else {
+			grammar = (TSGrammar<TSGNode>) Serializer.getSerializer()
+					.deserializeFrom(args[0]);
+		}
 
+		// Do not grow the alphabet with the symbols of the scored files
 		final AbstractTreeExtractor treeFormat = grammar.getTreeExtractor();
+		treeFormat.freeze();
 
 		System.out.println("filename,entropy,cross-entropy");
 		for (final File f : allFiles) {
@@ -62,7 +74,7 @@ public class TsgEntropy {
 								.toCharArray());
 
 				final TreeProbabilityComputer<TSGNode> probabilityComputer = new TreeProbabilityComputer<TSGNode>(
-						grammar, false, TreeProbabilityComputer.TSGNODE_MATCHER);
+						grammar, false, TreeProbabilityComputer.TSGNODE_KEY_MATCHER);
 				final double probability = probabilityComputer
 						.getLog2ProbabilityOf(tsgTree);
 
@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package codemining.lm.tsg.tui;
+
+import java.io.File;
+import java.io.IOException;
+
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+/**
+ * Export a serialized TSG to the memory-mapped format of MappedTSGrammar.
+ *
+ */
+public class TsgExporter {
+
+	/**
+	 * @param args
+	 * @throws SerializationException
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws SerializationException,
+			IOException {
+		if (args.length != 2) {
+			System.err.println("Usage <tsg> <to>");
+			System.exit(-1);
+		}
+		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
+				.getSerializer().deserializeFrom(args[0]);
+		MappedTSGrammar.export(grammar, new File(args[1]));
+	}
+
+	private TsgExporter() {
+	}
+
+}
@@ -5,6 +5,7 @@ package codemining.lm.tsg.tui.java;
 
 import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -13,6 +14,7 @@ import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 
+import codemining.ast.IngestionPipeline;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
@@ -98,48 +100,39 @@ public class SampleBlockedTSG {
 
             if (args.length > 5) {
                 LOGGER.info("Loading additional CFG prior information from " + args[5]);
-                for (final File fi : FileUtils.listFiles(new File(args[5]), new RegexFileFilter(".*\\.java$"),
-                        DirectoryFileFilter.DIRECTORY)) {
-                    try {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), 0);
-                        sampler.addDataToPrior(ast);
-                    } catch (final Exception e) {
-                        LOGGER.warning("Failed to get AST for Cfg Prior " + fi.getAbsolutePath() + " "
-                                + ExceptionUtils.getFullStackTrace(e));
-                    }
-                }
+                final IngestionPipeline<File, TreeNode<Integer>> priorPipeline = new IngestionPipeline<>(
+                        "Cfg Prior");
+                priorPipeline.run(
+                        FileUtils.listFiles(new File(args[5]), new RegexFileFilter(".*\\.java$"),
+                                DirectoryFileFilter.DIRECTORY),
+                        (fi, trees) -> trees.add(format.getTree(fi)),
+                        tree -> sampler.addDataToPrior(TSGNode.convertTree(tree, 0)));
             }
 
             final double percentRootsInit = .9;
-            int nFiles = 0;
-            int nNodes = 0;
+            final AtomicLong nNodes = new AtomicLong();
             LOGGER.info("Loading sample trees from  " + args[0]);
             final TreeCorpusFilter filter = new TreeCorpusFilter(format, TREE_SPLIT_CFG_COUNT);
-            for (final File fi : FileUtils.listFiles(new File(args[0]), JavaTokenizer.javaCodeFileFilter,
-                    DirectoryFileFilter.DIRECTORY)) {
-                try {
-                    if (!USE_METHOD_BODY_ONLY) {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), percentRootsInit);
-                        nNodes += ast.getTreeSize();
-                        filter.addTree(ast);
-                    } else {
-                        for (final MethodDeclaration method : MethodRetriever.getMethodNodes(fi).values()) {
-                            if (method.getBody() == null) {
-                                continue;
+            // The roots are drawn when consuming, in the order of the files
+            final IngestionPipeline<File, TreeNode<Integer>> pipeline = new IngestionPipeline<>("Sample trees");
+            pipeline.run(FileUtils.listFiles(new File(args[0]), JavaTokenizer.javaCodeFileFilter,
+                    DirectoryFileFilter.DIRECTORY), (fi, trees) -> {
+                        if (!USE_METHOD_BODY_ONLY) {
+                            trees.add(format.getTree(fi));
+                        } else {
+                            for (final MethodDeclaration method : MethodRetriever.getMethodNodes(fi).values()) {
+                                if (method.getBody() == null) {
+                                    continue;
+                                }
+                                trees.add(format.getTree(method.getBody()));
                             }
-                            final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(method.getBody()),
-                                    percentRootsInit);
-                            nNodes += ast.getTreeSize();
-                            filter.addTree(ast);
                         }
-                    }
-                    nFiles++;
-                } catch (final Exception e) {
-                    LOGGER.warning("Failed to get AST for " + fi.getAbsolutePath() + " "
-                            + ExceptionUtils.getFullStackTrace(e));
-                }
-            }
-            LOGGER.info("Loaded " + nFiles + " files containing " + nNodes + " nodes");
+                    }, tree -> {
+                        final TreeNode<TSGNode> ast = TSGNode.convertTree(tree, percentRootsInit);
+                        nNodes.addAndGet(ast.getTreeSize());
+                        filter.addTree(ast);
+                    });
+            LOGGER.info("Loaded " + pipeline.getNumSuccessfulInputs() + " files containing " + nNodes + " nodes");
             for (final TreeNode<TSGNode> filteredTree : filter.getFilteredTrees()) {
                 sampler.addTree(filteredTree);
             }
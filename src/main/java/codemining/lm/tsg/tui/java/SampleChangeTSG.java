@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package codemining.lm.tsg.tui.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.IngestionPipeline;
+import codemining.ast.TreeNode;
+import codemining.ast.distilledchanges.ChangeDistillerTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.AbstractTSGSampler;
+import codemining.lm.tsg.samplers.CollapsedGibbsSampler;
+import codemining.util.data.Pair;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Sample a TSG of the changes between pairs of file versions, e.g. the
+ * versions of the files before and after each commit of a project. The pairs
+ * are distilled in parallel and each change becomes a training tree.
+ *
+ */
+public class SampleChangeTSG {
+
+	private static final Logger LOGGER = Logger.getLogger(SampleChangeTSG.class
+			.getName());
+
+	/**
+	 * Read the file pairs from a list with one pair per line: the file before
+	 * and the file after the change, separated by a tab. Relative paths are
+	 * resolved against the folder of the list. Empty lines are ignored.
+	 *
+	 * @param pairList
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Pair<File, File>> readFilePairs(final File pairList)
+			throws IOException {
+		final File baseFolder = pairList.getAbsoluteFile().getParentFile();
+		final List<Pair<File, File>> pairs = Lists.newArrayList();
+		for (final String line : FileUtils.readLines(pairList)) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			final String[] files = line.split("\t");
+			if (files.length != 2) {
+				throw new IOException("Expected two files separated by a tab: "
+						+ line);
+			}
+			pairs.add(Pair.create(resolve(baseFolder, files[0]),
+					resolve(baseFolder, files[1])));
+		}
+		return pairs;
+	}
+
+	private static File resolve(final File baseFolder, final String path) {
+		final File file = new File(path.trim());
+		return file.isAbsolute() ? file : new File(baseFolder, path.trim());
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 * @throws SerializationException
+	 */
+	public static void main(final String[] args) throws IOException,
+	SerializationException {
+		if (args.length < 2) {
+			System.err
+			.println("Usage <FilePairList> <#iterations> <optional serialization file>");
+			return;
+		}
+		final String serializedFile =
+				args.length == 3 ? args[2].trim() + ".ser" : "changeTsg.ser";
+		final int nIterations = Integer.parseInt(args[1]);
+
+		final ChangeDistillerTreeExtractor format = new ChangeDistillerTreeExtractor();
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(20, 10,
+				new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+
+		final double percentRootsInit = .9;
+		final AtomicLong nNodes = new AtomicLong();
+		// The roots are drawn when consuming, in the order of the file pairs
+		final IngestionPipeline<Pair<File, File>, TreeNode<Integer>> pipeline = new IngestionPipeline<>(
+				"Sample change trees");
+		pipeline.run(readFilePairs(new File(args[0])), (pair, trees) -> {
+			for (final TreeNode<Integer> tree : format.getChangeTrees(
+					pair.first, pair.second)) {
+				trees.add(tree);
+			}
+		}, tree -> {
+			final TreeNode<TSGNode> ast = TSGNode.convertTree(tree,
+					percentRootsInit);
+			nNodes.addAndGet(ast.getTreeSize());
+			sampler.addTree(ast);
+		});
+		LOGGER.info("Loaded the changes of "
+				+ pipeline.getNumSuccessfulInputs() + " file pairs ("
+				+ pipeline.getNumOutputs() + " changes) containing " + nNodes
+				+ " nodes");
+		sampler.lockSamplerData();
+
+		final int nItererationCompleted = sampler.performSampling(nIterations);
+
+		final FormattedTSGrammar grammarToUse;
+		if (nItererationCompleted >= nIterations) {
+			LOGGER.info("Sampling complete. Outputing burnin grammar...");
+			grammarToUse = (FormattedTSGrammar) sampler.getBurnInGrammar();
+		} else {
+			LOGGER.warning("Sampling not complete. Outputing sample grammar...");
+			grammarToUse = (FormattedTSGrammar) sampler.getSampleGrammar();
+		}
+		try {
+			Serializer.getSerializer().serialize(grammarToUse, serializedFile);
+		} catch (final Throwable e) {
+			LOGGER.severe("Failed to serialize grammar: "
+					+ ExceptionUtils.getFullStackTrace(e));
+		}
+
+		sampler.pruneRareTrees((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10);
+		System.out.println(grammarToUse.toString());
+	}
+
+}
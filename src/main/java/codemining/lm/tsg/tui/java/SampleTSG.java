@@ -6,6 +6,7 @@ package codemining.lm.tsg.tui.java;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -13,6 +14,7 @@ import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.IngestionPipeline;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
@@ -90,25 +92,21 @@ public class SampleTSG {
 						+ args[1]);
 			}
 			final double percentRootsInit = .9;
-			int nFiles = 0;
-			int nNodes = 0;
-			for (final File fi : FileUtils.listFiles(new File(args[0]),
+			final AtomicLong nNodes = new AtomicLong();
+			// The roots are drawn when consuming, in the order of the files
+			final IngestionPipeline<File, TreeNode<Integer>> pipeline = new IngestionPipeline<>(
+					"Sample trees");
+			pipeline.run(FileUtils.listFiles(new File(args[0]),
 					new RegexFileFilter(".*\\.java$"),
-					DirectoryFileFilter.DIRECTORY)) {
-				try {
-					final TreeNode<TSGNode> ast = TSGNode.convertTree(
-							format.getTree(fi), percentRootsInit);
-					nNodes += ast.getTreeSize();
-					nFiles++;
-					sampler.addTree(ast);
-				} catch (final Exception e) {
-					LOGGER.warning("Failed to get AST for "
-							+ fi.getAbsolutePath() + " "
-							+ ExceptionUtils.getFullStackTrace(e));
-				}
-			}
-			LOGGER.info("Loaded " + nFiles + " files containing " + nNodes
-					+ " nodes");
+					DirectoryFileFilter.DIRECTORY), (fi, trees) -> trees
+					.add(format.getTree(fi)), tree -> {
+				final TreeNode<TSGNode> ast = TSGNode.convertTree(tree,
+						percentRootsInit);
+				nNodes.addAndGet(ast.getTreeSize());
+				sampler.addTree(ast);
+			});
+			LOGGER.info("Loaded " + pipeline.getNumSuccessfulInputs()
+					+ " files containing " + nNodes + " nodes");
 			sampler.lockSamplerData();
 		}
 
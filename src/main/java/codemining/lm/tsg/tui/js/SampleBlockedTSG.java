@@ -2,12 +2,14 @@ package codemining.lm.tsg.tui.js;
 
 import java.io.File;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.IngestionPipeline;
 import codemining.ast.TreeNode;
 import codemining.ast.js.BinaryJavascriptTreeExtractor;
 import codemining.ast.js.JavascriptTreeExtractor;
@@ -70,45 +72,34 @@ public class SampleBlockedTSG {
 			if (args.length > 4) {
 				LOGGER.info("Loading additional CFG prior information from "
 						+ args[4]);
-				for (final File fi : FileUtils.listFiles(new File(args[4]),
+				final IngestionPipeline<File, TreeNode<Integer>> priorPipeline = new IngestionPipeline<>(
+						"Cfg Prior");
+				priorPipeline.run(FileUtils.listFiles(new File(args[4]),
 						JavascriptTokenizer.JAVASCRIPT_CODE_FILTER,
-						DirectoryFileFilter.DIRECTORY)) {
-					try {
-						final TreeNode<TSGNode> ast = TSGNode.convertTree(
-								format.getTree(fi), 0);
-						sampler.addDataToPrior(ast);
-					} catch (final Exception e) {
-						LOGGER.warning("Failed to get AST for Cfg Prior "
-								+ fi.getAbsolutePath() + " "
-								+ ExceptionUtils.getFullStackTrace(e));
-					}
-				}
+						DirectoryFileFilter.DIRECTORY), (fi, trees) -> trees
+						.add(format.getTree(fi)), tree -> sampler
+						.addDataToPrior(TSGNode.convertTree(tree, 0)));
 			}
 
 			final double percentRootsInit = .7;
-			int nFiles = 0;
-			int nNodes = 0;
+			final AtomicLong nNodes = new AtomicLong();
 			LOGGER.info("Loading sample trees from  " + args[0]);
 			final TreeCorpusFilter filter = new TreeCorpusFilter(format,
 					TREE_SPLIT_CFG_COUNT);
-			for (final File fi : FileUtils.listFiles(new File(args[0]),
+			// The roots are drawn when consuming, in the order of the files
+			final IngestionPipeline<File, TreeNode<Integer>> pipeline = new IngestionPipeline<>(
+					"Sample trees");
+			pipeline.run(FileUtils.listFiles(new File(args[0]),
 					JavascriptTokenizer.JAVASCRIPT_CODE_FILTER,
-					DirectoryFileFilter.DIRECTORY)) {
-				try {
-					final TreeNode<TSGNode> ast = TSGNode.convertTree(
-							format.getTree(fi), percentRootsInit);
-					nNodes += ast.getTreeSize();
-					filter.addTree(ast);
-
-					nFiles++;
-				} catch (final Exception e) {
-					LOGGER.warning("Failed to get AST for "
-							+ fi.getAbsolutePath() + " "
-							+ ExceptionUtils.getFullStackTrace(e));
-				}
-			}
-			LOGGER.info("Loaded " + nFiles + " files containing " + nNodes
-					+ " nodes");
+					DirectoryFileFilter.DIRECTORY), (fi, trees) -> trees
+					.add(format.getTree(fi)), tree -> {
+				final TreeNode<TSGNode> ast = TSGNode.convertTree(tree,
+						percentRootsInit);
+				nNodes.addAndGet(ast.getTreeSize());
+				filter.addTree(ast);
+			});
+			LOGGER.info("Loaded " + pipeline.getNumSuccessfulInputs()
+					+ " files containing " + nNodes + " nodes");
 			for (final TreeNode<TSGNode> filteredTree : filter
 					.getFilteredTrees()) {
 				sampler.addTree(filteredTree);
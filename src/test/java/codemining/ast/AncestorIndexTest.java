@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode.NodeParents;
+
+import com.google.common.collect.Lists;
+
+public class AncestorIndexTest {
+
+	@Test
+	public void testAncestors() {
+		// Construct a tree
+		final TreeNode<Integer> node1 = TreeNode.create(1, 2); // 1
+		final TreeNode<Integer> node2 = TreeNode.create(2, 2); // -2
+		final TreeNode<Integer> node3 = TreeNode.create(3, 2); // --3
+		final TreeNode<Integer> node4 = TreeNode.create(4, 2); // --4
+		final TreeNode<Integer> node5 = TreeNode.create(5, 2); // ---5
+		final TreeNode<Integer> node6 = TreeNode.create(6, 2); // -6
+		final TreeNode<Integer> node7 = TreeNode.create(7, 2); // --7
+
+		node1.addChildNode(node2, 0);
+		node1.addChildNode(node6, 1);
+		node2.addChildNode(node3, 0);
+		node2.addChildNode(node4, 0);
+		node4.addChildNode(node5, 1);
+		node6.addChildNode(node7, 1);
+
+		final AncestorIndex<Integer> index = new AncestorIndex<Integer>(node1);
+		assertEquals(index.size(), 7);
+		assertTrue(index.getRoot() == node1);
+		assertEquals(index.getId(node4), 3);
+		assertTrue(index.getNode(3) == node4);
+		assertTrue(index.getParent(node5) == node4);
+		assertNull(index.getParent(node1));
+		assertEquals(index.getDepth(node5), 3);
+		assertEquals(index.getAncestors(node5),
+				Lists.newArrayList(node4, node2, node1));
+		assertTrue(index.getNearestAncestor(node5, n -> n.getData() < 3) == node2);
+		assertNull(index.getNearestAncestor(node1, n -> true));
+
+		assertTrue(index.isAncestorOf(node2, node5));
+		assertTrue(index.isAncestorOf(node1, node7));
+		assertFalse(index.isAncestorOf(node6, node5));
+		assertFalse(index.isAncestorOf(node5, node5));
+
+		final NodeParents<Integer> route1 = index.getNodeParents(node5);
+		final NodeParents<Integer> expectedRoute1 = node5.getNodeParents(node1);
+		assertEquals(route1.throughNodes, expectedRoute1.throughNodes);
+		assertEquals(route1.nextProperty, expectedRoute1.nextProperty);
+		assertEquals(route1.nextChildIndex, expectedRoute1.nextChildIndex);
+
+		final NodeParents<Integer> route2 = index.getNodeParents(node1);
+		assertEquals(route2.throughNodes, Collections.emptyList());
+	}
+
+	@Test
+	public void testDeepTree() {
+		final TreeNode<Integer> root = TreeNode.create(0, 1);
+		TreeNode<Integer> current = root;
+		for (int i = 1; i < 100000; i++) {
+			final TreeNode<Integer> child = TreeNode.create(i, 1);
+			current.addChildNode(child, 0);
+			current = child;
+		}
+
+		final AncestorIndex<Integer> index = new AncestorIndex<Integer>(root);
+		assertEquals(index.getDepth(current), 99999);
+		assertEquals(current.getNodeParents(root).throughNodes.size(), 99999);
+	}
+
+}
@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package codemining.ast;
+
+/**
+ * Utilities for creating AstNodeSymbols in tests.
+ *
+ */
+public final class AstNodeSymbolTestUtils {
+
+	/**
+	 * Create the distinct symbol i, of node type i % 10 and with a single
+	 * "value" property equal to i.
+	 */
+	public static AstNodeSymbol createSymbol(final int i) {
+		final AstNodeSymbol symbol = new AstNodeSymbol(i % 10);
+		symbol.addSimpleProperty("value", i);
+		return symbol;
+	}
+
+	private AstNodeSymbolTestUtils() {
+	}
+}
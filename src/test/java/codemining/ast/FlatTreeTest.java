@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class FlatTreeTest {
+
+	/**
+	 * Return the tree {1: {2: {3, 4: {-, 5}}}, {6: {-, 7}}}.
+	 */
+	private TreeNode<Integer> generateSampleTree() {
+		final TreeNode<Integer> node1 = TreeNode.create(1, 2);
+		final TreeNode<Integer> node2 = TreeNode.create(2, 2);
+		final TreeNode<Integer> node3 = TreeNode.create(3, 0);
+		final TreeNode<Integer> node4 = TreeNode.create(4, 2);
+		final TreeNode<Integer> node5 = TreeNode.create(5, 0);
+		final TreeNode<Integer> node6 = TreeNode.create(6, 2);
+		final TreeNode<Integer> node7 = TreeNode.create(7, 0);
+
+		node1.addChildNode(node2, 0);
+		node1.addChildNode(node6, 1);
+		node2.addChildNode(node3, 0);
+		node2.addChildNode(node4, 0);
+		node4.addChildNode(node5, 1);
+		node6.addChildNode(node7, 1);
+		return node1;
+	}
+
+	@Test
+	public void testConversion() {
+		final TreeNode<Integer> tree = generateSampleTree();
+		final FlatTree flat = FlatTree.fromTree(tree);
+		assertEquals(flat.size(), 7);
+		assertEquals(flat.toTree(), tree);
+		assertEquals(FlatTree.fromTree(flat.toTree()), flat);
+
+		final TreeNode<Integer> leaf = TreeNode.create(42, 3);
+		final FlatTree flatLeaf = FlatTree.fromTree(leaf);
+		assertEquals(flatLeaf.size(), 1);
+		assertEquals(flatLeaf.nProperties(0), 3);
+		assertEquals(flatLeaf.toTree(), leaf);
+	}
+
+	@Test
+	public void testStructure() {
+		final FlatTree flat = FlatTree.fromTree(generateSampleTree());
+		for (int i = 0; i < flat.size(); i++) {
+			assertEquals(flat.getSymbol(i), i + 1);
+		}
+
+		assertEquals(flat.getParent(0), -1);
+		assertEquals(flat.getParentProperty(0), -1);
+		assertEquals(flat.getParent(3), 1);
+		assertEquals(flat.getParent(4), 3);
+		assertEquals(flat.getParentProperty(4), 1);
+		assertEquals(flat.getParentProperty(5), 1);
+
+		assertEquals(flat.nChildren(1, 0), 2);
+		assertEquals(flat.getChild(1, 0, 1), 3);
+		assertEquals(flat.getChild(0, 1, 0), 5);
+		assertEquals(flat.nChildren(5, 0), 0);
+		assertEquals(flat.getSubtreeEnd(1), 5);
+		assertTrue(flat.isLeaf(2));
+		assertFalse(flat.isLeaf(3));
+	}
+
+	@Test
+	public void testTraversals() {
+		final FlatTree flat = FlatTree.fromTree(generateSampleTree());
+
+		final List<Integer> preorder = Lists.newArrayList();
+		flat.forEachPreorder(node -> preorder.add(flat.getSymbol(node)));
+		assertEquals(preorder, Lists.newArrayList(1, 2, 3, 4, 5, 6, 7));
+
+		final List<Integer> postorder = Lists.newArrayList();
+		flat.forEachPostorder(node -> postorder.add(flat.getSymbol(node)));
+		assertEquals(postorder, Lists.newArrayList(3, 5, 4, 2, 7, 6, 1));
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static codemining.ast.AstNodeSymbolTestUtils.createSymbol;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import codemining.ast.java.JavaAstTreeExtractor;
+
+public class FrozenAlphabetTest {
+
+	private static AbstractTreeExtractor serializeAndRead(
+			final AbstractTreeExtractor extractor) throws IOException,
+			ClassNotFoundException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(extractor);
+		}
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (AbstractTreeExtractor) in.readObject();
+		}
+	}
+
+	@Test
+	public void testFreeze() throws ClassNotFoundException, IOException {
+		final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(extractor.getOrAddSymbolId(createSymbol(i)), i);
+		}
+		assertFalse(extractor.isFrozen());
+
+		final FrozenAlphabet alphabet = extractor.freeze();
+		assertTrue(extractor.isFrozen());
+		assertEquals(alphabet.size(), 101);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(extractor.getOrAddSymbolId(createSymbol(i)), i);
+			assertEquals(extractor.getSymbol(i), createSymbol(i));
+		}
+		assertEquals(extractor.getFirstSymbolIdOfType(3), 3);
+		assertEquals(extractor.getSymbolIdsOfType(3).length, 10);
+
+		// Unknown symbols are not added
+		final int unknownId = extractor.getOrAddSymbolId(createSymbol(100));
+		assertEquals(unknownId, alphabet.getUnknownId());
+		assertEquals(extractor.getSymbol(unknownId).nodeType,
+				AstNodeSymbol.UNK_SYMBOL);
+		assertEquals(extractor.getNodeAlphabet().size(), 101);
+
+		// Deserialized extractors share the frozen alphabet
+		final AbstractTreeExtractor copy1 = serializeAndRead(extractor);
+		final AbstractTreeExtractor copy2 = serializeAndRead(extractor);
+		assertTrue(copy1.isFrozen());
+		assertSame(copy1.freeze(), alphabet);
+		assertSame(copy2.freeze(), alphabet);
+		assertEquals(copy1.getOrAddSymbolId(createSymbol(200)), unknownId);
+	}
+
+	@Test
+	public void testSerializationOfUnfrozen() throws ClassNotFoundException,
+			IOException {
+		final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+		for (int i = 0; i < 100; i++) {
+			extractor.getOrAddSymbolId(createSymbol(i));
+		}
+		final AbstractTreeExtractor copy = serializeAndRead(extractor);
+		assertFalse(copy.isFrozen());
+		assertEquals(copy.getOrAddSymbolId(createSymbol(50)), 50);
+		assertEquals(copy.getOrAddSymbolId(createSymbol(100)), 100);
+	}
+
+}
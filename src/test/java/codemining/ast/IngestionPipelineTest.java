@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+public class IngestionPipelineTest {
+
+	@Test
+	public void testErrorsAbort() {
+		final IngestionPipeline<Integer, Integer> pipeline = new IngestionPipeline<>(
+				"test", 4, 8);
+		try {
+			pipeline.run(
+					ContiguousSet.create(Range.closedOpen(0, 100),
+							DiscreteDomain.integers()),
+					(input, outputs) -> {
+						if (input == 10) {
+							throw new StackOverflowError();
+						}
+						outputs.add(input);
+					}, output -> {
+					});
+			fail();
+		} catch (final IllegalStateException e) {
+			assertTrue(e.getCause() instanceof StackOverflowError);
+		}
+		assertEquals(pipeline.getNumFailedInputs(), 0);
+	}
+
+	@Test
+	public void testOrderAndFailures() {
+		final IngestionPipeline<Integer, Integer> pipeline = new IngestionPipeline<>(
+				"test", 4, 8);
+		final AtomicInteger nPending = new AtomicInteger();
+		final AtomicInteger maxPending = new AtomicInteger();
+		final List<Integer> consumed = Lists.newArrayList();
+
+		pipeline.run(
+				ContiguousSet.create(Range.closedOpen(0, 1000),
+						DiscreteDomain.integers()),
+				(input, outputs) -> {
+					maxPending.accumulateAndGet(nPending.incrementAndGet(),
+							Math::max);
+					try {
+						// Later inputs finish first
+						Thread.sleep(input % 3);
+						if (input % 100 == 7) {
+							throw new IllegalArgumentException();
+						}
+						outputs.add(2 * input);
+						outputs.add(2 * input + 1);
+					} finally {
+						nPending.decrementAndGet();
+					}
+				}, output -> {
+					if (output == 1) {
+						throw new IllegalStateException();
+					}
+					consumed.add(output);
+				});
+
+		assertEquals(pipeline.getNumInputs(), 1000);
+		assertEquals(pipeline.getNumFailedInputs(), 10);
+		assertEquals(pipeline.getNumSuccessfulInputs(), 990);
+		assertEquals(pipeline.getNumOutputs(), 2 * 990 - 1);
+		assertTrue(maxPending.get() <= 4);
+
+		int expected = 0;
+		for (final int output : consumed) {
+			while (expected / 2 % 100 == 7 || expected == 1) {
+				expected++;
+			}
+			assertEquals(output, expected);
+			expected++;
+		}
+	}
+
+}
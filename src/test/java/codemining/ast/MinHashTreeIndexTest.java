@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static codemining.ast.TreeNodeTestUtils.createRandomTree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import codemining.ast.MinHashTreeIndex.SimilarPair;
+import codemining.util.data.Pair;
+
+import com.google.common.collect.Lists;
+
+public class MinHashTreeIndexTest {
+
+	/**
+	 * Return a copy of the tree with a new leaf.
+	 */
+	private static TreeNode<Integer> withExtraLeaf(final TreeNode<Integer> tree) {
+		final TreeNode<Integer> copy = tree.deepCopy();
+		copy.addChildNode(TreeNode.create(-1, 0), 0);
+		return copy;
+	}
+
+	@Test
+	public void testNearDuplicates() {
+		final Random random = new Random(1);
+		final List<TreeNode<Integer>> trees = Lists.newArrayList();
+		for (int i = 0; i < 200; i++) {
+			trees.add(createRandomTree(random, 50, 1000));
+		}
+		// Tree 200 is a copy of tree 0 and 201 differs from 1 by a leaf
+		trees.add(trees.get(0).deepCopy());
+		trees.add(withExtraLeaf(trees.get(1)));
+
+		for (final int shingleDepth : new int[] { 0, 2 }) {
+			final MinHashTreeIndex<Integer> index = new MinHashTreeIndex<Integer>(
+					trees, 20, 5, shingleDepth);
+			assertEquals(index.size(), trees.size());
+			assertEquals(index.estimateSimilarity(0, 200), 1, 10E-10);
+
+			final List<SimilarPair> pairs = index.getNearDuplicatePairs(.8);
+			assertEquals(pairs.size(), 2);
+			assertEquals(pairs.get(0).first, 0);
+			assertEquals(pairs.get(0).second, 200);
+			assertEquals(pairs.get(1).first, 1);
+			assertEquals(pairs.get(1).second, 201);
+
+			final List<Pair<Integer, Double>> nearest = index.getNearest(
+					withExtraLeaf(trees.get(2)), 1);
+			assertEquals(nearest.size(), 1);
+			assertEquals(nearest.get(0).first.intValue(), 2);
+			assertTrue(nearest.get(0).second > .8);
+		}
+	}
+
+	@Test
+	public void testSimilarityEstimate() {
+		final Random random = new Random(2);
+		final List<TreeNode<Integer>> trees = Lists.newArrayList();
+		for (int i = 0; i < 20; i++) {
+			trees.add(createRandomTree(random, 30, 10));
+		}
+		final MinHashTreeIndex<Integer> index = new MinHashTreeIndex<Integer>(
+				trees, 50, 4, 0);
+		for (int i = 1; i < trees.size(); i++) {
+			assertEquals(index.estimateSimilarity(0, i),
+					NodeSetTreeDistance.distanceBetween(trees.get(0),
+							trees.get(i)), .15);
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PostorderTreeStackTest {
+
+	@Test
+	public void testPostorderTraversal() {
+		// Traverse a -> (b -> (c, d), e), looking up children out of order
+		final Object a = new Object();
+		final Object b = new Object();
+		final Object c = new Object();
+		final Object d = new Object();
+		final Object e = new Object();
+		final PostorderTreeStack stack = new PostorderTreeStack();
+
+		stack.enter(); // a
+		stack.enter(); // b
+		stack.enter(); // c
+		final TreeNode<Integer> treeC = TreeNode.create(3, 0);
+		stack.exit(c, treeC);
+		stack.enter(); // d
+		final TreeNode<Integer> treeD = TreeNode.create(4, 0);
+		stack.exit(d, treeD);
+
+		assertTrue(stack.getChild(d) == treeD);
+		assertTrue(stack.getChild(c) == treeC);
+		assertNull(stack.getChild(a));
+		final TreeNode<Integer> treeB = TreeNode.create(2, 1);
+		treeB.addChildNode(treeC, 0);
+		treeB.addChildNode(treeD, 0);
+		stack.exit(b, treeB);
+
+		stack.enter(); // e, failed
+		stack.exit(e, null);
+
+		assertTrue(stack.getChild(b) == treeB);
+		assertNull(stack.getChild(c));
+		assertNull(stack.getChild(e));
+		final TreeNode<Integer> treeA = TreeNode.create(1, 1);
+		treeA.addChildNode(treeB, 0);
+		stack.exit(a, treeA);
+
+		assertTrue(stack.getTree(a) == treeA);
+		assertNull(stack.getTree(b));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnbalancedExit() {
+		final PostorderTreeStack stack = new PostorderTreeStack();
+		stack.exit(new Object(), TreeNode.create(1, 0));
+	}
+
+	@Test
+	public void testWideTree() {
+		final Object root = new Object();
+		final Object[] children = new Object[1000];
+		final PostorderTreeStack stack = new PostorderTreeStack();
+		stack.enter();
+		for (int i = 0; i < children.length; i++) {
+			children[i] = new Object();
+			stack.enter();
+			stack.exit(children[i], TreeNode.create(i, 0));
+		}
+		for (int i = 0; i < children.length; i++) {
+			assertTrue(stack.getChild(children[i]).getData() == i);
+		}
+		stack.exit(root, TreeNode.create(-1, 1));
+		assertTrue(stack.getTree(root).getData() == -1);
+	}
+}
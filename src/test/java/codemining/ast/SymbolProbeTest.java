@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import codemining.ast.java.JavaAstTreeExtractor;
+
+public class SymbolProbeTest {
+
+	private static void probe(final SymbolProbe probe, final int nodeType,
+			final String identifier) {
+		probe.reset(nodeType);
+		probe.addSimpleProperty("identifier", identifier);
+		probe.addSimpleProperty("isVarargs", Boolean.FALSE);
+		probe.addChildProperty("type");
+		probe.addChildProperty("initializer");
+	}
+
+	@Test
+	public void testProbe() {
+		final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+		final SymbolProbe probe = new SymbolProbe(extractor);
+
+		probe(probe, 1, "a");
+		final AstNodeSymbol symbol = probe.toSymbol();
+		assertTrue(probe.matches(symbol));
+		final int id = probe.getOrAddId();
+		assertEquals(extractor.getSymbol(id), symbol);
+		assertEquals(extractor.getOrAddSymbolId(symbol), id);
+
+		// Cached ids are returned for equal symbols only
+		for (int i = 0; i < 2000; i++) {
+			probe(probe, 1 + i % 2, "v" + i);
+			assertEquals(probe.getOrAddId(),
+					extractor.getOrAddSymbolId(probe.toSymbol()));
+		}
+		probe(probe, 1, "a");
+		assertEquals(probe.getOrAddId(), id);
+		probe(probe, 2, "a");
+		assertTrue(probe.getOrAddId() != id);
+		assertFalse(probe.matches(symbol));
+
+		// Annotated symbols do not match
+		probe(probe, 1, "a");
+		final AstNodeSymbol annotated = probe.toSymbol();
+		annotated.addAnnotation("PARENT_TYPE", "Block");
+		assertFalse(probe.matches(annotated));
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static codemining.ast.AstNodeSymbolTestUtils.createSymbol;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.BiMap;
+
+public class SymbolTableTest {
+
+	@Test
+	public void testConcurrentInsertion() {
+		final SymbolTable table = new SymbolTable();
+		final int nSymbols = 10000;
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (int task = 0; task < 8; task++) {
+			ptp.pushTask(() -> {
+				for (int i = 0; i < nSymbols; i++) {
+					final int id = table.getOrAddId(createSymbol(i));
+					assertEquals(table.getSymbol(id), createSymbol(i));
+				}
+			});
+		}
+		ptp.waitForTermination();
+
+		// Ids are dense and unique
+		assertEquals(table.size(), nSymbols);
+		final boolean[] seen = new boolean[nSymbols];
+		for (int i = 0; i < nSymbols; i++) {
+			final int id = table.getId(createSymbol(i));
+			assertTrue(id >= 0 && id < nSymbols);
+			assertTrue(!seen[id]);
+			seen[id] = true;
+		}
+		assertEquals(table.getId(createSymbol(nSymbols)), -1);
+		assertNull(table.getSymbol(nSymbols));
+	}
+
+	@Test
+	public void testNodeTypeIndex() {
+		final SymbolTable table = new SymbolTable();
+		for (int i = 0; i < 100; i++) {
+			table.getOrAddId(createSymbol(i));
+		}
+		for (int type = 0; type < 10; type++) {
+			final int[] ids = table.getIdsOfType(type);
+			assertEquals(ids.length, 10);
+			for (int i = 0; i < ids.length; i++) {
+				assertEquals(ids[i], 10 * i + type);
+				assertEquals(table.getSymbol(ids[i]).nodeType, type);
+			}
+			assertEquals(table.getFirstIdOfType(type), type);
+		}
+		assertEquals(table.getIdsOfType(10).length, 0);
+		assertEquals(table.getFirstIdOfType(10), -1);
+
+		final SymbolTable copy = new SymbolTable(table.asBiMap());
+		assertEquals(copy.getFirstIdOfType(3), 3);
+		assertEquals(copy.getIdsOfType(3).length, 10);
+	}
+
+	@Test
+	public void testView() {
+		final SymbolTable table = new SymbolTable();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(table.getOrAddId(createSymbol(i)), i);
+		}
+		final BiMap<Integer, AstNodeSymbol> alphabet = table.asBiMap();
+		assertEquals(alphabet.size(), 100);
+		int nEntries = 0;
+		for (final Entry<Integer, AstNodeSymbol> entry : alphabet.entrySet()) {
+			assertEquals(entry.getValue(), createSymbol(entry.getKey()));
+			assertEquals(alphabet.inverse().get(entry.getValue()),
+					entry.getKey());
+			nEntries++;
+		}
+		assertEquals(nEntries, 100);
+
+		// The view is live
+		table.getOrAddId(createSymbol(100));
+		assertEquals(alphabet.get(100), createSymbol(100));
+
+		final SymbolTable copy = new SymbolTable(alphabet);
+		assertEquals(copy.size(), 101);
+		assertEquals(copy.getOrAddId(createSymbol(101)), 101);
+	}
+
+}
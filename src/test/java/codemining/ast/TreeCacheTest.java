@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.java.BinaryJavaAstTreeExtractor;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.ast.js.BinaryJavascriptTreeExtractor;
+import codemining.ast.js.JavascriptTreeExtractor;
+
+public class TreeCacheTest {
+
+	@Test
+	public void testCachedExtraction() throws IOException {
+		final File sourceFile = new File(TreeCacheTest.class.getClassLoader()
+				.getResource("SampleClass.txt").getFile());
+		final File cacheDirectory = Files.createTempDirectory("treecache")
+				.toFile();
+		try {
+			final TreeCache cache = new TreeCache(cacheDirectory);
+
+			final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+			extractor.setTreeCache(cache);
+			final TreeNode<Integer> tree = extractor.getTree(sourceFile);
+			assertEquals(cache.getMisses(), 1);
+			assertEquals(cache.getHits(), 0);
+
+			// A new extractor has an empty alphabet, so the symbols ids may
+			// differ, but the ASTs must be the same.
+			final JavaAstTreeExtractor otherExtractor = new JavaAstTreeExtractor();
+			otherExtractor.setTreeCache(cache);
+			final TreeNode<Integer> cachedTree = otherExtractor
+					.getTree(sourceFile);
+			assertEquals(cache.getMisses(), 1);
+			assertEquals(cache.getHits(), 1);
+			assertEquals(cachedTree.getTreeSize(), tree.getTreeSize());
+			assertEquals(otherExtractor.getASTFromTree(cachedTree).toString(),
+					extractor.getASTFromTree(tree).toString());
+		} finally {
+			FileUtils.deleteDirectory(cacheDirectory);
+		}
+	}
+
+	@Test
+	public void testFrozenExtractionIsNotCached() throws IOException {
+		final File sourceFile = new File(TreeCacheTest.class.getClassLoader()
+				.getResource("SampleClass.txt").getFile());
+		final File cacheDirectory = Files.createTempDirectory("treecache")
+				.toFile();
+		try {
+			final TreeCache cache = new TreeCache(cacheDirectory);
+
+			final JavaAstTreeExtractor frozenExtractor = new JavaAstTreeExtractor();
+			frozenExtractor.freeze();
+			frozenExtractor.setTreeCache(cache);
+			frozenExtractor.getTree(sourceFile);
+			assertEquals(cache.getMisses(), 1);
+
+			// The unknown symbols of the frozen extraction are not reused
+			final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+			extractor.setTreeCache(cache);
+			final TreeNode<Integer> tree = extractor.getTree(sourceFile);
+			assertEquals(cache.getMisses(), 2);
+			assertEquals(cache.getHits(), 0);
+
+			// but the trees of an unfrozen extraction are
+			final TreeNode<Integer> frozenTree = frozenExtractor
+					.getTree(sourceFile);
+			assertEquals(cache.getMisses(), 2);
+			assertEquals(cache.getHits(), 1);
+			assertEquals(frozenTree.getTreeSize(), tree.getTreeSize());
+		} finally {
+			FileUtils.deleteDirectory(cacheDirectory);
+		}
+	}
+
+	@Test
+	public void testBinaryExtractionSignatures() {
+		final JavaAstTreeExtractor javaExtractor = new JavaAstTreeExtractor();
+		assertFalse(new BinaryJavaAstTreeExtractor(javaExtractor, true)
+				.getExtractionSignature().equals(
+						new BinaryJavaAstTreeExtractor(javaExtractor, false)
+								.getExtractionSignature()));
+
+		final JavascriptTreeExtractor jsExtractor = new JavascriptTreeExtractor();
+		assertFalse(new BinaryJavascriptTreeExtractor(jsExtractor, true)
+				.getExtractionSignature().equals(
+						new BinaryJavascriptTreeExtractor(jsExtractor, false)
+								.getExtractionSignature()));
+		assertFalse(new BinaryJavascriptTreeExtractor(jsExtractor)
+				.getExtractionSignature().equals(
+						jsExtractor.getExtractionSignature()));
+	}
+
+}
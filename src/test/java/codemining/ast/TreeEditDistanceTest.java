@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static codemining.ast.TreeNodeTestUtils.createRandomTree;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import codemining.ast.TreeEditDistance.DistancePair;
+
+import com.google.common.collect.Lists;
+
+public class TreeEditDistanceTest {
+
+	/**
+	 * Create the tree whose node i has the given parent (a previous node),
+	 * property of the parent and data.
+	 */
+	private static TreeNode<Integer> createTree(final int[] parents,
+			final int[] properties, final int[] symbols) {
+		final List<TreeNode<Integer>> nodes = Lists.newArrayList();
+		for (int i = 0; i < symbols.length; i++) {
+			final TreeNode<Integer> node = TreeNode.create(symbols[i], 2);
+			if (i > 0) {
+				nodes.get(parents[i]).addChildNode(node, properties[i]);
+			}
+			nodes.add(node);
+		}
+		return nodes.get(0);
+	}
+
+	/**
+	 * Return f(d(a, c(b)), e) or f(c(d(a, b)), e), the classic example of
+	 * Zhang and Shasha.
+	 */
+	private static TreeNode<Integer> createTree(final boolean first) {
+		final int a = 1, b = 2, c = 3, d = 4, e = 5, f = 6;
+		final TreeNode<Integer> root = TreeNode.create(f, 1);
+		final TreeNode<Integer> nodeC = TreeNode.create(c, 1);
+		final TreeNode<Integer> nodeD = TreeNode.create(d, 1);
+		if (first) {
+			root.addChildNode(nodeD, 0);
+			nodeD.addChildNode(TreeNode.create(a, 1), 0);
+			nodeD.addChildNode(nodeC, 0);
+			nodeC.addChildNode(TreeNode.create(b, 1), 0);
+		} else {
+			root.addChildNode(nodeC, 0);
+			nodeC.addChildNode(nodeD, 0);
+			nodeD.addChildNode(TreeNode.create(a, 1), 0);
+			nodeD.addChildNode(TreeNode.create(b, 1), 0);
+		}
+		root.addChildNode(TreeNode.create(e, 1), 0);
+		return root;
+	}
+
+	@Test
+	public void testBatchDistances() {
+		final Random random = new Random(42);
+		final List<TreeNode<Integer>> trees = Lists.newArrayList();
+		for (int i = 0; i < 30; i++) {
+			trees.add(createRandomTree(random, 3 + random.nextInt(8), 3));
+		}
+		final TreeEditDistance<Integer> distance = new TreeEditDistance<Integer>();
+		final int[][] matrix = distance.getDistanceMatrix(trees);
+
+		final int maxDistance = 3;
+		final List<DistancePair> pairs = distance.getPairsWithinDistance(
+				trees, maxDistance);
+		int nPairs = 0;
+		for (int i = 0; i < trees.size(); i++) {
+			assertEquals(matrix[i][i], 0);
+			for (int j = i + 1; j < trees.size(); j++) {
+				assertEquals(matrix[i][j], matrix[j][i]);
+				assertEquals(matrix[i][j], TreeEditDistance.distanceBetween(
+						trees.get(i), trees.get(j)));
+				if (matrix[i][j] <= maxDistance) {
+					final DistancePair pair = pairs.get(nPairs++);
+					assertEquals(pair.first, i);
+					assertEquals(pair.second, j);
+					assertEquals(pair.distance, matrix[i][j]);
+				}
+			}
+		}
+		assertEquals(pairs.size(), nPairs);
+	}
+
+	@Test
+	public void testBoundedDistance() {
+		final Random random = new Random(0);
+		final TreeEditDistance<Integer> distance = new TreeEditDistance<Integer>();
+		for (int i = 0; i < 200; i++) {
+			final TreeNode<Integer> tree1 = createRandomTree(random,
+					1 + random.nextInt(15), 4);
+			final TreeNode<Integer> tree2 = createRandomTree(random,
+					1 + random.nextInt(15), 4);
+			final int exact = TreeEditDistance.distanceBetween(tree1, tree2);
+			assertTrue(distance.lowerBound(tree1, tree2) <= exact);
+			for (int bound = 0; bound < 12; bound++) {
+				assertEquals(distance.boundedDistance(tree1, tree2, bound),
+						Math.min(exact, bound + 1));
+			}
+		}
+	}
+
+	@Test
+	public void testBoundedDistanceOfSimilarTrees() {
+		final Random random = new Random(1);
+		final TreeEditDistance<Integer> distance = new TreeEditDistance<Integer>();
+		for (int i = 0; i < 20; i++) {
+			final int size = 100 + random.nextInt(100);
+			final int[] parents = new int[size];
+			final int[] properties = new int[size];
+			final int[] symbols = new int[size];
+			for (int j = 0; j < size; j++) {
+				parents[j] = j == 0 ? 0 : random.nextInt(j);
+				properties[j] = random.nextInt(2);
+				symbols[j] = random.nextInt(5);
+			}
+			final TreeNode<Integer> tree1 = createTree(parents, properties,
+					symbols);
+
+			// Relabel and move a few nodes
+			for (int j = 0; j < 1 + random.nextInt(3); j++) {
+				symbols[random.nextInt(size)] = random.nextInt(5);
+				final int moved = 1 + random.nextInt(size - 1);
+				parents[moved] = random.nextInt(moved);
+			}
+			final TreeNode<Integer> tree2 = createTree(parents, properties,
+					symbols);
+
+			final int exact = TreeEditDistance.distanceBetween(tree1, tree2);
+			for (int bound = 0; bound < exact + 3; bound++) {
+				assertEquals(distance.boundedDistance(tree1, tree2, bound),
+						Math.min(exact, bound + 1));
+			}
+		}
+	}
+
+	@Test
+	public void testDistance() {
+		final TreeEditDistance<Integer> distance = new TreeEditDistance<Integer>();
+		assertEquals(distance.distance(createTree(true), createTree(false)),
+				2, 10E-10);
+		assertEquals(distance.distance(createTree(true), createTree(true)), 0,
+				10E-10);
+		assertTrue(distance.isWithinDistance(createTree(true),
+				createTree(false), 2));
+		assertFalse(distance.isWithinDistance(createTree(true),
+				createTree(false), 1));
+
+		// Moving a child to another property is a relabeling
+		final TreeNode<Integer> tree1 = TreeNode.create(1, 2);
+		tree1.addChildNode(TreeNode.create(2, 0), 0);
+		final TreeNode<Integer> tree2 = TreeNode.create(1, 2);
+		tree2.addChildNode(TreeNode.create(2, 0), 1);
+		assertEquals(distance.distance(tree1, tree2), 1, 10E-10);
+	}
+
+}
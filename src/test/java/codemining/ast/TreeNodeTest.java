@@ -7,6 +7,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Collections;
 import java.util.List;
 
@@ -17,6 +22,7 @@ import com.google.common.collect.Lists;
 
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeParents;
+import codemining.lm.tsg.TSGNode;
 
 /**
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
@@ -47,6 +53,96 @@ public class TreeNodeTest {
 		assertEquals(node.getTreeSize(), 4);
 	}
 
+	@Test
+	public void testImmutableMetadata() {
+		final TreeNode<Integer> node = TreeNode.create(1, 2);
+		node.addChildNode(TreeNode.create(0, 0), 0);
+		final TreeNode<Integer> child = TreeNode.create(1, 1);
+		node.addChildNode(child, 1);
+		child.addChildNode(TreeNode.create(2, 0), 0);
+
+		final TreeNode<Integer> immutable = node.toImmutable();
+		assertEquals(immutable, node);
+		assertEquals(node, immutable);
+		assertEquals(immutable.hashCode(), node.hashCode());
+		assertEquals(immutable.getTreeSize(), 4);
+		assertEquals(node.getTreeDepth(), 3);
+		assertEquals(immutable.getTreeDepth(), 3);
+
+		// Mutable trees with frozen subtrees hash as the fully mutable tree
+		final TreeNode<Integer> partlyFrozen = TreeNode.create(1, 2);
+		partlyFrozen.addChildNode(TreeNode.create(0, 0), 0);
+		partlyFrozen.addChildNode(child.toImmutable(), 1);
+		assertEquals(node.hashCode(), partlyFrozen.hashCode());
+		assertEquals(node, partlyFrozen);
+
+		child.addChildNode(TreeNode.create(3, 0), 0);
+		assertFalse(immutable.equals(node.toImmutable()));
+		assertFalse(immutable.hashCode() == node.hashCode());
+
+		// Children in different properties are different trees
+		final TreeNode<Integer> node1 = TreeNode.create(1, 2);
+		node1.addChildNode(TreeNode.create(0, 0), 0);
+		final TreeNode<Integer> node2 = TreeNode.create(1, 2);
+		node2.addChildNode(TreeNode.create(0, 0), 1);
+		assertFalse(node1.toImmutable().equals(node2.toImmutable()));
+		assertFalse(node1.hashCode() == node2.hashCode());
+
+		// Deep mutable trees hash as their immutable copies
+		final TreeNode<Integer> deepTree = TreeNode.create(0, 2);
+		TreeNode<Integer> current = deepTree;
+		for (int i = 1; i < 1000; i++) {
+			final TreeNode<Integer> next = TreeNode.create(i % 7, 2);
+			current.addChildNode(TreeNode.create(i % 3, 0), 0);
+			current.addChildNode(next, 1);
+			current = next;
+		}
+		assertEquals(deepTree.hashCode(), deepTree.toImmutable().hashCode());
+	}
+
+	@Test
+	public void testImmutableStructure() {
+		final TSGNode rootData = new TSGNode(1);
+		rootData.isRoot = true;
+		final TreeNode<TSGNode> node = TreeNode.create(rootData, 1);
+		final TSGNode childData = new TSGNode(2);
+		node.addChildNode(TreeNode.create(childData, 0), 0);
+
+		final TreeNode<TSGNode> sampled = node.toImmutableStructure();
+		final TreeNode<TSGNode> rule = TSGNode.getSubTreeFromRoot(sampled)
+				.toImmutable();
+		assertEquals(rule, sampled);
+		assertEquals(rule.hashCode(), sampled.hashCode());
+		assertEquals(sampled.getTreeSize(), 2);
+
+		// The data of the sampled tree changes in place
+		childData.isRoot = true;
+		assertFalse(rule.equals(sampled));
+		assertFalse(sampled.equals(rule));
+		assertEquals(sampled.toImmutable().hashCode(), sampled.hashCode());
+		assertFalse(rule.hashCode() == sampled.hashCode());
+	}
+
+	@Test
+	public void testInterning() {
+		final TreeNode<Integer> node1 = TreeNode.create(1, 2);
+		node1.addChildNode(TreeNode.create(0, 0), 0);
+		node1.addChildNode(TreeNode.create(0, 0), 1);
+		final TreeNode<Integer> node2 = node1.deepCopy();
+
+		final TreeNode<Integer> interned1 = node1.toInternedImmutable();
+		final TreeNode<Integer> interned2 = node2.toInternedImmutable();
+		assertTrue(interned1 == interned2);
+		assertEquals(interned1, node1);
+		assertTrue(interned1.getChild(0, 0) == interned1.getChild(0, 1));
+		assertEquals(interned1.getTreeSize(), 3);
+
+		node2.addChildNode(TreeNode.create(2, 0), 1);
+		assertFalse(node2.toInternedImmutable() == interned1);
+		assertTrue(node2.toInternedImmutable().getChild(0, 0) == interned1
+				.getChild(0, 0));
+	}
+
 	@Test
 	public void testIsLeaf() {
 		final TreeNode<Integer> node = TreeNode.create(1, 10);
@@ -232,4 +328,103 @@ public class TreeNodeTest {
 		assertFalse(root2.partialMatch(root, true));
 	}
 
+	@Test
+	public void testPartialMatchWithDataMatcher() {
+		final TreeNode<Integer> root = TreeNode.create(1, 2);
+		root.addChildNode(TreeNode.create(2, 0), 0);
+		root.addChildNode(TreeNode.create(3, 0), 1);
+
+		final TreeNode<Integer> root2 = TreeNode.create(3, 2);
+		root2.addChildNode(TreeNode.create(4, 0), 0);
+
+		assertFalse(root2.partialMatch(root, false));
+		assertFalse(root2.partialMatch(root, IntKeyMatcher.INTEGER_MATCHER,
+				false));
+		assertTrue(root2.partialMatch(root, (a, b) -> a % 2 == b % 2, false));
+		assertTrue(root2.isPartialSubtreeOf(root, (a, b) -> a % 2 == b % 2));
+		assertFalse(root.isPartialSubtreeOf(root2, (a, b) -> a % 2 == b % 2));
+
+		// A matcher that runs a traversal itself, on the same thread stack
+		final TreeNode<Integer> leaf = TreeNode.create(0, 0);
+		assertTrue(root2.partialMatch(root, (a, b) -> leaf.partialMatch(
+				TreeNode.create(0, 0), false)
+				&& a % 2 == b % 2, false));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		final TreeNode<Integer> tree = TreeNode.create(1, 2);
+		tree.addChildNode(TreeNode.create(0, 0), 0);
+		final TreeNode<Integer> child = TreeNode.create(1, 1);
+		tree.addChildNode(child, 1);
+		child.addChildNode(TreeNode.create(2, 0), 0);
+		tree.addChildNode(child.toImmutable(), 1);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(tree);
+		out.writeObject(child);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		final TreeNode<Integer> javaCopy = (TreeNode<Integer>) in.readObject();
+		assertEquals(javaCopy, tree);
+		assertFalse(javaCopy.hasCachedMetadata());
+		assertTrue(javaCopy.getChild(1, 1).hasCachedMetadata());
+		// Mutable nodes keep their identity
+		assertTrue(in.readObject() == javaCopy.getChild(0, 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSerializationOfDeepTrees() throws IOException,
+			ClassNotFoundException {
+		final TreeNode<Integer> tree = TreeNode.create(0, 1);
+		TreeNode<Integer> current = tree;
+		TreeNode<Integer> middle = null;
+		for (int i = 1; i < 100000; i++) {
+			final TreeNode<Integer> next = TreeNode.create(i % 5, 1);
+			current.addChildNode(next, 0);
+			current = next;
+			if (i == 50000) {
+				middle = next;
+			}
+		}
+		// A chain of immutable nodes, each with one property
+		final int[] shape = new int[200000];
+		for (int i = 0; i < shape.length; i += 2) {
+			shape[i] = 1 << 1 | 1;
+			shape[i + 1] = i + 2 < shape.length ? 1 : 0;
+		}
+		final TreeNode<Integer> immutableTree = TreeNode.fromPreorder(shape,
+				i -> i % 5);
+
+		// A descendant written before its root keeps its identity
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(middle);
+		out.writeObject(tree);
+		out.writeObject(immutableTree);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		final TreeNode<Integer> middleCopy = (TreeNode<Integer>) in.readObject();
+		final TreeNode<Integer> treeCopy = (TreeNode<Integer>) in.readObject();
+		final TreeNode<Integer> immutableCopy = (TreeNode<Integer>) in
+				.readObject();
+		assertEquals(treeCopy, tree);
+		assertEquals(middleCopy, middle);
+		TreeNode<Integer> node = treeCopy;
+		for (int i = 0; i < 50000; i++) {
+			node = node.getChild(0, 0);
+		}
+		assertTrue(node == middleCopy);
+
+		assertEquals(immutableCopy, immutableTree);
+		assertTrue(immutableCopy.hasCachedMetadata());
+		assertEquals(immutableCopy.getTreeSize(), 100000);
+		assertEquals(immutableCopy.hashCode(), immutableTree.hashCode());
+	}
+
 }
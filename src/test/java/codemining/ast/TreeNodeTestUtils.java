@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Utilities for creating TreeNodes in tests.
+ *
+ */
+public final class TreeNodeTestUtils {
+
+	/**
+	 * Create a random tree of the given size, with data 0...nSymbols-1 and up
+	 * to two properties per node.
+	 */
+	public static TreeNode<Integer> createRandomTree(final Random random,
+			final int size, final int nSymbols) {
+		final List<TreeNode<Integer>> nodes = Lists.newArrayList();
+		final TreeNode<Integer> root = TreeNode.create(
+				random.nextInt(nSymbols), 2);
+		nodes.add(root);
+		for (int i = 1; i < size; i++) {
+			final TreeNode<Integer> node = TreeNode.create(
+					random.nextInt(nSymbols), 2);
+			nodes.get(random.nextInt(nodes.size())).addChildNode(node,
+					random.nextInt(2));
+			nodes.add(node);
+		}
+		return root;
+	}
+
+	private TreeNodeTestUtils() {
+	}
+}
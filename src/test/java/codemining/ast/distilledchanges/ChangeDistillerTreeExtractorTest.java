@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package codemining.ast.distilledchanges;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+
+public class ChangeDistillerTreeExtractorTest {
+
+	private String classContent;
+
+	@Test
+	public void testChangeNodeTypes() {
+		for (final ChangeType changeType : ChangeType.values()) {
+			final int nodeType = new AstNodeSymbol(changeType).nodeType;
+			assertTrue(ChangeDistillerTreeExtractor.isChangeNodeType(nodeType));
+			assertEquals(changeType,
+					ChangeDistillerTreeExtractor.getChangeType(nodeType));
+		}
+		assertFalse(ChangeDistillerTreeExtractor
+				.isChangeNodeType(AstNodeSymbol.MULTI_NODE));
+		assertFalse(ChangeDistillerTreeExtractor
+				.isChangeNodeType(AstNodeSymbol.TEMPLATE_NODE));
+		assertFalse(ChangeDistillerTreeExtractor
+				.isChangeNodeType(AstNodeSymbol.UNK_SYMBOL));
+	}
+
+	@Test
+	public void testChangeTrees() throws IOException {
+		final File before = File.createTempFile("before", ".java");
+		final File after = File.createTempFile("after", ".java");
+		try {
+			FileUtils.writeStringToFile(before, classContent);
+			FileUtils.writeStringToFile(after,
+					classContent.replace("if (window != null)",
+							"if (window == null)"));
+			final ChangeDistillerTreeExtractor ex = new ChangeDistillerTreeExtractor();
+			final List<TreeNode<Integer>> trees = ex.getChangeTrees(before,
+					after);
+			assertFalse(trees.isEmpty());
+			for (final TreeNode<Integer> tree : trees) {
+				final int nodeType = ex.getSymbol(tree.getData()).nodeType;
+				assertTrue(ChangeDistillerTreeExtractor
+						.isChangeNodeType(nodeType));
+				assertTrue(ex.getCodeFromTree(tree).startsWith(
+						ChangeDistillerTreeExtractor.getChangeType(nodeType)
+								.name()));
+				if (tree.nProperties() > 0) {
+					final TreeNode<Integer> entity = tree
+							.getChildrenByProperty().get(0).get(0);
+					assertFalse(ChangeDistillerTreeExtractor
+							.isChangeNodeType(ex.getSymbol(entity.getData()).nodeType));
+				}
+			}
+
+			// The same versions give the same trees
+			assertEquals(trees, ex.getChangeTrees(before, after));
+			assertTrue(ex.getChangeTrees(before, before).isEmpty());
+		} finally {
+			before.delete();
+			after.delete();
+		}
+	}
+
+	@Test
+	public void testTreePrinterAfterSerialization() throws IOException,
+			ClassNotFoundException {
+		final File before = File.createTempFile("before", ".java");
+		final File after = File.createTempFile("after", ".java");
+		try {
+			FileUtils.writeStringToFile(before, classContent);
+			FileUtils.writeStringToFile(after,
+					classContent.replace("if (window != null)",
+							"if (window == null)"));
+			final ChangeDistillerTreeExtractor ex = new ChangeDistillerTreeExtractor();
+			final List<TreeNode<Integer>> trees = ex.getChangeTrees(before,
+					after);
+			assertFalse(trees.isEmpty());
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(ex);
+			}
+			final ChangeDistillerTreeExtractor read;
+			try (final ObjectInputStream in = new ObjectInputStream(
+					new ByteArrayInputStream(bytes.toByteArray()))) {
+				read = (ChangeDistillerTreeExtractor) in.readObject();
+			}
+			for (final TreeNode<Integer> tree : trees) {
+				assertEquals(read.getTreePrinter().convertTreeToString(tree),
+						ex.getTreePrinter().convertTreeToString(tree));
+			}
+		} finally {
+			before.delete();
+			after.delete();
+		}
+	}
+
+	@Test
+	public void testUnchangedMethodFiltering() throws IOException {
+		final File before = File.createTempFile("before", ".java");
+		final File after = File.createTempFile("after", ".java");
+		try {
+			FileUtils.writeStringToFile(before, classContent);
+			FileUtils.writeStringToFile(after,
+					classContent.replace("if (window != null)",
+							"if (window == null)"));
+			final ChangeDistillerTreeExtractor ex = new ChangeDistillerTreeExtractor();
+			assertTrue(ex.isFilteringUnchangedMethods());
+			final List<TreeNode<Integer>> filteredTrees = ex.getChangeTrees(
+					before, after);
+			ex.setFilterUnchangedMethods(false);
+			assertEquals(ex.getChangeTrees(before, after), filteredTrees);
+
+			// Reformatting does not change the trees of the methods
+			ex.setFilterUnchangedMethods(true);
+			FileUtils.writeStringToFile(after,
+					classContent.replace("\t\t", "\t \t"));
+			assertTrue(ex.getChangeTrees(before, after).isEmpty());
+		} finally {
+			before.delete();
+			after.delete();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		classContent = FileUtils.readFileToString(new File(
+				ChangeDistillerTreeExtractorTest.class.getClassLoader()
+						.getResource("SampleClass.txt").getFile()));
+	}
+
+}
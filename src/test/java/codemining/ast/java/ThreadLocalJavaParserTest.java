@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package codemining.ast.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.junit.Before;
+import org.junit.Test;
+
+import codemining.java.codeutils.JavaASTExtractor;
+import codemining.languagetools.ParseType;
+
+import com.google.common.collect.Lists;
+
+public class ThreadLocalJavaParserTest {
+
+	private String classContent;
+	private String methodContent;
+
+	private void assertSameAst(final String code, final ParseType parseType) {
+		final JavaASTExtractor ex = new JavaASTExtractor(false);
+		assertEquals(ex.getAST(code, parseType).toString(),
+				ThreadLocalJavaParser.parse(code, parseType).toString());
+	}
+
+	@Test
+	public void testConcurrentParsing() throws Exception {
+		final String expected = ThreadLocalJavaParser.parse(classContent,
+				ParseType.COMPILATION_UNIT).toString();
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Callable<String>> tasks = Lists.newArrayList();
+			for (int i = 0; i < 32; i++) {
+				tasks.add(() -> ThreadLocalJavaParser.parse(classContent,
+						ParseType.COMPILATION_UNIT).toString());
+			}
+			for (final Future<String> result : executor.invokeAll(tasks)) {
+				assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParse() {
+		assertSameAst(classContent, ParseType.COMPILATION_UNIT);
+		assertSameAst(methodContent, ParseType.METHOD);
+
+		// Parsing again reuses the parser
+		assertSameAst(methodContent, ParseType.METHOD);
+		assertSameAst(classContent, ParseType.COMPILATION_UNIT);
+
+		final ASTNode method = ThreadLocalJavaParser.parse(methodContent,
+				ParseType.METHOD);
+		assertTrue(method instanceof MethodDeclaration);
+		final ASTNode other = ThreadLocalJavaParser.parse(methodContent,
+				ParseType.METHOD);
+		assertFalse(method.getAST() == other.getAST());
+	}
+
+	@Test
+	public void testSameAstsAsExtractor() throws Exception {
+		final JavaASTExtractor ex = new JavaASTExtractor(false);
+		for (final String sample : new String[] { "SampleClass.txt",
+				"SampleClass2.txt" }) {
+			final File file = new File(ThreadLocalJavaParserTest.class
+					.getClassLoader().getResource(sample).getFile());
+			assertEquals(ex.getAST(file).toString(), ThreadLocalJavaParser
+					.parse(file).toString());
+		}
+
+		final String[] statements = {
+				"int i = 0; for (final String s : list) { i += s.length(); }",
+				"final Runnable r = () -> System.out.println(i);",
+				"list.stream().map(String::trim).forEach(System.out::println);" };
+		for (final String snippet : statements) {
+			assertSameAst(snippet, ParseType.STATEMENTS);
+			assertEquals(ex.getBestEffortAstNode(snippet).toString(),
+					ThreadLocalJavaParser.getBestEffortAstNode(snippet)
+							.toString());
+		}
+		assertSameAst("a + b * foo(c, (x, y) -> x)", ParseType.EXPRESSION);
+		assertSameAst("private int i; public int get() { return i; }",
+				ParseType.CLASS_BODY);
+		assertEquals(ex.getBestEffortAstNode(methodContent).toString(),
+				ThreadLocalJavaParser.getBestEffortAstNode(methodContent)
+						.toString());
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		classContent = FileUtils.readFileToString(new File(
+				ThreadLocalJavaParserTest.class.getClassLoader()
+						.getResource("SampleClass.txt").getFile()));
+
+		methodContent = FileUtils.readFileToString(new File(
+				ThreadLocalJavaParserTest.class.getClassLoader()
+						.getResource("SampleMethod.txt").getFile()));
+	}
+
+}
@@ -4,8 +4,10 @@
 package codemining.ast.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jdt.core.dom.ASTNode;
@@ -22,6 +24,8 @@ import codemining.ast.java.ParentTypeAnnotatedJavaAstExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
 import codemining.languagetools.ParseType;
 
+import com.google.common.collect.Lists;
+
 /**
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
@@ -49,6 +53,25 @@ public class TreeBinarizerTest {
 		assertEquals(binaryTreeCu, rebinarizedTree);
 	}
 
+	/**
+	 * Check that binarizing during the extraction (and debinarizing during the
+	 * conversion) gives the same trees as binarizing after the extraction.
+	 */
+	private void assertSameFusedBinarization(final String code,
+			final ParseType parseType) {
+		final JavaASTExtractor ex = new JavaASTExtractor(false);
+		final ASTNode cu = ex.getAST(code, parseType);
+		final JavaAstTreeExtractor base = new ParentTypeAnnotatedJavaAstExtractor();
+		final BinaryJavaAstTreeExtractor converter = new BinaryJavaAstTreeExtractor(
+				base);
+		final TreeBinarizer binarizer = converter.getBinarizer();
+
+		final TreeNode<Integer> binaryTreeCu = converter.getTree(cu);
+		assertEquals(binarizer.binarizeTree(base.getTree(cu)), binaryTreeCu);
+		assertEquals(base.getASTFromTree(binarizer.debinarize(binaryTreeCu))
+				.toString(), converter.getASTFromTree(binaryTreeCu).toString());
+	}
+
 	public TreeNode<Integer> generateSampleTree() {
 		final TreeNode<Integer> root = TreeNode.create(1, 1);
 		final TreeNode<Integer> child1 = TreeNode.create(2, 1);
@@ -101,6 +124,39 @@ public class TreeBinarizerTest {
 		assertEquals(generateSampleTree(), binarizer.debinarize(binaryTree));
 	}
 
+	@Test
+	public void testFusedBinarization() {
+		assertSameFusedBinarization(classContent, ParseType.COMPILATION_UNIT);
+		assertSameFusedBinarization(classContent2, ParseType.COMPILATION_UNIT);
+		assertSameFusedBinarization(methodContent, ParseType.METHOD);
+	}
+
+	@Test
+	public void testMultinodes() {
+		final AbstractJavaTreeExtractor extractor = new JavaAstTreeExtractor();
+		for (int i = 0; i < 10; i++) { // Create dummy symbols
+			extractor.getOrAddSymbolId(new AstNodeSymbol(i));
+		}
+		final TreeBinarizer binarizer = new TreeBinarizer(extractor);
+
+		final List<TreeNode<Integer>> children = Lists.newArrayList();
+		for (int i = 2; i < 7; i++) {
+			children.add(TreeNode.create(i, 0));
+		}
+		final TreeNode<Integer> multinodes = binarizer
+				.createMultinodes(children);
+		assertEquals(AstNodeSymbol.MULTI_NODE,
+				extractor.getSymbol(multinodes.getData()).nodeType);
+		assertEquals(children, binarizer.debinarizeChildren(Lists
+				.newArrayList(multinodes)));
+		assertTrue(binarizer.debinarizeChildren(children) == children);
+
+		// The multinode symbols are reused
+		final int nSymbols = extractor.getNodeAlphabet().size();
+		binarizer.createMultinodes(children);
+		assertEquals(nSymbols, extractor.getNodeAlphabet().size());
+	}
+
 	@Test
 	public void testRoundtrip() {
 		assertRoundTripConversion(classContent, ParseType.COMPILATION_UNIT);
@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package codemining.ast.java.tui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import codemining.ast.java.JavaAstTreeExtractor;
+
+import codemining.ast.java.tui.MethodNamingDatasetCreator.JsonLinesWriter;
+import codemining.ast.java.tui.MethodNamingDatasetCreator.MethodNameWithAst;
+
+public class MethodNamingDatasetCreatorTest {
+
+	@Test
+	public void testJsonLines() throws IOException {
+		final File folder = Files.createTempDirectory("dataset").toFile();
+		try {
+			final File output = new File(folder, "dataset.jsonl");
+			try (final JsonLinesWriter writer = new JsonLinesWriter(output, 0)) {
+				for (int i = 0; i < 10; i++) {
+					writer.consume(new MethodNameWithAst("A.java", "method" + i,
+							null));
+				}
+			}
+			final List<String> lines = FileUtils.readLines(output, "UTF-8");
+			assertEquals(10, lines.size());
+			assertEquals("{\"filename\":\"A.java\",\"methodName\":\"method3\"}",
+					lines.get(3));
+			assertEquals(1, folder.list().length);
+		} finally {
+			FileUtils.deleteDirectory(folder);
+		}
+	}
+
+	@Test
+	public void testSharding() throws IOException {
+		final File folder = Files.createTempDirectory("dataset").toFile();
+		try {
+			final File output = new File(folder, "dataset.jsonl");
+			// Each line has 45 characters, so 2 fit in a shard
+			try (final JsonLinesWriter writer = new JsonLinesWriter(output, 100)) {
+				for (int i = 0; i < 5; i++) {
+					writer.consume(new MethodNameWithAst("A.java", "method" + i,
+							null));
+				}
+			}
+			assertFalse(output.exists());
+			for (int shard = 0; shard < 3; shard++) {
+				final File shardFile = new File(folder, String.format(
+						"dataset-%05d.jsonl", shard));
+				assertTrue(shardFile.exists());
+				assertEquals(shard < 2 ? 2 : 1,
+						FileUtils.readLines(shardFile, "UTF-8").size());
+			}
+			assertEquals(3, folder.list().length);
+		} finally {
+			FileUtils.deleteDirectory(folder);
+		}
+	}
+
+	@Test
+	public void testAlphabetIsBoundedAcrossFiles() throws IOException {
+		final File folder = Files.createTempDirectory("corpus").toFile();
+		try {
+			// Files with the same structure, but distinct identifiers
+			final int nFiles = 20;
+			for (int i = 0; i < nFiles; i++) {
+				FileUtils.write(new File(folder, "A" + i + ".java"),
+						"class A" + i + " { int method" + i + "(int arg" + i
+								+ ") { return arg" + i + " + " + i + "; } }",
+						"UTF-8");
+			}
+
+			final List<JavaAstTreeExtractor> extractors = Collections
+					.synchronizedList(Lists.newArrayList());
+			final List<MethodNameWithAst> methods = Lists.newArrayList();
+			MethodNamingDatasetCreator.extractDataset(folder, methods::add,
+					() -> {
+						final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+						extractors.add(extractor);
+						return extractor;
+					});
+
+			assertEquals(nFiles, methods.size());
+			assertEquals(nFiles, extractors.size());
+			final int alphabetSize = extractors.get(0).getNodeAlphabet()
+					.size();
+			for (final JavaAstTreeExtractor extractor : extractors) {
+				assertEquals(alphabetSize, extractor.getNodeAlphabet().size());
+			}
+		} finally {
+			FileUtils.deleteDirectory(folder);
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+public class CFGRuleStoreTest {
+
+	private static NodeConsequent createConsequent(final int[]... properties) {
+		final NodeConsequent consequent = new NodeConsequent(properties.length);
+		for (final int[] children : properties) {
+			final ArrayList<Integer> property = new ArrayList<Integer>();
+			for (final int child : children) {
+				property.add(child);
+			}
+			consequent.nodes.add(property);
+		}
+		return consequent;
+	}
+
+	@Test
+	public void testCounts() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		assertTrue(store.isEmpty());
+
+		store.add(1, buffer.set(createConsequent(new int[] { 2, 3 })));
+		store.add(1, buffer.set(createConsequent(new int[] { 2, 3 })));
+		store.add(1, buffer.set(createConsequent(new int[] { 4 })));
+		store.add(2, buffer.set(createConsequent(new int[] { 2, 3 })));
+
+		assertFalse(store.isEmpty());
+		assertEquals(2, store.getNumRoots());
+		assertEquals(3, store.getNumRules());
+		assertEquals(2,
+				store.getCount(1, buffer.set(createConsequent(new int[] { 2, 3 }))));
+		assertEquals(1,
+				store.getCount(1, buffer.set(createConsequent(new int[] { 4 }))));
+		assertEquals(1,
+				store.getCount(2, buffer.set(createConsequent(new int[] { 2, 3 }))));
+		assertEquals(0,
+				store.getCount(2, buffer.set(createConsequent(new int[] { 4 }))));
+		assertEquals(3, store.getTotalCount(1));
+		assertEquals(1, store.getTotalCount(2));
+		assertEquals(0, store.getTotalCount(3));
+		assertNull(store.getConsequents(3));
+		assertEquals(2,
+				store.getConsequents(1).count(
+						createConsequent(new int[] { 2, 3 })));
+	}
+
+	@Test
+	public void testConcurrentAdds() throws InterruptedException {
+		final CFGRuleStore store = new CFGRuleStore();
+		final List<Thread> threads = Lists.newArrayList();
+		for (int t = 0; t < 8; t++) {
+			threads.add(new Thread(() -> {
+				final ConsequentBuffer buffer = new ConsequentBuffer();
+				for (int i = 0; i < 1000; i++) {
+					store.add(i % 10,
+							buffer.set(createConsequent(new int[] { i % 100 })));
+					store.getCount(i % 10, buffer);
+				}
+			}));
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		assertEquals(10, store.getNumRoots());
+		assertEquals(100, store.getNumRules());
+		assertEquals(100, store.getNumConsequents());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(80, store.getCount(i % 10,
+					buffer.set(createConsequent(new int[] { i }))));
+		}
+		assertEquals(800, store.getTotalCount(0));
+
+		// The ids are 0..n-1, in the order of forEachRule
+		final CFGRuleStore frozen = store.freeze();
+		final int[] nextRule = { 0 };
+		store.forEachRule((root, code, offset, length, count) -> {
+			final ConsequentBuffer ruleBuffer = new ConsequentBuffer();
+			final NodeConsequent consequent = createConsequent(new int[] { code[offset + 2] });
+			assertEquals(nextRule[0], store.getRuleId(root, ruleBuffer.set(consequent)));
+			assertEquals(nextRule[0], frozen.getRuleId(root, ruleBuffer));
+			nextRule[0]++;
+		});
+		assertEquals(100, nextRule[0]);
+	}
+
+	@Test
+	public void testMLProbabilityWhileAdding() throws InterruptedException {
+		final CFGRuleStore store = new CFGRuleStore();
+		final List<Thread> threads = Lists.newArrayList();
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				final ConsequentBuffer buffer = new ConsequentBuffer();
+				for (int i = 0; i < 10000; i++) {
+					store.add(1, buffer.set(createConsequent(new int[] { i % 2 })));
+				}
+			}));
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		final ConsequentBuffer buffer = new ConsequentBuffer()
+				.set(createConsequent(new int[] { 0 }));
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(store.getMLProbability(1, buffer) <= 1);
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(.5, store.getMLProbability(1, buffer), 1E-10);
+		assertEquals(.5, store.freeze().getMLProbability(1, buffer), 1E-10);
+		assertEquals(0, store.getMLProbability(1,
+				buffer.set(createConsequent(new int[] { 2 }))), 1E-10);
+		assertEquals(1, store.getMLProbability(2, buffer), 1E-10);
+	}
+
+	@Test
+	public void testDistinctProperties() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		store.add(1, buffer.set(createConsequent(new int[] { 1, 2 },
+				new int[] {})));
+		assertEquals(0, store.getCount(1,
+				buffer.set(createConsequent(new int[] { 1 }, new int[] { 2 }))));
+		assertEquals(0, store.getCount(1,
+				buffer.set(createConsequent(new int[] { 1, 2 }))));
+		assertEquals(1, store.getCount(1,
+				buffer.set(createConsequent(new int[] { 1, 2 }, new int[] {}))));
+	}
+
+	@Test
+	public void testSharedConsequents() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		store.add(1, buffer.set(createConsequent(new int[] { 2, 3 })));
+		store.add(2, buffer.set(createConsequent(new int[] { 2, 3 })));
+		store.add(1, buffer.set(createConsequent(new int[] { 4 })));
+		assertEquals(3, store.getNumRules());
+		assertEquals(2, store.getNumConsequents());
+
+		final CFGRuleStore frozen = store.freeze();
+		assertEquals(3, frozen.getNumRules());
+		assertEquals(2, frozen.getNumConsequents());
+		assertEquals(1,
+				frozen.getCount(2, buffer.set(createConsequent(new int[] { 2, 3 }))));
+		assertEquals(0,
+				frozen.getCount(2, buffer.set(createConsequent(new int[] { 4 }))));
+		assertEquals(store.toGrammar(), frozen.toGrammar());
+	}
+
+	@Test
+	public void testFreeze() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		store.add(1, buffer.set(createConsequent(new int[] { 2 })));
+		final CFGRuleStore frozen = store.freeze();
+		assertTrue(frozen.isFrozen());
+		assertFalse(store.isFrozen());
+		assertTrue(frozen == frozen.freeze());
+		assertEquals(1, frozen.getCount(1, buffer));
+		try {
+			frozen.add(1, buffer);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		// The original store is unaffected
+		store.add(1, buffer);
+		assertEquals(2, store.getCount(1, buffer));
+		assertEquals(1, frozen.getCount(1, buffer));
+	}
+
+	@Test
+	public void testGrammarRoundtrip() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		for (int i = 0; i < 100; i++) {
+			store.add(i % 7,
+					buffer.set(createConsequent(new int[] { i % 11 },
+							new int[] { i % 3, i })));
+		}
+		final Map<Integer, Multiset<NodeConsequent>> grammar = store
+				.toGrammar();
+		assertEquals(7, grammar.size());
+		final CFGRuleStore copy = CFGRuleStore.fromGrammar(grammar);
+		assertEquals(store.getNumRules(), copy.getNumRules());
+		assertEquals(grammar, copy.toGrammar());
+		assertEquals(grammar, copy.freeze().toGrammar());
+	}
+
+	@Test
+	public void testManyRules() {
+		final CFGRuleStore store = new CFGRuleStore();
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		for (int i = 0; i < 10000; i++) {
+			for (int j = 0; j <= i % 3; j++) {
+				store.add(i % 100,
+						buffer.set(createConsequent(new int[] { i, -i })));
+			}
+		}
+		assertEquals(100, store.getNumRoots());
+		assertEquals(10000, store.getNumRules());
+		final CFGRuleStore frozen = store.freeze();
+		for (int i = 0; i < 10000; i++) {
+			buffer.set(createConsequent(new int[] { i, -i }));
+			assertEquals(i % 3 + 1, store.getCount(i % 100, buffer));
+			assertEquals(i % 3 + 1, frozen.getCount(i % 100, buffer));
+			assertEquals(0, store.getCount(i % 100 + 1, buffer));
+		}
+		assertEquals(199, frozen.getTotalCount(0));
+	}
+
+}
@@ -6,6 +6,8 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -16,9 +18,14 @@ import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.ContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
+import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+import codemining.lm.cfg.CFGRuleStore.ConsequentBuffer;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
+import com.google.common.collect.Multiset;
+import com.google.common.math.DoubleMath;
+
 public class ContextFreeGrammarTest {
 
 	private TreeNode<Integer> generateSampleTree1() {
@@ -110,19 +117,88 @@ public class ContextFreeGrammarTest {
 
 	}
 
+	@Test
+	public void testImmutableLog2Probabilities() {
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		cfg.addRulesFrom(generateSampleTree1());
+		cfg.addRulesFrom(generateSampleTree2());
+		cfg.addRulesFrom(generateSampleTree2());
+		final ImmutableContextFreeGrammar immutableCfg = new ImmutableContextFreeGrammar(
+				cfg);
+
+		final ConsequentBuffer buffer = new ConsequentBuffer();
+		for (final Entry<Integer, Multiset<NodeConsequent>> production : cfg
+				.getInternalGrammar().entrySet()) {
+			for (final NodeConsequent consequent : production.getValue()
+					.elementSet()) {
+				buffer.set(consequent);
+				final double log2Prob = DoubleMath.log2(cfg.getMLProbability(
+						production.getKey(), consequent));
+				assertEquals(log2Prob, immutableCfg.getLog2MLProbability(
+						production.getKey(), buffer), 10E-10);
+				final int rule = immutableCfg.getRuleId(production.getKey(),
+						buffer);
+				assertTrue(rule >= 0);
+				assertEquals(log2Prob, immutableCfg.getLog2MLProbability(rule),
+						10E-10);
+			}
+		}
+		assertEquals(-Math.log(3) / Math.log(2),
+				immutableCfg.getLog2MLProbability(1, buffer.set(getConsequent1())),
+				10E-10);
+
+		// Unseen rules of a seen root and rules of unseen roots
+		assertEquals(-1, immutableCfg.getRuleId(2, buffer));
+		assertEquals(Double.NEGATIVE_INFINITY,
+				immutableCfg.getLog2MLProbability(2, buffer), 0);
+		assertEquals(cfg.getLog2MLProbability(2, buffer),
+				immutableCfg.getLog2MLProbability(2, buffer), 0);
+		assertEquals(0, immutableCfg.getLog2MLProbability(100, buffer), 0);
+		assertEquals(cfg.getLog2MLProbability(100, buffer),
+				immutableCfg.getLog2MLProbability(100, buffer), 0);
+	}
+
+	@Test
+	public void testImmutableSerialization() throws SerializationException {
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		cfg.addRulesFrom(generateSampleTree1());
+		cfg.addRulesFrom(generateSampleTree2());
+		cfg.addRulesFrom(generateSampleTree2());
+		final ImmutableContextFreeGrammar immutableCfg = new ImmutableContextFreeGrammar(
+				cfg);
+
+		final byte[] serialized = Serializer.getSerializer().serialize(
+				immutableCfg);
+		final ImmutableContextFreeGrammar immutableCfg2 = (ImmutableContextFreeGrammar) Serializer
+				.getSerializer().deserializeFrom(serialized);
+
+		assertEquals(immutableCfg.getInternalGrammar(),
+				immutableCfg2.getInternalGrammar());
+		final ConsequentBuffer buffer = new ConsequentBuffer()
+				.set(getConsequent1());
+		final int rule = immutableCfg2.getRuleId(1, buffer);
+		assertTrue(rule >= 0);
+		assertEquals(-Math.log(3) / Math.log(2),
+				immutableCfg2.getLog2MLProbability(rule), 10E-10);
+	}
+
 	@Test
 	public void testRuleExtraction() {
 		final ContextFreeGrammar cfg = new ContextFreeGrammar(
 				mock(AbstractTreeExtractor.class));
 		final CFGRule rule = cfg.createCFRuleForNode(generateSampleTree1());
 		cfg.addCFGRule(rule);
-		assertFalse(cfg.grammar.isEmpty());
-		assertTrue(cfg.grammar.containsKey(1));
-		assertEquals(cfg.grammar.get(1).size(), 1);
+		final Map<Integer, Multiset<NodeConsequent>> grammar = cfg
+				.getInternalGrammar();
+		assertFalse(grammar.isEmpty());
+		assertTrue(grammar.containsKey(1));
+		assertEquals(grammar.get(1).size(), 1);
 
 		final ContextFreeGrammar.NodeConsequent csq = getConsequent1();
 
-		assertTrue(cfg.grammar.get(1).contains(csq));
+		assertTrue(grammar.get(1).contains(csq));
 	}
 
 	@Test
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+
+import com.google.common.math.DoubleMath;
+
+public class MappedTSGrammarTest {
+
+	/**
+	 * A smoothed ML posterior, that also depends on the size of the rules.
+	 */
+	public static final class SmoothedPosteriorComputer implements
+			ITsgPosteriorProbabilityComputer<TSGNode> {
+
+		private static final long serialVersionUID = 2203616520458046435L;
+
+		private final TSGrammar<TSGNode> grammar;
+
+		public SmoothedPosteriorComputer(final TSGrammar<TSGNode> grammar) {
+			this.grammar = grammar;
+		}
+
+		@Override
+		public double computeLog2PosteriorProbabilityOfRule(
+				final TreeNode<TSGNode> tree, final boolean remove) {
+			final double nRulesCommonRoot = grammar.countTreesWithRoot(tree
+					.getData());
+			final double nRulesInGrammar = grammar.countTreeOccurences(tree);
+			return DoubleMath.log2((nRulesInGrammar + .5)
+					/ (nRulesCommonRoot + 1)) - .1 * tree.getTreeSize();
+		}
+	}
+
+	private static TreeNode<TSGNode> createNode(final int key,
+			final boolean isRoot, final int nProperties) {
+		final TSGNode node = new TSGNode(key);
+		node.isRoot = isRoot;
+		return TreeNode.create(node, nProperties);
+	}
+
+	private TreeNode<TSGNode> generateRule1() {
+		final TreeNode<TSGNode> a = createNode(1, true, 1);
+		a.addChildNode(createNode(2, false, 1), 0);
+		a.addChildNode(createNode(3, false, 0), 0);
+		return a;
+	}
+
+	private TreeNode<TSGNode> generateRule2() {
+		final TreeNode<TSGNode> b = createNode(2, true, 1);
+		b.addChildNode(createNode(4, false, 0), 0);
+		b.addChildNode(createNode(5, false, 0), 0);
+		return b;
+	}
+
+	/**
+	 * Return A(B(D, E), C), with the given root bit for B.
+	 */
+	private TreeNode<TSGNode> generateTree(final boolean isRootB) {
+		final TreeNode<TSGNode> a = createNode(1, true, 1);
+		final TreeNode<TSGNode> b = createNode(2, isRootB, 1);
+		a.addChildNode(b, 0);
+		a.addChildNode(createNode(3, false, 0), 0);
+		b.addChildNode(createNode(4, false, 0), 0);
+		b.addChildNode(createNode(5, false, 0), 0);
+		return a;
+	}
+
+	@Test
+	public void testMappedGrammar() throws IOException {
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(
+				new JavaAstTreeExtractor());
+		grammar.setPosteriorComputer(new SmoothedPosteriorComputer(grammar));
+		grammar.addTree(generateRule1(), 3);
+		grammar.addTree(generateRule2(), 2);
+		grammar.addTree(generateTree(false), 5);
+
+		final File file = File.createTempFile("tsg", ".mapped");
+		try {
+			assertFalse(MappedTSGrammar.isMappedGrammar(file));
+			MappedTSGrammar.export(grammar, file);
+			assertTrue(MappedTSGrammar.isMappedGrammar(file));
+			final MappedTSGrammar mapped = MappedTSGrammar.open(file);
+			assertTrue(mapped.getTreeExtractor().isFrozen());
+
+			assertEquals(mapped.getInternalGrammar(),
+					grammar.getInternalGrammar());
+			assertEquals(mapped.computeGrammarTreeSizeStats(),
+					grammar.computeGrammarTreeSizeStats());
+			assertEquals(mapped.countTreesWithRoot(generateRule1().getData()),
+					8);
+			assertEquals(mapped.countTreeOccurences(generateTree(true)), 0);
+			for (final TreeNode<TSGNode> rule : grammar.getInternalGrammar()
+					.get(generateRule1().getData()).elementSet()) {
+				assertEquals(mapped.countTreeOccurences(rule),
+						grammar.countTreeOccurences(rule));
+				assertEquals(
+						mapped.computeRulePosteriorLog2Probability(rule),
+						grammar.computeRulePosteriorLog2Probability(rule),
+						10E-10);
+			}
+
+			// The mapped grammar backs off to the same CFG rules
+			final double log2Prob = new TreeProbabilityComputer<TSGNode>(
+					grammar, false, TreeProbabilityComputer.TSGNODE_KEY_MATCHER)
+					.getLog2ProbabilityOf(generateTree(false));
+			final double mappedLog2Prob = new TreeProbabilityComputer<TSGNode>(
+					mapped, false, TreeProbabilityComputer.TSGNODE_KEY_MATCHER)
+					.getLog2ProbabilityOf(generateTree(false));
+			assertEquals(mappedLog2Prob, log2Prob, 10E-10);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNoPosteriorComputer() throws IOException {
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(
+				new JavaAstTreeExtractor());
+		grammar.addTree(generateRule1(), 3);
+
+		final File file = File.createTempFile("tsg", ".mapped");
+		try {
+			MappedTSGrammar.export(grammar, file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testUnseenRulePosteriors() throws IOException {
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(
+				new JavaAstTreeExtractor());
+		grammar.setPosteriorComputer(new SmoothedPosteriorComputer(grammar));
+		grammar.addTree(generateRule1(), 3);
+		grammar.addTree(generateRule2(), 2);
+		grammar.addTree(generateTree(false), 5);
+
+		// A(C), with a known root
+		final TreeNode<TSGNode> knownRoot = createNode(1, true, 1);
+		knownRoot.addChildNode(createNode(3, false, 0), 0);
+		// F(C), with a root that is not in the grammar
+		final TreeNode<TSGNode> unknownRoot = createNode(6, true, 1);
+		unknownRoot.addChildNode(createNode(3, false, 0), 0);
+		// A(B(D, E), C), with B as a root
+		final TreeNode<TSGNode> rootedTree = generateTree(true);
+
+		final File file = File.createTempFile("tsg", ".mapped");
+		try {
+			MappedTSGrammar.export(grammar, file);
+			final MappedTSGrammar mapped = MappedTSGrammar.open(file);
+			for (final TreeNode<TSGNode> rule : Arrays.asList(knownRoot,
+					unknownRoot, rootedTree)) {
+				assertEquals(mapped.countTreeOccurences(rule), 0);
+				assertEquals(
+						mapped.computeRulePosteriorLog2Probability(rule),
+						grammar.computeRulePosteriorLog2Probability(rule),
+						10E-10);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package codemining.lm.tsg.idioms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+
+public class PatternCorpusTest {
+
+	@Test
+	public void testInterningAfterSerialization() throws IOException,
+			ClassNotFoundException {
+		final PatternCorpus corpus = new PatternCorpus(null);
+		for (int i = 0; i < 2; i++) {
+			final TreeNode<Integer> pattern = TreeNode.create(i, 2);
+			final TreeNode<Integer> shared = TreeNode.create(10, 1);
+			shared.addChildNode(TreeNode.create(11, 0), 0);
+			pattern.addChildNode(shared, 1);
+			corpus.addPattern(pattern);
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(corpus);
+		}
+		final PatternCorpus copy;
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()))) {
+			copy = (PatternCorpus) in.readObject();
+		}
+
+		assertEquals(corpus.getPatterns(), copy.getPatterns());
+		final Iterator<TreeNode<Integer>> patterns = copy.getPatterns()
+				.iterator();
+		final TreeNode<Integer> pattern1 = patterns.next();
+		final TreeNode<Integer> pattern2 = patterns.next();
+		assertTrue(pattern1.getChild(0, 1) == pattern2.getChild(0, 1));
+	}
+
+}
@@ -1,9 +1,11 @@
 package codemining.lm.tsg.samplers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -209,6 +211,23 @@ public class CollapsedGibbsSamplerTest {
 		assertEquals(((double) countRoot) / 10000, .09, .1);
 	}
 
+	@Test
+	public void testPendingTrees() {
+		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(10, 10,
+				mockGrammar, mockGrammar);
+		sampler.addTree(generateSampleTree());
+		assertEquals(sampler.getTreeCorpus().size(), 0);
+
+		sampler.sampleAllTreesOnce(0, 1, new AtomicBoolean(false));
+		assertEquals(sampler.getTreeCorpus().size(), 1);
+		final TreeNode<TSGNode> addedTree = sampler.getTreeCorpus().get(0);
+		assertEquals(TSGNode.tsgTreeToInt(addedTree),
+				TSGNode.tsgTreeToInt(generateSampleTree()));
+		assertTrue(addedTree.getData().isRoot);
+	}
+
 	@Test
 	public void testSampleWithLock() {
 		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
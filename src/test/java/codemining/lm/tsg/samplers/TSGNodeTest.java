@@ -6,6 +6,7 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import codemining.ast.FlatTree;
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
@@ -104,6 +105,22 @@ public class TSGNodeTest {
 		assertEquals(tree1, TSGNode.getSubTreeFromRoot(tree1));
 	}
 
+	@Test
+	public void testFlatTreeConversion() {
+		final TreeNode<TSGNode> tree1 = generateSampleTree();
+		tree1.getChild(0, 0).getData().isRoot = true;
+
+		final FlatTree flat = TSGNode.toFlatTree(tree1);
+		assertEquals(flat.size(), tree1.getTreeSize());
+		assertTrue(flat.isFlagged(0));
+		assertTrue(flat.isFlagged(1));
+		assertFalse(flat.isFlagged(2));
+		assertEquals(TSGNode.fromFlatTree(flat), tree1);
+
+		final TreeNode<TSGNode> converted = TSGNode.convertTree(flat, 0);
+		assertEquals(converted, generateSampleTree());
+	}
+
 	@Test
 	public void testTreesMatchToRoot() {
 		final TreeWithNodeIndex tree1 = TreeWithNodeIndex.generateTree1();
@@ -2,9 +2,11 @@ package codemining.lm.tsg.samplers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
+import codemining.ast.IntKeyMatcher;
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.ITreeSubstitutionGrammar;
 import codemining.lm.tsg.TSGrammar;
@@ -112,4 +114,33 @@ public class TSGrammarTest {
 		assertEquals(grammar.countTreesWithRoot(1), 2);
 	}
 
+	@Test
+	public void testProductionsWithRoot() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1());
+		assertEquals(
+				grammar.getProductionsWithRoot(1, IntKeyMatcher.INTEGER_MATCHER)
+						.size(), 1);
+		assertNull(grammar.getProductionsWithRoot(6,
+				IntKeyMatcher.INTEGER_MATCHER));
+
+		// Roots added after a lookup are found
+		grammar.addTree(generateSampleTree2());
+		grammar.addTree(generateSampleTree2());
+		assertEquals(
+				grammar.getProductionsWithRoot(6, IntKeyMatcher.INTEGER_MATCHER)
+						.size(), 2);
+		assertEquals(
+				grammar.getProductionsWithRoot(6, IntKeyMatcher.INTEGER_MATCHER),
+				grammar.getProductionsWithRoot(6, (from, to) -> from.equals(to)));
+
+		// Pruned roots are not
+		grammar.prune(2);
+		assertNull(grammar.getProductionsWithRoot(1,
+				IntKeyMatcher.INTEGER_MATCHER));
+		assertEquals(
+				grammar.getProductionsWithRoot(6, IntKeyMatcher.INTEGER_MATCHER)
+						.size(), 2);
+	}
+
 }
@@ -1,12 +1,22 @@
 package codemining.lm.tsg.samplers.blocked;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.junit.Test;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.math.DoubleMath;
 
 import codemining.ast.TreeNode;
@@ -158,6 +168,64 @@ public class BlockCollapsedGibbsSamplerTest {
         assertEquals(((double) countRoot) / 10000, .5, .1);
     }
 
+    @Test
+    public void testSampleAfterSerialization() throws IOException, ClassNotFoundException {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
+                mock(AbstractJavaTreeExtractor.class, withSettings().serializable()));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10, mockGrammar, mockGrammar);
+        sampler.addTree(generateSampleTree(), true);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(sampler);
+        }
+        final BlockCollapsedGibbsSampler reloaded;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            reloaded = (BlockCollapsedGibbsSampler) in.readObject();
+        }
+
+        final TreeNode<TSGNode> reloadedTree = reloaded.getTreeCorpus().get(0);
+        testSampler(reloadedTree, reloadedTree.getChild(0, 1), reloaded);
+    }
+
+    @Test
+    public void testSampleGrammarSerialization() throws IOException, ClassNotFoundException {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
+                mock(AbstractJavaTreeExtractor.class, withSettings().serializable()));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10, mockGrammar, mockGrammar);
+        for (int i = 0; i < 20; i++) {
+            final TreeNode<TSGNode> tree = sampler.addTree(generateSampleTree(), true);
+            sampler.sampleAt(tree.getChild(0, 1));
+        }
+        final FormattedTSGrammar grammar = mockGrammar;
+        grammar.prune(2);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(grammar);
+        }
+        final FormattedTSGrammar reloaded;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            reloaded = (FormattedTSGrammar) in.readObject();
+        }
+        assertEquals(reloaded.getInternalGrammar().keySet(), grammar.getInternalGrammar().keySet());
+        for (final TSGNode root : grammar.getInternalGrammar().keySet()) {
+            final Multiset<TreeNode<TSGNode>> rules = grammar.getInternalGrammar().get(root);
+            final Multiset<TreeNode<TSGNode>> reloadedRules = reloaded.getInternalGrammar().get(root);
+            assertEquals(HashMultiset.create(reloadedRules), HashMultiset.create(rules));
+            for (final TreeNode<TSGNode> rule : rules.elementSet()) {
+                assertEquals(reloaded.countTreeOccurences(rule), grammar.countTreeOccurences(rule));
+            }
+        }
+
+        // The rules take less space than their node graphs
+        final ByteArrayOutputStream graphBytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(graphBytes)) {
+            out.writeObject(new HashMap<>(grammar.getInternalGrammar()));
+        }
+        assertTrue(bytes.size() < graphBytes.size());
+    }
+
     @Test
     public void testSampleWithLock() {
         final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));